@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidad.bean;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.el.ValueExpression;
+
+import javax.faces.context.ExternalContext;
+import javax.faces.context.FacesContext;
+import javax.faces.event.PhaseId;
+
+
+/**
+ * Request-scoped cache of the values of the ValueExpressions bound to
+ * FacesBean properties.
+ * <p>
+ * Renderers ask for the same bound properties of a component, such as "rendered",
+ * "disabled" or "styleClass", many times while rendering it.  If the
+ * {@link #CACHE_BOUND_VALUES_PARAM_NAME} context parameter is "true", the value of
+ * a bound property is only evaluated the first time it is asked for during the
+ * Render Response phase, and then returned from the cache until:
+ * <ul>
+ * <li>the local value or the binding of the property is removed or replaced,
+ *     or the state of its bean is restored</li>
+ * <li>{@link #invalidate} is called.  The Trinidad collection components do so
+ *     whenever their current row changes, and so must any other code that changes
+ *     the values of EL variables while the page is rendered.</li>
+ * </ul>
+ * Applications that render Trinidad components inside iterating components that
+ * don't call {@link #invalidate}, such as h:dataTable, must not enable the cache.
+ */
+public final class BoundValueCache
+{
+  /**
+   * Context parameter that, when set to "true", caches the values of bound
+   * properties while the page is rendered.
+   */
+  public static final String CACHE_BOUND_VALUES_PARAM_NAME =
+    "org.apache.myfaces.trinidad.CACHE_BOUND_VALUES";
+
+  /**
+   * Invalidates all cached values of the current request.  Must be called whenever
+   * the value of an EL variable changes while the page is rendered.
+   */
+  public static void invalidate(FacesContext context)
+  {
+    BoundValueCache cache = getInstance(context);
+    if (cache != null)
+      cache._generation++;
+  }
+
+  /**
+   * Returns the cache for the current request, or null if bound values
+   * aren't cached.
+   */
+  static BoundValueCache getInstance(FacesContext context)
+  {
+    if ((context == null) || (context.getCurrentPhaseId() != PhaseId.RENDER_RESPONSE))
+      return null;
+
+    Map<Object, Object> attrs = context.getAttributes();
+    Object cache = attrs.get(_CACHE_KEY);
+
+    if (cache == null)
+    {
+      cache = _isEnabled(context.getExternalContext()) ? new BoundValueCache() : _DISABLED;
+      attrs.put(_CACHE_KEY, cache);
+    }
+
+    return (cache != _DISABLED) ? (BoundValueCache)cache : null;
+  }
+
+  /**
+   * Invalidates the cached value of a property of a bean.  Only called when the
+   * property had a binding, since only the values of bindings are cached.
+   */
+  static void invalidate(FacesBean bean, PropertyKey key)
+  {
+    int index = key.getIndex();
+
+    // only the keys registered with the bean's type have cached values
+    if (index < 0)
+      return;
+
+    BoundValueCache cache = getInstance(FacesContext.getCurrentInstance());
+    if (cache != null)
+    {
+      Entry entry = cache._entries.get(bean);
+      if (entry != null)
+        entry.clearValue(cache._generation, index);
+    }
+  }
+
+  /**
+   * Returns the value of a bound property, evaluating its expression only
+   * if the value isn't cached.
+   */
+  Object getValue(
+    FacesContext    context,
+    FacesBean       bean,
+    PropertyKey     key,
+    ValueExpression expression)
+  {
+    int index = key.getIndex();
+
+    // only the keys registered with the bean's type have an index
+    if (index < 0)
+      return expression.getValue(context.getELContext());
+
+    Entry entry = _entries.get(bean);
+    if (entry == null)
+    {
+      entry = new Entry();
+      _entries.put(bean, entry);
+    }
+
+    Object[] values = entry.getValues(_generation, index);
+    Object value = values[index];
+
+    if (value == null)
+    {
+      value = expression.getValue(context.getELContext());
+      values[index] = (value == null) ? _NULL : value;
+      return value;
+    }
+
+    return (value == _NULL) ? null : value;
+  }
+
+  private BoundValueCache()
+  {
+  }
+
+  private static boolean _isEnabled(ExternalContext external)
+  {
+    return "true".equalsIgnoreCase(external.getInitParameter(CACHE_BOUND_VALUES_PARAM_NAME));
+  }
+
+  /**
+   * Cached values of a bean, by key index.
+   */
+  private static final class Entry
+  {
+    /**
+     * Returns the values array, cleared if the values were cached in an older
+     * generation, and large enough to hold the value of the key index.
+     */
+    public Object[] getValues(int generation, int index)
+    {
+      if ((_values == null) || (_generation != generation))
+      {
+        _values = new Object[Math.max(index + 1, _INITIAL_SIZE)];
+        _generation = generation;
+      }
+      else if (index >= _values.length)
+      {
+        Object[] values = new Object[Math.max(index + 1, _values.length * 2)];
+        System.arraycopy(_values, 0, values, 0, _values.length);
+        _values = values;
+      }
+
+      return _values;
+    }
+
+    /**
+     * Clears the value of a key index, if cached in the current generation.
+     */
+    public void clearValue(int generation, int index)
+    {
+      if ((_generation == generation) && (_values != null) && (index < _values.length))
+        _values[index] = null;
+    }
+
+    private int      _generation;
+    private Object[] _values;
+
+    private static final int _INITIAL_SIZE = 16;
+  }
+
+  private final Map<FacesBean, Entry> _entries = new IdentityHashMap<FacesBean, Entry>();
+  private int _generation;
+
+  private static final Object _NULL = new Object();
+  private static final Object _DISABLED = new Object();
+  private static final String _CACHE_KEY = BoundValueCache.class.getName();
+}
@@ -70,6 +70,10 @@ abstract public class FacesBeanImpl implements FacesBean
       if (expression != null)
       {
         FacesContext context = FacesContext.getCurrentInstance();
+        BoundValueCache cache = BoundValueCache.getInstance(context);
+        if (cache != null)
+          return cache.getValue(context, this, key, expression);
+
         return expression.getValue(context.getELContext());
       }
     }
@@ -129,17 +133,21 @@ abstract public class FacesBeanImpl implements FacesBean
         "CANNOT_FIND_PROPERTY", key.getName()));
     }
 
+    Object oldExpression;
+
     if (expression == null)
     {
       PropertyMap map = _getExpressionsMap(false);
-      if (map != null)
-        map.remove(key);
+      oldExpression = (map != null) ? map.remove(key) : null;
     }
     else
     {
-      _getExpressionsMap(true).put(key, expression);
+      oldExpression = _getExpressionsMap(true).put(key, expression);
     }
 
+    // only the values of existing bindings can have been cached
+    if (oldExpression != null)
+      BoundValueCache.invalidate(this, key);
   }
 
   @SuppressWarnings("deprecation")
@@ -421,9 +429,18 @@ abstract public class FacesBeanImpl implements FacesBean
   protected void setPropertyImpl(PropertyKey key, Object value)
   {
     if (value == null)
+    {
       _getPropertyMap().remove(key);
+
+      // the binding's value, which the local value hid, may be stale if it was cached
+      // before the local value was set
+      if (key.getSupportsBinding() && (getValueExpression(key) != null))
+        BoundValueCache.invalidate(this, key);
+    }
     else
+    {
       _getPropertyMap().put(key, value);
+    }
   }
 
   protected Object getLocalPropertyImpl(PropertyKey key)
@@ -292,6 +292,29 @@ public class PropertyKey
     return _index;
   }
 
+  /**
+   * Returns the index of this property in a type, or -1 if this property isn't
+   * registered with the type or one of its super types.
+   */
+  public int getIndex(FacesBean.Type type)
+  {
+    int index = _index;
+
+    if ((index < 0) || (type == null))
+      return -1;
+
+    // a key is usually used with the same few types over and over, so remember the
+    // last type the key was found in rather than looking it up in the type each time
+    if ((type == _owner) || (type == _lastIndexedType))
+      return index;
+
+    if (type.findKey(index) != this)
+      return -1;
+
+    _lastIndexedType = type;
+    return index;
+  }
+
 
   public Object saveValue(
     FacesContext context,
@@ -439,6 +462,10 @@ public class PropertyKey
   // true if we should use StateUtils.saveList() to save the state
   private final boolean  _serializeAsList;
   private       FacesBean.Type _owner;
+
+  // the last type, other than the owner, that the key was found in.  Only a cache, so
+  // it doesn't matter if another thread doesn't see the latest type
+  private       FacesBean.Type _lastIndexedType;
   private final Mutable  _mutable;
 
   private static final Class<List> LIST_CLASS = List.class;
@@ -0,0 +1,644 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidad.bean.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.el.ValueExpression;
+
+import javax.faces.component.PartialStateHolder;
+import javax.faces.context.FacesContext;
+
+import org.apache.myfaces.trinidad.bean.FacesBean;
+import org.apache.myfaces.trinidad.bean.PropertyKey;
+import org.apache.myfaces.trinidad.bean.PropertyMap;
+
+
+/**
+ * PropertyMap that stores the values of the keys registered with its
+ * FacesBean type in a sparse array:  a bitset records which key indexes have
+ * been set, and the values of the set keys are packed in index order into an
+ * array sized by the number of keys set, so a bean with a single high-index
+ * property only needs a single slot.  Getting or setting such a property costs
+ * counting the bits before the key's bit instead of a hash lookup, and needs
+ * no entry objects.  Other keys, such as the keys created for arbitrary
+ * attributes, are stored in a hash map.
+ * <p>
+ * Deltas are tracked after markInitialState() is called in the same way as
+ * PropertyHashMap.
+ */
+public class IndexedPropertyMap extends AbstractMap<PropertyKey,Object>
+                                implements PropertyMap
+{
+  /**
+   * Creates a map for the properties of a bean.
+   * @param type FacesBean type of the bean owning the map.  If null, all
+   * properties are stored in a hash map.
+   */
+  public IndexedPropertyMap(FacesBean.Type type)
+  {
+    _type = type;
+  }
+
+  @Override
+  public int size()
+  {
+    return (_overflow == null) ? _size : _size + _overflow.size();
+  }
+
+  @Override
+  public boolean isEmpty()
+  {
+    return size() == 0;
+  }
+
+  @Override
+  public boolean containsKey(
+    Object key)
+  {
+    if (!(key instanceof PropertyKey))
+      return false;
+
+    int index = _getIndex((PropertyKey) key);
+    if (index >= 0)
+      return _isSet(index);
+
+    return (_overflow != null) ? _overflow.containsKey(key) : false;
+  }
+
+  @Override
+  public Object get(
+    Object key)
+  {
+    if (!(key instanceof PropertyKey))
+      return null;
+
+    int index = _getIndex((PropertyKey) key);
+    if (index >= 0)
+      return _isSet(index) ? _values[_getSlot(index)] : null;
+
+    return (_overflow != null) ? _overflow.get(key) : null;
+  }
+
+  @Override
+  public Object put(
+    PropertyKey key,
+    Object      value)
+  {
+    Object retValue = _putValue(key, value);
+
+    if (_createDeltas())
+    {
+      if (key.getMutable().isAtLeastSometimesMutable() || !_equals(value, retValue))
+        _deltas.put(key, value);
+    }
+    else if (key.getMutable().isAtLeastSometimesMutable() && !(value instanceof ValueExpression))
+    {
+      _getMutableTracker(true).addProperty(key);
+    }
+
+    if (key.isPartialStateHolder())
+    {
+      _getPartialStateHolderTracker(true).addProperty(key);
+    }
+
+    return retValue;
+  }
+
+  @Override
+  public Object remove(
+    Object key)
+  {
+    if (!(key instanceof PropertyKey))
+      return null;
+
+    PropertyKey propKey = (PropertyKey) key;
+    boolean useDeltas = _createDeltas();
+
+    if (useDeltas)
+    {
+      if (!containsKey(propKey))
+        return null;
+
+      _deltas.put(propKey, null);
+    }
+
+    if (propKey.isPartialStateHolder())
+    {
+      _getPartialStateHolderTracker(true).removeProperty(propKey);
+    }
+
+    if (!useDeltas && propKey.getMutable().isAtLeastSometimesMutable())
+    {
+      PropertyTracker mutableTracker = _getMutableTracker(false);
+
+      if (mutableTracker != null)
+        mutableTracker.removeProperty(propKey);
+    }
+
+    return _removeValue(propKey);
+  }
+
+  @Override
+  public void clear()
+  {
+    _values = _EMPTY_VALUES;
+    _set = _EMPTY_SET;
+    _size = 0;
+    _overflow = null;
+  }
+
+  @Override
+  public Set<Map.Entry<PropertyKey, Object>> entrySet()
+  {
+    return new EntrySet();
+  }
+
+  public Object saveState(FacesContext context)
+  {
+    if (_initialStateMarked)
+    {
+      if (_deltas == null)
+      {
+        // if deltas is null still call _createDeltaPropertyMap but pass in false in case there
+        // are mutable or partialStateHolder attributes
+        _deltas = _createDeltaPropertyMap(false);
+      }
+
+      if (_deltas == null)
+        return null;
+
+      return StateUtils.saveState(_deltas, context, getUseStateHolder());
+    }
+    else
+    {
+      return StateUtils.saveState(this, context, getUseStateHolder());
+    }
+  }
+
+  public void restoreState(
+    FacesContext context,
+    FacesBean.Type type,
+    Object state)
+  {
+    StateUtils.restoreState(this, context, type, state, getUseStateHolder());
+  }
+
+  public boolean getUseStateHolder()
+  {
+    return _useStateHolder;
+  }
+
+  public void setUseStateHolder(boolean useStateHolder)
+  {
+    _useStateHolder = useStateHolder;
+  }
+
+  public void markInitialState()
+  {
+    _initialStateMarked = true;
+
+    PropertyTracker tracker = _getPartialStateHolderTracker(false);
+    if (tracker != null)
+    {
+      for (PropertyKey key: tracker)
+      {
+        Object val = get(key);
+        if (val != null)
+        {
+          ((PartialStateHolder)val).markInitialState();
+        }
+      }
+    }
+  }
+
+  public void clearInitialState()
+  {
+    _initialStateMarked = false;
+    _deltas = null;
+
+    PropertyTracker tracker = _getPartialStateHolderTracker(false);
+    if (tracker != null)
+    {
+      for (PropertyKey key: tracker)
+      {
+        Object val = get(key);
+        if (val != null)
+        {
+          ((PartialStateHolder)val).clearInitialState();
+        }
+      }
+    }
+  }
+
+  public boolean initialStateMarked()
+  {
+    return _initialStateMarked;
+  }
+
+  protected PropertyMap createDeltaPropertyMap()
+  {
+    return _createDeltaPropertyMap(true);
+  }
+
+  /**
+   * @param createAlways if createAlways is true then always create the map.
+   *        If createAlways is false then only create the map if one of the trackers are empty
+   */
+  private PropertyMap _createDeltaPropertyMap(boolean createAlways)
+  {
+    PropertyTracker tracker = _getMutableTracker(false);
+    PropertyTracker partialTracker = _getPartialStateHolderTracker(false);
+
+    if (createAlways || tracker != null || partialTracker != null)
+    {
+      PropertyHashMap map = new PropertyHashMap(2);
+      map.setUseStateHolder(getUseStateHolder());
+      map.setType(_type);
+
+      if (tracker != null)
+      {
+        for (PropertyKey key: tracker)
+        {
+          Object val = get(key);
+
+          if (val != null)
+          {
+            map.put(key, val);
+          }
+        }
+
+        _mutableTracker = null;
+      }
+
+      if (partialTracker != null)
+      {
+        for (PropertyKey key: partialTracker)
+        {
+          // the key might have been in the mutable tracker, so check if the map already contains the key
+          if (!map.containsKey(key))
+          {
+            Object val = get(key);
+
+            if (val != null)
+            {
+              map.put(key, val);
+            }
+          }
+        }
+      }
+
+      return map;
+    }
+
+    return null;
+  }
+
+  private boolean _createDeltas()
+  {
+    if (_initialStateMarked)
+    {
+      if (_deltas == null)
+      {
+        _deltas = createDeltaPropertyMap();
+      }
+
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Returns the index of the slot of a key, or -1 if the key
+   * isn't registered with the type of this map.
+   */
+  private int _getIndex(PropertyKey key)
+  {
+    // keys of another type can have the same index
+    return key.getIndex(_type);
+  }
+
+  private boolean _isSet(int index)
+  {
+    int word = index >> 6;
+    return (word < _set.length) && ((_set[word] & (1L << index)) != 0);
+  }
+
+  /**
+   * Returns the slot of the value of an index in the packed values array, which
+   * is the number of indexes set before it.
+   */
+  private int _getSlot(int index)
+  {
+    int word = index >> 6;
+    int slot = Long.bitCount(_set[word] & ((1L << index) - 1));
+
+    for (int i = 0; i < word; i++)
+      slot += Long.bitCount(_set[i]);
+
+    return slot;
+  }
+
+  private Object _putValue(PropertyKey key, Object value)
+  {
+    int index = _getIndex(key);
+
+    if (index < 0)
+    {
+      if (_overflow == null)
+        _overflow = new HashMap<PropertyKey, Object>();
+
+      return _overflow.put(key, value);
+    }
+
+    if (_isSet(index))
+    {
+      int slot = _getSlot(index);
+      Object oldValue = _values[slot];
+      _values[slot] = value;
+
+      return oldValue;
+    }
+
+    int word = index >> 6;
+    if (word >= _set.length)
+    {
+      long[] set = new long[word + 1];
+      System.arraycopy(_set, 0, set, 0, _set.length);
+      _set = set;
+    }
+
+    _set[word] |= 1L << index;
+
+    int slot = _getSlot(index);
+    if (_size == _values.length)
+    {
+      Object[] values = new Object[Math.max(_values.length * 2, _MIN_LENGTH)];
+      System.arraycopy(_values, 0, values, 0, slot);
+      System.arraycopy(_values, slot, values, slot + 1, _size - slot);
+      _values = values;
+    }
+    else
+    {
+      System.arraycopy(_values, slot, _values, slot + 1, _size - slot);
+    }
+
+    _values[slot] = value;
+    _size++;
+
+    return null;
+  }
+
+  private Object _removeValue(PropertyKey key)
+  {
+    int index = _getIndex(key);
+
+    if (index < 0)
+      return (_overflow != null) ? _overflow.remove(key) : null;
+
+    return _removeIndex(index);
+  }
+
+  private Object _removeIndex(int index)
+  {
+    if (!_isSet(index))
+      return null;
+
+    int slot = _getSlot(index);
+    Object oldValue = _values[slot];
+
+    System.arraycopy(_values, slot + 1, _values, slot, _size - slot - 1);
+    _values[_size - 1] = null;
+    _set[index >> 6] &= ~(1L << index);
+    _size--;
+
+    return oldValue;
+  }
+
+  static private boolean _equals(Object a, Object b)
+  {
+    if (a == b)
+      return true;
+
+    if (a == null)
+      return false;
+
+    return a.equals(b);
+  }
+
+  private PropertyTracker _getPartialStateHolderTracker(boolean create)
+  {
+    if (_tracker == null && create)
+    {
+      if (_type == null)
+      {
+        throw new IllegalStateException("FacesBean.TYPE is required to track properties");
+      }
+      _tracker = new PropertyTracker(_type);
+    }
+    return _tracker;
+  }
+
+  private PropertyTracker _getMutableTracker(boolean create)
+  {
+    if (_mutableTracker == null && create)
+    {
+      if (_type == null)
+      {
+        throw new IllegalStateException("FacesBean.TYPE is required to track properties");
+      }
+      _mutableTracker = new PropertyTracker(_type);
+    }
+    return _mutableTracker;
+  }
+
+  private class EntrySet extends AbstractSet<Map.Entry<PropertyKey, Object>>
+  {
+    @Override
+    public int size()
+    {
+      return IndexedPropertyMap.this.size();
+    }
+
+    @Override
+    public Iterator<Map.Entry<PropertyKey, Object>> iterator()
+    {
+      return new EntryIterator();
+    }
+  }
+
+  /**
+   * Iterates over the entries of the indexed properties, and then over
+   * the entries of the hash map.  Like the iterators of HashMap, removing
+   * entries through the iterator bypasses delta tracking.
+   */
+  private class EntryIterator implements Iterator<Map.Entry<PropertyKey, Object>>
+  {
+    public EntryIterator()
+    {
+      _next = _findSet(0);
+    }
+
+    public boolean hasNext()
+    {
+      if (_next >= 0)
+        return true;
+
+      if (_overflowIterator == null)
+      {
+        if ((_overflow == null) || _overflow.isEmpty())
+          return false;
+
+        _overflowIterator = _overflow.entrySet().iterator();
+      }
+
+      return _overflowIterator.hasNext();
+    }
+
+    public Map.Entry<PropertyKey, Object> next()
+    {
+      if (!hasNext())
+        throw new NoSuchElementException();
+
+      if (_next >= 0)
+      {
+        _current = _next;
+        _next = _findSet(_next + 1);
+        return new IndexedEntry(_current);
+      }
+
+      _current = -1;
+      return _overflowIterator.next();
+    }
+
+    public void remove()
+    {
+      if (_current >= 0)
+      {
+        _removeIndex(_current);
+        _current = -1;
+      }
+      else if (_overflowIterator != null)
+      {
+        _overflowIterator.remove();
+      }
+      else
+      {
+        throw new IllegalStateException();
+      }
+    }
+
+    private int _findSet(int from)
+    {
+      for (int word = from >> 6; word < _set.length; word++)
+      {
+        long bits = _set[word];
+        if (word == (from >> 6))
+          bits &= (-1L << from);
+
+        if (bits != 0)
+          return (word << 6) + Long.numberOfTrailingZeros(bits);
+      }
+
+      return -1;
+    }
+
+    private int _next;
+    private int _current = -1;
+    private Iterator<Map.Entry<PropertyKey, Object>> _overflowIterator;
+  }
+
+  /**
+   * Entry of an indexed property.  Setting its value bypasses delta tracking,
+   * like the entries of HashMap.
+   */
+  private class IndexedEntry implements Map.Entry<PropertyKey, Object>
+  {
+    public IndexedEntry(int index)
+    {
+      _index = index;
+    }
+
+    public PropertyKey getKey()
+    {
+      return _type.findKey(_index);
+    }
+
+    public Object getValue()
+    {
+      return _values[_getSlot(_index)];
+    }
+
+    public Object setValue(Object value)
+    {
+      int slot = _getSlot(_index);
+      Object oldValue = _values[slot];
+      _values[slot] = value;
+      return oldValue;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Map.Entry))
+        return false;
+
+      Map.Entry<?, ?> that = (Map.Entry<?, ?>) o;
+      return getKey().equals(that.getKey()) && _equals(getValue(), that.getValue());
+    }
+
+    @Override
+    public int hashCode()
+    {
+      Object value = getValue();
+      return getKey().hashCode() ^ ((value == null) ? 0 : value.hashCode());
+    }
+
+    @Override
+    public String toString()
+    {
+      return getKey() + "=" + getValue();
+    }
+
+    private final int _index;
+  }
+
+  private final FacesBean.Type _type;
+  private Object[]             _values = _EMPTY_VALUES;
+  private long[]               _set = _EMPTY_SET;
+  private int                  _size;
+  private Map<PropertyKey, Object> _overflow;
+
+  private boolean         _useStateHolder;
+  private boolean         _initialStateMarked;
+  private PropertyMap     _deltas;
+  private PropertyTracker _tracker;
+  private PropertyTracker _mutableTracker;
+
+  static private final Object[] _EMPTY_VALUES = new Object[0];
+  static private final long[]   _EMPTY_SET = new long[0];
+  static private final int      _MIN_LENGTH = 4;
+}
@@ -26,6 +26,7 @@ import javax.faces.context.FacesContext;
 import javax.faces.event.FacesEvent;
 import javax.faces.event.PhaseId;
 
+import org.apache.myfaces.trinidad.bean.BoundValueCache;
 import org.apache.myfaces.trinidad.event.DisclosureEvent;
 import org.apache.myfaces.trinidad.event.FocusEvent;
 import org.apache.myfaces.trinidad.event.RangeChangeEvent;
@@ -95,6 +96,8 @@ public final class TableUtils
   @SuppressWarnings("unchecked")
   public static Object setupELVariable(FacesContext context, String name, Object value)
   {
+    BoundValueCache.invalidate(context);
+
     Map<String, Object> requestMap = context.getExternalContext().getRequestMap();
     if (value == null)
       return requestMap.remove(name);
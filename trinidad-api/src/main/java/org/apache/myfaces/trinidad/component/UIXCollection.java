@@ -46,6 +46,7 @@ import javax.faces.event.PhaseId;
 import javax.faces.render.Renderer;
 
 import org.apache.myfaces.buildtools.maven2.plugin.builder.annotation.JSFComponent;
+import org.apache.myfaces.trinidad.bean.BoundValueCache;
 import org.apache.myfaces.trinidad.bean.FacesBean;
 import org.apache.myfaces.trinidad.bean.PropertyKey;
 import org.apache.myfaces.trinidad.context.ComponentContextChange;
@@ -970,6 +971,9 @@ public abstract class UIXCollection extends UIXComponentBase
    */
   protected final void postRowDataChange()
   {
+    // values bound to the stamps may depend on the row
+    BoundValueCache.invalidate(getFacesContext());
+
     Object rowData = getRowData();
     if (_LOG.isFinest() && (rowData == null))
     {
@@ -25,6 +25,8 @@ import javax.faces.context.FacesContext;
 
 import org.apache.myfaces.trinidad.bean.FacesBeanImpl;
 import org.apache.myfaces.trinidad.bean.PropertyKey;
+import org.apache.myfaces.trinidad.bean.PropertyMap;
+import org.apache.myfaces.trinidad.bean.util.IndexedPropertyMap;
 import org.apache.myfaces.trinidad.util.CollectionUtils;
 
 /**
@@ -150,6 +152,24 @@ public class UIXFacesBeanImpl extends FacesBeanImpl implements UIXFacesBean
     _component.setId((String)addIdState[0]);
     super.restoreState(context, addIdState[1]);
   }
+
+  /**
+   * Stores the properties registered with the Type of this bean by key index.
+   */
+  @Override
+  protected PropertyMap createPropertyMap()
+  {
+    return new IndexedPropertyMap(getType());
+  }
+
+  /**
+   * Stores the bindings registered with the Type of this bean by key index.
+   */
+  @Override
+  protected PropertyMap createExpressionsMap()
+  {
+    return new IndexedPropertyMap(getType());
+  }
   
   // Set containing the ID Key
   private static final Set<PropertyKey> _ID_KEY_SET =Collections.singleton(UIXComponentBase.ID_KEY);
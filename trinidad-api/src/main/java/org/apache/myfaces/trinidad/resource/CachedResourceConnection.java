@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidad.resource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * Implemented by the URLConnections of resources whose contents are held in
+ * memory, such as the resources of a CachingResourceLoader, so that the contents
+ * can be served without copying them through a stream, and in compressed form.
+ * All of the methods of a connection describe the same version of the
+ * contents, even if the resource changes in the meantime.
+ */
+public interface CachedResourceConnection
+{
+  /**
+   * @return a strong entity tag computed from the contents, including the
+   * surrounding quotes
+   */
+  public String getETag() throws IOException;
+
+  /**
+   * @param gzipped true for the length of the gzip compressed contents
+   * @return the length of the contents, or -1 if the gzip compressed contents
+   * were requested and compressing doesn't make the contents smaller
+   */
+  public int getContentLength(boolean gzipped) throws IOException;
+
+  /**
+   * Writes the contents to a stream.
+   * @param gzipped true to write the gzip compressed contents, which is only
+   * allowed if <code>getContentLength(true)</code> isn't -1
+   */
+  public void writeContents(OutputStream out, boolean gzipped) throws IOException;
+}
@@ -22,25 +22,55 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.myfaces.trinidad.logging.TrinidadLogger;
 import org.apache.myfaces.trinidad.util.Args;
+import org.apache.myfaces.trinidad.util.FileWatcher;
 import org.apache.myfaces.trinidad.util.URLUtils;
 
 /**
  * Base class for resource loaders.  Resource loaders can lookup resources
  * as URLs from arbitrary locations, including JAR files.
- *
+ * <p>
+ * The memory used by the cache is bounded.  At most <code>maxEntries</code>
+ * paths of resources are cached, and the cached contents of the resources take
+ * up at most <code>maxBytes</code>.  When either limit is reached, the least
+ * recently requested resources are evicted first.  The paths of missing resources
+ * are cached separately, up to a quarter of <code>maxEntries</code>, so that
+ * requests for many missing resources never evict the resources that exist.
+ * <p>
+ * The connections of the cached URLs implement {@link CachedResourceConnection},
+ * so the contents can also be served gzip compressed.  The compressed contents
+ * are computed once, when first requested, and count towards
+ * <code>maxBytes</code>.  Files larger than <code>maxBytes</code> are not
+ * read into memory; their cached URLs open connections to the files themselves.
  */
 public class CachingResourceLoader extends ResourceLoader
+                                   implements CachingResourceLoaderMBean
 {
+  /**
+   * Default maximum number of paths cached
+   */
+  public static final int DEFAULT_MAX_ENTRIES = 2000;
+
+  /**
+   * Default maximum number of bytes of resource contents cached
+   */
+  public static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+
   /**
    * Constructs a new CachingResourceLoader.
    *
@@ -48,13 +78,82 @@ public class CachingResourceLoader extends ResourceLoader
    */
   public CachingResourceLoader(
     ResourceLoader parent)
+  {
+    this(parent, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Constructs a new CachingResourceLoader with bounded memory use.
+   *
+   * @param parent      the parent resource loader
+   * @param maxEntries  the maximum number of paths cached
+   * @param maxBytes    the maximum number of bytes of resource contents cached
+   */
+  public CachingResourceLoader(
+    ResourceLoader parent,
+    int            maxEntries,
+    long           maxBytes)
   {
     super(parent);
 
-    _cache = new ConcurrentHashMap<String, URL>();
+    if (maxEntries <= 0)
+      throw new IllegalArgumentException("maxEntries must be positive");
+
+    if (maxBytes < 0)
+      throw new IllegalArgumentException("maxBytes must not be negative");
+
+    _maxEntries = maxEntries;
+    _maxMissingEntries = Math.max(1, maxEntries / 4);
+    _maxBytes = maxBytes;
+    _cache = new LinkedHashMap<String, CachingURLStreamHandler>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachingURLStreamHandler> eldest)
+      {
+        if (size() <= _maxEntries)
+          return false;
+
+        _evicted(eldest.getValue());
+        return true;
+      }
+
+      private static final long serialVersionUID = 1L;
+    };
+    _missing = new LinkedHashMap<String, Boolean>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+      {
+        if (size() <= _maxMissingEntries)
+          return false;
+
+        _evictions.incrementAndGet();
+        return true;
+      }
+
+      private static final long serialVersionUID = 1L;
+    };
   }
 
-  
+  /**
+   * Returns the cached resource url if previously requested.  Unlike other
+   * ResourceLoaders, the parent is only asked for resources that aren't cached,
+   * including resources that were missing.
+   *
+   * @param path  the resource path
+   *
+   * @return the cached resource url, or null if the resource doesn't exist
+   *
+   * @throws java.io.IOException  if an I/O error occurs
+   */
+  @Override
+  public URL getResource(
+    String path
+    ) throws IOException
+  {
+    // findResource() already looked up the resources of the parent
+    return findResource(path);
+  }
 
   /**
    * Returns the cached resource url if previously requested.  Otherwise,
@@ -71,30 +170,226 @@ public class CachingResourceLoader extends ResourceLoader
     String path
     ) throws IOException
   {
-    URL url = _cache.get(path);
+    CachingURLStreamHandler cached;
+    boolean missing;
+
+    synchronized (_cache)
+    {
+      cached = _cache.get(path);
+      missing = (cached == null) && (_missing.get(path) != null);
+    }
+
+    if ((cached != null) || missing)
+    {
+      _hits.incrementAndGet();
+      return (missing) ? null : cached.getURL();
+    }
 
-    if (url == null)
+    _misses.incrementAndGet();
+
+    URL url = getParent().getResource(path);
+
+    synchronized (_cache)
     {
-      url = getParent().getResource(path);
+      if (url == null)
+      {
+        _missing.put(path, Boolean.TRUE);
+        return null;
+      }
 
-      if (url != null)
+      // another request may have cached the resource in the meantime
+      cached = _cache.get(path);
+
+      if (cached == null)
       {
-        url = new URL("cache", null, -1, path, new CachingURLStreamHandler(url));
-        _cache.putIfAbsent(path, url);
+        cached = new CachingURLStreamHandler(this, path, url);
+        _cache.put(path, cached);
+
+        // the resource may have been added since it was found missing
+        _missing.remove(path);
       }
     }
 
-    return url;
+    return cached.getURL();
   }
 
-  private final ConcurrentMap<String, URL> _cache;
-
   @Override
   public boolean isCachable()
   {
     return false;
   }
 
+  public long getHitCount()
+  {
+    return _hits.get();
+  }
+
+  public long getMissCount()
+  {
+    return _misses.get();
+  }
+
+  public long getEvictionCount()
+  {
+    return _evictions.get();
+  }
+
+  public int getEntryCount()
+  {
+    synchronized (_cache)
+    {
+      return _cache.size() + _missing.size();
+    }
+  }
+
+  public int getMaxEntries()
+  {
+    return _maxEntries;
+  }
+
+  public long getCachedBytes()
+  {
+    synchronized (_cache)
+    {
+      return _cachedBytes;
+    }
+  }
+
+  public long getMaxBytes()
+  {
+    return _maxBytes;
+  }
+
+  public void clear()
+  {
+    synchronized (_cache)
+    {
+      for (CachingURLStreamHandler handler : _cache.values())
+      {
+        _releaseContents(handler);
+      }
+
+      _cache.clear();
+      _missing.clear();
+    }
+  }
+
+  /**
+   * Called by a handler after reading the contents of its resource, to account
+   * for their size, evicting the contents of the least recently used resources
+   * if the cache is full.
+   *
+   * @return true if the handler may keep the contents
+   */
+  private boolean _retainContents(
+    CachingURLStreamHandler handler,
+    CachedContents          contents)
+  {
+    int size = contents.getSize();
+
+    synchronized (_cache)
+    {
+      // don't cache the contents of evicted resources, or resources too large
+      // to ever fit
+      if ((handler.isEvicted()) || (size > _maxBytes))
+      {
+        _releaseContents(handler);
+        return false;
+      }
+
+      _cachedBytes += size - handler.getCachedSize();
+      handler.setContents(contents, size);
+
+      if (_cachedBytes > _maxBytes)
+      {
+        Iterator<CachingURLStreamHandler> entries = _cache.values().iterator();
+
+        while ((_cachedBytes > _maxBytes) && entries.hasNext())
+        {
+          CachingURLStreamHandler entry = entries.next();
+
+          if ((entry != handler) && _releaseContents(entry))
+            _evictions.incrementAndGet();
+        }
+      }
+
+      return true;
+    }
+  }
+
+  /**
+   * Called by a handler after its contents grew, as they do when first
+   * compressed, to account for the new size if the contents are still cached.
+   */
+  private void _resizeContents(
+    CachingURLStreamHandler handler,
+    CachedContents          contents)
+  {
+    synchronized (_cache)
+    {
+      if (handler.getCachedContents() == contents)
+        _retainContents(handler, contents);
+    }
+  }
+
+  /**
+   * Called by a handler when its contents have been found to be out of date.
+   */
+  private void _discardContents(
+    CachingURLStreamHandler handler)
+  {
+    synchronized (_cache)
+    {
+      _releaseContents(handler);
+    }
+  }
+
+  /**
+   * Called with the lock held when an entry is evicted from the cache.
+   */
+  private void _evicted(
+    CachingURLStreamHandler handler)
+  {
+    _evictions.incrementAndGet();
+    _releaseContents(handler);
+    handler.setEvicted();
+  }
+
+  /**
+   * Drops the contents cached by an entry.  Called with the lock held.
+   *
+   * @return true if the entry held contents
+   */
+  private boolean _releaseContents(
+    CachingURLStreamHandler handler)
+  {
+    int size = handler.getCachedSize();
+
+    if (size == 0)
+      return false;
+
+    _cachedBytes -= size;
+    handler.setContents(null, 0);
+
+    return true;
+  }
+
+  // Maps paths to CachingURLStreamHandlers in least recently used order.  The
+  // map, the sizes of the contents and the map of missing paths are guarded
+  // by the map's lock.
+  private final LinkedHashMap<String, CachingURLStreamHandler> _cache;
+
+  // the paths of missing resources, in least recently used order
+  private final LinkedHashMap<String, Boolean> _missing;
+  private final int  _maxEntries;
+  private final int  _maxMissingEntries;
+  private final long _maxBytes;
+  private long       _cachedBytes;
+
+  private final AtomicLong _hits = new AtomicLong();
+  private final AtomicLong _misses = new AtomicLong();
+  private final AtomicLong _evictions = new AtomicLong();
+
   /**
    * URLStreamHandler to cache URL contents and URLConnection headers.
    * 
@@ -103,10 +398,22 @@ public class CachingResourceLoader extends ResourceLoader
   static private final class CachingURLStreamHandler extends URLStreamHandler
   {
     public CachingURLStreamHandler(
-      URL delegate)
+      CachingResourceLoader loader,
+      String                path,
+      URL                   delegate) throws IOException
     {
+      _loader = loader;
       _delegate = delegate;
       _contents = new AtomicReference<CachedContents>();
+      _url = new URL("cache", null, -1, path, this);
+    }
+
+    /**
+     * Returns the cache URL served by this handler
+     */
+    public URL getURL()
+    {
+      return _url;
     }
 
     /**
@@ -122,11 +429,54 @@ public class CachingResourceLoader extends ResourceLoader
       {
         // The new content length does not match the size of our cached
         // contents.  Clear out the cached contents and start over.
-        _contents.compareAndSet(contents, null);
+        _loader._discardContents(this);
         _logResourceSizeChanged(newContentLength, contents);
 
       }
     }
+
+    /**
+     * Sets the cached contents.  Called with the loader's lock held.
+     */
+    public void setContents(CachedContents contents, int size)
+    {
+      _contents.set(contents);
+      _cachedSize = size;
+    }
+
+    /**
+     * Returns the cached contents, or null if none are cached.
+     */
+    public CachedContents getCachedContents()
+    {
+      return _contents.get();
+    }
+
+    /**
+     * Returns the size of the cached contents.  Called with the loader's lock held.
+     */
+    public int getCachedSize()
+    {
+      return _cachedSize;
+    }
+
+    /**
+     * Marks the handler as no longer cached by the loader.  Called with the
+     * loader's lock held.
+     */
+    public void setEvicted()
+    {
+      _evicted = true;
+    }
+
+    /**
+     * Returns true if the handler is no longer cached by the loader.  Called
+     * with the loader's lock held.
+     */
+    public boolean isEvicted()
+    {
+      return _evicted;
+    }
     
     private void _logResourceSizeChanged(int newContentLength, CachedContents contents)
     {
@@ -146,10 +496,30 @@ public class CachingResourceLoader extends ResourceLoader
       URL url
       ) throws IOException
     {
-      return new URLConnectionImpl(url, _delegate.openConnection(), this);
+      URLConnection conn = _delegate.openConnection();
+
+      // Files too large to ever be cached are served as files, so that they
+      // can be streamed without reading their whole contents into memory
+      if ((_contents.get() == null) &&
+          "file".equals(_delegate.getProtocol()) &&
+          (conn.getContentLengthLong() > _loader._maxBytes))
+      {
+        return conn;
+      }
+
+      return new URLConnectionImpl(url, conn, this);
     }
 
     protected InputStream getInputStream(URLConnection conn) throws IOException
+    {
+      return getContents(conn).toInputStream();
+    }
+
+    /**
+     * Returns the current contents, reading these if they aren't cached or
+     * are out of date.
+     */
+    protected CachedContents getContents(URLConnection conn) throws IOException
     {
       CachedContents contents = _contents.get();
       
@@ -159,7 +529,22 @@ public class CachingResourceLoader extends ResourceLoader
         assert(contents != null);
       }
 
-      return contents.toInputStream();
+      return contents;
+    }
+
+    /**
+     * Returns the gzip compressed contents, or null if compressing doesn't
+     * make the contents smaller.
+     */
+    protected byte[] getGzipped(CachedContents contents) throws IOException
+    {
+      if (contents.isCompressed())
+        return contents.getGzipped();
+
+      byte[] gzipped = contents.getGzipped();
+      _loader._resizeContents(this, contents);
+
+      return gzipped;
     }
     
     // Tests whether the CachedContents is stale based on the url's current lastModified time.
@@ -168,6 +553,11 @@ public class CachingResourceLoader extends ResourceLoader
       Args.notNull(contents, "contents");
       Args.notNull(url, "url");
 
+      // Resources on a watched file system only need to be checked
+      // once the FileWatcher has seen a change
+      if (contents.isUnchanged())
+        return false;
+
       long lastModified = URLUtils.getLastModified(_delegate);
       return contents.isStale(lastModified);
     }
@@ -180,8 +570,9 @@ public class CachingResourceLoader extends ResourceLoader
       // We're not doing a compareAndSet here because _contents may have
       // changed - eg. _contents may have been nulled out or set to a new
       // value by another request.  We're okay with replacing the current value
-      // with our newly created instance.
-      _contents.set(newContents);
+      // with our newly created instance.  The loader may decide not to keep
+      // the contents, in which case they only serve this request.
+      _loader._retainContents(this, newContents);
       
       return newContents;
     }
@@ -193,12 +584,14 @@ public class CachingResourceLoader extends ResourceLoader
       // to protect against the possibility that the data is being modified
       // while read.  In this case, we want the earliest last modified time
       // to increase the chance that we will detect that our cached data
-      // is stale on subsequent requests.
+      // is stale on subsequent requests.  For the same reason, we start
+      // watching the file (if any) before reading it.
+      FileWatcher.Watch watch = FileWatcher.watch(_delegate);
       long lastModified = URLUtils.getLastModified(conn);
       byte[] data = _readBytes(conn);
       int contentLength = conn.getContentLength();
 
-      return new CachedContents(this._delegate, data, lastModified, contentLength);
+      return new CachedContents(this._delegate, data, lastModified, contentLength, watch);
     }
 
     @SuppressWarnings("oracle.jdeveloper.java.nested-assignment")
@@ -223,8 +616,12 @@ public class CachingResourceLoader extends ResourceLoader
       return out.toByteArray();
     }
 
+    private final CachingResourceLoader _loader;
     private final URL    _delegate;
+    private final URL    _url;
     private final AtomicReference<CachedContents> _contents;
+    private int     _cachedSize;
+    private boolean _evicted;
   }
   
   // An immutable class that holds the data and metadadta for a single cached resource.
@@ -237,7 +634,8 @@ public class CachingResourceLoader extends ResourceLoader
       URL resourceURL,
       byte[] data,
       long lastModified,
-      int contentLength
+      int contentLength,
+      FileWatcher.Watch watch
       )
     {
       Args.notNull(data, "data");
@@ -248,6 +646,7 @@ public class CachingResourceLoader extends ResourceLoader
       this._data = data;
       _lastModified = lastModified;
       _contentLength = contentLength;
+      _watch = watch;
     }
 
     public InputStream toInputStream()
@@ -255,6 +654,95 @@ public class CachingResourceLoader extends ResourceLoader
       return new ByteArrayInputStream(_data);       
     }
 
+    /**
+     * Writes the data, or the gzip compressed data, to a stream.
+     */
+    public void writeTo(OutputStream out, boolean gzipped) throws IOException
+    {
+      byte[] data = gzipped ? getGzipped() : _data;
+
+      if (data == null)
+        throw new IllegalStateException("Contents are not compressed");
+
+      out.write(data);
+    }
+
+    /**
+     * Returns the number of bytes of data held, including the compressed data.
+     */
+    public int getSize()
+    {
+      byte[] gzipped = _gzipped;
+      return _data.length + ((gzipped != null) ? gzipped.length : 0);
+    }
+
+    /**
+     * Returns the length of the data.
+     */
+    public int getLength()
+    {
+      return _data.length;
+    }
+
+    /**
+     * Returns a strong entity tag computed from the data.
+     */
+    public String getETag()
+    {
+      String etag = _etag;
+
+      // racing threads compute the same tag, so there's no need to lock
+      if (etag == null)
+      {
+        byte[] digest = _getDigest().digest(_data);
+        StringBuilder builder = new StringBuilder(digest.length * 2 + 2);
+        builder.append('"');
+
+        for (byte b : digest)
+        {
+          builder.append(_HEX_DIGITS[(b >> 4) & 0xf]);
+          builder.append(_HEX_DIGITS[b & 0xf]);
+        }
+
+        builder.append('"');
+        etag = builder.toString();
+        _etag = etag;
+      }
+
+      return etag;
+    }
+
+    /**
+     * Returns true if the gzip compressed data has been computed.
+     */
+    public boolean isCompressed()
+    {
+      return (_gzipped != null);
+    }
+
+    /**
+     * Returns the gzip compressed data, computing these if needed, or null
+     * if compressing doesn't make the data smaller.
+     */
+    public byte[] getGzipped() throws IOException
+    {
+      byte[] gzipped = _gzipped;
+
+      // racing threads compute the same data, so there's no need to lock
+      if (gzipped == null)
+      {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(_data.length / 3 + 32);
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(_data);
+        gzip.close();
+
+        gzipped = (out.size() < _data.length) ? out.toByteArray() : _NOT_SMALLER;
+        _gzipped = gzipped;
+      }
+
+      return (gzipped == _NOT_SMALLER) ? null : gzipped;
+    }
+
     /**
      * Tests whether this CacheContents instance contains stale data.
      * 
@@ -267,6 +755,15 @@ public class CachingResourceLoader extends ResourceLoader
       return (lastModified > _lastModified);
     }
 
+    /**
+     * Tests whether the resource's file is watched, and hasn't changed
+     * since this CachedContents instance was created.
+     */
+    public boolean isUnchanged()
+    {
+      return (_watch != null) && !_watch.hasChanged();
+    }
+
     /**
      * Tests whether the specified content length is consistent with size of the
      * data held by this CachedContents.
@@ -335,16 +832,37 @@ public class CachingResourceLoader extends ResourceLoader
       return ((contentLength < 0) || (contentLength == data.length));      
     }
 
+    static private MessageDigest _getDigest()
+    {
+      try
+      {
+        return MessageDigest.getInstance("MD5");
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+        // every Java platform is required to support MD5
+        throw new IllegalStateException(e);
+      }
+    }
+
     private final URL _url;
     private final byte[] _data;
     private final long _lastModified;
     private final int _contentLength;
+    private final FileWatcher.Watch _watch;
+    private volatile String _etag;
+    private volatile byte[] _gzipped;
+
+    // stands for compressed data that aren't smaller than the data
+    static private final byte[] _NOT_SMALLER = new byte[0];
+    static private final char[] _HEX_DIGITS = "0123456789abcdef".toCharArray();
   }
 
   /**
    * URLConnection to cache URL contents and header fields.
    */
   static private class URLConnectionImpl extends URLConnection
+                                          implements CachedResourceConnection
   {
     /**
      * Creates a new URLConnectionImpl.
@@ -409,8 +927,45 @@ public class CachingResourceLoader extends ResourceLoader
       return _handler.getInputStream(_conn);
     }
 
+    public String getETag() throws IOException
+    {
+      return _getContents().getETag();
+    }
+
+    public int getContentLength(boolean gzipped) throws IOException
+    {
+      CachedContents contents = _getContents();
+
+      if (!gzipped)
+        return contents.getLength();
+
+      byte[] data = _handler.getGzipped(contents);
+      return (data != null) ? data.length : -1;
+    }
+
+    public void writeContents(OutputStream out, boolean gzipped) throws IOException
+    {
+      CachedContents contents = _getContents();
+
+      if (gzipped)
+        _handler.getGzipped(contents);
+
+      contents.writeTo(out, gzipped);
+    }
+
+    // the methods of CachedResourceConnection describe the same contents,
+    // which are read on first use
+    private CachedContents _getContents() throws IOException
+    {
+      if (_contents == null)
+        _contents = _handler.getContents(_conn);
+
+      return _contents;
+    }
+
     private final URLConnection        _conn;
     private final CachingURLStreamHandler _handler;
+    private CachedContents _contents;
   }
 
   static private final TrinidadLogger _LOG = TrinidadLogger.createTrinidadLogger(CachingResourceLoader.class);
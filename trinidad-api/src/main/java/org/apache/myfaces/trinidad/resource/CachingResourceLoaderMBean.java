@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidad.resource;
+
+
+/**
+ * JMX management interface of CachingResourceLoader.
+ */
+public interface CachingResourceLoaderMBean
+{
+  /**
+   * @return the number of lookups of a cached path, including paths of
+   * missing resources
+   */
+  public long getHitCount();
+
+  /**
+   * @return the number of lookups of a path that wasn't cached
+   */
+  public long getMissCount();
+
+  /**
+   * @return the number of paths evicted from the cache, and of resources whose
+   * contents were dropped to make room for others
+   */
+  public long getEvictionCount();
+
+  /**
+   * @return the number of paths cached, including paths of missing resources
+   */
+  public int getEntryCount();
+
+  public int getMaxEntries();
+
+  /**
+   * @return the total size of the resource contents cached
+   */
+  public long getCachedBytes();
+
+  public long getMaxBytes();
+
+  /**
+   * Discards all of the cached resources
+   */
+  public void clear();
+}
@@ -0,0 +1,445 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidad.util;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.net.URISyntaxException;
+import java.net.URL;
+
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.faces.application.ProjectStage;
+import javax.faces.context.ExternalContext;
+import javax.faces.context.FacesContext;
+
+import javax.servlet.ServletContext;
+
+import org.apache.myfaces.trinidad.logging.TrinidadLogger;
+
+/**
+ * Watches files for changes on a background thread, using the platform's
+ * WatchService.  Caches of file contents use this to test whether a file
+ * has changed without touching the file system on every request:
+ * <pre>
+ *   FileWatcher.Watch watch = FileWatcher.watch(file);
+ *   long lastModified = file.lastModified();
+ *   // ... read the file ...
+ *
+ *   // later
+ *   boolean changed = ((watch == null) || watch.hasChanged()) &amp;&amp;
+ *                     (file.lastModified() != lastModified);
+ * </pre>
+ * A Watch may report changes that aren't visible in the file's timestamp
+ * (for example when the watched directory can no longer be watched), so
+ * callers should confirm reported changes with the file system rather
+ * than assume them.  Since some file systems never deliver events, such as
+ * network file systems, bind mounts of containers and directories whose
+ * files are symbolic links that get swapped, a Watch also reports a possible
+ * change every few seconds, so that the file is still checked now and then.
+ * <p>
+ * Each application has its own FileWatcher, which is only started if the
+ * application checks files for modifications (see the
+ * <code>org.apache.myfaces.trinidad.CHECK_FILE_MODIFICATION</code> context
+ * parameter), and which is stopped when the application is destroyed.
+ */
+public final class FileWatcher
+{
+  /**
+   * Creates a FileWatcher and starts its thread.
+   * @param checkInterval the number of milliseconds after which a Watch
+   *   reports a possible change even though no event was seen
+   */
+  FileWatcher(long checkInterval) throws IOException
+  {
+    _service = FileSystems.getDefault().newWatchService();
+    _checkInterval = checkInterval;
+
+    Thread thread = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        _processEvents();
+      }
+    }, "Trinidad file watcher");
+
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Starts watching a file for the current application.  The Watch should be
+   * obtained before the contents of the file are read, so that changes made
+   * while reading are noticed.
+   * @param file the file to watch
+   * @return a Watch for the file, or null if the file can't be watched, or
+   *   files aren't watched for the current application
+   */
+  public static Watch watch(File file)
+  {
+    Args.notNull(file, "file");
+
+    FileWatcher watcher = _getInstance();
+    return (watcher == null) ? null : watcher.__watch(file);
+  }
+
+  /**
+   * Starts watching the file of a <code>file:</code> URL.
+   * @param url the URL to watch
+   * @return a Watch for the URL's file, or null if the URL isn't a
+   *   <code>file:</code> URL or the file can't be watched
+   */
+  public static Watch watch(URL url)
+  {
+    Args.notNull(url, "url");
+
+    if (!"file".equals(url.getProtocol()))
+      return null;
+
+    try
+    {
+      return watch(new File(url.toURI()));
+    }
+    catch (URISyntaxException e)
+    {
+      return null;
+    }
+    catch (IllegalArgumentException e)
+    {
+      // URLs with an authority or query can't be converted to Files
+      return null;
+    }
+  }
+
+  /**
+   * Stops the background thread of an application, if it was started.  All
+   * existing Watches of the application report that their files have changed.
+   */
+  public static void shutdown(ServletContext context)
+  {
+    Object watcher = context.getAttribute(_WATCHER_KEY);
+
+    if (watcher != null)
+    {
+      context.removeAttribute(_WATCHER_KEY);
+
+      if (watcher instanceof FileWatcher)
+        ((FileWatcher)watcher).__close();
+    }
+  }
+
+  /**
+   * Tracks changes to a watched file.
+   */
+  public static final class Watch
+  {
+    Watch(AtomicLong changes, long checkInterval)
+    {
+      _changes = changes;
+      _initialChanges = changes.get();
+      _checkInterval = checkInterval;
+      _nextCheckTime = System.currentTimeMillis() + checkInterval;
+    }
+
+    /**
+     * @return true if the file may have changed since this Watch was
+     *   created, or if the file hasn't been checked for a while.
+     */
+    public boolean hasChanged()
+    {
+      if (_changes.get() != _initialChanges)
+        return true;
+
+      // some file systems never deliver events, so have the caller check the file
+      // every so often.  Racing threads may both check the file, which is harmless
+      long time = System.currentTimeMillis();
+
+      if (time < _nextCheckTime)
+        return false;
+
+      _nextCheckTime = time + _checkInterval;
+      return true;
+    }
+
+    private final AtomicLong _changes;
+    private final long       _initialChanges;
+    private final long       _checkInterval;
+    private volatile long    _nextCheckTime;
+  }
+
+  /**
+   * Returns the FileWatcher of the current application, starting it if needed,
+   * or null if the application's files aren't watched.
+   */
+  static private FileWatcher _getInstance()
+  {
+    FacesContext context = FacesContext.getCurrentInstance();
+
+    if (context == null)
+      return null;
+
+    ExternalContext external = context.getExternalContext();
+    Map<String, Object> appMap = external.getApplicationMap();
+    Object watcher = appMap.get(_WATCHER_KEY);
+
+    if (watcher == null)
+    {
+      synchronized (FileWatcher.class)
+      {
+        watcher = appMap.get(_WATCHER_KEY);
+
+        if (watcher == null)
+        {
+          watcher = _createInstance(context);
+          appMap.put(_WATCHER_KEY, watcher);
+        }
+      }
+    }
+
+    return (watcher instanceof FileWatcher) ? (FileWatcher)watcher : null;
+  }
+
+  /**
+   * Returns a new FileWatcher for an application, or <code>Boolean.FALSE</code> if
+   * its files aren't watched.
+   */
+  static private Object _createInstance(FacesContext context)
+  {
+    // without modification checks, nobody asks whether the files changed
+    if (!_isCheckFileModification(context))
+      return Boolean.FALSE;
+
+    try
+    {
+      return new FileWatcher(_CHECK_INTERVAL);
+    }
+    catch (IOException e)
+    {
+      _LOG.fine(e);
+    }
+    catch (UnsupportedOperationException e)
+    {
+      _LOG.fine(e);
+    }
+
+    return Boolean.FALSE;
+  }
+
+  /**
+   * Returns whether the application checks files for modifications, which
+   * by default it only does outside of ProjectStage.Production.
+   */
+  static private boolean _isCheckFileModification(FacesContext context)
+  {
+    String checkFileModification =
+      context.getExternalContext().getInitParameter(_CHECK_FILE_MODIFICATION_PARAM);
+
+    if (checkFileModification != null)
+      return "true".equals(checkFileModification);
+
+    return !context.isProjectStage(ProjectStage.Production);
+  }
+
+  /**
+   * Starts watching a file.
+   * @return a Watch for the file, or null if the file can't be watched
+   */
+  Watch __watch(File file)
+  {
+    Path path;
+
+    try
+    {
+      path = file.toPath().toAbsolutePath().normalize();
+    }
+    catch (InvalidPathException e)
+    {
+      return null;
+    }
+
+    Path directory = path.getParent();
+    if (directory == null)
+      return null;
+
+    AtomicLong changes = _changes.get(path);
+
+    if (changes == null)
+    {
+      if (!_register(directory))
+        return null;
+
+      AtomicLong newChanges = new AtomicLong();
+      changes = _changes.putIfAbsent(path, newChanges);
+
+      if (changes == null)
+        changes = newChanges;
+    }
+
+    return new Watch(changes, _checkInterval);
+  }
+
+  private boolean _register(Path directory)
+  {
+    if (_directories.containsKey(directory))
+      return true;
+
+    try
+    {
+      WatchKey key = directory.register(_service,
+                                        StandardWatchEventKinds.ENTRY_CREATE,
+                                        StandardWatchEventKinds.ENTRY_DELETE,
+                                        StandardWatchEventKinds.ENTRY_MODIFY);
+      _directories.put(directory, key);
+
+      return true;
+    }
+    catch (IOException e)
+    {
+      // eg. the directory doesn't exist
+      _LOG.finer(e);
+      return false;
+    }
+    catch (ClosedWatchServiceException e)
+    {
+      return false;
+    }
+    catch (UnsupportedOperationException e)
+    {
+      return false;
+    }
+  }
+
+  private void _processEvents()
+  {
+    try
+    {
+      while (true)
+      {
+        WatchKey key = _service.take();
+        Path directory = (Path)key.watchable();
+
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+          Object context = event.context();
+
+          if ((event.kind() == StandardWatchEventKinds.OVERFLOW) || (context == null))
+          {
+            // events were lost, so any file in the directory may have changed
+            _changedAll(directory, false);
+          }
+          else
+          {
+            AtomicLong changes = _changes.get(directory.resolve((Path)context));
+
+            if (changes != null)
+              changes.incrementAndGet();
+          }
+        }
+
+        // If the directory can no longer be watched (eg. it was deleted), forget
+        // about its files, so that they are registered again when next watched
+        if (!key.reset())
+        {
+          _directories.remove(directory, key);
+          _changedAll(directory, true);
+        }
+      }
+    }
+    catch (InterruptedException e)
+    {
+      // exit
+      return;
+    }
+    catch (ClosedWatchServiceException e)
+    {
+      // the FileWatcher was shut down
+      return;
+    }
+  }
+
+  private void _changedAll(Path directory, boolean remove)
+  {
+    for (Map.Entry<Path, AtomicLong> entry : _changes.entrySet())
+    {
+      Path path = entry.getKey();
+
+      if ((directory == null) || directory.equals(path.getParent()))
+      {
+        entry.getValue().incrementAndGet();
+
+        if (remove)
+          _changes.remove(path, entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Stops the thread of this FileWatcher.  All of its Watches report that their
+   * files have changed.
+   */
+  void __close()
+  {
+    try
+    {
+      _service.close();
+    }
+    catch (IOException e)
+    {
+      _LOG.warning(e);
+    }
+
+    _directories.clear();
+    _changedAll(null, true);
+  }
+
+  private final WatchService _service;
+  private final long         _checkInterval;
+
+  // the registered directories
+  private final ConcurrentMap<Path, WatchKey> _directories =
+    new ConcurrentHashMap<Path, WatchKey>();
+
+  // the number of changes seen for each watched file
+  private final ConcurrentMap<Path, AtomicLong> _changes =
+    new ConcurrentHashMap<Path, AtomicLong>();
+
+  // the number of milliseconds after which files are checked even if no event was seen
+  static private final long _CHECK_INTERVAL = 2000L;
+
+  static private final String _CHECK_FILE_MODIFICATION_PARAM =
+    "org.apache.myfaces.trinidad.CHECK_FILE_MODIFICATION";
+
+  static private final String _WATCHER_KEY = FileWatcher.class.getName();
+
+  static private final TrinidadLogger _LOG =
+    TrinidadLogger.createTrinidadLogger(FileWatcher.class);
+}
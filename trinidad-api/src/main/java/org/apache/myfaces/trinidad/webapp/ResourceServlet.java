@@ -20,6 +20,7 @@ package org.apache.myfaces.trinidad.webapp;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -27,17 +28,23 @@ import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.Reader;
 
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 
 import java.net.SocketException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 
 import javax.faces.FacesException;
@@ -49,6 +56,10 @@ import javax.faces.context.FacesContextFactory;
 import javax.faces.event.PhaseListener;
 import javax.faces.lifecycle.Lifecycle;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -64,6 +75,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.myfaces.trinidad.config.Configurator;
 import org.apache.myfaces.trinidad.logging.TrinidadLogger;
+import org.apache.myfaces.trinidad.resource.CachedResourceConnection;
 import org.apache.myfaces.trinidad.resource.CachingResourceLoader;
 import org.apache.myfaces.trinidad.resource.DirectoryResourceLoader;
 import org.apache.myfaces.trinidad.resource.ResourceLoader;
@@ -102,6 +114,7 @@ public class ResourceServlet extends HttpServlet
   @Override
   public void destroy()
   {
+    _unregisterCaches();
     _loaders = null;
     _loaderErrors = null;
     _facesContextFactory = null;
@@ -143,7 +156,10 @@ public class ResourceServlet extends HttpServlet
     // Acquire our Lifecycle instance
     _lifecycle = new _ResourceLifecycle();
     _initDebug(config);
+    _initCacheLimits(config);
+    _compress = "true".equalsIgnoreCase(_getInitParameter(config, COMPRESS_INIT_PARAM));
     _loaders = new ConcurrentHashMap<String, ResourceLoader>();
+    _cacheNames = new ConcurrentLinkedQueue<ObjectName>();
     _loaderErrors = new ConcurrentHashMap<String, Class<?>>();
   }
 
@@ -252,7 +268,27 @@ public class ResourceServlet extends HttpServlet
     //was obtained would not be avialble.
     connection.connect();    
  
-    _setHeaders(connection, response, loader);
+    String contentType = _setHeaders(connection, response, loader);
+
+    // Serve the contents of cached resources directly from memory
+    if (connection instanceof CachedResourceConnection)
+    {
+      _writeCachedContents((CachedResourceConnection)connection,
+                           contentType,
+                           request,
+                           response);
+      return;
+    }
+
+    // Serve files without copying their contents through a buffer if we can
+    File file = _getFile(connection);
+
+    if ((file != null) && _sendFile(file, request, response))
+    {
+      // file connections open the file when connecting
+      connection.getInputStream().close();
+      return;
+    }
 
     InputStream in = connection.getInputStream();
     OutputStream out = response.getOutputStream();
@@ -405,7 +441,10 @@ public class ResourceServlet extends HttpServlet
       // Enable resource caching, but only if we aren't debugging
       if (!_debug && loader.isCachable())
       {
-        loader = new CachingResourceLoader(loader);
+        CachingResourceLoader cachingLoader =
+          new CachingResourceLoader(loader, _cacheMaxEntries, _cacheMaxBytes);
+        _registerCache(servletPath, cachingLoader);
+        loader = cachingLoader;
       }
     }
     catch (IllegalAccessException e)
@@ -559,6 +598,403 @@ public class ResourceServlet extends HttpServlet
     return sc;
   }
   
+  /**
+   * Writes the contents of a cached resource, answering conditional requests
+   * for unchanged contents with 304 (Not Modified), and sending the contents
+   * gzip compressed if this is enabled and the client accepts it.  The gzip
+   * compressed and the uncompressed contents are different representations,
+   * so they have different entity tags.
+   */
+  private void _writeCachedContents(
+    CachedResourceConnection connection,
+    String                   contentType,
+    HttpServletRequest       request,
+    HttpServletResponse      response
+    ) throws IOException
+  {
+    boolean compressible = _compress && _isCompressible(contentType);
+
+    // caches must not serve compressed contents to clients that don't accept these
+    if (compressible)
+      response.addHeader("Vary", "Accept-Encoding");
+
+    boolean gzipped = false;
+    int contentLength = -1;
+
+    if (compressible && _acceptsGzip(request.getHeader("Accept-Encoding")))
+    {
+      contentLength = connection.getContentLength(true);
+      gzipped = (contentLength >= 0);
+    }
+
+    String etag = connection.getETag();
+    if (gzipped)
+      etag = _getGzipETag(etag);
+
+    response.setHeader("ETag", etag);
+
+    if (_matchesETag(request.getHeader("If-None-Match"), etag))
+    {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    if (gzipped)
+      response.setHeader("Content-Encoding", "gzip");
+    else
+      contentLength = connection.getContentLength(false);
+
+    response.setContentLength(contentLength);
+
+    OutputStream out = response.getOutputStream();
+
+    try
+    {
+      connection.writeContents(out, gzipped);
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  /**
+   * Returns the file read by a connection, or null if it doesn't read a file.
+   */
+  private static File _getFile(
+    URLConnection connection
+    )
+  {
+    URL url = connection.getURL();
+
+    if (!"file".equals(url.getProtocol()))
+      return null;
+
+    try
+    {
+      File file = new File(url.toURI());
+      return file.isFile() ? file : null;
+    }
+    catch (URISyntaxException e)
+    {
+      return null;
+    }
+    catch (IllegalArgumentException e)
+    {
+      // URLs with authorities or queries don't denote files
+      return null;
+    }
+  }
+
+  /**
+   * Sends a file without copying its contents through the heap, either
+   * by handing it to the container to send, where the container supports the
+   * Tomcat sendfile request attributes, or by transferring it straight to the
+   * output stream, where that is a channel.
+   *
+   * @return false if neither is possible, and the caller should copy the file
+   */
+  private static boolean _sendFile(
+    File                file,
+    HttpServletRequest  request,
+    HttpServletResponse response
+    ) throws IOException
+  {
+    long length = file.length();
+
+    if (!"HEAD".equals(request.getMethod()) &&
+        Boolean.TRUE.equals(request.getAttribute(_SENDFILE_SUPPORT_ATTR)))
+    {
+      // the container sends the file after the servlet returns
+      response.setHeader("Content-Length", Long.toString(length));
+      request.setAttribute(_SENDFILE_FILENAME_ATTR, file.getAbsolutePath());
+      request.setAttribute(_SENDFILE_START_ATTR, Long.valueOf(0L));
+      request.setAttribute(_SENDFILE_END_ATTR, Long.valueOf(length));
+      return true;
+    }
+
+    OutputStream out = response.getOutputStream();
+
+    if (!(out instanceof WritableByteChannel))
+      return false;
+
+    FileInputStream in = new FileInputStream(file);
+
+    try
+    {
+      FileChannel channel = in.getChannel();
+      long position = 0L;
+
+      while (position < length)
+      {
+        long count = channel.transferTo(position, length - position, (WritableByteChannel)out);
+
+        // the file was truncated while being sent
+        if (count <= 0)
+          break;
+
+        position += count;
+      }
+    }
+    finally
+    {
+      try
+      {
+        in.close();
+      }
+      finally
+      {
+        out.close();
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns true if compressing contents of this type is worthwhile.  Images
+   * and other binary formats are already compressed.
+   */
+  private static boolean _isCompressible(
+    String contentType
+    )
+  {
+    if (contentType == null)
+      return false;
+
+    contentType = contentType.toLowerCase();
+
+    return (contentType.startsWith("text/") ||
+            (contentType.indexOf("javascript") >= 0) ||
+            (contentType.indexOf("json") >= 0) ||
+            (contentType.indexOf("xml") >= 0));
+  }
+
+  /**
+   * Returns the entity tag of the gzip compressed representation of contents,
+   * given the entity tag of the contents.
+   */
+  private static String _getGzipETag(
+    String etag
+    )
+  {
+    // the suffix goes inside the quotes
+    if ((etag.length() > 1) && etag.endsWith("\""))
+      return etag.substring(0, etag.length() - 1) + _GZIP_ETAG_SUFFIX + "\"";
+
+    return etag + _GZIP_ETAG_SUFFIX;
+  }
+
+  /**
+   * Returns true if an If-None-Match header matches the entity tag of the
+   * current contents.
+   */
+  private static boolean _matchesETag(
+    String ifNoneMatch,
+    String etag
+    )
+  {
+    if (ifNoneMatch == null)
+      return false;
+
+    for (String tag : ifNoneMatch.split(","))
+    {
+      tag = tag.trim();
+
+      // If-None-Match uses the weak comparison
+      if (tag.startsWith("W/"))
+        tag = tag.substring(2);
+
+      if ("*".equals(tag) || etag.equals(tag))
+        return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Returns true if an Accept-Encoding header accepts gzip, that is lists
+   * "gzip" or "*" without a quality of zero.
+   */
+  private static boolean _acceptsGzip(
+    String acceptEncoding
+    )
+  {
+    if (acceptEncoding == null)
+      return false;
+
+    for (String coding : acceptEncoding.split(","))
+    {
+      String name = coding;
+      String params = null;
+      int semicolon = coding.indexOf(';');
+
+      if (semicolon >= 0)
+      {
+        name = coding.substring(0, semicolon);
+        params = coding.substring(semicolon + 1);
+      }
+
+      name = name.trim();
+
+      if ("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name) || "*".equals(name))
+        return !_isZeroQuality(params);
+    }
+
+    return false;
+  }
+
+  /**
+   * Returns true if the parameters of an Accept-Encoding entry set q=0.
+   */
+  private static boolean _isZeroQuality(
+    String params
+    )
+  {
+    if (params == null)
+      return false;
+
+    String param = params.trim();
+
+    if (!param.startsWith("q=") && !param.startsWith("Q="))
+      return false;
+
+    try
+    {
+      return (Float.parseFloat(param.substring(2).trim()) == 0f);
+    }
+    catch (NumberFormatException e)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Returns a servlet initialization parameter, or if not set, the context
+   * initialization parameter with the same name.
+   */
+  private static String _getInitParameter(
+    ServletConfig config,
+    String        name
+    )
+  {
+    String value = config.getInitParameter(name);
+
+    if (value == null)
+      value = config.getServletContext().getInitParameter(name);
+
+    return value;
+  }
+
+  /**
+   * Initialize the limits on the memory used by the resource caches.
+   */
+  private void _initCacheLimits(
+    ServletConfig config
+    )
+  {
+    _cacheMaxEntries = (int)_getLongInitParameter(config,
+                                                  CACHE_MAX_ENTRIES_INIT_PARAM,
+                                                  CachingResourceLoader.DEFAULT_MAX_ENTRIES);
+    _cacheMaxBytes = _getLongInitParameter(config,
+                                           CACHE_MAX_BYTES_INIT_PARAM,
+                                           CachingResourceLoader.DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Returns a positive numeric servlet or context initialization parameter,
+   * or the default value if the parameter isn't set or invalid.
+   */
+  private static long _getLongInitParameter(
+    ServletConfig config,
+    String        name,
+    long          defaultValue
+    )
+  {
+    String value = _getInitParameter(config, name);
+
+    if (value == null)
+      return defaultValue;
+
+    try
+    {
+      long longValue = Long.parseLong(value.trim());
+
+      if ((longValue > 0) && (longValue <= Integer.MAX_VALUE))
+        return longValue;
+    }
+    catch (NumberFormatException e)
+    {
+      // fall through to the warning
+    }
+
+    _LOG.warning("Invalid value {0} for {1}; using {2}",
+                 new Object[]{value, name, defaultValue});
+
+    return defaultValue;
+  }
+
+  /**
+   * Registers the resource cache of a servlet path with the platform MBeanServer
+   * as <code>org.apache.myfaces.trinidad:type=ResourceCache,context=&lt;context path&gt;,
+   * path=&lt;servlet path&gt;</code>.
+   */
+  private void _registerCache(
+    String                servletPath,
+    CachingResourceLoader loader
+    )
+  {
+    try
+    {
+      ObjectName name = new ObjectName("org.apache.myfaces.trinidad:type=ResourceCache,context=" +
+                                       ObjectName.quote(getServletContext().getContextPath()) +
+                                       ",path=" + ObjectName.quote(servletPath));
+
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+      // replace the cache of an earlier deployment of this application, or
+      // of a concurrent request for the same servlet path
+      if (server.isRegistered(name))
+        server.unregisterMBean(name);
+
+      server.registerMBean(loader, name);
+      _cacheNames.add(name);
+    }
+    catch (JMException e)
+    {
+      _LOG.fine(e);
+    }
+    catch (SecurityException e)
+    {
+      _LOG.fine(e);
+    }
+  }
+
+  private void _unregisterCaches()
+  {
+    ConcurrentLinkedQueue<ObjectName> cacheNames = _cacheNames;
+
+    if (cacheNames == null)
+      return;
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    for (ObjectName name : cacheNames)
+    {
+      try
+      {
+        if (server.isRegistered(name))
+          server.unregisterMBean(name);
+      }
+      catch (JMException e)
+      {
+        _LOG.fine(e);
+      }
+    }
+
+    _cacheNames = null;
+  }
+
   /**
    * Reads the specified input stream into the provided byte array storage and
    * writes it to the output stream.
@@ -711,8 +1147,10 @@ public class ResourceServlet extends HttpServlet
   /**
    * Sets HTTP headers on the response which tell
    * the browser to cache the resource indefinitely.
+   *
+   * @return the content type of the resource, or null if unknown
    */
-  private void _setHeaders(
+  private String _setHeaders(
     URLConnection       connection,
     HttpServletResponse response,
     ResourceLoader      loader)
@@ -817,6 +1255,8 @@ public class ResourceServlet extends HttpServlet
         }
       }
     }
+
+    return contentType;
   }
 
   private static boolean _canIgnore(Throwable t)
@@ -962,6 +1402,28 @@ public class ResourceServlet extends HttpServlet
   public static final String DEBUG_INIT_PARAM =
     "org.apache.myfaces.trinidad.resource.DEBUG";
 
+  /**
+   * Servlet or context parameter for the maximum number of resource paths
+   * cached per servlet path, including paths of missing resources.
+   */
+  public static final String CACHE_MAX_ENTRIES_INIT_PARAM =
+    "org.apache.myfaces.trinidad.resource.CACHE_MAX_ENTRIES";
+
+  /**
+   * Servlet or context parameter for the maximum number of bytes of resource
+   * contents cached per servlet path.
+   */
+  public static final String CACHE_MAX_BYTES_INIT_PARAM =
+    "org.apache.myfaces.trinidad.resource.CACHE_MAX_BYTES";
+
+  /**
+   * Servlet or context parameter for sending cached text resources gzip
+   * compressed to clients that accept it.  The compressed contents are computed
+   * once per resource and kept in the resource cache.
+   */
+  public static final String COMPRESS_INIT_PARAM =
+    "org.apache.myfaces.trinidad.resource.COMPRESS";
+
   // One year in milliseconds.  (Actually, just short of on year, since
   // RFC 2616 says Expires should not be more than one year out, so
   // cutting back just to be safe.)
@@ -974,10 +1436,22 @@ public class ResourceServlet extends HttpServlet
 
   private static final TrinidadLogger _LOG = TrinidadLogger.createTrinidadLogger(ResourceServlet.class);
 
+  // Request attributes of containers that send files for servlets (Tomcat)
+  private static final String _SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+  private static final String _SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+  private static final String _SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+  private static final String _SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
   // Size of buffer used to read in resource contents
   private static final int _BUFFER_SIZE = 2048;
+
+  private static final String _GZIP_ETAG_SUFFIX = "-gzip";
   
   private volatile boolean _debug;
+  private volatile int     _cacheMaxEntries;
+  private volatile long    _cacheMaxBytes;
+  private volatile boolean _compress;
+  private volatile ConcurrentLinkedQueue<ObjectName> _cacheNames;
   private volatile ConcurrentMap<String, ResourceLoader> _loaders;
   private volatile ConcurrentMap<String, Class<?>> _loaderErrors;
   private volatile FacesContextFactory _facesContextFactory;
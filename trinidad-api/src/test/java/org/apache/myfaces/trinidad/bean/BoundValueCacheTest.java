@@ -0,0 +1,267 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.myfaces.trinidad.bean;
+
+import javax.el.ELContext;
+import javax.el.ValueExpression;
+
+import javax.faces.event.PhaseId;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.apache.myfaces.trinidad.context.MockRequestContext;
+import org.apache.myfaces.trinidadbuild.test.FacesTestCase;
+
+public class BoundValueCacheTest extends FacesTestCase
+{
+  public static final Test suite()
+  {
+    return new TestSuite(BoundValueCacheTest.class);
+  }
+
+  public static void main(String[] args) throws Throwable
+  {
+    junit.textui.TestRunner.run(suite());
+  }
+
+  public BoundValueCacheTest(
+    String testName)
+  {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    _mafct = new MockRequestContext();
+    servletContext.addInitParameter(BoundValueCache.CACHE_BOUND_VALUES_PARAM_NAME, "true");
+    facesContext.setCurrentPhaseId(PhaseId.RENDER_RESPONSE);
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    _mafct.release();
+    _mafct = null;
+    super.tearDown();
+  }
+
+  public void testCachedWhileRendering()
+  {
+    TestBean bean = new TestBean();
+    CountingExpression expression = new CountingExpression("foo");
+    bean.setValueExpression(TestBean.FIRST_KEY, expression);
+
+    assertEquals("foo", bean.getFirst());
+    assertEquals("foo", bean.getFirst());
+    assertEquals(1, expression.getCount());
+  }
+
+  public void testNullCached()
+  {
+    TestBean bean = new TestBean();
+    CountingExpression expression = new CountingExpression(null);
+    bean.setValueExpression(TestBean.FIRST_KEY, expression);
+
+    assertNull(bean.getFirst());
+    assertNull(bean.getFirst());
+    assertEquals(1, expression.getCount());
+  }
+
+  public void testBeansCachedSeparately()
+  {
+    TestBean bean1 = new TestBean();
+    TestBean bean2 = new TestBean();
+    bean1.setValueExpression(TestBean.FIRST_KEY, new CountingExpression("foo"));
+    bean2.setValueExpression(TestBean.FIRST_KEY, new CountingExpression("bar"));
+    bean1.setValueExpression(TestBean.SECOND_KEY, new CountingExpression("baz"));
+
+    assertEquals("foo", bean1.getFirst());
+    assertEquals("bar", bean2.getFirst());
+    assertEquals("baz", bean1.getSecond());
+  }
+
+  public void testNotCachedWhenDisabled()
+  {
+    servletContext.addInitParameter(BoundValueCache.CACHE_BOUND_VALUES_PARAM_NAME, "false");
+
+    TestBean bean = new TestBean();
+    CountingExpression expression = new CountingExpression("foo");
+    bean.setValueExpression(TestBean.FIRST_KEY, expression);
+
+    bean.getFirst();
+    bean.getFirst();
+    assertEquals(2, expression.getCount());
+  }
+
+  public void testNotCachedOutsideRendering()
+  {
+    facesContext.setCurrentPhaseId(PhaseId.PROCESS_VALIDATIONS);
+
+    TestBean bean = new TestBean();
+    CountingExpression expression = new CountingExpression("foo");
+    bean.setValueExpression(TestBean.FIRST_KEY, expression);
+
+    bean.getFirst();
+    bean.getFirst();
+    assertEquals(2, expression.getCount());
+  }
+
+  public void testLocalValueWins()
+  {
+    TestBean bean = new TestBean();
+    bean.setValueExpression(TestBean.FIRST_KEY, new CountingExpression("foo"));
+
+    assertEquals("foo", bean.getFirst());
+    bean.setFirst("local");
+    assertEquals("local", bean.getFirst());
+  }
+
+  public void testInvalidatedBySetValueExpression()
+  {
+    TestBean bean = new TestBean();
+    bean.setValueExpression(TestBean.FIRST_KEY, new CountingExpression("foo"));
+    assertEquals("foo", bean.getFirst());
+
+    bean.setValueExpression(TestBean.FIRST_KEY, new CountingExpression("bar"));
+    assertEquals("bar", bean.getFirst());
+  }
+
+  public void testInvalidatedByClearingLocalValue()
+  {
+    TestBean bean = new TestBean();
+    CountingExpression expression = new CountingExpression("foo");
+    bean.setValueExpression(TestBean.FIRST_KEY, expression);
+    bean.getFirst();
+
+    bean.setFirst(null);
+    bean.getFirst();
+    assertEquals(2, expression.getCount());
+  }
+
+  public void testInvalidatesOnlyChangedProperty()
+  {
+    TestBean bean = new TestBean();
+    CountingExpression first = new CountingExpression("foo");
+    bean.setValueExpression(TestBean.FIRST_KEY, first);
+    bean.getFirst();
+
+    // binding a property that had no binding leaves the cached values alone
+    bean.setValueExpression(TestBean.SECOND_KEY, new CountingExpression("bar"));
+    bean.getSecond();
+    bean.getFirst();
+    assertEquals(1, first.getCount());
+
+    // as does replacing the binding of another property
+    bean.setValueExpression(TestBean.SECOND_KEY, new CountingExpression("baz"));
+    assertEquals("baz", bean.getSecond());
+    bean.getFirst();
+    assertEquals(1, first.getCount());
+  }
+
+  public void testInvalidate()
+  {
+    TestBean bean = new TestBean();
+    CountingExpression expression = new CountingExpression("foo");
+    bean.setValueExpression(TestBean.FIRST_KEY, expression);
+    bean.getFirst();
+
+    expression.setValue(null, "bar");
+    assertEquals("foo", bean.getFirst());
+
+    BoundValueCache.invalidate(facesContext);
+    assertEquals("bar", bean.getFirst());
+    assertEquals(2, expression.getCount());
+  }
+
+  private static class CountingExpression extends ValueExpression
+  {
+    public CountingExpression(Object value)
+    {
+      _value = value;
+    }
+
+    public int getCount()
+    {
+      return _count;
+    }
+
+    @Override
+    public Object getValue(ELContext context)
+    {
+      _count++;
+      return _value;
+    }
+
+    @Override
+    public void setValue(ELContext context, Object value)
+    {
+      _value = value;
+    }
+
+    @Override
+    public boolean isReadOnly(ELContext context)
+    {
+      return false;
+    }
+
+    @Override
+    public Class<?> getType(ELContext context)
+    {
+      return Object.class;
+    }
+
+    @Override
+    public Class<?> getExpectedType()
+    {
+      return Object.class;
+    }
+
+    @Override
+    public String getExpressionString()
+    {
+      return null;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      return o == this;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return System.identityHashCode(this);
+    }
+
+    @Override
+    public boolean isLiteralText()
+    {
+      return false;
+    }
+
+    private Object _value;
+    private int    _count;
+  }
+
+  private MockRequestContext _mafct;
+}
@@ -100,6 +100,21 @@ public class PropertyKeyTest extends TestCase
     new PropertyKey("Number", Number.class, new Integer(101));
   }
 
+  public void testIndexInType()
+  {
+    int index = TestBean.FIRST_KEY.getIndex();
+    assertEquals(index, TestBean.FIRST_KEY.getIndex(TestBean.TYPE));
+
+    // registered with a super type, which the key is found in more than once
+    assertEquals(index, TestBean.FIRST_KEY.getIndex(SubTypeBean.TYPE));
+    assertEquals(index, TestBean.FIRST_KEY.getIndex(SubTypeBean.TYPE));
+    assertEquals(index, TestBean.FIRST_KEY.getIndex(TestBean.TYPE));
+
+    assertEquals(-1, SubTypeBean.SUB_KEY.getIndex(TestBean.TYPE));
+    assertEquals(-1, TestBean.FIRST_KEY.getIndex(null));
+    assertEquals(-1, new PropertyKey("anonymous").getIndex(TestBean.TYPE));
+  }
+
   public void testDefaultWrongType()
   {
     try
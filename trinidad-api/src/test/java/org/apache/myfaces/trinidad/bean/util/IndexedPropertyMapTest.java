@@ -0,0 +1,257 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidad.bean.util;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.myfaces.trinidad.bean.FacesBean;
+import org.apache.myfaces.trinidad.bean.PropertyKey;
+import org.apache.myfaces.trinidad.bean.TestBean;
+
+/**
+ * Test of IndexedPropertyMap.
+ */
+public class IndexedPropertyMapTest extends TestCase
+{
+  public static final Test suite()
+  {
+    return new TestSuite(IndexedPropertyMapTest.class);
+  }
+
+  public static void main(String[] args) throws Throwable
+  {
+    junit.textui.TestRunner.run(suite());
+  }
+
+  public IndexedPropertyMapTest(
+    String testName)
+  {
+    super(testName);
+  }
+
+  public void testPutGetRemove()
+  {
+    IndexedPropertyMap map = new IndexedPropertyMap(TestBean.TYPE);
+    assertTrue(map.isEmpty());
+    assertNull(map.get(TestBean.FIRST_KEY));
+    assertFalse(map.containsKey(TestBean.FIRST_KEY));
+
+    assertNull(map.put(TestBean.FIRST_KEY, "foo"));
+    assertEquals("foo", map.put(TestBean.FIRST_KEY, "bar"));
+    map.put(TestBean.SECOND_KEY, null);
+
+    assertEquals(2, map.size());
+    assertEquals("bar", map.get(TestBean.FIRST_KEY));
+    assertTrue(map.containsKey(TestBean.SECOND_KEY));
+    assertNull(map.get(TestBean.SECOND_KEY));
+
+    assertEquals("bar", map.remove(TestBean.FIRST_KEY));
+    assertNull(map.remove(TestBean.FIRST_KEY));
+    assertFalse(map.containsKey(TestBean.FIRST_KEY));
+    assertEquals(1, map.size());
+
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertFalse(map.containsKey(TestBean.SECOND_KEY));
+  }
+
+  public void testUnregisteredKeys()
+  {
+    FacesBean.Type otherType = new FacesBean.Type();
+    PropertyKey otherKey = otherType.registerKey("other");
+    otherType.lock();
+
+    // same index as TestBean.FIRST_KEY, but a different key
+    assertEquals(TestBean.FIRST_KEY.getIndex(), otherKey.getIndex());
+
+    PropertyKey anonymousKey = PropertyKey.createPropertyKey("anonymous");
+
+    IndexedPropertyMap map = new IndexedPropertyMap(TestBean.TYPE);
+    map.put(TestBean.FIRST_KEY, "first");
+    map.put(otherKey, "other");
+    map.put(anonymousKey, "anonymous");
+
+    assertEquals(3, map.size());
+    assertEquals("first", map.get(TestBean.FIRST_KEY));
+    assertEquals("other", map.get(otherKey));
+    assertEquals("anonymous", map.get(PropertyKey.createPropertyKey("anonymous")));
+
+    map.remove(otherKey);
+    assertEquals("first", map.get(TestBean.FIRST_KEY));
+    assertFalse(map.containsKey(otherKey));
+  }
+
+  public void testNoType()
+  {
+    IndexedPropertyMap map = new IndexedPropertyMap(null);
+    map.put(TestBean.FIRST_KEY, "first");
+
+    assertEquals("first", map.get(TestBean.FIRST_KEY));
+    assertEquals(1, map.size());
+  }
+
+  public void testManyKeys()
+  {
+    FacesBean.Type type = new FacesBean.Type();
+    PropertyKey[] keys = new PropertyKey[150];
+    for (int i = 0; i < keys.length; i++)
+      keys[i] = type.registerKey("key" + i);
+    type.lock();
+
+    IndexedPropertyMap map = new IndexedPropertyMap(type);
+    for (int i = keys.length - 1; i >= 0; i -= 3)
+      map.put(keys[i], i);
+
+    assertEquals(50, map.size());
+
+    int count = 0;
+    int lastIndex = -1;
+    for (Map.Entry<PropertyKey, Object> entry : map.entrySet())
+    {
+      int index = entry.getKey().getIndex();
+      assertTrue(index > lastIndex);
+      assertEquals(index, entry.getValue());
+      lastIndex = index;
+      count++;
+    }
+
+    assertEquals(50, count);
+    assertEquals(149, map.get(keys[149]));
+    assertNull(map.get(keys[148]));
+  }
+
+  public void testSparseKeys()
+  {
+    FacesBean.Type type = new FacesBean.Type();
+    PropertyKey[] keys = new PropertyKey[150];
+    for (int i = 0; i < keys.length; i++)
+      keys[i] = type.registerKey("key" + i);
+    type.lock();
+
+    IndexedPropertyMap map = new IndexedPropertyMap(type);
+    map.put(keys[149], "149");
+    map.put(keys[3], "3");
+    map.put(keys[70], "70");
+    map.put(keys[64], "64");
+    map.put(keys[63], "63");
+
+    assertEquals(5, map.size());
+    assertEquals("149", map.get(keys[149]));
+    assertEquals("3", map.get(keys[3]));
+    assertEquals("70", map.get(keys[70]));
+    assertNull(map.get(keys[69]));
+
+    assertEquals("64", map.remove(keys[64]));
+    assertEquals("70", map.put(keys[70], "seventy"));
+    assertEquals("63", map.get(keys[63]));
+    assertEquals("seventy", map.get(keys[70]));
+    assertEquals("149", map.get(keys[149]));
+
+    Iterator<Map.Entry<PropertyKey, Object>> entries = map.entrySet().iterator();
+    assertSame(keys[3], entries.next().getKey());
+    assertSame(keys[63], entries.next().getKey());
+    entries.remove();
+
+    Map.Entry<PropertyKey, Object> entry = entries.next();
+    assertSame(keys[70], entry.getKey());
+    assertEquals("seventy", entry.getValue());
+    assertEquals("149", entries.next().getValue());
+    assertFalse(entries.hasNext());
+
+    assertEquals(3, map.size());
+    assertEquals("3", map.get(keys[3]));
+  }
+
+  public void testEntrySet()
+  {
+    IndexedPropertyMap map = new IndexedPropertyMap(TestBean.TYPE);
+    PropertyKey anonymousKey = PropertyKey.createPropertyKey("anonymous");
+    map.put(TestBean.FIRST_KEY, "first");
+    map.put(TestBean.SECOND_KEY, "second");
+    map.put(anonymousKey, "anonymous");
+
+    assertEquals(3, map.entrySet().size());
+
+    Iterator<Map.Entry<PropertyKey, Object>> entries = map.entrySet().iterator();
+    Map.Entry<PropertyKey, Object> entry = entries.next();
+    assertSame(TestBean.FIRST_KEY, entry.getKey());
+    entry.setValue("changed");
+    assertEquals("changed", map.get(TestBean.FIRST_KEY));
+
+    // remove the last indexed entry, before moving to the hash map
+    entry = entries.next();
+    assertSame(TestBean.SECOND_KEY, entry.getKey());
+    assertTrue(entries.hasNext());
+    entries.remove();
+    assertFalse(map.containsKey(TestBean.SECOND_KEY));
+
+    entry = entries.next();
+    assertEquals(anonymousKey, entry.getKey());
+    entries.remove();
+    assertFalse(entries.hasNext());
+
+    assertEquals(1, map.size());
+  }
+
+  public void testStateSaving()
+  {
+    IndexedPropertyMap map = new IndexedPropertyMap(TestBean.TYPE);
+    map.put(TestBean.FIRST_KEY, "first");
+    map.put(TestBean.TRANSIENT_KEY, "transient");
+    map.put(PropertyKey.createPropertyKey("anonymous"), "anonymous");
+
+    Object state = map.saveState(null);
+
+    IndexedPropertyMap restored = new IndexedPropertyMap(TestBean.TYPE);
+    restored.restoreState(null, TestBean.TYPE, state);
+
+    assertEquals("first", restored.get(TestBean.FIRST_KEY));
+    assertEquals("anonymous", restored.get(PropertyKey.createPropertyKey("anonymous")));
+    assertNull(restored.get(TestBean.TRANSIENT_KEY));
+  }
+
+  public void testDeltas()
+  {
+    IndexedPropertyMap map = new IndexedPropertyMap(TestBean.TYPE);
+    map.put(TestBean.FIRST_KEY, "first");
+    map.put(TestBean.SECOND_KEY, "second");
+    map.markInitialState();
+
+    assertNull(map.saveState(null));
+
+    // setting an equal value is not a change
+    map.put(TestBean.FIRST_KEY, "first");
+    map.remove(TestBean.SECOND_KEY);
+
+    IndexedPropertyMap restored = new IndexedPropertyMap(TestBean.TYPE);
+    restored.put(TestBean.FIRST_KEY, "first");
+    restored.put(TestBean.SECOND_KEY, "second");
+    restored.restoreState(null, TestBean.TYPE, map.saveState(null));
+
+    assertEquals("first", restored.get(TestBean.FIRST_KEY));
+    assertTrue(restored.containsKey(TestBean.SECOND_KEY));
+    assertNull(restored.get(TestBean.SECOND_KEY));
+    assertEquals(1, ((Object[]) map.saveState(null)).length / 2);
+  }
+}
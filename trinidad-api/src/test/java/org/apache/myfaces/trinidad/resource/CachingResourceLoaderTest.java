@@ -18,8 +18,18 @@
  */
 package org.apache.myfaces.trinidad.resource;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.myfaces.trinidad.resource.CachingResourceLoader;
 import org.apache.myfaces.trinidad.resource.ResourceLoader;
@@ -42,10 +52,273 @@ public class CachingResourceLoaderTest extends ResourceLoaderTestCase
     doTestContentLength(url);
   }
 
+  public void testMissingResourceCached() throws IOException
+  {
+    SizedResourceLoader parent = new SizedResourceLoader();
+    CachingResourceLoader loader = new CachingResourceLoader(parent);
+
+    assertNull(loader.getResource("missing"));
+    assertNull(loader.getResource("missing"));
+
+    assertEquals(1, parent.getLookupCount());
+    assertEquals(1, loader.getHitCount());
+    assertEquals(1, loader.getMissCount());
+  }
+
+  public void testEntriesBounded() throws IOException
+  {
+    SizedResourceLoader parent = new SizedResourceLoader();
+    CachingResourceLoader loader = new CachingResourceLoader(parent, 2, 1000);
+
+    loader.getResource("10");
+    loader.getResource("20");
+    loader.getResource("10");
+    loader.getResource("30");
+
+    // "20" was the least recently used
+    assertEquals(2, loader.getEntryCount());
+    assertEquals(1, loader.getEvictionCount());
+
+    loader.getResource("10");
+    assertEquals(3, parent.getLookupCount());
+
+    loader.getResource("20");
+    assertEquals(4, parent.getLookupCount());
+  }
+
+  public void testMissingResourcesBoundedSeparately() throws IOException
+  {
+    SizedResourceLoader parent = new SizedResourceLoader();
+    CachingResourceLoader loader = new CachingResourceLoader(parent, 8, 1000);
+
+    loader.getResource("10");
+    loader.getResource("20");
+
+    // a quarter of the entries are kept for missing resources
+    for (int i = 0; i < 10; i++)
+      assertNull(loader.getResource("missing" + i));
+
+    assertEquals(4, loader.getEntryCount());
+    assertEquals(8, loader.getEvictionCount());
+
+    // the missing resources didn't evict the resources that exist
+    loader.getResource("10");
+    loader.getResource("20");
+    assertEquals(12, parent.getLookupCount());
+
+    assertNull(loader.getResource("missing9"));
+    assertEquals(12, parent.getLookupCount());
+
+    assertNull(loader.getResource("missing0"));
+    assertEquals(13, parent.getLookupCount());
+  }
+
+  public void testContentsBounded() throws IOException
+  {
+    SizedResourceLoader parent = new SizedResourceLoader();
+    CachingResourceLoader loader = new CachingResourceLoader(parent, 10, 100);
+
+    URL url60 = loader.getResource("60");
+    assertEquals(60, _readLength(url60));
+    assertEquals(60, loader.getCachedBytes());
+
+    // the contents of the least recently used resource are dropped
+    assertEquals(50, _readLength(loader.getResource("50")));
+    assertEquals(50, loader.getCachedBytes());
+    assertEquals(1, loader.getEvictionCount());
+    assertEquals(2, loader.getEntryCount());
+
+    assertEquals(60, _readLength(url60));
+    assertEquals(60, loader.getCachedBytes());
+    assertEquals(2, parent.getReadCount("60"));
+
+    // resources larger than the cache are served, but not kept
+    assertEquals(200, _readLength(loader.getResource("200")));
+    assertEquals(60, loader.getCachedBytes());
+
+    loader.clear();
+    assertEquals(0, loader.getCachedBytes());
+    assertEquals(0, loader.getEntryCount());
+  }
+
+  public void testCompressedContents() throws IOException
+  {
+    SizedResourceLoader parent = new SizedResourceLoader();
+    CachingResourceLoader loader = new CachingResourceLoader(parent, 10, 10000);
+    URL url = loader.getResource("1000");
+
+    CachedResourceConnection connection = (CachedResourceConnection)url.openConnection();
+    String etag = connection.getETag();
+    assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+    assertEquals(1000, connection.getContentLength(false));
+
+    int gzipLength = connection.getContentLength(true);
+    assertTrue(gzipLength > 0 && gzipLength < 1000);
+
+    // the compressed contents count towards the cache size
+    assertEquals(1000 + gzipLength, loader.getCachedBytes());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    connection.writeContents(out, true);
+    assertEquals(gzipLength, out.size());
+    assertEquals(1000, _readLength(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))));
+
+    // other connections share the tag and the compressed contents
+    connection = (CachedResourceConnection)url.openConnection();
+    assertEquals(etag, connection.getETag());
+    assertEquals(gzipLength, connection.getContentLength(true));
+    assertEquals(1, parent.getReadCount("1000"));
+
+    // contents that don't get smaller aren't compressed
+    connection = (CachedResourceConnection)loader.getResource("1").openConnection();
+    assertEquals(-1, connection.getContentLength(true));
+    assertFalse(etag.equals(connection.getETag()));
+  }
+
+  public void testLargeFilesNotCached() throws IOException
+  {
+    File directory = File.createTempFile("resources", "");
+    directory.delete();
+    directory.mkdir();
+
+    File small = _createFile(directory, "small.txt", 10);
+    File large = _createFile(directory, "large.txt", 1000);
+
+    try
+    {
+      CachingResourceLoader loader =
+        new CachingResourceLoader(new DirectoryResourceLoader(directory), 10, 100);
+
+      URLConnection connection = loader.getResource("small.txt").openConnection();
+      assertTrue(connection instanceof CachedResourceConnection);
+      assertEquals(10, _readLength(connection.getInputStream()));
+
+      // large files are read from the file system
+      connection = loader.getResource("large.txt").openConnection();
+      assertFalse(connection instanceof CachedResourceConnection);
+      assertEquals("file", connection.getURL().getProtocol());
+      assertEquals(1000, _readLength(connection.getInputStream()));
+      assertEquals(10, loader.getCachedBytes());
+    }
+    finally
+    {
+      small.delete();
+      large.delete();
+      directory.delete();
+    }
+  }
+
+  private static File _createFile(File directory, String name, int size) throws IOException
+  {
+    File file = new File(directory, name);
+    FileOutputStream out = new FileOutputStream(file);
+
+    try
+    {
+      out.write(new byte[size]);
+    }
+    finally
+    {
+      out.close();
+    }
+
+    return file;
+  }
+
+  private static int _readLength(URL url) throws IOException
+  {
+    return _readLength(url.openConnection().getInputStream());
+  }
+
+  private static int _readLength(InputStream in) throws IOException
+  {
+
+    try
+    {
+      int length = 0;
+      while (in.read() >= 0)
+        length++;
+
+      return length;
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
   protected URL findTestResource() throws IOException
   {
     ResourceLoader loader = 
       new CachingResourceLoader(new LocalResourceLoader());
     return loader.getResource("test.xml");
   }
+
+  /**
+   * ResourceLoader whose resources are named after their size, counting
+   * the lookups and reads of its resources
+   */
+  private static class SizedResourceLoader extends ResourceLoader
+  {
+    public int getLookupCount()
+    {
+      return _lookups;
+    }
+
+    public int getReadCount(String name)
+    {
+      Integer count = _reads.get(name);
+      return (count != null) ? count : 0;
+    }
+
+    @Override
+    protected URL findResource(
+      final String name
+      ) throws IOException
+    {
+      _lookups++;
+
+      final int size;
+
+      try
+      {
+        size = Integer.parseInt(name);
+      }
+      catch (NumberFormatException e)
+      {
+        return null;
+      }
+
+      return new URL("sized", null, -1, name, new URLStreamHandler()
+      {
+        @Override
+        protected URLConnection openConnection(URL url)
+        {
+          return new URLConnection(url)
+          {
+            @Override
+            public void connect()
+            {
+            }
+
+            @Override
+            public int getContentLength()
+            {
+              return size;
+            }
+
+            @Override
+            public InputStream getInputStream()
+            {
+              _reads.put(name, getReadCount(name) + 1);
+              return new ByteArrayInputStream(new byte[size]);
+            }
+          };
+        }
+      });
+    }
+
+    private int _lookups;
+    private final Map<String, Integer> _reads = new HashMap<String, Integer>();
+  }
 }
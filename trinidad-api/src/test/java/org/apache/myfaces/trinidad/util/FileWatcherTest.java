@@ -0,0 +1,203 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.myfaces.trinidad.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.URL;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.apache.myfaces.trinidadbuild.test.FacesTestCase;
+
+public class FileWatcherTest extends FacesTestCase
+{
+  public static final Test suite()
+  {
+    return new TestSuite(FileWatcherTest.class);
+  }
+
+  public FileWatcherTest(String testName)
+  {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+
+    _file = File.createTempFile("FileWatcherTest", ".txt");
+    _write(_file, "a");
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    if (_watcher != null)
+      _watcher.__close();
+
+    FileWatcher.shutdown(servletContext);
+    _file.delete();
+
+    super.tearDown();
+  }
+
+  public void testModifiedFile() throws Exception
+  {
+    FileWatcher.Watch watch = _watch(_HOUR);
+
+    // watching isn't supported everywhere
+    if (watch == null)
+      return;
+
+    assertFalse(watch.hasChanged());
+
+    _write(_file, "b");
+    assertTrue(_waitForChange(watch));
+
+    // a new Watch only sees later changes
+    assertFalse(_watcher.__watch(_file).hasChanged());
+  }
+
+  public void testDeletedFile() throws Exception
+  {
+    FileWatcher.Watch watch = _watch(_HOUR);
+
+    if (watch == null)
+      return;
+
+    _file.delete();
+    assertTrue(_waitForChange(watch));
+  }
+
+  public void testPeriodicCheck() throws Exception
+  {
+    // file systems without events still have their files checked now and then
+    FileWatcher.Watch watch = _watch(50L);
+
+    if (watch == null)
+      return;
+
+    Thread.sleep(100L);
+    assertTrue(watch.hasChanged());
+
+    // but not on every call
+    assertFalse(watch.hasChanged());
+  }
+
+  public void testClose()
+  {
+    FileWatcher.Watch watch = _watch(_HOUR);
+
+    if (watch == null)
+      return;
+
+    _watcher.__close();
+    _watcher = null;
+    assertTrue(watch.hasChanged());
+  }
+
+  public void testNotWatchedWithoutModificationChecks()
+  {
+    servletContext.addInitParameter(_CHECK_FILE_MODIFICATION_PARAM, "false");
+
+    assertNull(FileWatcher.watch(_file));
+  }
+
+  public void testApplicationWatcher() throws Exception
+  {
+    servletContext.addInitParameter(_CHECK_FILE_MODIFICATION_PARAM, "true");
+
+    FileWatcher.Watch watch = FileWatcher.watch(_file.toURI().toURL());
+
+    if (watch == null)
+      return;
+
+    assertFalse(watch.hasChanged());
+
+    // the watcher stops with its application
+    FileWatcher.shutdown(servletContext);
+    assertTrue(watch.hasChanged());
+
+    // and starts again when needed
+    assertNotNull(FileWatcher.watch(_file));
+  }
+
+  public void testUnwatchableURLs() throws Exception
+  {
+    servletContext.addInitParameter(_CHECK_FILE_MODIFICATION_PARAM, "true");
+
+    assertNull(FileWatcher.watch(new URL("http://localhost/foo.css")));
+  }
+
+  private FileWatcher.Watch _watch(long checkInterval)
+  {
+    try
+    {
+      _watcher = new FileWatcher(checkInterval);
+    }
+    catch (IOException e)
+    {
+      return null;
+    }
+    catch (UnsupportedOperationException e)
+    {
+      return null;
+    }
+
+    return _watcher.__watch(_file);
+  }
+
+  private static void _write(File file, String contents) throws IOException
+  {
+    OutputStream out = new FileOutputStream(file);
+
+    try
+    {
+      out.write(contents.getBytes("UTF-8"));
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  private static boolean _waitForChange(FileWatcher.Watch watch)
+    throws InterruptedException
+  {
+    // some platforms poll for changes
+    for (int i = 0; (i < 300) && !watch.hasChanged(); i++)
+      Thread.sleep(100);
+
+    return watch.hasChanged();
+  }
+
+  private File        _file;
+  private FileWatcher _watcher;
+
+  private static final long _HOUR = 60L * 60L * 1000L;
+
+  private static final String _CHECK_FILE_MODIFICATION_PARAM =
+    "org.apache.myfaces.trinidad.CHECK_FILE_MODIFICATION";
+}
@@ -0,0 +1,443 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.myfaces.trinidad.webapp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.apache.myfaces.test.mock.MockHttpServletRequest;
+import org.apache.myfaces.test.mock.MockHttpServletResponse;
+import org.apache.myfaces.test.mock.MockServletConfig;
+import org.apache.myfaces.test.mock.MockServletContext;
+import org.apache.myfaces.test.mock.MockServletOutputStream;
+import org.apache.myfaces.trinidadbuild.test.FacesTestCase;
+
+/**
+ * Test of the conditional and compressed responses of ResourceServlet, and of serving
+ * files without copying them.
+ */
+public class ResourceServletTest extends FacesTestCase
+{
+  public static final Test suite()
+  {
+    return new TestSuite(ResourceServletTest.class);
+  }
+
+  public static void main(String[] args) throws Throwable
+  {
+    junit.textui.TestRunner.run(suite());
+  }
+
+  public ResourceServletTest(
+    String testName)
+  {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+
+    _root = File.createTempFile("resources", "");
+    _root.delete();
+    new File(_root, "res").mkdirs();
+
+    StringBuilder css = new StringBuilder();
+    for (int i = 0; i < 100; i++)
+      css.append(".rule").append(i).append(" { color: red; }\n");
+
+    _contents = css.toString().getBytes("UTF-8");
+
+    OutputStream out = new FileOutputStream(new File(_root, "res/test.css"));
+    try
+    {
+      out.write(_contents);
+    }
+    finally
+    {
+      out.close();
+    }
+
+    _servletContext = new ServletContext();
+    _servletContext.setDocumentRoot(_root);
+
+    MockServletConfig servletConfig = new MockServletConfig(_servletContext);
+    servletConfig.addInitParameter(ResourceServlet.COMPRESS_INIT_PARAM, "true");
+
+    _servlet = new ResourceServlet();
+    _servlet.init(servletConfig);
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    _servlet.destroy();
+    _servlet = null;
+    _servletContext = null;
+
+    new File(_root, "res/test.css").delete();
+    new File(_root, "res").delete();
+    _root.delete();
+
+    super.tearDown();
+  }
+
+  public void testETagPerEncoding() throws Exception
+  {
+    Response identity = _get(null, null);
+    assertEquals(HttpServletResponse.SC_OK, identity.getStatus());
+    assertNull(identity.getHeader("Content-Encoding"));
+    assertEquals("Accept-Encoding", identity.getHeader("Vary"));
+    assertEquals(new String(_contents, "UTF-8"), new String(identity.getContents(), "UTF-8"));
+
+    String etag = identity.getHeader("ETag");
+    assertNotNull(etag);
+    assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+
+    Response gzipped = _get("gzip, deflate", null);
+    assertEquals(HttpServletResponse.SC_OK, gzipped.getStatus());
+    assertEquals("gzip", gzipped.getHeader("Content-Encoding"));
+    assertEquals("Accept-Encoding", gzipped.getHeader("Vary"));
+    assertEquals(new String(_contents, "UTF-8"),
+                 new String(_gunzip(gzipped.getContents()), "UTF-8"));
+
+    // the gzip compressed contents are a different representation
+    String gzipETag = gzipped.getHeader("ETag");
+    assertEquals(etag.substring(0, etag.length() - 1) + "-gzip\"", gzipETag);
+  }
+
+  public void testNotModified() throws Exception
+  {
+    String etag = _get(null, null).getHeader("ETag");
+    String gzipETag = _get("gzip", null).getHeader("ETag");
+
+    _assertNotModified(_get(null, etag));
+    _assertNotModified(_get("gzip", gzipETag));
+    _assertNotModified(_get(null, "W/" + etag));
+    _assertNotModified(_get(null, "\"other\", " + etag));
+    _assertNotModified(_get(null, "*"));
+
+    // the tag of one representation doesn't match the other
+    Response response = _get("gzip", etag);
+    assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+    assertEquals("gzip", response.getHeader("Content-Encoding"));
+
+    response = _get(null, gzipETag);
+    assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+    assertEquals(_contents.length, response.getContents().length);
+
+    response = _get(null, "\"other\"");
+    assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+  }
+
+  public void testAcceptsGzip() throws Exception
+  {
+    assertEquals("gzip", _get("gzip", null).getHeader("Content-Encoding"));
+    assertEquals("gzip", _get("deflate, x-gzip", null).getHeader("Content-Encoding"));
+    assertEquals("gzip", _get("*", null).getHeader("Content-Encoding"));
+    assertEquals("gzip", _get("GZIP ; q=0.5", null).getHeader("Content-Encoding"));
+
+    assertNull(_get("gzip;q=0", null).getHeader("Content-Encoding"));
+    assertNull(_get("identity", null).getHeader("Content-Encoding"));
+    assertNull(_get("", null).getHeader("Content-Encoding"));
+  }
+
+  public void testSendfile() throws Exception
+  {
+    Response response = new Response();
+    Request request = _serveFile(response, true);
+
+    // the container sends the file once the servlet returns
+    File file = new File(_root, "res/test.css");
+    assertEquals(file.getAbsolutePath(), request.getAttribute(_SENDFILE_FILENAME_ATTR));
+    assertEquals(Long.valueOf(0L), request.getAttribute(_SENDFILE_START_ATTR));
+    assertEquals(Long.valueOf(_contents.length), request.getAttribute(_SENDFILE_END_ATTR));
+    assertEquals(Integer.toString(_contents.length), response.getHeader("Content-Length"));
+    assertEquals(0, response.getContents().length);
+  }
+
+  public void testTransferToChannel() throws Exception
+  {
+    Response response = new Response(true);
+    Request request = _serveFile(response, false);
+
+    assertNull(request.getAttribute(_SENDFILE_FILENAME_ATTR));
+    assertEquals(new String(_contents, "UTF-8"), new String(response.getContents(), "UTF-8"));
+
+    // all of the contents were transferred through the channel
+    assertEquals(_contents.length, response.getChannelByteCount());
+  }
+
+  public void testCopyFile() throws Exception
+  {
+    Response response = new Response();
+    Request request = _serveFile(response, false);
+
+    assertNull(request.getAttribute(_SENDFILE_FILENAME_ATTR));
+    assertEquals(new String(_contents, "UTF-8"), new String(response.getContents(), "UTF-8"));
+    assertEquals(0, response.getChannelByteCount());
+  }
+
+  private void _assertNotModified(Response response)
+  {
+    assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+    assertEquals(0, response.getContents().length);
+  }
+
+  private Response _get(
+    String acceptEncoding,
+    String ifNoneMatch
+    ) throws IOException, ServletException
+  {
+    Request httpRequest = _createRequest();
+
+    if (acceptEncoding != null)
+      httpRequest.addHeader("Accept-Encoding", acceptEncoding);
+
+    if (ifNoneMatch != null)
+      httpRequest.addHeader("If-None-Match", ifNoneMatch);
+
+    Response httpResponse = new Response();
+    _servlet.service(httpRequest, httpResponse);
+
+    return httpResponse;
+  }
+
+  /**
+   * Serves the test file with a servlet that doesn't cache resources, so that it serves
+   * the file itself
+   */
+  private Request _serveFile(
+    Response response,
+    boolean  sendfileSupported
+    ) throws IOException, ServletException
+  {
+    MockServletConfig servletConfig = new MockServletConfig(_servletContext);
+    servletConfig.addInitParameter(ResourceServlet.DEBUG_INIT_PARAM, "true");
+
+    ResourceServlet servlet = new ResourceServlet();
+    servlet.init(servletConfig);
+
+    try
+    {
+      Request httpRequest = _createRequest();
+
+      if (sendfileSupported)
+        httpRequest.setAttribute(_SENDFILE_SUPPORT_ATTR, Boolean.TRUE);
+
+      servlet.service(httpRequest, response);
+
+      return httpRequest;
+    }
+    finally
+    {
+      servlet.destroy();
+    }
+  }
+
+  private Request _createRequest()
+  {
+    Request httpRequest = new Request();
+    httpRequest.setServletContext(_servletContext);
+    httpRequest.setMethod("GET");
+    httpRequest.setServletPath("/res");
+    httpRequest.setPathInfo("/test.css");
+
+    return httpRequest;
+  }
+
+  private static byte[] _gunzip(
+    byte[] bytes
+    ) throws IOException
+  {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+
+    try
+    {
+      int count;
+      while ((count = in.read(buffer)) >= 0)
+        out.write(buffer, 0, count);
+    }
+    finally
+    {
+      in.close();
+    }
+
+    return out.toByteArray();
+  }
+
+  /**
+   * ServletContext of a web application, which the resource caches are registered for
+   */
+  // the mock implements the generic methods of the servlet interfaces with raw types
+  @SuppressWarnings("unchecked")
+  private static class ServletContext extends MockServletContext
+  {
+    @Override
+    public String getContextPath()
+    {
+      return "/test";
+    }
+  }
+
+  /**
+   * Request that can be logged if serving it fails
+   */
+  // the mock implements the generic methods of the servlet interfaces with raw types
+  @SuppressWarnings("unchecked")
+  private static class Request extends MockHttpServletRequest
+  {
+    @Override
+    public String getPathTranslated()
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Response that keeps its status and contents
+   */
+  private static class Response extends MockHttpServletResponse
+  {
+    public Response()
+    {
+      this(false);
+    }
+
+    /**
+     * @param channel true if the output stream should also be a WritableByteChannel
+     */
+    public Response(
+      boolean channel)
+    {
+      _out = (channel)
+               ? new ChannelOutputStream(_bytes)
+               : new MockServletOutputStream(_bytes);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream()
+    {
+      return _out;
+    }
+
+    @Override
+    public void setStatus(int status)
+    {
+      _status = status;
+      super.setStatus(status);
+    }
+
+    @Override
+    public int getStatus()
+    {
+      return _status;
+    }
+
+    public byte[] getContents()
+    {
+      return _bytes.toByteArray();
+    }
+
+    /**
+     * @return the number of bytes written through the WritableByteChannel
+     */
+    public int getChannelByteCount()
+    {
+      return (_out instanceof ChannelOutputStream)
+               ? ((ChannelOutputStream)_out).getChannelByteCount()
+               : 0;
+    }
+
+    private int _status = HttpServletResponse.SC_OK;
+    private final ByteArrayOutputStream _bytes = new ByteArrayOutputStream();
+    private final ServletOutputStream _out;
+  }
+
+  /**
+   * Output stream that is also a channel, as the output streams of some containers are,
+   * counting the bytes written through the channel
+   */
+  private static class ChannelOutputStream extends MockServletOutputStream
+                                           implements WritableByteChannel
+  {
+    public ChannelOutputStream(
+      ByteArrayOutputStream bytes)
+    {
+      super(bytes);
+      _bytes = bytes;
+    }
+
+    public int write(
+      ByteBuffer source)
+    {
+      int count = source.remaining();
+      byte[] buffer = new byte[count];
+      source.get(buffer);
+
+      _bytes.write(buffer, 0, count);
+      _channelByteCount += count;
+
+      return count;
+    }
+
+    public boolean isOpen()
+    {
+      return true;
+    }
+
+    public int getChannelByteCount()
+    {
+      return _channelByteCount;
+    }
+
+    private final ByteArrayOutputStream _bytes;
+    private int _channelByteCount;
+  }
+
+  private static final String _SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+  private static final String _SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+  private static final String _SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+  private static final String _SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+  private File               _root;
+  private MockServletContext _servletContext;
+  private byte[]             _contents;
+  private ResourceServlet    _servlet;
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidad.bean;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.el.ValueExpression;
+
+import javax.faces.context.FacesContext;
+
+import org.apache.myfaces.trinidad.component.core.input.CoreInputText;
+
+import org.apache.myfaces.trinidadinternal.renderkit.BenchmarkContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the FacesBean property access that renderers perform for every
+ * attribute they write:  local values, EL-bound values and unset properties
+ * that fall back to their defaults.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FacesBeanBenchmark
+{
+  @Setup(Level.Trial)
+  public void setUp()
+  {
+    _context = new BenchmarkContext();
+    FacesContext facesContext = _context.getFacesContext();
+    facesContext.getExternalContext().getRequestMap().put("benchmarkLabel", "Bound label");
+
+    CoreInputText local = new CoreInputText();
+    local.setShortDesc("Short description");
+    local.setStyleClass("AFBenchmark");
+    local.setLabel("Label");
+    local.setValue("Value");
+    _localBean = local.getFacesBean();
+
+    CoreInputText bound = new CoreInputText();
+    ValueExpression expression = facesContext.getApplication().getExpressionFactory().
+      createValueExpression(facesContext.getELContext(), "#{benchmarkLabel}", Object.class);
+    bound.setValueExpression(CoreInputText.LABEL_KEY.getName(), expression);
+    _boundBean = bound.getFacesBean();
+
+    _emptyBean = new CoreInputText().getFacesBean();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown()
+  {
+    _context.release();
+  }
+
+  @Benchmark
+  public void getLocalProperties(Blackhole blackhole)
+  {
+    blackhole.consume(_localBean.getProperty(CoreInputText.SHORT_DESC_KEY));
+    blackhole.consume(_localBean.getProperty(CoreInputText.STYLE_CLASS_KEY));
+    blackhole.consume(_localBean.getProperty(CoreInputText.LABEL_KEY));
+    blackhole.consume(_localBean.getProperty(CoreInputText.VALUE_KEY));
+  }
+
+  @Benchmark
+  public void getUnsetProperties(Blackhole blackhole)
+  {
+    blackhole.consume(_emptyBean.getProperty(CoreInputText.SHORT_DESC_KEY));
+    blackhole.consume(_emptyBean.getProperty(CoreInputText.STYLE_CLASS_KEY));
+    blackhole.consume(_emptyBean.getProperty(CoreInputText.DISABLED_KEY));
+    blackhole.consume(_emptyBean.getProperty(CoreInputText.COLUMNS_KEY));
+  }
+
+  @Benchmark
+  public Object getBoundProperty()
+  {
+    return _boundBean.getProperty(CoreInputText.LABEL_KEY);
+  }
+
+  @Benchmark
+  public void setLocalProperties()
+  {
+    _localBean.setProperty(CoreInputText.SHORT_DESC_KEY, "Short description");
+    _localBean.setProperty(CoreInputText.STYLE_CLASS_KEY, "AFBenchmark");
+    _localBean.setProperty(CoreInputText.LABEL_KEY, "Label");
+    _localBean.setProperty(CoreInputText.VALUE_KEY, "Value");
+  }
+
+  private BenchmarkContext _context;
+  private FacesBean        _localBean;
+  private FacesBean        _boundBean;
+  private FacesBean        _emptyBean;
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.application;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.faces.component.UIViewRoot;
+import javax.faces.context.ExternalContext;
+import javax.faces.context.ExternalContextWrapper;
+import javax.faces.context.FacesContext;
+import javax.faces.context.FacesContextWrapper;
+import javax.faces.event.PhaseId;
+import javax.faces.render.ResponseStateManager;
+
+import org.apache.myfaces.trinidadinternal.renderkit.BenchmarkContext;
+import org.apache.myfaces.trinidadinternal.renderkit.MStateManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures StateManagerImpl saving a view at the end of a request and
+ * restoring it on the postback, both for token (server-side) and
+ * full client-side state saving.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateManagerBenchmark
+{
+  @Param({"token", "all"})
+  public String clientStateMethod;
+
+  @Param({"false", "true"})
+  public boolean compressViewState;
+
+  @Param({"20", "200"})
+  public int components;
+
+  @Setup(Level.Trial)
+  public void setUp()
+  {
+    Map<String, String> initParams = new HashMap<String, String>();
+    initParams.put(StateManagerImpl.CLIENT_STATE_METHOD_PARAM_NAME, clientStateMethod);
+    initParams.put(StateManagerImpl.COMPRESS_VIEW_STATE_PARAM_NAME,
+                   Boolean.toString(compressViewState));
+
+    _context = new BenchmarkContext(initParams);
+    _stateManager = new StateManagerImpl(new MStateManager());
+    _root = _context.createFormPage(_VIEW_ID, components);
+    _root.setRenderKitId(_RENDER_KIT_ID);
+
+    // Save the view once, so that there is a state to restore
+    FacesContext facesContext = _context.getFacesContext();
+    _context.beginRequest(PhaseId.RENDER_RESPONSE);
+    facesContext.setViewRoot(_root);
+    Object state = _stateManager.saveView(facesContext);
+    _viewState = _getResponseStateManager(facesContext).getViewState(facesContext, state);
+
+    _postback = new PostbackContext(facesContext, _viewState);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown()
+  {
+    _postback.release();
+    _context.release();
+  }
+
+  @Benchmark
+  public Object saveView()
+  {
+    FacesContext facesContext = _postback.getWrapped();
+    _postback.detach();
+    _context.beginRequest(PhaseId.RENDER_RESPONSE);
+    facesContext.setViewRoot(_root);
+
+    Object state = _stateManager.saveView(facesContext);
+    return _getResponseStateManager(facesContext).getViewState(facesContext, state);
+  }
+
+  @Benchmark
+  public UIViewRoot restoreView()
+  {
+    _postback.attach();
+    _context.beginRequest(PhaseId.RESTORE_VIEW);
+
+    UIViewRoot root = _stateManager.restoreView(_postback, _VIEW_ID, _RENDER_KIT_ID);
+    if (root == null)
+      throw new IllegalStateException("Could not restore the view state " + _viewState);
+
+    return root;
+  }
+
+  static private ResponseStateManager _getResponseStateManager(FacesContext context)
+  {
+    return context.getRenderKit().getResponseStateManager();
+  }
+
+  /**
+   * The mock ExternalContext has no request parameters, so the postback
+   * is simulated by wrapping the FacesContext and posting the view state.
+   */
+  static private final class PostbackContext extends FacesContextWrapper
+  {
+    public PostbackContext(FacesContext wrapped, String viewState)
+    {
+      _wrapped = wrapped;
+      _external = new PostbackExternalContext(wrapped.getExternalContext(),
+                    Collections.singletonMap(ResponseStateManager.VIEW_STATE_PARAM, viewState));
+    }
+
+    @Override
+    public FacesContext getWrapped()
+    {
+      return _wrapped;
+    }
+
+    @Override
+    public ExternalContext getExternalContext()
+    {
+      return _external;
+    }
+
+    public void attach()
+    {
+      setCurrentInstance(this);
+    }
+
+    public void detach()
+    {
+      setCurrentInstance(_wrapped);
+    }
+
+    public void release()
+    {
+      setCurrentInstance(null);
+    }
+
+    private final FacesContext    _wrapped;
+    private final ExternalContext _external;
+  }
+
+  static private final class PostbackExternalContext extends ExternalContextWrapper
+  {
+    public PostbackExternalContext(
+      ExternalContext     wrapped,
+      Map<String, String> requestParameters)
+    {
+      _wrapped = wrapped;
+      _requestParameters = requestParameters;
+    }
+
+    @Override
+    public ExternalContext getWrapped()
+    {
+      return _wrapped;
+    }
+
+    @Override
+    public Map<String, String> getRequestParameterMap()
+    {
+      return _requestParameters;
+    }
+
+    private final ExternalContext     _wrapped;
+    private final Map<String, String> _requestParameters;
+  }
+
+  private BenchmarkContext  _context;
+  private StateManagerImpl  _stateManager;
+  private UIViewRoot        _root;
+  private String            _viewState;
+  private PostbackContext   _postback;
+
+  static private final String _VIEW_ID = "/benchmark.jspx";
+  static private final String _RENDER_KIT_ID = "org.apache.myfaces.trinidad.core";
+}
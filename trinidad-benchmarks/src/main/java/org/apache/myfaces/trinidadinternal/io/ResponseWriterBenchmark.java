@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.io;
+
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.faces.context.ResponseWriter;
+
+import org.apache.myfaces.trinidadinternal.renderkit.NullWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures HtmlResponseWriter writing the markup of a table row:  elements,
+ * attributes and text that needs escaping, plus plain text that does not.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseWriterBenchmark
+{
+  @Param({"UTF-8", "ISO-8859-1"})
+  public String encoding;
+
+  @Benchmark
+  public void writeRow() throws IOException
+  {
+    ResponseWriter writer = new HtmlResponseWriter(new NullWriter(), encoding);
+
+    writer.startElement("tr", null);
+    writer.writeAttribute("class", "af_table_data-row", null);
+    for (int i = 0; i < _CELLS.length; i++)
+    {
+      writer.startElement("td", null);
+      writer.writeAttribute("class", "af_column_data-cell", null);
+      writer.writeAttribute("nowrap", Boolean.TRUE, null);
+      writer.writeAttribute("title", _CELLS[i], null);
+      writer.writeText(_CELLS[i], null);
+      writer.endElement("td");
+    }
+    writer.endElement("tr");
+    writer.flush();
+  }
+
+  @Benchmark
+  public void writePlainText() throws IOException
+  {
+    ResponseWriter writer = new HtmlResponseWriter(new NullWriter(), encoding);
+
+    writer.startElement("div", null);
+    for (int i = 0; i < 10; i++)
+      writer.writeText(_PLAIN_TEXT, null);
+    writer.endElement("div");
+    writer.flush();
+  }
+
+  static private final String[] _CELLS =
+  {
+    "Plain ASCII cell content",
+    "Ampersands & <angle brackets> \"quoted\"",
+    "Accented café and naïve résumé",
+    "日本語のテキスト",
+    "1,234,567.89 €"
+  };
+
+  static private final String _PLAIN_TEXT =
+    "The quick brown fox jumps over the lazy dog, again and again. ";
+}
@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.renderkit;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import javax.faces.component.UIComponent;
+import javax.faces.component.UIViewRoot;
+import javax.faces.context.FacesContext;
+import javax.faces.event.PhaseId;
+import javax.faces.render.RenderKit;
+
+import org.apache.myfaces.trinidad.component.core.CoreDocument;
+import org.apache.myfaces.trinidad.component.core.CoreForm;
+import org.apache.myfaces.trinidad.component.core.input.CoreInputText;
+import org.apache.myfaces.trinidad.render.ExtendedRenderKitService;
+import org.apache.myfaces.trinidad.skin.SkinProvider;
+import org.apache.myfaces.trinidad.util.Service;
+
+import org.apache.myfaces.trinidadinternal.io.XhtmlResponseWriter;
+import org.apache.myfaces.trinidadinternal.skin.provider.ExternalSkinProvider;
+import org.apache.myfaces.trinidadinternal.skin.provider.SkinProviderRegistry;
+import org.apache.myfaces.trinidadinternal.skin.provider.TrinidadSkinProvider;
+import org.apache.myfaces.trinidadinternal.util.StateUtils;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Offline request environment shared by the benchmarks.  It sets up the same
+ * mock FacesContext and RequestContext that the renderkit tests use, so that
+ * state saving and rendering can be measured without a servlet container.
+ * <p>
+ * The FacesContext and RequestContext are thread-local:  a BenchmarkContext
+ * must be created, used and released on the thread that runs the benchmark.
+ */
+public final class BenchmarkContext
+{
+  public BenchmarkContext()
+  {
+    this(Collections.<String, String>emptyMap());
+  }
+
+  public BenchmarkContext(Map<String, String> initParams)
+  {
+    _ensureFactories();
+
+    _facesContext = new MFacesContext(MApplication.sharedInstance(), false, initParams);
+
+    Map<String, Object> applicationMap = _facesContext.getExternalContext().getApplicationMap();
+    applicationMap.put(TrinidadSkinProvider.TRINDIAD_SKIN_PROVIDER_KEY,
+                       new TrinidadSkinProvider());
+    applicationMap.put(ExternalSkinProvider.EXTERNAL_SKIN_PROVIDER_KEY,
+                       new ExternalSkinProvider());
+    applicationMap.put(SkinProvider.SKIN_PROVIDER_INSTANCE_KEY,
+                       new SkinProviderRegistry());
+
+    // What StateUtils.initSecret() caches at startup
+    applicationMap.put(StateUtils.INIT_SECRET_KEY_CACHE,
+                       new SecretKeySpec(_DES_SECRET, StateUtils.DEFAULT_ALGORITHM));
+    applicationMap.put(StateUtils.INIT_MAC_SECRET_KEY_CACHE,
+                       new SecretKeySpec(_MAC_SECRET, StateUtils.DEFAULT_MAC_ALGORITHM));
+
+    _requestContext = new MRequestContext();
+    _requestContext.setSkinFamily("minimal");
+    _requestContext.setAgent(RenderKitBootstrap.getGeckoAgent());
+  }
+
+  /**
+   * Returns the parsed faces-config metadata of trinidad-impl.
+   */
+  static public FacesConfigInfo getFacesConfigInfo()
+  {
+    _ensureFactories();
+    return _sBootstrap.getFacesConfigInfo();
+  }
+
+  public MFacesContext getFacesContext()
+  {
+    return _facesContext;
+  }
+
+  /**
+   * Creates a new, empty view root for the Trinidad core renderkit.
+   */
+  public UIViewRoot createViewRoot()
+  {
+    return RenderKitBootstrap.createUIViewRoot(_facesContext);
+  }
+
+  /**
+   * Creates a typical form page: a document and a form holding the given
+   * number of labelled input fields.
+   */
+  public UIViewRoot createFormPage(String viewId, int inputCount)
+  {
+    UIViewRoot root = createViewRoot();
+    root.setViewId(viewId);
+
+    CoreDocument doc = new CoreDocument();
+    doc.setId("docId");
+    root.getChildren().add(doc);
+    CoreForm form = new CoreForm();
+    form.setId("formId");
+    doc.getChildren().add(form);
+
+    List<UIComponent> children = form.getChildren();
+    for (int i = 0; i < inputCount; i++)
+    {
+      CoreInputText input = new CoreInputText();
+      input.setId("input" + i);
+      input.setLabel("Label " + i);
+      input.setShortDesc("Short description " + i);
+      input.setValue("Value " + i);
+      input.setColumns(20);
+      children.add(input);
+    }
+
+    return root;
+  }
+
+  /**
+   * Clears the request-scoped state left behind by the previous
+   * invocation, so that every invocation starts a fresh request.
+   */
+  public void beginRequest(PhaseId phase)
+  {
+    _facesContext.getExternalContext().getRequestMap().clear();
+    _facesContext.setCurrentPhaseId(phase);
+  }
+
+  /**
+   * Renders a complete view to the writer, the way the render response
+   * phase does.
+   */
+  public void render(UIViewRoot root, Writer out) throws IOException
+  {
+    beginRequest(PhaseId.RENDER_RESPONSE);
+    _facesContext.setViewRoot(root);
+    _facesContext.setResponseWriter(
+      new XhtmlResponseWriter(out, XhtmlResponseWriter.XHTML_CONTENT_TYPE, "UTF-8"));
+
+    ExtendedRenderKitService service = _getExtendedRenderKitService(_facesContext);
+    if (service != null)
+      service.encodeBegin(_facesContext);
+
+    try
+    {
+      RenderUtils.encodeRecursive(_facesContext, root);
+      if (service != null)
+        service.encodeEnd(_facesContext);
+    }
+    finally
+    {
+      if (service != null)
+        service.encodeFinally(_facesContext);
+    }
+
+    _facesContext.setViewRoot(null);
+  }
+
+  public void release()
+  {
+    _requestContext.release();
+    MFacesContext.clearContext();
+  }
+
+  static private ExtendedRenderKitService _getExtendedRenderKitService(
+    FacesContext context)
+  {
+    RenderKit rk = context.getRenderKit();
+    if (rk == null)
+      throw new NullPointerException("No renderkit");
+
+    return Service.getService(rk, ExtendedRenderKitService.class);
+  }
+
+  // The factories are global to the classloader, so they are installed once
+  // no matter how many benchmark threads create a context
+  static private synchronized void _ensureFactories()
+  {
+    if (_sBootstrap != null)
+      return;
+
+    RenderKitBootstrap bootstrap = new RenderKitBootstrap();
+    try
+    {
+      bootstrap.init();
+    }
+    catch (IOException ioe)
+    {
+      throw new IllegalStateException(ioe);
+    }
+    catch (SAXException saxe)
+    {
+      throw new IllegalStateException(saxe);
+    }
+
+    RenderKitBootstrap.clearFactories();
+    RenderKitBootstrap.setFactories(bootstrap.getFacesConfigInfo());
+    _sBootstrap = bootstrap;
+  }
+
+  private final MFacesContext   _facesContext;
+  private final MRequestContext _requestContext;
+
+  static private RenderKitBootstrap _sBootstrap;
+
+  static private final byte[] _DES_SECRET = "benchmrk".getBytes();
+  static private final byte[] _MAC_SECRET = "trinidad-benchmark-mac".getBytes();
+}
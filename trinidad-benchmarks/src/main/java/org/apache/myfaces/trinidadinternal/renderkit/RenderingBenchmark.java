@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.renderkit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.faces.component.UIComponent;
+import javax.faces.component.UIViewRoot;
+
+import org.apache.myfaces.trinidad.component.core.CoreDocument;
+import org.apache.myfaces.trinidad.component.core.CoreForm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Renders a full page built from one of the renderkit test scripts.
+ * The page holds a document and a form, the base component of the script,
+ * and one more copy of the component for each attribute variant the script
+ * tests, so the rendered output matches what the golden-file tests exercise.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderingBenchmark
+{
+  @Param({"inputText", "selectOneChoice", "table", "panelFormLayout", "navigationPaneTabs"})
+  public String script;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, SAXException
+  {
+    _context = new BenchmarkContext();
+    _root = _createPage(_loadScript(script));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown()
+  {
+    _context.release();
+    _context = null;
+    _root = null;
+  }
+
+  @Benchmark
+  public void renderPage() throws IOException
+  {
+    _context.render(_root, new NullWriter());
+  }
+
+  private UIViewRoot _createPage(TestScript testScript)
+  {
+    UIViewRoot root = _context.createViewRoot();
+    _context.getFacesContext().setViewRoot(root);
+
+    CoreDocument doc = new CoreDocument();
+    doc.setId("docId");
+    root.getChildren().add(doc);
+    CoreForm form = new CoreForm();
+    form.setId("formId");
+    form.setUsesUpload(testScript.getDefinition().isUsesUpload());
+    doc.getChildren().add(form);
+
+    List<UIComponent> children = form.getChildren();
+    children.add(testScript.getDefinition().createComponent(_context.getFacesContext()));
+
+    for (TestScript.Test test : testScript.getTests())
+    {
+      UIComponent component =
+        testScript.getDefinition().createComponent(_context.getFacesContext());
+      test.apply(_context.getFacesContext(), component);
+      children.add(component);
+    }
+
+    _context.getFacesContext().setViewRoot(null);
+    return root;
+  }
+
+  // TestScriptParser only reads files, so copy the script out of the
+  // trinidad-impl test jar first
+  static private TestScript _loadScript(String name) throws IOException, SAXException
+  {
+    InputStream in = RenderingBenchmark.class.getResourceAsStream(
+                       "testScripts/" + name + ".xml");
+    if (in == null)
+      throw new IllegalArgumentException("No renderkit test script named " + name);
+
+    File file = File.createTempFile(name, ".xml");
+    try
+    {
+      OutputStream out = new FileOutputStream(file);
+      try
+      {
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0)
+          out.write(buffer, 0, read);
+      }
+      finally
+      {
+        out.close();
+        in.close();
+      }
+
+      return TestScriptParser.getTestScript(file, BenchmarkContext.getFacesConfigInfo());
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  private BenchmarkContext _context;
+  private UIViewRoot       _root;
+}
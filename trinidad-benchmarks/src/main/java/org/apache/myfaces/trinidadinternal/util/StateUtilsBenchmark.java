@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.faces.component.UIViewRoot;
+import javax.faces.context.ExternalContext;
+
+import org.apache.myfaces.trinidadinternal.application.StateManagerImpl;
+import org.apache.myfaces.trinidadinternal.renderkit.BenchmarkContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures encoding the saved state of a form page into the client-side
+ * view state string and decoding it again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateUtilsBenchmark
+{
+  @Param({"true", "false"})
+  public boolean useEncryption;
+
+  @Param({"true", "false"})
+  public boolean compress;
+
+  @Param({"org.apache.myfaces.trinidadinternal.util.serial.DefaultSerialFactory",
+          StateUtils.SERIAL_FACTORY_COMPACT})
+  public String serialFactory;
+
+  @Param({"20", "200"})
+  public int components;
+
+  @Setup(Level.Trial)
+  public void setUp()
+  {
+    Map<String, String> initParams = new HashMap<String, String>();
+    initParams.put(StateUtils.USE_ENCRYPTION, Boolean.toString(useEncryption));
+    initParams.put(StateUtils.COMPRESS_STATE_IN_CLIENT, Boolean.toString(compress));
+    initParams.put(StateUtils.SERIAL_FACTORY, serialFactory);
+
+    _context = new BenchmarkContext(initParams);
+    _external = _context.getFacesContext().getExternalContext();
+
+    UIViewRoot root = _context.createFormPage("/benchmark.jspx", components);
+    _state = StateManagerImpl.saveComponentTree(_context.getFacesContext(), root);
+    _encoded = StateUtils.construct(_state, _external);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown()
+  {
+    _context.release();
+  }
+
+  @Benchmark
+  public String construct()
+  {
+    return StateUtils.construct(_state, _external);
+  }
+
+  @Benchmark
+  public Object reconstruct()
+  {
+    return StateUtils.reconstruct(_encoded, _external);
+  }
+
+  private BenchmarkContext _context;
+  private ExternalContext  _external;
+  private Object           _state;
+  private String           _encoded;
+}
@@ -0,0 +1,100 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.myfaces.trinidadinternal.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the throughput of TokenCache and ConcurrentTokenCache when concurrent
+ * requests use the cache of a single window, the way StateManagerImpl uses it:  each
+ * request checks the availability of its token, and then adds a new token pinned to
+ * its page's base token.  Run with <code>-t</code> to vary the number of requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class TokenCacheBenchmark
+{
+  @Param({"false", "true"})
+  public boolean concurrent;
+
+  @Setup(Level.Iteration)
+  public void setUp()
+  {
+    _cache = concurrent
+               ? new ConcurrentTokenCache(_CACHE_SIZE, 0L, null)
+               : new TokenCache(_CACHE_SIZE);
+    _store = new ConcurrentHashMap<String, Object>();
+  }
+
+  @Benchmark
+  public String request(Request request)
+  {
+    TokenCache cache = _cache;
+
+    if ((request.current != null) && cache.isAvailable(request.current))
+    {
+      request.current = cache.addNewEntry(_VALUE, _store, request.base);
+    }
+    else
+    {
+      // our view expired, so start a new page
+      request.base = cache.addNewEntry(_VALUE, _store);
+      request.current = request.base;
+    }
+
+    return request.current;
+  }
+
+  /**
+   * The tokens of the page that a benchmark thread is on
+   */
+  @State(Scope.Thread)
+  public static class Request
+  {
+    public String base;
+    public String current;
+  }
+
+  private TokenCache          _cache;
+  private Map<String, Object> _store;
+
+  private static final int _CACHE_SIZE = 15;
+  private static final Object _VALUE = new Object();
+}
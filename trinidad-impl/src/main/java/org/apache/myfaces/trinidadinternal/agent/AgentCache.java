@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.agent;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.faces.context.ExternalContext;
+import javax.faces.context.FacesContext;
+
+import org.apache.myfaces.trinidad.context.RequestContext;
+import org.apache.myfaces.trinidad.logging.TrinidadLogger;
+import org.apache.myfaces.trinidadinternal.util.LRUCache;
+
+
+/**
+ * Application-scoped cache of the TrinidadAgents created for requests, keyed by
+ * the parts of the request that the agent depends on (see
+ * {@link AgentFactoryImpl#getCacheKey}).  Parsing the User-Agent and looking up
+ * the capabilities of the agent is only done for the first request from each kind
+ * of agent.  TrinidadAgents are never modified once created, so requests share
+ * them.
+ * <p>
+ * The cache holds at most <code>org.apache.myfaces.trinidad.AGENT_CACHE_SIZE</code>
+ * agents, 500 by default, discarding the least recently used agents once it is full,
+ * so that the agents of retired browser versions and of one-off User-Agents make
+ * room for new ones.  Setting the size to 0 disables the cache.  Agents aren't
+ * cached if a DeviceRepository is installed, since it may base the capabilities
+ * of an agent on the request.
+ */
+public final class AgentCache
+{
+  /**
+   * Servlet initialization parameter for the maximum number of agents cached
+   */
+  static public final String AGENT_CACHE_SIZE_PARAM_NAME =
+    "org.apache.myfaces.trinidad.AGENT_CACHE_SIZE";
+
+  /**
+   * @return the AgentCache of the application, or <code>null</code> if agents
+   * aren't cached
+   */
+  @SuppressWarnings("unchecked")
+  static public AgentCache getInstance(
+    RequestContext  requestContext,
+    ExternalContext external)
+  {
+    ConcurrentMap<String, Object> sharedAppMap =
+                                  requestContext.getApplicationScopedConcurrentMap();
+
+    AtomicReference<AgentCache> cacheHolder =
+                       (AtomicReference<AgentCache>)sharedAppMap.get(_CACHE_HOLDER_KEY);
+
+    if (cacheHolder == null)
+    {
+      // use a placeholder for null, since ConcurrentHashMap can't store null
+      cacheHolder = new AtomicReference<AgentCache>();
+
+      int maxSize = _getMaxSize(external);
+
+      if ((maxSize > 0) && !TrinidadAgentImpl.__usesDeviceRepository())
+        cacheHolder.set(new AgentCache(maxSize));
+
+      AtomicReference<AgentCache> oldCacheHolder =
+        (AtomicReference<AgentCache>)sharedAppMap.putIfAbsent(_CACHE_HOLDER_KEY, cacheHolder);
+
+      if (oldCacheHolder != null)
+        cacheHolder = oldCacheHolder;
+    }
+
+    return cacheHolder.get();
+  }
+
+  AgentCache(int maxSize)
+  {
+    _maxSize = maxSize;
+    _agents = new LRUCache<String, TrinidadAgent>(maxSize);
+  }
+
+  /**
+   * Returns the agent of the current request, creating it with the factory
+   * if it isn't cached.
+   */
+  public TrinidadAgent getAgent(FacesContext context, AgentFactoryImpl factory)
+  {
+    String key = factory.getCacheKey(context);
+
+    // don't cache the agents created outside of requests
+    if (key == null)
+      return new TrinidadAgentImpl(context, factory.createAgent(context));
+
+    TrinidadAgent agent;
+
+    // an access ordered map is modified by gets, so even gets are synchronized
+    synchronized (_agents)
+    {
+      agent = _agents.get(key);
+    }
+
+    if (agent != null)
+    {
+      _hits.incrementAndGet();
+      return agent;
+    }
+
+    _misses.incrementAndGet();
+
+    // create the agent outside of the lock, so that the parsing doesn't block other requests
+    agent = new TrinidadAgentImpl(context, factory.createAgent(context));
+
+    synchronized (_agents)
+    {
+      // another request may have cached the same agent in the meantime
+      TrinidadAgent oldAgent = _agents.get(key);
+
+      if (oldAgent != null)
+        return oldAgent;
+
+      _agents.put(key, agent);
+    }
+
+    return agent;
+  }
+
+  /**
+   * @return the number of requests whose agent was cached
+   */
+  public long getHitCount()
+  {
+    return _hits.get();
+  }
+
+  /**
+   * @return the number of requests whose agent had to be created
+   */
+  public long getMissCount()
+  {
+    return _misses.get();
+  }
+
+  /**
+   * @return the fraction of requests whose agent was cached, between 0 and 1
+   */
+  public double getHitRate()
+  {
+    long hits = _hits.get();
+    long requests = hits + _misses.get();
+
+    return (requests == 0) ? 0 : (double)hits / requests;
+  }
+
+  /**
+   * @return the number of agents cached
+   */
+  public int getSize()
+  {
+    synchronized (_agents)
+    {
+      return _agents.size();
+    }
+  }
+
+  public int getMaxSize()
+  {
+    return _maxSize;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "AgentCache[size=" + getSize() + ", hits=" + getHitCount() +
+           ", misses=" + getMissCount() + "]";
+  }
+
+  private static int _getMaxSize(ExternalContext external)
+  {
+    String maxSize = external.getInitParameter(AGENT_CACHE_SIZE_PARAM_NAME);
+
+    if ((maxSize == null) || "".equals(maxSize.trim()))
+      return _DEFAULT_MAX_SIZE;
+
+    try
+    {
+      return Integer.parseInt(maxSize.trim());
+    }
+    catch (NumberFormatException e)
+    {
+      _LOG.warning("Invalid value {0} for {1}; using {2}",
+                   new Object[]{maxSize, AGENT_CACHE_SIZE_PARAM_NAME, _DEFAULT_MAX_SIZE});
+      return _DEFAULT_MAX_SIZE;
+    }
+  }
+
+  private final int _maxSize;
+  private final Map<String, TrinidadAgent> _agents;
+  private final AtomicLong _hits = new AtomicLong();
+  private final AtomicLong _misses = new AtomicLong();
+
+  static private final int _DEFAULT_MAX_SIZE = 500;
+
+  // application map key of the AtomicReference holding the AgentCache
+  static private final String _CACHE_HOLDER_KEY = AgentCache.class.getName();
+
+  static private final TrinidadLogger _LOG = TrinidadLogger.createTrinidadLogger(AgentCache.class);
+}
@@ -77,6 +77,52 @@ public class AgentFactoryImpl implements AgentFactory
     return agent;
   }
 
+  /**
+   * Returns a key identifying the agent that <code>createAgent(facesContext)</code>
+   * creates, made of every part of the request that the agent depends on.  Requests
+   * with equal keys get equal agents.
+   * @return the key, or <code>null</code> if there is no request
+   */
+  public String getCacheKey(FacesContext facesContext)
+  {
+    if (facesContext == null)
+      return null;
+
+    ExternalContext extContext = facesContext.getExternalContext();
+
+    if (extContext.getRequest() == null)
+      return null;
+
+    Map<String, String> headerMap = extContext.getRequestHeaderMap();
+    String accept = headerMap.get("Accept");
+    boolean acceptsWML = (accept != null) &&
+                         accept.regionMatches(true, 0, "vnd.wap.wml", 0, 11);
+
+    StringBuilder key = new StringBuilder(128);
+    key.append(_showAsEmail(extContext) ? 'E' : '-');
+    key.append(acceptsWML ? 'W' : '-');
+
+    _appendKeyPart(key, _getUserAgentHeader(headerMap));
+    _appendKeyPart(key, headerMap.get("UA-pixels"));
+    _appendKeyPart(key, headerMap.get(_IASW_DEVICE_HINT_PARAM));
+
+    return key.toString();
+  }
+
+  // headers can't contain line breaks, so these separate the parts unambiguously
+  private static void _appendKeyPart(StringBuilder key, String part)
+  {
+    if (part == null)
+    {
+      key.append('\r');
+    }
+    else
+    {
+      key.append('\n');
+      key.append(part);
+    }
+  }
+
   /**
    * Populates the agent with informatiopn from the FacesContext and headerMap
    * @param context
@@ -281,6 +281,15 @@ public class TrinidadAgentImpl extends TrinidadAgent
   }
 
 
+  /**
+   * @return true if the capabilities of agents are looked up in a DeviceRepository,
+   * which may make them depend on the request as well as on the agent
+   */
+  static boolean __usesDeviceRepository()
+  {
+    return !(_getDeviceRepository() instanceof EmptyDeviceRepository);
+  }
+
   private static DeviceRepository _getDeviceRepository()
   {
     if (_deviceRepository == null)
@@ -0,0 +1,295 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.application;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.myfaces.trinidad.logging.TrinidadLogger;
+
+
+/**
+ * ViewStateStore that keeps the serialized page state outside of the Java heap
+ * in direct ByteBuffers.  Only a small ByteBuffer header per token remains on
+ * the heap, so the garbage collector no longer has to trace the page state
+ * object graphs of every session.
+ * <p>
+ * Direct memory is only returned to the system when the garbage collector
+ * collects the ByteBuffer headers, so removed buffers are not dropped but kept
+ * in a bounded pool of power-of-two sized buffers, which later states reuse.
+ * Since each state is stored in a buffer rounded up to a power of two, a state
+ * may hold up to twice its size in direct memory;  the byte counts of the store
+ * are the capacities of its buffers, so they include the rounding.
+ * <p>
+ * The contents of the store are local to this JVM and are not replicated
+ * with the session.
+ */
+public final class OffHeapViewStateStore implements ViewStateStore
+{
+  public OffHeapViewStateStore()
+  {
+    this(_DEFAULT_MAX_POOLED_BYTES);
+  }
+
+  /**
+   * @param maxPooledBytes the maximum number of bytes of removed buffers
+   *                       to keep for reuse
+   */
+  public OffHeapViewStateStore(long maxPooledBytes)
+  {
+    _sessions = new ConcurrentHashMap<String, ConcurrentMap<String, Slot>>();
+    _byteCount = new AtomicLong();
+    _pooledByteCount = new AtomicLong();
+    _maxPooledBytes = maxPooledBytes;
+
+    _pool = new ArrayList<Queue<ByteBuffer>>(_BUCKET_COUNT);
+
+    for (int i = 0; i < _BUCKET_COUNT; i++)
+      _pool.add(new ConcurrentLinkedQueue<ByteBuffer>());
+  }
+
+  @Override
+  public void putState(String sessionId, String key, byte[] state)
+  {
+    if (state == null)
+      throw new NullPointerException();
+
+    ByteBuffer buffer = _allocate(state.length);
+    buffer.put(state);
+    buffer.flip();
+
+    Slot oldSlot = _getSessionEntries(sessionId, true).put(key, new Slot(buffer));
+
+    _byteCount.addAndGet(buffer.capacity());
+
+    if (oldSlot != null)
+      _release(oldSlot);
+  }
+
+  @Override
+  public byte[] getState(String sessionId, String key)
+  {
+    ConcurrentMap<String, Slot> entries = _getSessionEntries(sessionId, false);
+
+    if (entries == null)
+      return null;
+
+    Slot slot = entries.get(key);
+
+    if (slot == null)
+      return null;
+
+    return slot.read();
+  }
+
+  @Override
+  public boolean removeState(String sessionId, String key)
+  {
+    ConcurrentMap<String, Slot> entries = _getSessionEntries(sessionId, false);
+
+    if (entries == null)
+      return false;
+
+    Slot slot = entries.remove(key);
+
+    if (slot == null)
+      return false;
+
+    _release(slot);
+
+    return true;
+  }
+
+  @Override
+  public void removeSession(String sessionId)
+  {
+    ConcurrentMap<String, Slot> entries = _sessions.remove(sessionId);
+
+    if (entries != null)
+    {
+      for (Slot slot : entries.values())
+      {
+        _release(slot);
+      }
+
+      _LOG.finer("Removed {0} view states for session {1}",
+                 new Object[]{entries.size(), sessionId});
+    }
+  }
+
+  /**
+   * @return the number of bytes of direct memory currently holding page state, including
+   * the unused ends of the buffers the states were rounded up to
+   */
+  public long getByteCount()
+  {
+    return _byteCount.get();
+  }
+
+  /**
+   * @return the number of bytes of removed buffers kept for reuse
+   */
+  public long getPooledByteCount()
+  {
+    return _pooledByteCount.get();
+  }
+
+  /**
+   * @return the number of sessions with page state in this store
+   */
+  public int getSessionCount()
+  {
+    return _sessions.size();
+  }
+
+  private ConcurrentMap<String, Slot> _getSessionEntries(String sessionId, boolean create)
+  {
+    ConcurrentMap<String, Slot> entries = _sessions.get(sessionId);
+
+    if ((entries == null) && create)
+    {
+      entries = new ConcurrentHashMap<String, Slot>(_DEFAULT_ENTRIES_PER_SESSION);
+
+      ConcurrentMap<String, Slot> oldEntries = _sessions.putIfAbsent(sessionId, entries);
+
+      if (oldEntries != null)
+        entries = oldEntries;
+    }
+
+    return entries;
+  }
+
+  /**
+   * Returns a cleared buffer with room for length bytes, reusing a pooled
+   * buffer when possible
+   */
+  private ByteBuffer _allocate(int length)
+  {
+    int bucket = _getBucket(length);
+
+    ByteBuffer buffer = _pool.get(bucket).poll();
+
+    if (buffer == null)
+      return ByteBuffer.allocateDirect(1 << bucket);
+
+    _pooledByteCount.addAndGet(-buffer.capacity());
+    buffer.clear();
+
+    return buffer;
+  }
+
+  /**
+   * Returns the buffer of a removed slot to the pool, if there is room
+   */
+  private void _release(Slot slot)
+  {
+    ByteBuffer buffer = slot.release();
+
+    // already released by someone else
+    if (buffer == null)
+      return;
+
+    int capacity = buffer.capacity();
+
+    _byteCount.addAndGet(-capacity);
+
+    if (_pooledByteCount.addAndGet(capacity) <= _maxPooledBytes)
+    {
+      _pool.get(_getBucket(capacity)).offer(buffer);
+    }
+    else
+    {
+      // the pool is full, so leave the buffer to the garbage collector
+      _pooledByteCount.addAndGet(-capacity);
+    }
+  }
+
+  /**
+   * Returns the index of the smallest power of two that holds length bytes
+   */
+  private static int _getBucket(int length)
+  {
+    if (length <= _MIN_BUFFER_SIZE)
+      return _MIN_BUCKET;
+
+    return 32 - Integer.numberOfLeadingZeros(length - 1);
+  }
+
+  /**
+   * A stored state.  Reads and the release of the buffer are synchronized, so
+   * that a reader never sees a buffer that has been returned to the pool
+   * and reused for another state.
+   */
+  private static final class Slot
+  {
+    public Slot(ByteBuffer buffer)
+    {
+      _buffer = buffer;
+    }
+
+    public synchronized byte[] read()
+    {
+      if (_buffer == null)
+        return null;
+
+      // use a duplicate so that the buffer's position is never changed
+      byte[] state = new byte[_buffer.limit()];
+      _buffer.duplicate().get(state);
+
+      return state;
+    }
+
+    public synchronized ByteBuffer release()
+    {
+      ByteBuffer buffer = _buffer;
+      _buffer = null;
+
+      return buffer;
+    }
+
+    private ByteBuffer _buffer;
+  }
+
+  private final ConcurrentMap<String, ConcurrentMap<String, Slot>> _sessions;
+  private final AtomicLong _byteCount;
+
+  // removed buffers by size, indexed by the power of two of their capacity
+  private final List<Queue<ByteBuffer>> _pool;
+  private final AtomicLong _pooledByteCount;
+  private final long _maxPooledBytes;
+
+  // the default number of tokens per window
+  static private final int _DEFAULT_ENTRIES_PER_SESSION = 16;
+
+  static private final int _MIN_BUCKET = 10;
+  static private final int _MIN_BUFFER_SIZE = 1 << _MIN_BUCKET;
+  static private final int _BUCKET_COUNT = 32;
+
+  static private final long _DEFAULT_MAX_POOLED_BYTES = 32L * 1024 * 1024;
+
+  static private final TrinidadLogger _LOG =
+    TrinidadLogger.createTrinidadLogger(OffHeapViewStateStore.class);
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.application;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.faces.context.ExternalContext;
+
+import javax.servlet.ServletContext;
+
+import org.apache.myfaces.trinidadinternal.webapp.TrinidadFilterImpl;
+
+
+/**
+ * Compresses the page state saved by a request after the request's response has been
+ * sent, rather than on the request thread before the response completes.  The state is
+ * serialized while the request still has its FacesContext, and the serialized bytes are
+ * queued on the request while it runs.  Once the filter chain returns, the TrinidadFilter
+ * flushes the response and then hands the bytes to a bounded pool of background threads,
+ * which only deflate them and so never need the request's FacesContext.  If the pool
+ * is saturated, the request thread compresses the state itself.
+ * <p>
+ * StateManagerImpl defers compression when both the
+ * <code>org.apache.myfaces.trinidad.COMPRESS_VIEW_STATE</code> and the
+ * <code>org.apache.myfaces.trinidad.ASYNC_COMPRESS_VIEW_STATE</code> servlet initialization
+ * parameters are "true".
+ */
+public final class StateCompressor
+{
+  /**
+   * Returns the StateCompressor of the application, creating it if needed
+   */
+  static StateCompressor getInstance(ExternalContext external)
+  {
+    Map<String, Object> appMap = external.getApplicationMap();
+    StateCompressor compressor = (StateCompressor)appMap.get(_COMPRESSOR_KEY);
+
+    if (compressor == null)
+    {
+      synchronized (StateCompressor.class)
+      {
+        compressor = (StateCompressor)appMap.get(_COMPRESSOR_KEY);
+
+        if (compressor == null)
+        {
+          compressor = new StateCompressor();
+          appMap.put(_COMPRESSOR_KEY, compressor);
+        }
+      }
+    }
+
+    return compressor;
+  }
+
+  /**
+   * @return <code>true</code> if the work deferred by the current request will be
+   * submitted once its response has been rendered.
+   */
+  static boolean isDeferrable()
+  {
+    // the TrinidadFilter submits the deferred work while it is executing the filter chain
+    return TrinidadFilterImpl.getPseudoFacesContext() != null;
+  }
+
+  /**
+   * Defers work until the response of the current request has been rendered
+   */
+  @SuppressWarnings("unchecked")
+  void defer(ExternalContext external, Runnable work)
+  {
+    Map<String, Object> requestMap = external.getRequestMap();
+    List<Runnable> deferredWork = (List<Runnable>)requestMap.get(_DEFERRED_WORK_KEY);
+
+    if (deferredWork == null)
+    {
+      deferredWork = new ArrayList<Runnable>();
+      requestMap.put(_DEFERRED_WORK_KEY, deferredWork);
+    }
+
+    deferredWork.add(work);
+  }
+
+  /**
+   * @return <code>true</code> if the current request has deferred work that hasn't been
+   * submitted yet
+   */
+  public static boolean hasDeferredWork(ExternalContext external)
+  {
+    return external.getRequestMap().containsKey(_DEFERRED_WORK_KEY);
+  }
+
+  /**
+   * Hands the work deferred by the current request to the background threads.  Called
+   * by the TrinidadFilter once the response has been flushed.
+   */
+  @SuppressWarnings("unchecked")
+  public static void submitDeferredWork(ExternalContext external)
+  {
+    List<Runnable> deferredWork =
+      (List<Runnable>)external.getRequestMap().remove(_DEFERRED_WORK_KEY);
+
+    if (deferredWork == null)
+      return;
+
+    StateCompressor compressor = getInstance(external);
+
+    for (Runnable work : deferredWork)
+    {
+      compressor._executor.execute(work);
+    }
+  }
+
+  /**
+   * Stops the background threads of an application, if they were started.  Any
+   * state that hasn't been compressed yet is compressed when it is next used.
+   */
+  public static void shutdown(ServletContext context)
+  {
+    StateCompressor compressor = (StateCompressor)context.getAttribute(_COMPRESSOR_KEY);
+
+    if (compressor != null)
+    {
+      context.removeAttribute(_COMPRESSOR_KEY);
+      compressor._executor.shutdownNow();
+    }
+  }
+
+  private StateCompressor()
+  {
+    int threadCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    // the request thread compresses the state when the queue is full, which bounds the
+    // memory held by uncompressed state at the cost of that request's latency
+    _executor = new ThreadPoolExecutor(threadCount, threadCount,
+                                       _KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                       new ArrayBlockingQueue<Runnable>(_QUEUE_SIZE),
+                                       new CompressorThreadFactory(),
+                                       new ThreadPoolExecutor.CallerRunsPolicy());
+    _executor.allowCoreThreadTimeOut(true);
+  }
+
+  private static final class CompressorThreadFactory implements ThreadFactory
+  {
+    public Thread newThread(Runnable r)
+    {
+      Thread thread = new Thread(r, "Trinidad state compressor " + _count.incrementAndGet());
+      thread.setDaemon(true);
+
+      return thread;
+    }
+
+    private final AtomicInteger _count = new AtomicInteger();
+  }
+
+  private final ThreadPoolExecutor _executor;
+
+  static private final int _QUEUE_SIZE = 256;
+  static private final long _KEEP_ALIVE_SECONDS = 60L;
+
+  static private final String _COMPRESSOR_KEY = StateCompressor.class.getName();
+  static private final String _DEFERRED_WORK_KEY = StateCompressor.class.getName() + ".DEFERRED";
+}
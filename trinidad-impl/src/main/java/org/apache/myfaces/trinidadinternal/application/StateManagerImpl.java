@@ -21,16 +21,21 @@ package org.apache.myfaces.trinidadinternal.application;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
 import java.io.IOException;
+import java.io.ObjectInput;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.DataFormatException;
@@ -116,6 +121,56 @@ public class StateManagerImpl extends StateManagerWrapper
   static public final String COMPRESS_VIEW_STATE_PARAM_NAME =
     "org.apache.myfaces.trinidad.COMPRESS_VIEW_STATE";
 
+  /**
+   * Servlet context initialization parameter used by
+   * StateManagerImpl to decide whether state zipped because of
+   * COMPRESS_VIEW_STATE_PARAM_NAME is zipped after the response
+   * has been rendered, on a background thread.
+   * Valid values are true and false;  the default is false.
+   * @see StateCompressor
+   */
+  static public final String ASYNC_COMPRESS_VIEW_STATE_PARAM_NAME =
+    "org.apache.myfaces.trinidad.ASYNC_COMPRESS_VIEW_STATE";
+
+  /**
+   * Servlet context initialization parameter used by
+   * StateManagerImpl to decide where the page state of "token"
+   * state saving is stored.  If not set, the page state is stored in
+   * the session.  The value "offheap" stores serialized page state
+   * outside of the Java heap;  any other value is the name of a
+   * class implementing ViewStateStore.
+   */
+  static public final String VIEW_STATE_STORE_PARAM_NAME =
+    "org.apache.myfaces.trinidad.VIEW_STATE_STORE";
+
+  /**
+   * Value of VIEW_STATE_STORE_PARAM_NAME that stores page state outside
+   * of the Java heap.
+   */
+  static public final String VIEW_STATE_STORE_OFFHEAP = "offheap";
+
+  /**
+   * Servlet context initialization parameter used by
+   * StateManagerImpl to enable delta encoding of the page state
+   * stored for each token.  The value is the maximum number of
+   * consecutive postbacks to the same view that are stored as a
+   * difference against the previous page state before a full
+   * page state is stored again.  The default, 0, always stores
+   * the full page state.
+   */
+  static public final String VIEW_STATE_KEYFRAME_INTERVAL_PARAM_NAME =
+    "org.apache.myfaces.trinidad.VIEW_STATE_KEYFRAME_INTERVAL";
+
+  /**
+   * Servlet context initialization parameter used by
+   * StateManagerImpl to decide whether to record the size of the
+   * page state and the time taken to save and restore it for each view.
+   * Valid values are true and false;  the default is false.
+   * @see StateMetrics
+   */
+  static public final String STATE_METRICS_PARAM_NAME =
+    "org.apache.myfaces.trinidad.STATE_METRICS";
+
   /**
    * Value indicating that only a simple token will be stored
    * on the client.
@@ -189,6 +244,9 @@ public class StateManagerImpl extends StateManagerWrapper
     String viewId = viewRoot.getViewId();
     StateManagementStrategy sms = _getStateManagementStrategy(context, viewId);
     Map<Object, Object> contextAttributes = context.getAttributes();
+
+    StateMetrics metrics = _getStateMetrics(context.getExternalContext());
+    long startTime = (metrics != null) ? System.nanoTime() : 0L;
     
     try
     {
@@ -227,6 +285,9 @@ public class StateManagerImpl extends StateManagerWrapper
       viewState = _saveStateToCache(context, viewState, viewRoot);
     }
 
+    if (metrics != null)
+      metrics.recordSave(context.getExternalContext(), viewId, System.nanoTime() - startTime);
+
     _saveCachedViewState(context, viewState);
     return viewState;
   }
@@ -344,19 +405,57 @@ public class StateManagerImpl extends StateManagerWrapper
     // get per window view cache key with "." separator suffix to separate the SubKeyMap keys
     String subkey = _getViewCacheKey(extContext, trinContext, _SUBKEY_SEPARATOR);
 
-    Map<String, Object>  sessionMap = extContext.getSessionMap();
-    SubKeyMap<PageState> stateMap   = new SubKeyMap<PageState>(sessionMap, subkey);
+    Map<String, PageState> stateMap = _getStateMap(extContext, subkey);
+
+    boolean useStore = (_getViewStateStore(extContext) != null);
+
+    // the UIViewRoot can't be cached with state that is serialized into a ViewStateStore
+    PseudoReferenceFactory<ViewRootState> viewRootStateRefFactory =
+      (!useStore)
+        ? _getOrCreateViewRootStateRefFactory(context, trinContext)
+        : null;
+
+    // page states in a ViewStateStore are serialized individually, so they can't
+    // share their unchanged state with a previous page state
+    PageState basePageState = (!useStore)
+                                ? _getDeltaBasePageState(extContext, root.getViewId())
+                                : null;
+
+    Object baseViewState = (basePageState != null)
+                             ? extContext.getRequestMap().get(_RESTORED_VIEW_STATE_KEY)
+                             : null;
+
+    // page states in a ViewStateStore are serialized as soon as they are stored, so
+    // zipping them later wouldn't take any work off the request
+    boolean deferCompression = !useStore && _isAsyncCompression(extContext);
 
     // Sadly, we can't save just a SerializedView, because we should
     // save a serialized object, and SerializedView is a *non*-static
     // inner class of StateManager
     PageState pageState = new PageState(
         context,
-        _getOrCreateViewRootStateRefFactory(context, trinContext),
+        viewRootStateRefFactory,
         viewState,
         // Save the view root into the page state as a transient
         // if this feature has not been disabled
-        root);
+        root,
+        root.getViewId(),
+        basePageState,
+        baseViewState,
+        deferCompression);
+
+    StateMetrics metrics = _getStateMetrics(extContext);
+
+    if (pageState.isCompressionPending())
+    {
+      StateCompressor.getInstance(extContext).defer(extContext,
+                                                    new CompressTask(pageState, metrics));
+    }
+    else if (metrics != null)
+    {
+      metrics.recordStateSize(extContext, root.getViewId(), pageState.getStateSize(),
+                              pageState.getZippedStateSize());
+    }
 
     String requestToken = _getRequestTokenForResponse(context);
     String token;
@@ -382,9 +481,25 @@ public class StateManagerImpl extends StateManagerWrapper
     {
       // See if we should pin this new state to any old state
       String pinnedToken = (String)extContext.getRequestMap().get(_PINNED_STATE_TOKEN_KEY);
-      token = cache.addNewEntry(pageState,
-                                stateMap,
-                                pinnedToken);
+
+      if (metrics != null)
+      {
+        // the TokenCache removes the page states that it evicts from the state map
+        EvictionCountingMap countingStateMap = new EvictionCountingMap(stateMap);
+
+        token = cache.addNewEntry(pageState,
+                                  countingStateMap,
+                                  pinnedToken);
+
+        metrics.recordTokenCacheEvictions(extContext, root.getViewId(),
+                                          countingStateMap.getRemovedCount());
+      }
+      else
+      {
+        token = cache.addNewEntry(pageState,
+                                  stateMap,
+                                  pinnedToken);
+      }
     }
 
 
@@ -394,7 +509,7 @@ public class StateManagerImpl extends StateManagerWrapper
     extContext.getRequestMap().put(_REQUEST_STATE_TOKEN_KEY, token);
 
     // clear out the view root cache, passing in the session key for the new active state
-    String newActivePageStateKey = stateMap.getBaseKey(token);
+    String newActivePageStateKey = subkey + token;
     _clearViewRootCache(extContext, newActivePageStateKey);
     
     // Create a "tokenView" which abuses state to store
@@ -402,6 +517,49 @@ public class StateManagerImpl extends StateManagerWrapper
     return new Object[]{token, null};
   }
   
+  /**
+   * Returns the PageState that the state for the current request should be stored as a delta
+   * against, if any.  This is the PageState restored for this request, as long as this is a
+   * postback to the same view and the maximum number of consecutive deltas hasn't been reached.
+   */
+  private PageState _getDeltaBasePageState(ExternalContext extContext, String viewId)
+  {
+    int keyframeInterval = _getKeyframeInterval(extContext);
+
+    if (keyframeInterval <= 0)
+      return null;
+
+    PageState restoredPageState =
+                            (PageState)extContext.getRequestMap().get(_RESTORED_PAGE_STATE_KEY);
+
+    if ((restoredPageState != null)                        &&
+        viewId.equals(restoredPageState.getViewId())       &&
+        (restoredPageState.getDeltaCount() < keyframeInterval))
+    {
+      return restoredPageState;
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the view state of the PageState restored for this request.  If the state of
+   * this request may be stored as a delta against it, the view state is remembered, so
+   * that computing the delta doesn't have to unzip and apply the base's chain of deltas
+   * a second time.
+   */
+  private Object _getRestoredViewState(FacesContext context, PageState restoredPageState)
+  {
+    Object viewState = restoredPageState.getViewState(context);
+
+    ExternalContext extContext = context.getExternalContext();
+
+    if (_getKeyframeInterval(extContext) > 0)
+      extContext.getRequestMap().put(_RESTORED_VIEW_STATE_KEY, viewState);
+
+    return viewState;
+  }
+
   private void _clearViewRootCache(ExternalContext extContext, String newActivePageStateKey)
   {
     Map<String, Object> sessionMap = extContext.getSessionMap();
@@ -571,9 +729,7 @@ public class StateManagerImpl extends StateManagerWrapper
     // remove the view state stored with no associated window from the session
     String oldSubkey = _getViewCacheKey(external, null, _SUBKEY_SEPARATOR);
 
-    Map<String, Object> sessionMap = external.getSessionMap();
-
-    Map<String, PageState> oldStateMap = new SubKeyMap<PageState>(sessionMap, oldSubkey);
+    Map<String, PageState> oldStateMap = _getStateMap(external, oldSubkey);
 
     PageState viewState = oldStateMap.remove(token);
 
@@ -583,7 +739,7 @@ public class StateManagerImpl extends StateManagerWrapper
     // store it under the windowId
     String windowSubkey = _getPerWindowCacheKey(windowId, _VIEW_CACHE_KEY, _SUBKEY_SEPARATOR);
 
-    Map<String, PageState> newStateMap = new SubKeyMap<PageState>(sessionMap, windowSubkey);
+    Map<String, PageState> newStateMap = _getStateMap(external, windowSubkey);
 
     newStateMap.put(token, viewState);
   }
@@ -617,7 +773,7 @@ public class StateManagerImpl extends StateManagerWrapper
       
       // create a map that establishes a moniker (key) between the windowId and token cache used to locate the
       // associated page state.
-      Map<String, PageState> stateMap = new SubKeyMap<PageState>(sessionMap, subkey);
+      Map<String, PageState> stateMap = _getStateMap(extContext, subkey);
       
       // removes all page states known by the token cache from session
       cache.clear(stateMap);
@@ -640,19 +796,179 @@ public class StateManagerImpl extends StateManagerWrapper
                                      RequestContext.getCurrentInstance(),
                                      _SUBKEY_SEPARATOR);
 
-    Map<String, PageState> stateMap = new SubKeyMap<PageState>(
-                     external.getSessionMap(),
-                     subkey);
+    Map<String, PageState> stateMap = _getStateMap(external, subkey);
 
     return stateMap.get(token);
   }
 
-  @SuppressWarnings({"unchecked", "deprecation"})
+  /**
+   * Returns the Map of tokens to PageStates for a view cache key, stored either in the
+   * session or in the configured ViewStateStore
+   * @param external
+   * @param subkey the view cache key, including the separator suffix
+   * @return
+   */
+  private static Map<String, PageState> _getStateMap(ExternalContext external, String subkey)
+  {
+    ViewStateStore store = _getViewStateStore(external);
+
+    if (store != null)
+    {
+      String sessionId = ExternalContextUtils.getSessionId(external, true);
+
+      ViewStateStoreMap.registerSession(external, store);
+
+      return new ViewStateStoreMap<PageState>(store, sessionId, subkey);
+    }
+    else
+    {
+      return new SubKeyMap<PageState>(external.getSessionMap(), subkey);
+    }
+  }
+
+  /**
+   * @return the ViewStateStore configured with VIEW_STATE_STORE_PARAM_NAME or
+   * <code>null</code> if the page state should be stored in the session.
+   */
+  @SuppressWarnings("unchecked")
+  private static ViewStateStore _getViewStateStore(ExternalContext external)
+  {
+    ConcurrentMap<String, Object> sharedAppMap =
+                            RequestContext.getCurrentInstance().getApplicationScopedConcurrentMap();
+
+    AtomicReference<ViewStateStore> storeHolder =
+                     (AtomicReference<ViewStateStore>)sharedAppMap.get(VIEW_STATE_STORE_PARAM_NAME);
+
+    if (storeHolder == null)
+    {
+      // use a placeholder for null, since ConcurrentHashMap can't store null
+      storeHolder = new AtomicReference<ViewStateStore>(_instantiateViewStateStore(external));
+
+      AtomicReference<ViewStateStore> oldStoreHolder =
+        (AtomicReference<ViewStateStore>)sharedAppMap.putIfAbsent(VIEW_STATE_STORE_PARAM_NAME,
+                                                                  storeHolder);
+
+      // make sure that everyone uses the same store
+      if (oldStoreHolder != null)
+        storeHolder = oldStoreHolder;
+      else if ((storeHolder.get() != null) && (_getKeyframeInterval(external) > 0))
+        _LOG.info("Delta encoding of view state, enabled with " +
+                  VIEW_STATE_KEYFRAME_INTERVAL_PARAM_NAME + ", is not used with " +
+                  VIEW_STATE_STORE_PARAM_NAME);
+    }
+
+    return storeHolder.get();
+  }
+
+  private static ViewStateStore _instantiateViewStateStore(ExternalContext external)
+  {
+    String storeName = external.getInitParameter(VIEW_STATE_STORE_PARAM_NAME);
+
+    if ((storeName == null) || (storeName.length() == 0))
+      return null;
+
+    if (VIEW_STATE_STORE_OFFHEAP.equalsIgnoreCase(storeName))
+      return new OffHeapViewStateStore();
+
+    try
+    {
+      return (ViewStateStore)ClassLoaderUtils.loadClass(storeName).newInstance();
+    }
+    catch (ClassNotFoundException e)
+    {
+      _LOG.warning("Could not find ViewStateStore class " + storeName + " for " +
+                   " Servlet Initialization Parameter " + VIEW_STATE_STORE_PARAM_NAME, e);
+    }
+    catch (InstantiationException e)
+    {
+      _logViewStateStoreError(storeName, e);
+    }
+    catch (IllegalAccessException e)
+    {
+      _logViewStateStoreError(storeName, e);
+    }
+    catch (ClassCastException e)
+    {
+      _logViewStateStoreError(storeName, e);
+    }
+
+    // fall back to storing the state in the session
+    return null;
+  }
+
+  private static void _logViewStateStoreError(String className, Throwable e)
+  {
+    _LOG.warning("Could not instantiate a ViewStateStore for Servlet Initialization" +
+                 " Parameter " + VIEW_STATE_STORE_PARAM_NAME + " with value " +
+                 className, e);
+  }
+
+  /**
+   * @return the StateMetrics to record into or <code>null</code> if state metrics
+   * are disabled.
+   */
+  @SuppressWarnings("unchecked")
+  private static StateMetrics _getStateMetrics(ExternalContext external)
+  {
+    ConcurrentMap<String, Object> sharedAppMap =
+                            RequestContext.getCurrentInstance().getApplicationScopedConcurrentMap();
+
+    AtomicReference<StateMetrics> metricsHolder =
+                     (AtomicReference<StateMetrics>)sharedAppMap.get(STATE_METRICS_PARAM_NAME);
+
+    if (metricsHolder == null)
+    {
+      String metricsParam = external.getInitParameter(STATE_METRICS_PARAM_NAME);
+      boolean recordMetrics = (metricsParam != null) && "true".equalsIgnoreCase(metricsParam);
+
+      // use a placeholder for null, since ConcurrentHashMap can't store null.  The
+      // holder is complete before it is published, so no one sees it empty
+      metricsHolder = new AtomicReference<StateMetrics>(recordMetrics
+                                                          ? StateMetrics.create()
+                                                          : null);
+
+      AtomicReference<StateMetrics> oldMetricsHolder =
+        (AtomicReference<StateMetrics>)sharedAppMap.putIfAbsent(STATE_METRICS_PARAM_NAME,
+                                                                metricsHolder);
+
+      // make sure that everyone records into the same metrics, and that only the
+      // winner registers its metrics as an MBean
+      if (oldMetricsHolder != null)
+        metricsHolder = oldMetricsHolder;
+      else if (metricsHolder.get() != null)
+        metricsHolder.get().register(external);
+    }
+
+    return metricsHolder.get();
+  }
+
   @Override
   public UIViewRoot restoreView(
     FacesContext context,
     String       viewId,
     String       renderKitId)
+  {
+    ExternalContext extContext = context.getExternalContext();
+    StateMetrics metrics = _getStateMetrics(extContext);
+
+    if (metrics == null)
+      return _restoreView(context, viewId, renderKitId, null);
+
+    long startTime = System.nanoTime();
+    UIViewRoot root = _restoreView(context, viewId, renderKitId, metrics);
+
+    if (root != null)
+      metrics.recordRestore(extContext, viewId, System.nanoTime() - startTime);
+
+    return root;
+  }
+
+  @SuppressWarnings({"unchecked", "deprecation"})
+  private UIViewRoot _restoreView(
+    FacesContext context,
+    String       viewId,
+    String       renderKitId,
+    StateMetrics metrics)
   {
     final ExternalContext extContext = context.getExternalContext();
 
@@ -690,8 +1006,14 @@ public class StateManagerImpl extends StateManagerWrapper
       PageState viewState = _getPageState(extContext, token);
 
       if (viewState != null)
+      {
         _updateRequestTokenForResponse(context, token);
 
+        // remember the restored state, so that the state saved for this request can be
+        // stored as a delta against it
+        requestMap.put(_RESTORED_PAGE_STATE_KEY, viewState);
+      }
+
       RequestContext trinContext = RequestContext.getCurrentInstance();
 
       // Make sure that if the view state is present, the cache still
@@ -703,6 +1025,9 @@ public class StateManagerImpl extends StateManagerWrapper
       // get bumped up to the front in the LRU Cache!
       boolean isAvailable = _getViewCache(trinContext, extContext).isAvailable((String) token);
       assert ((viewState != null) == isAvailable);
+
+      if (metrics != null)
+        metrics.recordTokenCacheAccess(extContext, viewId, viewState != null);
       
       if (viewState == null)
       {
@@ -741,9 +1066,7 @@ public class StateManagerImpl extends StateManagerWrapper
                                            RequestContext.getCurrentInstance(),
                                            _SUBKEY_SEPARATOR);
 
-          Map<String, PageState> stateMap = new SubKeyMap<PageState>(
-                           extContext.getSessionMap(),
-                           subkey);
+          Map<String, PageState> stateMap = _getStateMap(extContext, subkey);
           
           // log what's currently in the state map
           TokenCacheDebugUtils.logCacheInfo(stateMap, null, "token '" + token + "' not found"); 
@@ -759,6 +1082,10 @@ public class StateManagerImpl extends StateManagerWrapper
       if (root != null)
       {
         _LOG.finer("UIViewRoot for token {0} already exists. Bypassing restoreState", token);
+
+        if (metrics != null)
+          metrics.recordViewRootCacheHit(extContext, viewId);
+
         return root;
       }
 
@@ -774,7 +1101,8 @@ public class StateManagerImpl extends StateManagerWrapper
         // a restoreView method that takes state
         try
         {
-          requestMap.put(RESPONSE_STATE_MANAGER_STATE_KEY, viewState.getViewState(context));
+          requestMap.put(RESPONSE_STATE_MANAGER_STATE_KEY,
+                         _getRestoredViewState(context, viewState));
           root = sms.restoreView(context, viewId, renderKitId);
         }
         finally
@@ -786,7 +1114,7 @@ public class StateManagerImpl extends StateManagerWrapper
       }
       else
       {
-        Object[] stateArray = (Object[])viewState.getViewState(context);
+        Object[] stateArray = (Object[])_getRestoredViewState(context, viewState);
         structure = stateArray[0];
         state = stateArray[1];
       }
@@ -1174,6 +1502,17 @@ public class StateManagerImpl extends StateManagerWrapper
     return _calculateTokenStateSaving(context.getExternalContext(), checkRequestToken);
   }
 
+  /**
+   * @return <code>true</code> if the page state saved by this request should be zipped
+   * after its response has been rendered
+   */
+  private static boolean _isAsyncCompression(ExternalContext extContext)
+  {
+    return "true".equalsIgnoreCase(extContext.getInitParameter(COMPRESS_VIEW_STATE_PARAM_NAME)) &&
+           "true".equalsIgnoreCase(extContext.getInitParameter(ASYNC_COMPRESS_VIEW_STATE_PARAM_NAME)) &&
+           StateCompressor.isDeferrable();
+  }
+
   private int _getCacheSize(ExternalContext extContext)
   {
     Object maxTokens =
@@ -1195,6 +1534,26 @@ public class StateManagerImpl extends StateManagerWrapper
     return _DEFAULT_CACHE_SIZE;
   }
 
+  private static int _getKeyframeInterval(ExternalContext extContext)
+  {
+    Object keyframeInterval =
+      extContext.getInitParameterMap().get(VIEW_STATE_KEYFRAME_INTERVAL_PARAM_NAME);
+    if (keyframeInterval != null)
+    {
+      try
+      {
+        return Math.max(0, Integer.parseInt((String) keyframeInterval));
+      }
+      catch (NumberFormatException nfe)
+      {
+        _LOG.warning("Ignoring servlet init parameter:"+VIEW_STATE_KEYFRAME_INTERVAL_PARAM_NAME+
+          "\n unable to parse:"+keyframeInterval, nfe);
+      }
+    }
+
+    return 0;
+  }
+
   private PseudoReferenceFactory<ViewRootState> _getOrCreateViewRootStateRefFactory(
     FacesContext context, RequestContext trinContext)
   {
@@ -1499,12 +1858,133 @@ public class StateManagerImpl extends StateManagerWrapper
     private final Object _viewRootState;
   }
 
+  /**
+   * Zips the serialized state of a PageState after the response has been rendered.
+   * Everything the task needs is captured when the state is saved, since it runs
+   * without a FacesContext
+   */
+  private static final class CompressTask implements Runnable
+  {
+    public CompressTask(PageState pageState, StateMetrics metrics)
+    {
+      _pageState = pageState;
+      _metrics = metrics;
+    }
+
+    public void run()
+    {
+      try
+      {
+        if (_pageState.compressPendingState() && (_metrics != null))
+        {
+          // the request has completed, so there are no request metrics to record into
+          _metrics.recordStateSize(null, _pageState.getViewId(), _pageState.getStateSize(),
+                                   _pageState.getZippedStateSize());
+        }
+      }
+      catch (RuntimeException e)
+      {
+        // the state stays uncompressed, and is zipped again by the next request using it,
+        // which reports the problem
+        _LOG.warning(e);
+      }
+    }
+
+    private final PageState _pageState;
+    private final StateMetrics _metrics;
+  }
+
+  /**
+   * Map of tokens to PageStates that counts the PageStates removed through it
+   */
+  private static final class EvictionCountingMap extends AbstractMap<String, PageState>
+  {
+    public EvictionCountingMap(Map<String, PageState> stateMap)
+    {
+      _stateMap = stateMap;
+    }
+
+    @Override
+    public PageState get(Object key)
+    {
+      return _stateMap.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+      return _stateMap.containsKey(key);
+    }
+
+    @Override
+    public PageState put(String key, PageState value)
+    {
+      return _stateMap.put(key, value);
+    }
+
+    @Override
+    public PageState remove(Object key)
+    {
+      PageState removed = _stateMap.remove(key);
+
+      if (removed != null)
+        _removedCount++;
+
+      return removed;
+    }
+
+    @Override
+    public Set<Map.Entry<String, PageState>> entrySet()
+    {
+      return _stateMap.entrySet();
+    }
+
+    public int getRemovedCount()
+    {
+      return _removedCount;
+    }
+
+    private final Map<String, PageState> _stateMap;
+    private int _removedCount;
+  }
+
   private static final class PageState implements Serializable
   {
     private static final long serialVersionUID = 1L;
 
+    // the zipped state, or the unzipped state if it hasn't been serialized.  Once the
+    // PageState has been created, only accessed while synchronized on the PageState
     private Object _viewState;
 
+    // true if the state is only held as _serializedState, waiting to be zipped by a
+    // StateCompressor
+    private transient boolean _compressionPending;
+
+    private final String _viewId;
+
+    // if non-null, _viewState is a ViewStateDelta against the state of this PageState.
+    // The base is referenced directly rather than by token, so that the eviction of
+    // the base's token from the TokenCache never breaks the chain.  The base is dropped
+    // once the PageState is serialized, so only accessed while synchronized on the PageState
+    private PageState _base;
+
+    // the number of deltas that have to be applied to get to this state.  Only accessed
+    // while synchronized on the PageState
+    private int _deltaCount;
+
+    // the serialized and compressed sizes of the state, if measured.  Only used for
+    // StateMetrics, so not worth serializing
+    private transient int _stateSize = -1;
+    private transient int _zippedStateSize = -1;
+
+    // the serialized unzipped state, kept once the state has been serialized, either to
+    // check it or to serialize this PageState.  A replicated session writes every PageState
+    // each time it is replicated, and the state never changes once the PageState has been
+    // created, so only new PageStates pay for serializing their state.  Once these bytes
+    // exist, the unzipped state is no longer kept, so that the state isn't held twice, and
+    // each restore deserializes its own copy of the state
+    private transient byte[] _serializedState;
+
     // use transient since UIViewRoots are not Serializable.  We use a PseudReference so that
     // we can support either soft or strong references
     private transient PseudoReference<ViewRootState> _cachedState;
@@ -1512,35 +1992,77 @@ public class StateManagerImpl extends StateManagerWrapper
     public PageState(
       FacesContext context, PseudoReferenceFactory<ViewRootState> viewRootStateRefFactory, 
       Object viewState, UIViewRoot root)
+    {
+      this(context, viewRootStateRefFactory, viewState, root, null, null);
+    }
+
+    public PageState(
+      FacesContext context, PseudoReferenceFactory<ViewRootState> viewRootStateRefFactory, 
+      Object viewState, UIViewRoot root, String viewId, PageState base)
+    {
+      this(context, viewRootStateRefFactory, viewState, root, viewId, base, null, false);
+    }
+
+    /**
+     * @param baseViewState the view state of <code>base</code>, if already known
+     * @param deferCompression if <code>true</code> and the state is zipped, the state is
+     * serialized right away, but its bytes are only zipped when
+     * {@link #compressPendingState} is called
+     */
+    public PageState(
+      FacesContext context, PseudoReferenceFactory<ViewRootState> viewRootStateRefFactory, 
+      Object viewState, UIViewRoot root, String viewId, PageState base,
+      Object baseViewState, boolean deferCompression)
     {
       if (!(viewState instanceof Serializable))
         throw new IllegalArgumentException("Viewstate " + viewState + " is not a Serializable");
 
+      _viewId = viewId;
+
+      if (base != null)
+      {
+        // only store the differences from the base state
+        _base       = base;
+        _deltaCount = base.getDeltaCount() + 1;
+
+        if (baseViewState == null)
+          baseViewState = base.getViewState(context);
+
+        viewState   = ViewStateDelta.diff(baseViewState, viewState);
+      }
+      else
+      {
+        _base       = null;
+        _deltaCount = 0;
+      }
+
       boolean zipState = _zipState(context);
 
       if (zipState || StateUtils.checkComponentTreeStateSerialization(context))
       {
 
-        if (zipState)
+        if (zipState && deferCompression)
+        {
+          // serialize the state now, while the FacesContext its objects may need is still
+          // available, and only leave compressing the bytes until after the response
+          _serializedState = _serializeState(viewState);
+          _stateSize = _serializedState.length;
+          _compressionPending = true;
+        }
+        else if (zipState)
         {
           // zip the page state. This will also catch any serialization problems.
-          _viewState = _zipToBytes(viewState);
+          byte[] zippedState = _zipToBytes(viewState);
+          _zippedStateSize = zippedState.length;
+          _viewState = zippedState;
         }
         else
         {
-          _viewState = viewState;
-
           // if component tree serialization checking is on (in order to validate
           // fail over support, attempt to Serialize all of the component state
           //  immediately
-          try
-          {
-            new ObjectOutputStream(new ByteArrayOutputStream()).writeObject(viewState);
-          }
-          catch (IOException e)
-          {
-            throw new RuntimeException(_LOG.getMessage("COMPONENT_TREE_SERIALIZATION_FAILED"), e);
-          }
+          _serializedState = _serializeState(viewState);
+          _stateSize = _serializedState.length;
         }
       }
       else
@@ -1555,14 +2077,196 @@ public class StateManagerImpl extends StateManagerWrapper
                        : null;
     }
 
+    /**
+     * Creates a deserialized PageState, which is always a keyframe.
+     * @param zippedState the zipped state, if the state is zipped
+     * @param serializedState the serialized state, if the state isn't zipped
+     */
+    private PageState(
+      String    viewId,
+      byte[]    zippedState,
+      byte[]    serializedState)
+    {
+      _viewId          = viewId;
+      _base            = null;
+      _deltaCount      = 0;
+      _viewState       = zippedState;
+      _serializedState = serializedState;
+    }
+
     public Object getViewState(FacesContext context)
     {
-      if (_zipState(context))
+      // if the state hasn't been zipped in the background yet, zip it now rather than
+      // share the unzipped state with the thread zipping it
+      compressPendingState();
+
+      PageState base;
+      Object viewState;
+      byte[] serializedState;
+
+      synchronized (this)
+      {
+        base            = _base;
+        viewState       = _viewState;
+        serializedState = _serializedState;
+      }
+
+      if (viewState == null)
+      {
+        // a deserialized PageState only deserializes its state once it is restored, so
+        // the states of the pages that are never returned to are never deserialized
+        viewState = _deserializeState(serializedState);
+      }
+      else if (viewState instanceof byte[])
+      {
+        // the unzipped state is never a byte[]:  it is either the saved view state or
+        // a ViewStateDelta
+        viewState = _unzipBytes((byte[])viewState);
+      }
+
+      if (base != null)
+      {
+        viewState = ((ViewStateDelta)viewState).apply(base.getViewState(context));
+      }
+
+      return viewState;
+    }
+
+    /**
+     * Zips the state if zipping was deferred and the state hasn't been zipped yet.
+     * @return <code>true</code> if the state was zipped by this call
+     */
+    public synchronized boolean compressPendingState()
+    {
+      if (!_compressionPending)
+        return false;
+
+      byte[] zippedState = _zipBytes(_serializedState);
+      _zippedStateSize = zippedState.length;
+      _viewState = zippedState;
+      _serializedState = null;
+      _compressionPending = false;
+
+      return true;
+    }
+
+    /**
+     * @return <code>true</code> if zipping the state was deferred and the state hasn't
+     * been zipped yet
+     */
+    public synchronized boolean isCompressionPending()
+    {
+      return _compressionPending;
+    }
+
+    /**
+     * Replaces the delta against the base by the complete state, so that this PageState
+     * no longer depends on its base.
+     */
+    private void _convertToKeyframe()
+    {
+      boolean zipped;
+
+      synchronized (this)
+      {
+        if (_base == null)
+          return;
+
+        zipped = (_viewState instanceof byte[]);
+      }
+
+      // the state of a PageState never changes, so the complete state doesn't have to be
+      // computed while synchronized
+      byte[] state = _serializeState(getViewState(null));
+
+      if (zipped)
+        state = _zipBytes(state);
+
+      synchronized (this)
+      {
+        // converted by another thread in the meantime
+        if (_base == null)
+          return;
+
+        if (zipped)
+        {
+          _viewState = state;
+        }
+        else
+        {
+          _viewState = null;
+          _serializedState = state;
+        }
+
+        _base = null;
+        _deltaCount = 0;
+      }
+    }
+
+    /**
+     * Serializes PageStates in their compact, Externalizable form.
+     */
+    private Object writeReplace()
+    {
+      // always write the zipped state, which is what the PageState is read as
+      compressPendingState();
+
+      // each PageState is a session attribute of its own, and many session stores serialize
+      // each attribute in a stream of its own.  Writing the base would then write the whole
+      // chain of bases with every PageState, and each PageState would read its own copy of
+      // the chain, so a PageState is written as a keyframe instead.  The PageState is
+      // converted, so that replicating the session again writes the same bytes
+      _convertToKeyframe();
+
+      synchronized (this)
       {
-        return _unzipBytes((byte[])_viewState);
+        // the unzipped state is never a byte[]:  it is either the saved view state or
+        // a ViewStateDelta
+        if (_viewState instanceof byte[])
+          return new SerializedPageState(_viewId, true, (byte[])_viewState);
+
+        if (_serializedState == null)
+        {
+          // keep just the bytes from now on
+          _serializedState = _serializeState(_viewState);
+          _viewState = null;
+        }
+
+        return new SerializedPageState(_viewId, false, _serializedState);
       }
+    }
+
+    /**
+     * @return the id of the view whose state this is, if known
+     */
+    public String getViewId()
+    {
+      return _viewId;
+    }
+
+    /**
+     * @return the number of deltas that are applied to get this PageState's state
+     */
+    public synchronized int getDeltaCount()
+    {
+      return _deltaCount;
+    }
 
-      return _viewState;
+    /**
+     * @return the serialized size of the state when this PageState was created,
+     * or -1 if the state wasn't serialized
+     */
+    public int getStateSize()
+    {
+      return _stateSize;
+    }
+
+    /**
+     * @return the compressed size of the state, or -1 if the state isn't compressed
+     */
+    public int getZippedStateSize()
+    {
+      return _zippedStateSize;
     }
 
     public void clearViewRootState()
@@ -1671,6 +2375,43 @@ public class StateManagerImpl extends StateManagerWrapper
       return zipStateObject.toString().equalsIgnoreCase("true");
     }
 
+    private static byte[] _serializeState(Object viewState)
+    {
+      try
+      {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(viewState);
+        oos.close();
+
+        return baos.toByteArray();
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(_LOG.getMessage("COMPONENT_TREE_SERIALIZATION_FAILED"), e);
+      }
+    }
+
+    private static Object _deserializeState(byte[] serializedState)
+    {
+      try
+      {
+        ObjectInputStream ois = new ObjectInputStreamResolveClass(
+                                  new ByteArrayInputStream(serializedState));
+        Object viewState = ois.readObject();
+        ois.close();
+        return viewState;
+      }
+      catch (ClassNotFoundException cnfe)
+      {
+        throw new RuntimeException(_LOG.getMessage("UNZIP_STATE_FAILED"), cnfe);
+      }
+      catch (IOException ioe)
+      {
+        throw new RuntimeException(_LOG.getMessage("UNZIP_STATE_FAILED"), ioe);
+      }
+    }
+
     private Object _unzipBytes(byte[] zippedBytes)
     {
       Inflater decompressor = new Inflater();
@@ -1719,7 +2460,7 @@ public class StateManagerImpl extends StateManagerWrapper
      */
     private byte[] _zipToBytes(Object viewState)
     {
-      Deflater compresser = new Deflater(Deflater.BEST_SPEED);
+      byte[] serializedState;
 
       try
       {
@@ -1731,12 +2472,33 @@ public class StateManagerImpl extends StateManagerWrapper
         oos.flush();
         oos.close();
 
-        byte[] ret =  baos.toByteArray();
-        compresser.setInput(ret);
+        serializedState = baos.toByteArray();
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(_LOG.getMessage("ZIP_STATE_FAILED"), e);
+      }
+
+      _stateSize = serializedState.length;
+
+      return _zipBytes(serializedState);
+    }
+
+    /**
+     * Returns the zipped version of the serialized viewState.  Only works on the bytes,
+     * so it is safe to call without a FacesContext
+     */
+    private static byte[] _zipBytes(byte[] serializedState)
+    {
+      Deflater compresser = new Deflater(Deflater.BEST_SPEED);
+
+      try
+      {
+        compresser.setInput(serializedState);
         compresser.finish();
 
-        baos.reset();
-        byte[] buf = new byte[ret.length/5];
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[Math.max(serializedState.length/5, 64)];
 
         while (!compresser.finished())
         {
@@ -1746,10 +2508,6 @@ public class StateManagerImpl extends StateManagerWrapper
 
         return baos.toByteArray();
       }
-      catch (IOException e)
-      {
-        throw new RuntimeException(_LOG.getMessage("ZIP_STATE_FAILED"), e);
-      }
       finally
       {
         compresser.end();
@@ -1757,6 +2515,59 @@ public class StateManagerImpl extends StateManagerWrapper
     }
   }
 
+  /**
+   * The serialized form of a PageState.  The state is written as the bytes it is already
+   * zipped or serialized to, without walking the state's object graph again.
+   */
+  private static final class SerializedPageState implements Externalizable
+  {
+    /**
+     * Zero-arg constructor for Externalizable contract.
+     */
+    public SerializedPageState()
+    {
+    }
+
+    public SerializedPageState(
+      String    viewId,
+      boolean   zipped,
+      byte[]    state)
+    {
+      _viewId     = viewId;
+      _zipped     = zipped;
+      _state      = state;
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException
+    {
+      out.writeObject(_viewId);
+      out.writeBoolean(_zipped);
+      out.writeInt(_state.length);
+      out.write(_state);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException
+    {
+      _viewId     = (String)in.readObject();
+      _zipped     = in.readBoolean();
+      _state      = new byte[in.readInt()];
+      in.readFully(_state);
+    }
+
+    private Object readResolve()
+    {
+      return (_zipped)
+               ? new PageState(_viewId, _state, null)
+               : new PageState(_viewId, null, _state);
+    }
+
+    private String    _viewId;
+    private boolean   _zipped;
+    private byte[]    _state;
+
+    private static final long serialVersionUID = 1L;
+  }
+
   /**
    * Static ENUM to capture the values of the <document>'s
    * 'stateSaving' attribute
@@ -1797,6 +2608,14 @@ public class StateManagerImpl extends StateManagerWrapper
   private static final String _REQUEST_STATE_TOKEN_KEY =
     "org.apache.myfaces.trinidadinternal.application.REQUEST_STATE_TOKEN";
 
+  // key for the PageState restored for the current request
+  private static final String _RESTORED_PAGE_STATE_KEY =
+    "org.apache.myfaces.trinidadinternal.application.RESTORED_PAGE_STATE";
+
+  // key for the view state of the PageState restored for the current request
+  private static final String _RESTORED_VIEW_STATE_KEY =
+    "org.apache.myfaces.trinidadinternal.application.RESTORED_VIEW_STATE";
+
   private static final String _PINNED_STATE_TOKEN_KEY =
     "org.apache.myfaces.trinidadinternal.application.PINNED_STATE_TOKEN";
 
@@ -0,0 +1,660 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.application;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.faces.context.ExternalContext;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import javax.servlet.ServletContext;
+
+import org.apache.myfaces.trinidad.logging.TrinidadLogger;
+
+
+/**
+ * Records the size of the page state and the time taken to save and restore it
+ * for each view, along with how often the token cache and the UIViewRoot cache
+ * were hit.  StateManagerImpl records into a StateMetrics when the
+ * <code>org.apache.myfaces.trinidad.STATE_METRICS</code> servlet initialization
+ * parameter is "true".
+ * <p>
+ * The metrics are exposed through JMX as
+ * <code>org.apache.myfaces.trinidad:type=StateMetrics,context=&lt;context path&gt;</code>,
+ * and the measurements for the current request are available from
+ * {@link #getRequestMetrics}, for example to a filter logging slow requests.
+ * <p>
+ * Distributions are kept in fixed-size logarithmic histograms, so recording is
+ * lock-free and the memory used doesn't grow with the number of requests.
+ */
+public final class StateMetrics implements StateMetricsMBean
+{
+  /**
+   * Creates the StateMetrics for an application.  The StateMetrics isn't visible
+   * as an MBean until it is registered.
+   */
+  static StateMetrics create()
+  {
+    return new StateMetrics();
+  }
+
+  /**
+   * Registers the StateMetrics of an application with the platform MBeanServer.
+   */
+  void register(ExternalContext external)
+  {
+    _register(external);
+  }
+
+  /**
+   * Unregisters the StateMetrics of an application from the platform MBeanServer,
+   * if it was registered.
+   */
+  public static void unregister(ServletContext context)
+  {
+    ObjectName name = (ObjectName)context.getAttribute(_OBJECT_NAME_KEY);
+
+    if (name != null)
+    {
+      context.removeAttribute(_OBJECT_NAME_KEY);
+
+      try
+      {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      }
+      catch (JMException e)
+      {
+        _LOG.fine(e);
+      }
+    }
+  }
+
+  /**
+   * Returns the state metrics recorded for the current request, or <code>null</code>
+   * if state metrics are disabled.  The returned object is updated as the view
+   * is restored and saved.
+   */
+  public static RequestMetrics getRequestMetrics(ExternalContext external)
+  {
+    return (RequestMetrics)external.getRequestMap().get(_REQUEST_METRICS_KEY);
+  }
+
+  StateMetrics()
+  {
+    _views = new ConcurrentHashMap<String, ViewMetrics>();
+  }
+
+  /**
+   * Records the restoration of a view's state
+   */
+  void recordRestore(ExternalContext external, String viewId, long nanos)
+  {
+    _getViewMetrics(viewId).restoreTimes.record(nanos);
+    _getOrCreateRequestMetrics(external, viewId)._restoreNanos = nanos;
+  }
+
+  /**
+   * Records the saving of a view's state
+   */
+  void recordSave(ExternalContext external, String viewId, long nanos)
+  {
+    _getViewMetrics(viewId).saveTimes.record(nanos);
+    _getOrCreateRequestMetrics(external, viewId)._saveNanos = nanos;
+  }
+
+  /**
+   * Records the sizes of the page state saved for a view.  Negative sizes
+   * are unknown.  The ExternalContext is <code>null</code> if the sizes were
+   * only known after the request completed.
+   */
+  void recordStateSize(ExternalContext external, String viewId, long size, long zippedSize)
+  {
+    ViewMetrics viewMetrics = _getViewMetrics(viewId);
+    RequestMetrics requestMetrics = (external != null)
+                                      ? _getOrCreateRequestMetrics(external, viewId)
+                                      : null;
+
+    if (size >= 0)
+    {
+      viewMetrics.stateSizes.record(size);
+
+      if (requestMetrics != null)
+        requestMetrics._stateSize = size;
+    }
+
+    if (zippedSize >= 0)
+    {
+      viewMetrics.zippedStateSizes.record(zippedSize);
+
+      if (requestMetrics != null)
+        requestMetrics._zippedStateSize = zippedSize;
+    }
+  }
+
+  /**
+   * Records whether the state token of a postback was still available
+   */
+  void recordTokenCacheAccess(ExternalContext external, String viewId, boolean hit)
+  {
+    ViewMetrics viewMetrics = _getViewMetrics(viewId);
+
+    if (hit)
+      viewMetrics.tokenCacheHits.incrementAndGet();
+    else
+      viewMetrics.tokenCacheMisses.incrementAndGet();
+
+    _getOrCreateRequestMetrics(external, viewId)._tokenCacheHit = hit;
+  }
+
+  /**
+   * Records the eviction of page states from the token cache caused by saving a view
+   */
+  void recordTokenCacheEvictions(ExternalContext external, String viewId, int evictions)
+  {
+    if (evictions > 0)
+      _getViewMetrics(viewId).tokenCacheEvictions.addAndGet(evictions);
+
+    _getOrCreateRequestMetrics(external, viewId)._tokenCacheEvictions = evictions;
+  }
+
+  /**
+   * Records the reuse of a cached UIViewRoot
+   */
+  void recordViewRootCacheHit(ExternalContext external, String viewId)
+  {
+    _getViewMetrics(viewId).viewRootCacheHits.incrementAndGet();
+    _getOrCreateRequestMetrics(external, viewId)._viewRootCacheHit = true;
+  }
+
+  @Override
+  public String[] getViewIds()
+  {
+    String[] viewIds = _views.keySet().toArray(new String[0]);
+    Arrays.sort(viewIds);
+
+    return viewIds;
+  }
+
+  @Override
+  public String[] getReport()
+  {
+    List<ViewSummary> summaries = new ArrayList<ViewSummary>(_views.size());
+
+    for (Map.Entry<String, ViewMetrics> entry : _views.entrySet())
+    {
+      summaries.add(new ViewSummary(entry.getKey(), entry.getValue()));
+    }
+
+    Collections.sort(summaries);
+
+    String[] report = new String[summaries.size()];
+
+    for (int i = 0; i < report.length; i++)
+    {
+      report[i] = summaries.get(i).toString();
+    }
+
+    return report;
+  }
+
+  @Override
+  public long getSaveCount(String viewId)
+  {
+    ViewMetrics viewMetrics = _views.get(viewId);
+    return (viewMetrics != null) ? viewMetrics.saveTimes.getCount() : 0;
+  }
+
+  @Override
+  public long getRestoreCount(String viewId)
+  {
+    ViewMetrics viewMetrics = _views.get(viewId);
+    return (viewMetrics != null) ? viewMetrics.restoreTimes.getCount() : 0;
+  }
+
+  @Override
+  public long getStateSizePercentile(String viewId, double percentile)
+  {
+    ViewMetrics viewMetrics = _views.get(viewId);
+    return (viewMetrics != null) ? viewMetrics.stateSizes.getPercentile(percentile) : -1;
+  }
+
+  @Override
+  public long getZippedStateSizePercentile(String viewId, double percentile)
+  {
+    ViewMetrics viewMetrics = _views.get(viewId);
+    return (viewMetrics != null) ? viewMetrics.zippedStateSizes.getPercentile(percentile) : -1;
+  }
+
+  @Override
+  public double getSaveTimePercentile(String viewId, double percentile)
+  {
+    ViewMetrics viewMetrics = _views.get(viewId);
+    return (viewMetrics != null) ? _toMillis(viewMetrics.saveTimes.getPercentile(percentile)) : -1;
+  }
+
+  @Override
+  public double getRestoreTimePercentile(String viewId, double percentile)
+  {
+    ViewMetrics viewMetrics = _views.get(viewId);
+    return (viewMetrics != null)
+             ? _toMillis(viewMetrics.restoreTimes.getPercentile(percentile))
+             : -1;
+  }
+
+  @Override
+  public long getTokenCacheHits(String viewId)
+  {
+    ViewMetrics viewMetrics = _views.get(viewId);
+    return (viewMetrics != null) ? viewMetrics.tokenCacheHits.get() : 0;
+  }
+
+  @Override
+  public long getTokenCacheMisses(String viewId)
+  {
+    ViewMetrics viewMetrics = _views.get(viewId);
+    return (viewMetrics != null) ? viewMetrics.tokenCacheMisses.get() : 0;
+  }
+
+  @Override
+  public long getTokenCacheEvictions(String viewId)
+  {
+    ViewMetrics viewMetrics = _views.get(viewId);
+    return (viewMetrics != null) ? viewMetrics.tokenCacheEvictions.get() : 0;
+  }
+
+  @Override
+  public long getViewRootCacheHits(String viewId)
+  {
+    ViewMetrics viewMetrics = _views.get(viewId);
+    return (viewMetrics != null) ? viewMetrics.viewRootCacheHits.get() : 0;
+  }
+
+  @Override
+  public void reset()
+  {
+    _views.clear();
+  }
+
+  private ViewMetrics _getViewMetrics(String viewId)
+  {
+    if (viewId == null)
+      viewId = _OTHER_VIEWS;
+
+    ViewMetrics viewMetrics = _views.get(viewId);
+
+    if (viewMetrics == null)
+    {
+      // don't let an application with an unbounded number of view ids use
+      // unbounded memory
+      if (_views.size() >= _MAX_VIEWS)
+        viewId = _OTHER_VIEWS;
+
+      viewMetrics = new ViewMetrics();
+
+      ViewMetrics oldViewMetrics = _views.putIfAbsent(viewId, viewMetrics);
+
+      if (oldViewMetrics != null)
+        viewMetrics = oldViewMetrics;
+    }
+
+    return viewMetrics;
+  }
+
+  private RequestMetrics _getOrCreateRequestMetrics(ExternalContext external, String viewId)
+  {
+    Map<String, Object> requestMap = external.getRequestMap();
+    RequestMetrics requestMetrics = (RequestMetrics)requestMap.get(_REQUEST_METRICS_KEY);
+
+    if (requestMetrics == null)
+    {
+      requestMetrics = new RequestMetrics();
+      requestMap.put(_REQUEST_METRICS_KEY, requestMetrics);
+    }
+
+    // the state saved may be for a different view than the one restored
+    requestMetrics._viewId = viewId;
+
+    return requestMetrics;
+  }
+
+  private void _register(ExternalContext external)
+  {
+    try
+    {
+      ObjectName name = new ObjectName("org.apache.myfaces.trinidad:type=StateMetrics,context=" +
+                                       ObjectName.quote(external.getRequestContextPath()));
+
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+      // replace the metrics of an earlier deployment of this application
+      if (server.isRegistered(name))
+        server.unregisterMBean(name);
+
+      server.registerMBean(this, name);
+
+      external.getApplicationMap().put(_OBJECT_NAME_KEY, name);
+    }
+    catch (JMException e)
+    {
+      _LOG.warning("Could not register the state metrics MBean", e);
+    }
+    catch (SecurityException e)
+    {
+      _LOG.warning("Could not register the state metrics MBean", e);
+    }
+  }
+
+  private static double _toMillis(long nanos)
+  {
+    return (nanos < 0) ? -1 : nanos / 1000000.0;
+  }
+
+  /**
+   * The state metrics of a single request
+   */
+  public static final class RequestMetrics
+  {
+    RequestMetrics()
+    {
+    }
+
+    /**
+     * @return the id of the view whose state was last restored or saved
+     */
+    public String getViewId()
+    {
+      return _viewId;
+    }
+
+    /**
+     * @return the time taken to restore the view's state in nanoseconds, or -1 if the
+     * request wasn't a postback
+     */
+    public long getRestoreNanos()
+    {
+      return _restoreNanos;
+    }
+
+    /**
+     * @return the time taken to save the view's state in nanoseconds, or -1 if the
+     * state hasn't been saved
+     */
+    public long getSaveNanos()
+    {
+      return _saveNanos;
+    }
+
+    /**
+     * @return the serialized size of the saved page state, or -1 if unknown
+     */
+    public long getStateSize()
+    {
+      return _stateSize;
+    }
+
+    /**
+     * @return the compressed size of the saved page state, or -1 if unknown
+     */
+    public long getZippedStateSize()
+    {
+      return _zippedStateSize;
+    }
+
+    /**
+     * @return true if the state token of the postback was available
+     */
+    public boolean isTokenCacheHit()
+    {
+      return _tokenCacheHit;
+    }
+
+    /**
+     * @return the number of page states evicted from the token cache by saving the state
+     */
+    public int getTokenCacheEvictions()
+    {
+      return _tokenCacheEvictions;
+    }
+
+    /**
+     * @return true if the cached UIViewRoot was reused instead of restoring the state
+     */
+    public boolean isViewRootCacheHit()
+    {
+      return _viewRootCacheHit;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "RequestMetrics[viewId=" + _viewId + ", restoreNanos=" + _restoreNanos +
+             ", saveNanos=" + _saveNanos + ", stateSize=" + _stateSize +
+             ", zippedStateSize=" + _zippedStateSize + ", tokenCacheHit=" + _tokenCacheHit +
+             ", tokenCacheEvictions=" + _tokenCacheEvictions +
+             ", viewRootCacheHit=" + _viewRootCacheHit + "]";
+    }
+
+    private String _viewId;
+    private long _restoreNanos = -1;
+    private long _saveNanos = -1;
+    private long _stateSize = -1;
+    private long _zippedStateSize = -1;
+    private boolean _tokenCacheHit;
+    private int _tokenCacheEvictions;
+    private boolean _viewRootCacheHit;
+  }
+
+  /**
+   * The metrics of a single view
+   */
+  private static final class ViewMetrics
+  {
+    @Override
+    public String toString()
+    {
+      return "saves=" + saveTimes.getCount() +
+             ", restores=" + restoreTimes.getCount() +
+             ", stateSize(p50/p95/p99)=" + _sizePercentiles(stateSizes) +
+             ", zippedStateSize(p50/p95/p99)=" + _sizePercentiles(zippedStateSizes) +
+             ", saveMillis(p50/p95/p99)=" + _timePercentiles(saveTimes) +
+             ", restoreMillis(p50/p95/p99)=" + _timePercentiles(restoreTimes) +
+             ", tokenCacheHits=" + tokenCacheHits +
+             ", tokenCacheMisses=" + tokenCacheMisses +
+             ", tokenCacheEvictions=" + tokenCacheEvictions +
+             ", viewRootCacheHits=" + viewRootCacheHits;
+    }
+
+    private static String _sizePercentiles(Histogram histogram)
+    {
+      return histogram.getPercentile(50) + "/" +
+             histogram.getPercentile(95) + "/" +
+             histogram.getPercentile(99);
+    }
+
+    private static String _timePercentiles(Histogram histogram)
+    {
+      return _toMillis(histogram.getPercentile(50)) + "/" +
+             _toMillis(histogram.getPercentile(95)) + "/" +
+             _toMillis(histogram.getPercentile(99));
+    }
+
+    final Histogram saveTimes = new Histogram();
+    final Histogram restoreTimes = new Histogram();
+    final Histogram stateSizes = new Histogram();
+    final Histogram zippedStateSizes = new Histogram();
+    final AtomicLong tokenCacheHits = new AtomicLong();
+    final AtomicLong tokenCacheMisses = new AtomicLong();
+    final AtomicLong tokenCacheEvictions = new AtomicLong();
+    final AtomicLong viewRootCacheHits = new AtomicLong();
+  }
+
+  /**
+   * Snapshot of a view's metrics for the report, ordered by the 95th percentile
+   * of the page state size, largest first.  The metrics are captured up front, since
+   * concurrent requests may change them while sorting.
+   */
+  private static final class ViewSummary implements Comparable<ViewSummary>
+  {
+    public ViewSummary(String viewId, ViewMetrics viewMetrics)
+    {
+      _viewId = viewId;
+      _stateSize = viewMetrics.stateSizes.getPercentile(95);
+      _summary = viewMetrics.toString();
+    }
+
+    @Override
+    public int compareTo(ViewSummary other)
+    {
+      if (_stateSize != other._stateSize)
+        return (_stateSize > other._stateSize) ? -1 : 1;
+
+      return _viewId.compareTo(other._viewId);
+    }
+
+    @Override
+    public String toString()
+    {
+      return _viewId + ": " + _summary;
+    }
+
+    private final String _viewId;
+    private final long _stateSize;
+    private final String _summary;
+  }
+
+  /**
+   * Histogram of non-negative values.  Each power of two is split into
+   * four buckets, so a bucket's upper bound is within 25% of the values in it.
+   */
+  static final class Histogram
+  {
+    public void record(long value)
+    {
+      _buckets.incrementAndGet(_getBucket(Math.max(value, 0L)));
+    }
+
+    public long getCount()
+    {
+      long count = 0;
+
+      for (int i = 0; i < _BUCKET_COUNT; i++)
+      {
+        count += _buckets.get(i);
+      }
+
+      return count;
+    }
+
+    /**
+     * @return the upper bound of the bucket containing the percentile, or -1 if
+     * no values were recorded
+     */
+    public long getPercentile(double percentile)
+    {
+      long[] counts = new long[_BUCKET_COUNT];
+      long total = 0;
+
+      // take a snapshot, so that concurrent recording doesn't skew the result
+      for (int i = 0; i < _BUCKET_COUNT; i++)
+      {
+        counts[i] = _buckets.get(i);
+        total += counts[i];
+      }
+
+      if (total == 0)
+        return -1;
+
+      long rank = (long)Math.ceil(total * Math.min(Math.max(percentile, 0.0), 100.0) / 100.0);
+      rank = Math.max(rank, 1L);
+
+      long seen = 0;
+
+      for (int i = 0; i < _BUCKET_COUNT; i++)
+      {
+        seen += counts[i];
+
+        if (seen >= rank)
+          return _getUpperBound(i);
+      }
+
+      return Long.MAX_VALUE;
+    }
+
+    private static int _getBucket(long value)
+    {
+      if (value < _SUB_BUCKETS)
+        return (int)value;
+
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int mantissa = (int)(value >>> (exponent - _SUB_BUCKET_BITS));
+
+      return (exponent - _SUB_BUCKET_BITS + 1) * _SUB_BUCKETS + mantissa - _SUB_BUCKETS;
+    }
+
+    private static long _getUpperBound(int bucket)
+    {
+      if (bucket < _SUB_BUCKETS)
+        return bucket;
+
+      int exponent = bucket / _SUB_BUCKETS + _SUB_BUCKET_BITS - 1;
+      long mantissa = bucket % _SUB_BUCKETS + _SUB_BUCKETS;
+      int shift = exponent - _SUB_BUCKET_BITS;
+
+      // the top buckets' bounds don't fit in a long
+      if ((mantissa + 1) > (Long.MAX_VALUE >>> shift))
+        return Long.MAX_VALUE;
+
+      return ((mantissa + 1) << shift) - 1;
+    }
+
+    private final AtomicLongArray _buckets = new AtomicLongArray(_BUCKET_COUNT);
+
+    private static final int _SUB_BUCKET_BITS = 2;
+    private static final int _SUB_BUCKETS = 1 << _SUB_BUCKET_BITS;
+    private static final int _BUCKET_COUNT = _getBucket(Long.MAX_VALUE) + 1;
+  }
+
+  private final ConcurrentMap<String, ViewMetrics> _views;
+
+  // metrics for views beyond _MAX_VIEWS are combined under this id
+  private static final String _OTHER_VIEWS = "(other views)";
+
+  private static final int _MAX_VIEWS = 500;
+
+  private static final String _REQUEST_METRICS_KEY =
+    "org.apache.myfaces.trinidadinternal.application.StateMetrics.REQUEST_METRICS";
+
+  private static final String _OBJECT_NAME_KEY =
+    "org.apache.myfaces.trinidadinternal.application.StateMetrics.OBJECT_NAME";
+
+  private static final TrinidadLogger _LOG = TrinidadLogger.createTrinidadLogger(StateMetrics.class);
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.application;
+
+
+/**
+ * JMX management interface of StateMetrics.  Sizes are in bytes and times are in
+ * milliseconds.  Percentiles are passed as values between 0 and 100, and are
+ * accurate to within a quarter of the reported value.
+ */
+public interface StateMetricsMBean
+{
+  /**
+   * @return the ids of the views that metrics have been recorded for
+   */
+  public String[] getViewIds();
+
+  /**
+   * @return a one line summary of each view, largest page state first
+   */
+  public String[] getReport();
+
+  public long getSaveCount(String viewId);
+
+  public long getRestoreCount(String viewId);
+
+  /**
+   * @return the percentile of the serialized size of the view's page state, or -1 if
+   * the size hasn't been measured.  The page state is only serialized when it is
+   * compressed or checked for serializability.
+   */
+  public long getStateSizePercentile(String viewId, double percentile);
+
+  /**
+   * @return the percentile of the compressed size of the view's page state, or -1
+   * if the page state isn't compressed
+   */
+  public long getZippedStateSizePercentile(String viewId, double percentile);
+
+  public double getSaveTimePercentile(String viewId, double percentile);
+
+  public double getRestoreTimePercentile(String viewId, double percentile);
+
+  /**
+   * @return the number of postbacks to the view whose state token was still available
+   */
+  public long getTokenCacheHits(String viewId);
+
+  /**
+   * @return the number of postbacks to the view whose state token had expired
+   */
+  public long getTokenCacheMisses(String viewId);
+
+  /**
+   * @return the number of page states that saving the view's state evicted from
+   * the token cache
+   */
+  public long getTokenCacheEvictions(String viewId);
+
+  /**
+   * @return the number of postbacks to the view that reused the cached UIViewRoot
+   */
+  public long getViewRootCacheHits(String viewId);
+
+  /**
+   * Discards all of the recorded metrics
+   */
+  public void reset();
+}
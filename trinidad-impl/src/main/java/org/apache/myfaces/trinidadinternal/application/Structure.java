@@ -112,6 +112,37 @@ final class Structure implements Externalizable
     return component;
   }
 
+  /**
+   * Structures are equal if they describe the same component tree.
+   */
+  @Override
+  public boolean equals(Object o)
+  {
+    if (o == this)
+      return true;
+
+    if (!(o instanceof Structure))
+      return false;
+
+    Structure other = (Structure)o;
+
+    return _class.equals(other._class)          &&
+           _equals(_id, other._id)              &&
+           _equals(_facets, other._facets)      &&
+           _equals(_children, other._children);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    int hashCode = _class.hashCode();
+
+    if (_id != null)
+      hashCode = hashCode * 37 + _id.hashCode();
+
+    return hashCode;
+  }
+
   public void writeExternal(ObjectOutput out) throws IOException
   {
     out.writeObject(_abbreviateClass(_class));
@@ -251,6 +282,11 @@ final class Structure implements Externalizable
     return list;
   }
 
+  static private boolean _equals(Object a, Object b)
+  {
+    return (a == null) ? (b == null) : a.equals(b);
+  }
+
   // Trim down a class name for any very common package prefixes
   static private String _abbreviateClass(String clazz)
   {
@@ -29,9 +29,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.faces.application.Resource;
@@ -319,8 +321,34 @@ public class ViewDeclarationLanguageFactoryImpl
     public void buildView(FacesContext facesContext, UIViewRoot uiViewRoot)
       throws IOException
     {
-      super.buildView(facesContext, uiViewRoot);
-      if(PhaseId.RENDER_RESPONSE.equals(FacesContext.getCurrentInstance().getCurrentPhaseId()))
+      boolean renderResponse =
+        PhaseId.RENDER_RESPONSE.equals(FacesContext.getCurrentInstance().getCurrentPhaseId());
+
+      // views that are the same for every user are built from their cached template.  The
+      // changes of the user are applied to the copy, so the template is built without them
+      ViewTemplateCache templateCache =
+        renderResponse ? ViewTemplateCache.getInstance(facesContext) : null;
+
+      if ((templateCache == null) || !templateCache.buildView(facesContext, uiViewRoot))
+      {
+        boolean cacheView = (templateCache != null)                       &&
+                            (uiViewRoot.getChildCount() == 0)             &&
+                            (uiViewRoot.getFacetCount() == 0)             &&
+                            templateCache.isCached(uiViewRoot.getViewId());
+
+        // remember the request's attributes, so that the template can record the ones
+        // added by building the view
+        Set<Object> contextAttributeKeys = cacheView
+          ? new HashSet<Object>(facesContext.getAttributes().keySet())
+          : null;
+
+        super.buildView(facesContext, uiViewRoot);
+
+        if (cacheView)
+          templateCache.cacheView(facesContext, uiViewRoot, contextAttributeKeys);
+      }
+
+      if(renderResponse)
       {          
         ChangeManager cm = RequestContext.getCurrentInstance().getChangeManager();
         cm.applyComponentChangesForCurrentView(FacesContext.getCurrentInstance());
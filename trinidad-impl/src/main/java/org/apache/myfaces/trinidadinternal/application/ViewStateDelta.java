@@ -0,0 +1,343 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.application;
+
+import java.io.Serializable;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Structural difference between two saved view states.  The saved state of a view
+ * is a tree of Object arrays (and, for partial state saving, HashMaps keyed by client id)
+ * whose leaves are the saved property values.  Consecutive postbacks on the same view
+ * usually change only a few leaves, so storing just the changed paths is much smaller
+ * than storing the complete tree.
+ * <p>
+ * Leaves are only considered unchanged if they are equal immutable values.  Other leaves
+ * are always stored, even if they are the same instance as in the base state:  the base
+ * state is the state handed to the components when the view was restored, so a mutable
+ * leaf may have been changed in place since, while the stored base state still has its
+ * old value.
+ */
+final class ViewStateDelta implements Serializable
+{
+  /**
+   * Returns the delta that transforms <code>base</code> into <code>state</code>.
+   * The returned delta is empty if nothing changed.
+   */
+  public static ViewStateDelta diff(Object base, Object state)
+  {
+    Object delta = _diff(base, state);
+
+    if (delta == _UNCHANGED)
+      return new ViewStateDelta(_EMPTY_INDICES, _EMPTY_VALUES, null);
+
+    if (delta instanceof ViewStateDelta)
+      return (ViewStateDelta)delta;
+
+    // the entire state was replaced, so store it as the single change to the root
+    return new ViewStateDelta(_EMPTY_INDICES, _EMPTY_VALUES, new Replacement(state));
+  }
+
+  /**
+   * Returns the state produced by applying this delta to <code>base</code>.  The base
+   * state is not modified.
+   */
+  @SuppressWarnings("unchecked")
+  public Object apply(Object base)
+  {
+    if (_root != null)
+      return _root.getValue();
+
+    if (_keys != null)
+      return _applyToMap((Map<Object, Object>)base);
+
+    if (_indices.length == 0)
+      return base;
+
+    Object[] baseArray = (Object[])base;
+    Object[] result    = baseArray.clone();
+
+    for (int i = 0; i < _indices.length; i++)
+    {
+      int index = _indices[i];
+      result[index] = _applyChange(baseArray[index], _values[i]);
+    }
+
+    return result;
+  }
+
+  /**
+   * @return the number of changed values recorded in this delta, including nested deltas
+   */
+  public int getChangeCount()
+  {
+    if (_root != null)
+      return 1;
+
+    int count = 0;
+
+    for (Object value : _values)
+    {
+      if (value instanceof ViewStateDelta)
+        count += ((ViewStateDelta)value).getChangeCount();
+      else
+        count++;
+    }
+
+    return count;
+  }
+
+  private ViewStateDelta(int[] indices, Object[] values, Replacement root)
+  {
+    _indices = indices;
+    _values  = values;
+    _keys    = null;
+    _root    = root;
+  }
+
+  private ViewStateDelta(Object[] keys, Object[] values)
+  {
+    _indices = null;
+    _values  = values;
+    _keys    = keys;
+    _root    = null;
+  }
+
+  private Object _applyToMap(Map<Object, Object> base)
+  {
+    HashMap<Object, Object> result = new HashMap<Object, Object>(base);
+
+    for (int i = 0; i < _keys.length; i++)
+    {
+      Object key   = _keys[i];
+      Object value = _values[i];
+
+      if (value == _REMOVED)
+        result.remove(key);
+      else
+        result.put(key, _applyChange(base.get(key), value));
+    }
+
+    return result;
+  }
+
+  private static Object _applyChange(Object base, Object change)
+  {
+    if (change instanceof ViewStateDelta)
+      return ((ViewStateDelta)change).apply(base);
+
+    return ((Replacement)change).getValue();
+  }
+
+  /**
+   * @return _UNCHANGED if the values are the same, a nested ViewStateDelta if only
+   * parts of the value changed, or a Replacement if the value has to be replaced
+   */
+  @SuppressWarnings("unchecked")
+  private static Object _diff(Object base, Object state)
+  {
+    if (_isSameValue(base, state))
+      return _UNCHANGED;
+
+    if ((base instanceof Object[]) && (state instanceof Object[]))
+    {
+      Object[] baseArray  = (Object[])base;
+      Object[] stateArray = (Object[])state;
+
+      if ((baseArray.length == stateArray.length) &&
+          (baseArray.getClass() == Object[].class) &&
+          (stateArray.getClass() == Object[].class))
+      {
+        return _diffArrays(baseArray, stateArray);
+      }
+    }
+    else if ((base != null) && (state != null) &&
+             (base.getClass() == HashMap.class) && (state.getClass() == HashMap.class))
+    {
+      return _diffMaps((Map<Object, Object>)base, (Map<Object, Object>)state);
+    }
+
+    return new Replacement(state);
+  }
+
+  private static Object _diffArrays(Object[] base, Object[] state)
+  {
+    int[] indices = null;
+    List<Object> values = null;
+    int changeCount = 0;
+
+    for (int i = 0; i < state.length; i++)
+    {
+      Object change = _diff(base[i], state[i]);
+
+      if (change != _UNCHANGED)
+      {
+        if (indices == null)
+        {
+          indices = new int[state.length];
+          values  = new ArrayList<Object>();
+        }
+
+        indices[changeCount++] = i;
+        values.add(change);
+      }
+    }
+
+    if (changeCount == 0)
+      return _UNCHANGED;
+
+    // if everything changed, the delta is no smaller than the state itself
+    if (changeCount == state.length)
+      return new Replacement(state);
+
+    int[] trimmedIndices = new int[changeCount];
+    System.arraycopy(indices, 0, trimmedIndices, 0, changeCount);
+
+    return new ViewStateDelta(trimmedIndices, values.toArray(), null);
+  }
+
+  private static Object _diffMaps(Map<Object, Object> base, Map<Object, Object> state)
+  {
+    List<Object> keys   = new ArrayList<Object>();
+    List<Object> values = new ArrayList<Object>();
+
+    for (Map.Entry<Object, Object> entry : state.entrySet())
+    {
+      Object key = entry.getKey();
+      Object change = base.containsKey(key)
+                        ? _diff(base.get(key), entry.getValue())
+                        : new Replacement(entry.getValue());
+
+      if (change != _UNCHANGED)
+      {
+        keys.add(key);
+        values.add(change);
+      }
+    }
+
+    for (Object key : base.keySet())
+    {
+      if (!state.containsKey(key))
+      {
+        keys.add(key);
+        values.add(_REMOVED);
+      }
+    }
+
+    if (keys.isEmpty())
+      return _UNCHANGED;
+
+    return new ViewStateDelta(keys.toArray(), values.toArray());
+  }
+
+  /**
+   * Returns true if the two leaf values can be considered the same.  Only immutable
+   * values are compared, since the same instance of a mutable value may have changed.
+   */
+  private static boolean _isSameValue(Object base, Object state)
+  {
+    if ((base == null) || (state == null))
+      return (base == state);
+
+    Class<?> valueClass = state.getClass();
+
+    if (valueClass != base.getClass())
+      return false;
+
+    if ((valueClass == String.class)     ||
+        (valueClass == Boolean.class)    ||
+        (valueClass == Integer.class)    ||
+        (valueClass == Long.class)       ||
+        (valueClass == Short.class)      ||
+        (valueClass == Byte.class)       ||
+        (valueClass == Character.class)  ||
+        (valueClass == Double.class)     ||
+        (valueClass == Float.class)      ||
+        (valueClass == BigDecimal.class) ||
+        (valueClass == BigInteger.class) ||
+        (valueClass == Structure.class)  ||
+        valueClass.isEnum())
+    {
+      return base.equals(state);
+    }
+
+    return false;
+  }
+
+  /**
+   * Wrapper for a replaced value, so that replaced values can be told apart from
+   * nested deltas.
+   */
+  private static final class Replacement implements Serializable
+  {
+    public Replacement(Object value)
+    {
+      _value = value;
+    }
+
+    public Object getValue()
+    {
+      return _value;
+    }
+
+    private final Object _value;
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Marker for a Map entry that was removed.
+   */
+  private static final class Removed implements Serializable
+  {
+    private Object readResolve()
+    {
+      return _REMOVED;
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  // indices of the changed values when the delta applies to an Object array
+  private final int[] _indices;
+
+  // keys of the changed values when the delta applies to a HashMap
+  private final Object[] _keys;
+
+  // nested ViewStateDeltas, Replacements, or _REMOVED
+  private final Object[] _values;
+
+  // non-null if the entire state was replaced
+  private final Replacement _root;
+
+  private static final Object _UNCHANGED = new Object();
+  private static final Removed _REMOVED = new Removed();
+  private static final int[] _EMPTY_INDICES = new int[0];
+  private static final Object[] _EMPTY_VALUES = new Object[0];
+
+  private static final long serialVersionUID = 1L;
+}
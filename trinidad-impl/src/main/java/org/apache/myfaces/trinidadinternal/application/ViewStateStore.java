@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.application;
+
+
+/**
+ * Storage for the serialized page state used by token-based state saving.
+ * <p>
+ * By default, StateManagerImpl stores every PageState directly in the
+ * session.  When the <code>org.apache.myfaces.trinidad.VIEW_STATE_STORE</code>
+ * servlet context initialization parameter is set, the page state is instead
+ * serialized, compressed, and handed to a ViewStateStore, and only the
+ * TokenCache (which holds nothing but token strings) is left in the session.
+ * <p>
+ * Implementations must be thread-safe, as concurrent requests from the same
+ * session may access the store simultaneously.
+ * @see StateManagerImpl#VIEW_STATE_STORE_PARAM_NAME
+ */
+public interface ViewStateStore
+{
+  /**
+   * Stores the serialized state for a key, replacing any previous state.
+   * @param sessionId the id of the session that owns the state
+   * @param key       the key of the state within the session
+   * @param state     the serialized state.  The store may not hold onto
+   *                  this array after this method returns.
+   */
+  public void putState(String sessionId, String key, byte[] state);
+
+  /**
+   * Returns a copy of the serialized state stored for a key, or
+   * <code>null</code> if no state is stored.
+   */
+  public byte[] getState(String sessionId, String key);
+
+  /**
+   * Removes the state stored for a key.
+   * @return <code>true</code> if any state was removed
+   */
+  public boolean removeState(String sessionId, String key);
+
+  /**
+   * Removes all of the state owned by a session.  Called when the
+   * session is invalidated.
+   */
+  public void removeSession(String sessionId);
+}
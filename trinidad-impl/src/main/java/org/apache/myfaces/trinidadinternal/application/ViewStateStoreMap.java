@@ -0,0 +1,264 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.application;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.faces.context.ExternalContext;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+
+import org.apache.myfaces.trinidad.logging.TrinidadLogger;
+import org.apache.myfaces.trinidadinternal.util.ObjectInputStreamResolveClass;
+import org.apache.myfaces.trinidadinternal.util.TokenCache;
+
+
+/**
+ * Map of tokens to page states that stores the serialized and compressed values
+ * in a ViewStateStore instead of the session.  Like SubKeyMap, the keys are
+ * namespaced with a prefix, so that the states of different windows don't collide.
+ * <p>
+ * The Map can't be enumerated, since the ViewStateStore only supports access by
+ * key.  This is sufficient for TokenCache, which tracks the tokens itself, and
+ * which removes evicted tokens through delete(), so that their state is never
+ * deserialized.
+ */
+final class ViewStateStoreMap<V extends Serializable> extends AbstractMap<String, V>
+  implements TokenCache.DeletableStore
+{
+  public ViewStateStoreMap(ViewStateStore store, String sessionId, String prefix)
+  {
+    if (store == null)
+      throw new NullPointerException();
+    if (sessionId == null)
+      throw new NullPointerException();
+    if (prefix == null)
+      throw new NullPointerException();
+
+    _store     = store;
+    _sessionId = sessionId;
+    _prefix    = prefix;
+  }
+
+  /**
+   * Makes sure that the state owned by the current session is removed from the
+   * store when the session is invalidated.
+   */
+  @SuppressWarnings("unchecked")
+  public static void registerSession(ExternalContext extContext, ViewStateStore store)
+  {
+    Object session = extContext.getSession(true);
+
+    if (session instanceof HttpSession)
+    {
+      Map<String, Object> sessionMap = extContext.getSessionMap();
+
+      if (!sessionMap.containsKey(_SESSION_CLEANUP_KEY))
+      {
+        HttpSession httpSession = (HttpSession)session;
+        sessionMap.put(_SESSION_CLEANUP_KEY, new SessionCleanup(store, httpSession.getId()));
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public V get(Object key)
+  {
+    byte[] state = _store.getState(_sessionId, getBaseKey(key));
+
+    if (state == null)
+      return null;
+
+    return (V)_deserialize(state);
+  }
+
+  @Override
+  public V put(String key, V value)
+  {
+    // the old value is not returned, since fetching it would mean deserializing it
+    _store.putState(_sessionId, getBaseKey(key), _serialize(value));
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public V remove(Object key)
+  {
+    String baseKey = getBaseKey(key);
+
+    byte[] state = _store.getState(_sessionId, baseKey);
+
+    if (state == null)
+      return null;
+
+    _LOG.finest("Removing {0}", baseKey);
+    _store.removeState(_sessionId, baseKey);
+
+    return (V)_deserialize(state);
+  }
+
+  @Override
+  public void delete(String key)
+  {
+    String baseKey = getBaseKey(key);
+
+    _LOG.finest("Removing {0}", baseKey);
+    _store.removeState(_sessionId, baseKey);
+  }
+
+  @Override
+  public boolean containsKey(Object key)
+  {
+    if (!(key instanceof String))
+      return false;
+
+    return _store.getState(_sessionId, getBaseKey(key)) != null;
+  }
+
+  @Override
+  public Set<Map.Entry<String, V>> entrySet()
+  {
+    // the store can only be accessed by key
+    return Collections.emptySet();
+  }
+
+  /**
+   * @param key The key used to access the value in this Map
+   * @return the key used in the ViewStateStore
+   */
+  public String getBaseKey(Object key)
+  {
+    if (key == null)
+      throw new NullPointerException();
+
+    // Yes, I want a ClassCastException if it's not a String
+    String keyString = (String)key;
+
+    StringBuilder keyBuilder = new StringBuilder(_prefix.length() + keyString.length());
+
+    return keyBuilder.append(_prefix).append(keyString).toString();
+  }
+
+  private static byte[] _serialize(Object value)
+  {
+    Deflater compresser = new Deflater(Deflater.BEST_SPEED);
+
+    try
+    {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(new DeflaterOutputStream(baos, compresser));
+
+      oos.writeObject(value);
+      oos.close();
+
+      return baos.toByteArray();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(_LOG.getMessage("ZIP_STATE_FAILED"), e);
+    }
+    finally
+    {
+      compresser.end();
+    }
+  }
+
+  private static Object _deserialize(byte[] state)
+  {
+    try
+    {
+      ObjectInputStream ois = new ObjectInputStreamResolveClass(
+                                new InflaterInputStream(new ByteArrayInputStream(state)));
+
+      try
+      {
+        return ois.readObject();
+      }
+      finally
+      {
+        ois.close();
+      }
+    }
+    catch (ClassNotFoundException cnfe)
+    {
+      throw new RuntimeException(_LOG.getMessage("UNZIP_STATE_FAILED"), cnfe);
+    }
+    catch (IOException ioe)
+    {
+      throw new RuntimeException(_LOG.getMessage("UNZIP_STATE_FAILED"), ioe);
+    }
+  }
+
+  /**
+   * Session attribute that removes the state of a session from the store when
+   * the session is invalidated.  The store is transient, so a failed-over copy
+   * of the session does nothing, as its state was never in this JVM's store.
+   */
+  private static final class SessionCleanup implements HttpSessionBindingListener, Serializable
+  {
+    public SessionCleanup(ViewStateStore store, String sessionId)
+    {
+      _store     = store;
+      _sessionId = sessionId;
+    }
+
+    @Override
+    public void valueBound(HttpSessionBindingEvent event)
+    {
+    }
+
+    @Override
+    public void valueUnbound(HttpSessionBindingEvent event)
+    {
+      if (_store != null)
+        _store.removeSession(_sessionId);
+    }
+
+    private transient ViewStateStore _store;
+    private final String _sessionId;
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  private final ViewStateStore _store;
+  private final String _sessionId;
+  private final String _prefix;
+
+  private static final String _SESSION_CLEANUP_KEY =
+    "org.apache.myfaces.trinidadinternal.application.ViewStateStoreMap.SESSION_CLEANUP";
+
+  private static final TrinidadLogger _LOG =
+    TrinidadLogger.createTrinidadLogger(ViewStateStoreMap.class);
+}
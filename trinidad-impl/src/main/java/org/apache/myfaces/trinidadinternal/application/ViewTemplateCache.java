@@ -0,0 +1,649 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.application;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.el.MethodExpression;
+import javax.el.ValueExpression;
+
+import javax.faces.application.ProjectStage;
+import javax.faces.component.UIComponent;
+import javax.faces.component.UIViewRoot;
+import javax.faces.context.FacesContext;
+import javax.faces.event.PostAddToViewEvent;
+import javax.faces.event.PreRemoveFromViewEvent;
+import javax.faces.event.SystemEventListener;
+
+import org.apache.myfaces.trinidad.context.RequestContext;
+import org.apache.myfaces.trinidad.logging.TrinidadLogger;
+import org.apache.myfaces.trinidadinternal.util.CopyOnWriteArrayMap;
+import org.apache.myfaces.trinidadinternal.util.ObjectInputStreamResolveClass;
+
+/**
+ * Application-scoped cache of the component trees built for views that are the same
+ * for every user.  The first time such a view is built for a locale and skin family,
+ * the Structure and state of the pristine tree are saved; later requests for the view
+ * create their own copy of the tree from the saved template rather than building it
+ * again.
+ * <p>
+ * Only the views listed in the VIEW_TEMPLATE_CACHE init parameter are cached, since
+ * only the application knows whether building a view depends on the user.  The copy
+ * receives the complete state of the template's view root, including its phase
+ * listeners, and the FacesContext attributes that the ViewDeclarationLanguage set
+ * to record that the view has been built.  Views are only cached if their copies are
+ * indistinguishable from a built view:  views containing transient components or
+ * components with a <code>binding</code>, views whose view root tracks the components
+ * added to and removed from the view (as it does with partial state saving), and views
+ * whose building leaves other FacesContext attributes behind are never cached.
+ */
+final class ViewTemplateCache
+{
+  /**
+   * Comma-separated list of the view ids whose component trees are cached.
+   * A view id ending with "*" matches all the view ids starting with the
+   * rest of the view id.
+   */
+  static public final String VIEW_TEMPLATE_CACHE_PARAM_NAME =
+    "org.apache.myfaces.trinidad.VIEW_TEMPLATE_CACHE";
+
+  /**
+   * @return the ViewTemplateCache of the application or <code>null</code> if
+   * no views are cached.
+   */
+  @SuppressWarnings("unchecked")
+  static public ViewTemplateCache getInstance(FacesContext context)
+  {
+    ConcurrentMap<String, Object> sharedAppMap =
+                            RequestContext.getCurrentInstance().getApplicationScopedConcurrentMap();
+
+    AtomicReference<ViewTemplateCache> cacheHolder =
+                     (AtomicReference<ViewTemplateCache>)sharedAppMap.get(VIEW_TEMPLATE_CACHE_PARAM_NAME);
+
+    if (cacheHolder == null)
+    {
+      String viewIds = context.getExternalContext().getInitParameter(VIEW_TEMPLATE_CACHE_PARAM_NAME);
+
+      // use a placeholder for null, since ConcurrentHashMap can't store null.  Views
+      // aren't cached in development, where the pages may change at any time
+      cacheHolder = new AtomicReference<ViewTemplateCache>();
+
+      if ((viewIds != null) && !context.isProjectStage(ProjectStage.Development))
+      {
+        ViewTemplateCache cache = new ViewTemplateCache(viewIds);
+
+        if (cache._isEnabled())
+          cacheHolder.set(cache);
+      }
+
+      AtomicReference<ViewTemplateCache> oldCacheHolder =
+        (AtomicReference<ViewTemplateCache>)sharedAppMap.putIfAbsent(VIEW_TEMPLATE_CACHE_PARAM_NAME,
+                                                                     cacheHolder);
+
+      if (oldCacheHolder != null)
+        cacheHolder = oldCacheHolder;
+    }
+
+    return cacheHolder.get();
+  }
+
+  ViewTemplateCache(String viewIds)
+  {
+    for (String viewId : viewIds.split(","))
+    {
+      viewId = viewId.trim();
+
+      if (viewId.endsWith("*"))
+        _viewIdPrefixes.add(viewId.substring(0, viewId.length() - 1));
+      else if (viewId.length() > 0)
+        _viewIds.add(viewId);
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the component trees of the view may be cached.
+   */
+  public boolean isCached(String viewId)
+  {
+    if (viewId == null)
+      return false;
+
+    if (_viewIds.contains(viewId))
+      return true;
+
+    for (String prefix : _viewIdPrefixes)
+    {
+      if (viewId.startsWith(prefix))
+        return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Builds the empty view root from the view's template, if one has been cached.
+   * @return <code>true</code> if the view root was built from the template,
+   * <code>false</code> if the view must be built by the ViewDeclarationLanguage.
+   */
+  public boolean buildView(FacesContext context, UIViewRoot root)
+  {
+    if (!_isPristine(root) || !isCached(root.getViewId()))
+      return false;
+
+    Object template = _templates.get(_getTemplateKey(context, root));
+
+    if (!(template instanceof ViewTemplate))
+      return false;
+
+    try
+    {
+      ((ViewTemplate)template).buildView(context, root);
+      _LOG.finer("Built view \"{0}\" from its cached template", root.getViewId());
+
+      return true;
+    }
+    catch (Exception e)
+    {
+      // build the view from the page instead, leaving the template cached, since the
+      // problem could be with this request
+      _LOG.warning(e);
+
+      root.getChildren().clear();
+      root.getFacets().clear();
+
+      return false;
+    }
+  }
+
+  /**
+   * Caches the template of a view root that has just been built by the
+   * ViewDeclarationLanguage.
+   * @param contextAttributeKeys the keys of the FacesContext attributes before the
+   *                             view was built
+   */
+  public void cacheView(
+    FacesContext       context,
+    UIViewRoot         root,
+    Collection<Object> contextAttributeKeys)
+  {
+    String viewId = root.getViewId();
+
+    if (!isCached(viewId))
+      return;
+
+    String templateKey = _getTemplateKey(context, root);
+
+    if (_templates.containsKey(templateKey))
+      return;
+
+    Object template = _NOT_CACHEABLE;
+
+    if (!_isCacheable(root))
+    {
+      _LOG.fine("View \"{0}\" contains transient or bound components and is not cached", viewId);
+    }
+    else if (_hasViewListeners(root))
+    {
+      _LOG.fine("View \"{0}\" tracks its dynamic components and is not cached", viewId);
+    }
+    else
+    {
+      Map<Object, Object> builtAttributes =
+        _getBuiltAttributes(context, root, contextAttributeKeys);
+
+      if (builtAttributes != null)
+        template = new ViewTemplate(context, root, builtAttributes);
+      else
+        _LOG.fine("Building view \"{0}\" left request state behind and it is not cached", viewId);
+    }
+
+    _templates.putIfAbsent(templateKey, template);
+  }
+
+  private boolean _isEnabled()
+  {
+    return !_viewIds.isEmpty() || !_viewIdPrefixes.isEmpty();
+  }
+
+  private static String _getTemplateKey(FacesContext context, UIViewRoot root)
+  {
+    Locale locale = root.getLocale();
+    String skinFamily = RequestContext.getCurrentInstance().getSkinFamily();
+
+    StringBuilder key = new StringBuilder(root.getViewId());
+    key.append('\n').append(root.getRenderKitId());
+    key.append('\n').append(locale);
+    key.append('\n').append(skinFamily);
+
+    return key.toString();
+  }
+
+  /**
+   * @return <code>true</code> if the view root hasn't been built yet
+   */
+  private static boolean _isPristine(UIViewRoot root)
+  {
+    return (root.getChildCount() == 0) && (root.getFacetCount() == 0);
+  }
+
+  /**
+   * @return <code>true</code> if the view root can be recreated from its
+   * Structure and state
+   */
+  private static boolean _isCacheable(UIComponent component)
+  {
+    // transient components aren't part of the Structure, and bindings must be set
+    // by building the view
+    if (component.isTransient() || (component.getValueExpression("binding") != null))
+      return false;
+
+    if ((component.getFacetCount() > 0) || (component.getChildCount() > 0))
+    {
+      Iterator<UIComponent> kids = component.getFacetsAndChildren();
+
+      while (kids.hasNext())
+      {
+        if (!_isCacheable(kids.next()))
+          return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * @return <code>true</code> if the view root has listeners for the components added to
+   * or removed from the view.  These are registered by the ViewDeclarationLanguage for
+   * the request that built the view, so they can't be shared with the copies.
+   */
+  private static boolean _hasViewListeners(UIViewRoot root)
+  {
+    return _hasListeners(root.getViewListenersForEventClass(PostAddToViewEvent.class)) ||
+           _hasListeners(root.getViewListenersForEventClass(PreRemoveFromViewEvent.class));
+  }
+
+  private static boolean _hasListeners(List<SystemEventListener> listeners)
+  {
+    return (listeners != null) && !listeners.isEmpty();
+  }
+
+  /**
+   * Returns the FacesContext attributes that the ViewDeclarationLanguage added while
+   * building the view, such as the flag recording that the view has been built.  An
+   * attribute keyed by the view root is returned keyed by <code>null</code>.
+   * @return the added attributes, or <code>null</code> if an attribute can't be
+   * added again for the copies of the view
+   */
+  private static Map<Object, Object> _getBuiltAttributes(
+    FacesContext       context,
+    UIViewRoot         root,
+    Collection<Object> contextAttributeKeys)
+  {
+    Map<Object, Object> builtAttributes = new HashMap<Object, Object>();
+
+    if (contextAttributeKeys == null)
+      return builtAttributes;
+
+    for (Map.Entry<Object, Object> attr : context.getAttributes().entrySet())
+    {
+      Object key = attr.getKey();
+
+      if (contextAttributeKeys.contains(key))
+        continue;
+
+      if (!_isImmutable(attr.getValue()))
+        return null;
+
+      if (key == root)
+        builtAttributes.put(null, attr.getValue());
+      else if (_isImmutable(key))
+        builtAttributes.put(key, attr.getValue());
+      else
+        return null;
+    }
+
+    return builtAttributes;
+  }
+
+  /**
+   * @return <code>true</code> if the saved state only holds values that can't be modified,
+   * so that the same state can be restored by several requests at once.
+   */
+  private static boolean _isImmutable(Object state)
+  {
+    if (state == null)
+      return true;
+
+    if (state instanceof Object[])
+    {
+      for (Object value : (Object[])state)
+      {
+        if (!_isImmutable(value))
+          return false;
+      }
+
+      return true;
+    }
+
+    return _isImmutableValue(state);
+  }
+
+  private static boolean _isImmutableValue(Object value)
+  {
+    // expressions are shared by all requests once they have been parsed
+    return _IMMUTABLE_CLASSES.contains(value.getClass()) ||
+           (value instanceof Enum)                    ||
+           (value instanceof ValueExpression)         ||
+           (value instanceof MethodExpression);
+  }
+
+  /**
+   * Returns the template's form of the saved state.  Parts of the state that only hold
+   * values that can't be modified are shared by all requests.  Arrays holding values that
+   * requests could modify become FrozenArrays, and those values are replaced by their
+   * serialized form, so that each request only copies these parts of the state.
+   */
+  private static Object _freezeState(Object state)
+  {
+    if (_isImmutable(state) || (state.getClass() == Date.class))
+      return state;
+
+    if (state.getClass() == Object[].class)
+    {
+      Object[] array = (Object[])state;
+      Object[] frozen = new Object[array.length];
+
+      for (int i = 0; i < array.length; i++)
+      {
+        frozen[i] = _freezeState(array[i]);
+      }
+
+      return new FrozenArray(frozen);
+    }
+
+    return new SerializedValue(state);
+  }
+
+  /**
+   * Returns a copy of the template's form of the saved state for a request
+   */
+  private static Object _thawState(Object frozen)
+    throws ClassNotFoundException, IOException
+  {
+    if (frozen instanceof FrozenArray)
+    {
+      Object[] array = ((FrozenArray)frozen).getValues();
+      Object[] state = new Object[array.length];
+
+      for (int i = 0; i < array.length; i++)
+      {
+        state[i] = _thawState(array[i]);
+      }
+
+      return state;
+    }
+
+    if (frozen instanceof SerializedValue)
+      return ((SerializedValue)frozen).getValue();
+
+    if (frozen instanceof Date)
+      return ((Date)frozen).clone();
+
+    return frozen;
+  }
+
+  /**
+   * Array of the saved state holding values that requests could modify
+   */
+  private static final class FrozenArray
+  {
+    public FrozenArray(Object[] values)
+    {
+      _values = values;
+    }
+
+    public Object[] getValues()
+    {
+      return _values;
+    }
+
+    private final Object[] _values;
+  }
+
+  /**
+   * Serialized form of a value of the saved state that requests could modify
+   */
+  private static final class SerializedValue
+  {
+    public SerializedValue(Object value)
+    {
+      _bytes = _serialize(value);
+    }
+
+    public Object getValue() throws ClassNotFoundException, IOException
+    {
+      return _deserialize(_bytes);
+    }
+
+    private final byte[] _bytes;
+  }
+
+  private static byte[] _serialize(Object state)
+  {
+    try
+    {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      oos.writeObject(state);
+      oos.close();
+
+      return baos.toByteArray();
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Object _deserialize(byte[] serializedState)
+    throws ClassNotFoundException, IOException
+  {
+    ObjectInputStream ois =
+      new ObjectInputStreamResolveClass(new ByteArrayInputStream(serializedState));
+
+    try
+    {
+      return ois.readObject();
+    }
+    finally
+    {
+      ois.close();
+    }
+  }
+
+  /**
+   * Pristine component tree of a view.
+   */
+  private static final class ViewTemplate
+  {
+    public ViewTemplate(FacesContext context, UIViewRoot root, Map<Object, Object> builtAttributes)
+    {
+      // save the full state of the tree, rather than the changes since the initial
+      // state was marked
+      List<UIComponent> markedComponents = new ArrayList<UIComponent>();
+      _clearInitialState(root, markedComponents);
+
+      Object state;
+
+      try
+      {
+        _structure = new Structure(root);
+        state = root.processSaveState(context);
+      }
+      finally
+      {
+        for (UIComponent component : markedComponents)
+        {
+          component.markInitialState();
+        }
+      }
+
+      _markInitialState = !markedComponents.isEmpty();
+      _markRootInitialState = markedComponents.contains(root);
+
+      // values of the state that requests could modify are copied for each request
+      _state = _freezeState(state);
+      _builtAttributes = builtAttributes;
+    }
+
+    /**
+     * Moves a copy of the template's tree into the view root
+     */
+    public void buildView(FacesContext context, UIViewRoot root)
+      throws ClassNotFoundException, InstantiationException, IllegalAccessException, IOException
+    {
+      UIViewRoot templateRoot = (UIViewRoot)_structure.createComponent();
+      templateRoot.processRestoreState(context, _thawState(_state));
+
+      // give the view root the complete state of the template's root:  its phase listeners,
+      // listeners and properties.  The attributes that were already set on this request's
+      // root take precedence over those of the template
+      Map<String, Object> requestAttrs = new HashMap<String, Object>(root.getAttributes());
+
+      root.restoreState(context, templateRoot.saveState(context));
+      root.getAttributes().putAll(requestAttrs);
+
+      if (templateRoot.getFacetCount() > 0)
+      {
+        Map<String, UIComponent> facets = root.getFacets();
+
+        for (Map.Entry<String, UIComponent> facet :
+               new ArrayList<Map.Entry<String, UIComponent>>(templateRoot.getFacets().entrySet()))
+        {
+          facets.put(facet.getKey(), facet.getValue());
+        }
+      }
+
+      if (templateRoot.getChildCount() > 0)
+      {
+        List<UIComponent> children = root.getChildren();
+
+        for (UIComponent child : new ArrayList<UIComponent>(templateRoot.getChildren()))
+        {
+          children.add(child);
+        }
+      }
+
+      if (_markInitialState)
+      {
+        Iterator<UIComponent> kids = root.getFacetsAndChildren();
+
+        while (kids.hasNext())
+        {
+          _markInitialState(kids.next());
+        }
+
+        if (_markRootInitialState)
+          root.markInitialState();
+      }
+
+      // record that the view has been built, as the ViewDeclarationLanguage did
+      Map<Object, Object> contextAttrs = context.getAttributes();
+
+      for (Map.Entry<Object, Object> attr : _builtAttributes.entrySet())
+      {
+        Object key = attr.getKey();
+        contextAttrs.put((key != null) ? key : root, attr.getValue());
+      }
+    }
+
+    private static void _clearInitialState(UIComponent component, List<UIComponent> markedComponents)
+    {
+      if (component.initialStateMarked())
+      {
+        component.clearInitialState();
+        markedComponents.add(component);
+      }
+
+      Iterator<UIComponent> kids = component.getFacetsAndChildren();
+
+      while (kids.hasNext())
+      {
+        _clearInitialState(kids.next(), markedComponents);
+      }
+    }
+
+    private static void _markInitialState(UIComponent component)
+    {
+      component.markInitialState();
+
+      Iterator<UIComponent> kids = component.getFacetsAndChildren();
+
+      while (kids.hasNext())
+      {
+        _markInitialState(kids.next());
+      }
+    }
+
+    private final Structure _structure;
+    private final Object _state;
+    private final Map<Object, Object> _builtAttributes;
+    private final boolean _markInitialState;
+    private final boolean _markRootInitialState;
+  }
+
+  private final Set<String> _viewIds = new HashSet<String>();
+  private final List<String> _viewIdPrefixes = new ArrayList<String>();
+
+  // read-mostly, since templates are only added the first time each view is built
+  private final ConcurrentMap<String, Object> _templates =
+    CopyOnWriteArrayMap.newLRUConcurrentMap(_MAX_TEMPLATES);
+
+  static private final int _MAX_TEMPLATES = 500;
+
+  static private final Object _NOT_CACHEABLE = new Object();
+
+  static private final Set<Class<?>> _IMMUTABLE_CLASSES = new HashSet<Class<?>>(Arrays.asList(
+    String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class,
+    Long.class, Float.class, Double.class, BigInteger.class, BigDecimal.class, Locale.class,
+    Class.class));
+
+  static private final TrinidadLogger _LOG = TrinidadLogger.createTrinidadLogger(ViewTemplateCache.class);
+}
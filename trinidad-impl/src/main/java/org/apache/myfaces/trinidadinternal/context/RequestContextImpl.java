@@ -64,7 +64,7 @@ import org.apache.myfaces.trinidad.util.ComponentUtils;
 import org.apache.myfaces.trinidad.util.ExternalContextUtils;
 import org.apache.myfaces.trinidad.util.TransientHolder;
 import org.apache.myfaces.trinidad.webapp.UploadedFileProcessor;
-import org.apache.myfaces.trinidadinternal.agent.AgentFactory;
+import org.apache.myfaces.trinidadinternal.agent.AgentCache;
 import org.apache.myfaces.trinidadinternal.agent.AgentFactoryImpl;
 import org.apache.myfaces.trinidadinternal.agent.TrinidadAgentImpl;
 import org.apache.myfaces.trinidadinternal.application.InternalViewHandlingStrategy;
@@ -715,14 +715,26 @@ public class RequestContextImpl extends RequestContext
   {
     if (_agent == null)
     {
-      Agent agent = _agentFactory.createAgent(__getFacesContext());
-      // =-=AEW In theory, this does not need to be a TrinidadAgent
-      // That should only be necessary once we get to rendering...
-      // However, we're gonna have to turn it into one when it comes
-      // to rendering time, and our RenderingContext isn't doing this
-      // today
-      TrinidadAgentImpl fAgent = new TrinidadAgentImpl(__getFacesContext(),agent);
-      _agent = fAgent;
+      FacesContext context = __getFacesContext();
+      AgentCache agentCache = (context != null)
+                                ? AgentCache.getInstance(this, context.getExternalContext())
+                                : null;
+
+      if (agentCache != null)
+      {
+        _agent = agentCache.getAgent(context, _agentFactory);
+      }
+      else
+      {
+        Agent agent = _agentFactory.createAgent(context);
+        // =-=AEW In theory, this does not need to be a TrinidadAgent
+        // That should only be necessary once we get to rendering...
+        // However, we're gonna have to turn it into one when it comes
+        // to rendering time, and our RenderingContext isn't doing this
+        // today
+        TrinidadAgentImpl fAgent = new TrinidadAgentImpl(context, agent);
+        _agent = fAgent;
+      }
     }
 
     return _agent;
@@ -1067,7 +1079,7 @@ public class RequestContextImpl extends RequestContext
 
 
   //todo: get factory from configuration (else implementations have to provide their own RequestContext)
-  static private final AgentFactory _agentFactory = new AgentFactoryImpl();
+  static private final AgentFactoryImpl _agentFactory = new AgentFactoryImpl();
 
   // static private final Object _GLOBAL_TRIGGER = new Object();
   static private final int    _DEFAULT_PAGE_FLOW_SCOPE_LIFETIME = 15;
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.io;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.apache.myfaces.trinidad.logging.TrinidadLogger;
+
+/**
+ * Unsynchronized Writer that collects the many small writes made by the
+ * response writers and passes them to the underlying Writer in large
+ * chunks, so that the container's character encoder runs over whole
+ * blocks of markup instead of individual element and attribute names.
+ * <p>
+ * Buffered content is only passed on when the buffer fills, or when the
+ * Writer is flushed or closed; this Writer should therefore only be used
+ * when all of the page content is written through it.
+ */
+public final class BufferedCharWriter extends Writer
+{
+  /**
+   * Creates a BufferedCharWriter.
+   * @param out the Writer to pass the buffered content to
+   */
+  public BufferedCharWriter(Writer out)
+  {
+    _out = out;
+    _buffer = new char[_BUFFER_SIZE];
+  }
+
+  /**
+   * Returns a buffered Writer for <code>writer</code>.  In-memory Writers
+   * are returned unchanged, as they gain nothing from buffering and their
+   * callers may read them without flushing.
+   */
+  static public Writer getBufferedWriter(Writer writer)
+  {
+    if ((writer instanceof StringWriter) || (writer instanceof CharArrayWriter))
+      return writer;
+
+    return new BufferedCharWriter(writer);
+  }
+
+  /**
+   * Returns a Writer for a response writer cloned onto <code>writer</code>.
+   * If <code>current</code> is buffered, its content is first passed on
+   * (so that output written through the clone stays in order) and the
+   * new Writer is buffered as well; otherwise <code>writer</code> is
+   * returned unchanged.
+   */
+  static Writer cloneWriter(Writer current, Writer writer)
+  {
+    if (!(current instanceof BufferedCharWriter))
+      return writer;
+
+    try
+    {
+      ((BufferedCharWriter) current).flushBuffer();
+    }
+    catch (IOException ioe)
+    {
+      _LOG.warning(ioe);
+    }
+
+    return getBufferedWriter(writer);
+  }
+
+  @Override
+  public void write(int c) throws IOException
+  {
+    if (_count == _buffer.length)
+      flushBuffer();
+
+    _buffer[_count++] = (char) c;
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException
+  {
+    if (len > _buffer.length - _count)
+    {
+      flushBuffer();
+
+      // Large blocks gain nothing from being copied
+      if (len >= _buffer.length)
+      {
+        _out.write(cbuf, off, len);
+        return;
+      }
+    }
+
+    System.arraycopy(cbuf, off, _buffer, _count, len);
+    _count += len;
+  }
+
+  @Override
+  public void write(String str) throws IOException
+  {
+    write(str, 0, str.length());
+  }
+
+  @Override
+  public void write(String str, int off, int len) throws IOException
+  {
+    if (len > _buffer.length - _count)
+    {
+      flushBuffer();
+
+      if (len >= _buffer.length)
+      {
+        _out.write(str, off, len);
+        return;
+      }
+    }
+
+    str.getChars(off, off + len, _buffer, _count);
+    _count += len;
+  }
+
+  /**
+   * Passes any buffered content to the underlying Writer without
+   * flushing it.
+   */
+  public void flushBuffer() throws IOException
+  {
+    if (_count > 0)
+    {
+      _out.write(_buffer, 0, _count);
+      _count = 0;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException
+  {
+    flushBuffer();
+    _out.flush();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    flushBuffer();
+    _out.close();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "BufferedCharWriter[" + _out + "]";
+  }
+
+  private final Writer _out;
+  private final char[] _buffer;
+  private int          _count;
+
+  static private final int _BUFFER_SIZE = 8192;
+
+  static private final TrinidadLogger _LOG =
+    TrinidadLogger.createTrinidadLogger(BufferedCharWriter.class);
+}
@@ -76,6 +76,10 @@ public class HTMLEscapes
   /**
    * Write char array text.  Note that this code is duplicated below
    * for Strings - change both places if you make any changes!!!
+   * <p>
+   * Runs of characters that don't need escaping are written through from
+   * the text; only escaped characters and short runs between them are
+   * collected in the buffer.
    */
   static private void _writeText(
     final Writer      out,
@@ -89,73 +93,51 @@ public class HTMLEscapes
   {
     int buffIndex = 0;
 
+    // start of the current run of characters that don't need escaping
+    int runStart = start;
+
     final int end = start + length;
 
     for (int i = start; i < end; i++)
     {
       final char ch = text[i];
-      
+
+      if (ch < 0xA0)
+      {
+        // US7ASCII text at "?" and above never needs to be escaped, nor do the
+        // characters below it without an entity, except carriage returns and line feeds
+        if ((ch >= 0x3f) || ((ch > 0xD) && (entities[ch] == null)))
+          continue;
+
+        // special case handling of & in attributes to support macros in future versions
+        // of HTML
+        if (ch == '&' && !isBodyText && (i + 1 < end) && (text[i + 1] == '{'))
+          continue;
+      }
+
+      buffIndex = _addRun(out, buff, buffIndex, text, runStart, i);
+
       if (ch < 0xA0)
       {
-        // text is in the US7ASCII range        
-        if (ch >= 0x3f)
+        String entity = entities[ch];
+
+        if (entity != null)
         {
-          // US7ASCII text at "?" and above never needs to be escaped
-          buffIndex = _addToBuffer(out, buff, buffIndex, ch);
+          buffIndex = _addToBuffer(out, buff, buffIndex, entity);
         }
         else
         {
-          // speed up handling of common characters like the space character by splitting the
-          // range with possible entities into two parts--the high part where a null entity means
-          // write the chacter through straight and the low part where a null entity means that
-          // we have a line feed or carriage return, which require special handling
-          if (ch > 0xD)
-          {
-            // high part of entities. Null entry means write ch through to buffer
-            String entity = entities[ch];
-            
-            if (entity == null)
-            {
-              buffIndex = _addToBuffer(out, buff, buffIndex, ch);
-            }
-            else
-            {
-              // special case handling of & in attributes to support macros in future versions
-              // of HTML
-              if (ch == '&' && !isBodyText && (i + 1 < length) && (text[i + 1] == '{'))
-                buffIndex = _addToBuffer(out, buff, buffIndex, ch);
-              else
-              {
-                // not weird & attribute case, so write the entity
-                buffIndex = _addToBuffer(out, buff, buffIndex, entity);
-              }
-            }
-          }
-          else
-          {            
-            // low part of entities. Null entry means we have a carriage return or line feed
-            String entity = entities[ch];
-            
-            if (entity != null)
-            {
-              buffIndex = _addToBuffer(out, buff, buffIndex, entity);
-            }
-            else
-            {
-              buffIndex = _flushBuffer(out, buff, buffIndex);
-              // handle carriage return/line feed
-              
-              // write out a newline
-              _println(out);
-              
-              // collapse combinations of carriage return/line feed or line feed/carriage return
-              // together
-              char checkChar = (char)((ch == 0xD) ? 0xA : 0xD);
-  
-              if ((i + 1 < length) && (text[i + 1] == checkChar))
-                i++;
-            }            
-          }
+          // handle carriage return/line feed
+
+          // write out a newline
+          buffIndex = _addToBuffer(out, buff, buffIndex, '\n');
+
+          // collapse combinations of carriage return/line feed or line feed/carriage return
+          // together
+          char checkChar = (char)((ch == 0xD) ? 0xA : 0xD);
+
+          if ((i + 1 < end) && (text[i + 1] == checkChar))
+            i++;
         }
       }
       else if (ch <= 0xff)
@@ -172,7 +154,7 @@ public class HTMLEscapes
         // If we don't do this, then surrogate characters will not display correctly . E.g., if we encoded each
         // character separately we might have '&#55360;&#56320;', and Firefox can't recognize these 2 decimal values as 
         // one supplementary character. Instead we need to use a single supplementary decimal value &#131072;.
-        int surrogateCodePoint = Character.codePointAt(text, i);
+        int surrogateCodePoint = Character.codePointAt(text, i, end);
         
         buffIndex =
             _writeDecRef(out, buff, buffIndex, surrogateCodePoint);
@@ -207,8 +189,12 @@ public class HTMLEscapes
           buffIndex = _writeDecRef(out, buff, buffIndex, ch);         
         }
       }
+
+      runStart = i + 1;
     }
 
+    buffIndex = _addRun(out, buff, buffIndex, text, runStart, end);
+
     // flush the buffer, since the caller doesn't try to maintain the buffer index betweeen calls
     _flushBuffer(out, buff, buffIndex);
   }
@@ -227,6 +213,9 @@ public class HTMLEscapes
   {
     int buffIndex = 0;
 
+    // start of the current run of characters that don't need escaping
+    int runStart = 0;
+
     final int length = text.length();
 
     for (int i = 0; i < length; i++)
@@ -235,66 +224,40 @@ public class HTMLEscapes
 
       if (ch < 0xA0)
       {
-        // text is in the US7ASCII range        
-        if (ch >= 0x3f)
+        // US7ASCII text at "?" and above never needs to be escaped, nor do the
+        // characters below it without an entity, except carriage returns and line feeds
+        if ((ch >= 0x3f) || ((ch > 0xD) && (entities[ch] == null)))
+          continue;
+
+        // special case handling of & in attributes to support macros in future versions
+        // of HTML
+        if (ch == '&' && !isBodyText && (i + 1 < length) && (text.charAt(i + 1) == '{'))
+          continue;
+      }
+
+      buffIndex = _addRun(out, buff, buffIndex, text, runStart, i);
+
+      if (ch < 0xA0)
+      {
+        String entity = entities[ch];
+
+        if (entity != null)
         {
-          // US7ASCII text at "?" and above never needs to be escaped
-          buffIndex = _addToBuffer(out, buff, buffIndex, ch);
+          buffIndex = _addToBuffer(out, buff, buffIndex, entity);
         }
         else
         {
-          // speed up handling of common characters like the space character by splitting the
-          // range with possible entities into two parts--the high part where a null entity means
-          // write the character through straight and the low part where a null entity means that
-          // we have a line feed or carriage return, which require special handling
-          if (ch > 0xD)
-          {
-            // high part of entities. Null entry means write ch through to buffer
-            String entity = entities[ch];
-            
-            if (entity == null)
-            {
-              buffIndex = _addToBuffer(out, buff, buffIndex, ch);
-            }
-            else
-            {
-              // special case handling of & in attributes to support macros in future versions
-              // of HTML
-              if (ch == '&' && !isBodyText && (i + 1 < length) && (text.charAt(i + 1) == '{'))
-                buffIndex = _addToBuffer(out, buff, buffIndex, ch);
-              else
-              {
-                // not weird & attribute case, so write the entity
-                buffIndex = _addToBuffer(out, buff, buffIndex, entity);
-              }
-            }
-          }
-          else
-          {            
-            // low part of entities. Null entry means we have a carriage return or line feed
-            String entity = entities[ch];
-            
-            if (entity != null)
-            {
-              buffIndex = _addToBuffer(out, buff, buffIndex, entity);
-            }
-            else
-            {
-              buffIndex = _flushBuffer(out, buff, buffIndex);
-              
-              // handle carriage return/line feed
-              
-              // write out a newline
-              _println(out);
-              
-              // collapse combinations of carriage return/line feed or line feed/carriage return
-              // together
-              char checkChar = (char)((ch == 0xD) ? 0xA : 0xD);
-  
-              if ((i + 1 < length) && (text.charAt(i + 1) == checkChar))
-                i++;
-            }            
-          }
+          // handle carriage return/line feed
+
+          // write out a newline
+          buffIndex = _addToBuffer(out, buff, buffIndex, '\n');
+
+          // collapse combinations of carriage return/line feed or line feed/carriage return
+          // together
+          char checkChar = (char)((ch == 0xD) ? 0xA : 0xD);
+
+          if ((i + 1 < length) && (text.charAt(i + 1) == checkChar))
+            i++;
         }
       }
       else if (ch <= 0xff)
@@ -346,8 +309,12 @@ public class HTMLEscapes
           buffIndex = _writeDecRef(out, buff, buffIndex, ch);         
         }
       }
+
+      runStart = i + 1;
     }
 
+    buffIndex = _addRun(out, buff, buffIndex, text, runStart, length);
+
     // flush the buffer, since the caller doesn't try to maintain the buffer index betweeen calls
     _flushBuffer(out, buff, buffIndex);
   }
@@ -508,6 +475,74 @@ public class HTMLEscapes
     return outSize;
   }
 
+  /**
+   * Adds a run of characters that don't need escaping, returning the new
+   * buffer index.  Short runs are copied to the buffer, to avoid lots of small
+   * writes when most of the characters are escaped, while longer runs are
+   * written straight through.
+   */
+  private static int _addRun(
+    Writer out,
+    char[] buffer,
+    int    bufferIndex,
+    char[] text,
+    int    runStart,
+    int    runEnd
+    ) throws IOException
+  {
+    int runLength = runEnd - runStart;
+
+    if (runLength == 0)
+      return bufferIndex;
+
+    if ((runLength <= _MAX_COPIED_RUN) && (runLength <= buffer.length))
+    {
+      if (bufferIndex + runLength > buffer.length)
+        bufferIndex = _flushBuffer(out, buffer, bufferIndex);
+
+      System.arraycopy(text, runStart, buffer, bufferIndex, runLength);
+      return bufferIndex + runLength;
+    }
+
+    _flushBuffer(out, buffer, bufferIndex);
+    out.write(text, runStart, runLength);
+
+    return 0;
+  }
+
+  /**
+   * Adds a run of characters that don't need escaping, returning the new
+   * buffer index.  String version of the above.
+   */
+  private static int _addRun(
+    Writer out,
+    char[] buffer,
+    int    bufferIndex,
+    String text,
+    int    runStart,
+    int    runEnd
+    ) throws IOException
+  {
+    int runLength = runEnd - runStart;
+
+    if (runLength == 0)
+      return bufferIndex;
+
+    if ((runLength <= _MAX_COPIED_RUN) && (runLength <= buffer.length))
+    {
+      if (bufferIndex + runLength > buffer.length)
+        bufferIndex = _flushBuffer(out, buffer, bufferIndex);
+
+      text.getChars(runStart, runEnd, buffer, bufferIndex);
+      return bufferIndex + runLength;
+    }
+
+    _flushBuffer(out, buffer, bufferIndex);
+    out.write(text, runStart, runLength);
+
+    return 0;
+  }
+
   /**
    * Flush the contents of the buffer to the output stream
    * and return the reset buffer index
@@ -526,16 +561,15 @@ public class HTMLEscapes
     return 0;
   }
 
-  private static void _println(Writer out) throws IOException
-  {
-    out.write('\n');
-  }
-  
 
   private HTMLEscapes()
   {
   }
 
+  // Runs of unescaped characters up to this length are copied to the buffer
+  // rather than written straight through
+  private static final int _MAX_COPIED_RUN = 32;
+
   // array of entities that need to be output in attributes for code points 0 - 62
   private static final String[] _ATTRIBUTE_ENTITIES;
 
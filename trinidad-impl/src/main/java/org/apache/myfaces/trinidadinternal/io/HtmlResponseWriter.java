@@ -422,7 +422,8 @@ public class HtmlResponseWriter extends ResponseWriter
   {
     try
     {
-      return new HtmlResponseWriter(writer, getCharacterEncoding());
+      return new HtmlResponseWriter(BufferedCharWriter.cloneWriter(_out, writer),
+                                    getCharacterEncoding());
     }
     catch (UnsupportedEncodingException e)
     {
@@ -65,6 +65,7 @@ public class XMLEscapes
   /**
    * Writes out char[] text encoded with the specified entities.  Passing in the entities allows
    * us to cover the differences between attribute and body text encoding in a single definition.
+   * Runs of characters that don't need escaping are written with a single call.
    * 
    * This code is duplicated below for the String version
    * @param text
@@ -82,28 +83,26 @@ public class XMLEscapes
   {
     final int end = start + length;
 
+    // start of the current run of characters that don't need escaping
+    int runStart = start;
+
     for (int i = start; i < end; i++)
     {
       char ch = text[i];
       
-      // check for US7ASCII first, as that is the most common
+      // US7ASCII characters at ? and above never need to be escaped, and
+      // the characters below only if they have an entity
+      if ((ch < 0x3f) ? (entities[ch] == null) : (ch <= 0x7f))
+        continue;
+
+      if (i > runStart)
+        out.write(text, runStart, i - runStart);
+
+      runStart = i + 1;
+
       if (ch <= 0x7f)
       {
-        if (ch >= 0x3f)
-        {
-          // US7ASCII characters at ? and above never need to be escaped
-          out.write(ch);          
-        }
-        else
-        {
-          String entity = entities[ch];
-          
-          // if we have an entity, use it., otherwise the character needs no escaping
-          if (entity != null)
-            out.write(entity);
-          else
-            out.write(ch);
-        }
+        out.write(entities[ch]);
       }
       else
       {
@@ -112,11 +111,15 @@ public class XMLEscapes
           __writeDecRef(out, ch);
       }
     }
+
+    if (end > runStart)
+      out.write(text, runStart, end - runStart);
   }
 
   /**
    * Writes out String text encoded with the specified entities.  Passing in the entities allows
    * us to cover the differences between attribute and body text encoding in a single definition.
+   * Runs of characters that don't need escaping are written with a single call.
    * 
    * This code is duplicated above for the char[] version
    * @param text
@@ -130,28 +133,26 @@ public class XMLEscapes
   {
     final int end = text.length();
 
+    // start of the current run of characters that don't need escaping
+    int runStart = 0;
+
     for (int i = 0; i < end; i++)
     {
       char ch = text.charAt(i);
       
-      // check for US7ASCII first, as that is the most common
+      // US7ASCII characters at ? and above never need to be escaped, and
+      // the characters below only if they have an entity
+      if ((ch < 0x3f) ? (entities[ch] == null) : (ch <= 0x7f))
+        continue;
+
+      if (i > runStart)
+        out.write(text, runStart, i - runStart);
+
+      runStart = i + 1;
+
       if (ch <= 0x7f)
       {
-        if (ch >= 0x3f)
-        {
-          // US7ASCII characters at ? and above never need to be escaped
-          out.write(ch);          
-        }
-        else
-        {
-          String entity = entities[ch];
-          
-          // if we have an entity, use it., otherwise the character needs no escaping
-          if (entity != null)
-            out.write(entity);
-          else
-            out.write(ch);
-        }
+        out.write(entities[ch]);
       }
       else
       {
@@ -160,6 +161,9 @@ public class XMLEscapes
           __writeDecRef(out, ch);
       }
     }
+
+    if (end > runStart)
+      out.write(text, runStart, end - runStart);
   }
 
   /**
@@ -327,7 +327,8 @@ public class XhtmlResponseWriter extends ResponseWriter
   {
     try
     {
-      return new XhtmlResponseWriter(writer, getContentType(),
+      return new XhtmlResponseWriter(BufferedCharWriter.cloneWriter(_out, writer),
+                                     getContentType(),
                                      getCharacterEncoding());
     }
     catch (UnsupportedEncodingException e)
@@ -63,6 +63,7 @@ import org.apache.myfaces.trinidadinternal.application.StateManagerImpl;
 import org.apache.myfaces.trinidadinternal.config.dispatch.DispatchResponseConfiguratorImpl;
 import org.apache.myfaces.trinidadinternal.context.DialogServiceImpl;
 import org.apache.myfaces.trinidadinternal.context.TrinidadPhaseListener;
+import org.apache.myfaces.trinidadinternal.io.BufferedCharWriter;
 import org.apache.myfaces.trinidadinternal.io.DebugHtmlResponseWriter;
 import org.apache.myfaces.trinidadinternal.io.DebugResponseWriter;
 import org.apache.myfaces.trinidadinternal.io.HtmlResponseWriter;
@@ -630,6 +631,9 @@ public class CoreRenderKit extends RenderKitDecorator
         ? null : CaboHttpUtils.decodeQValueString(contentTypeList);
       String contentType = _chooseContentType(acceptedTypes);
 
+      if (_isBufferResponseWriter(fContext))
+        writer = BufferedCharWriter.getBufferedWriter(writer);
+
       if (_XHTML_MIME_TYPE.equals(contentType) ||
           _APPLICATION_XML_MIME_TYPE.equals(contentType) ||
           _XML_MIME_TYPE.equals(contentType))
@@ -659,6 +663,13 @@ public class CoreRenderKit extends RenderKitDecorator
   }
 
 
+  static private boolean _isBufferResponseWriter(FacesContext context)
+  {
+    String buffer = context.getExternalContext().getInitParameter(
+       _BUFFER_RESPONSE_WRITER_INIT_PARAM);
+    return "true".equalsIgnoreCase(buffer);
+  }
+
   static private ResponseWriter _addDebugResponseWriters(
      ResponseWriter responseWriter)
   {
@@ -862,6 +873,9 @@ public class CoreRenderKit extends RenderKitDecorator
   static private final String _USE_DIALOG_POPUP_INIT_PARAM =
     "org.apache.myfaces.trinidad.ENABLE_LIGHTWEIGHT_DIALOGS";
 
+  static private final String _BUFFER_RESPONSE_WRITER_INIT_PARAM =
+    "org.apache.myfaces.trinidad.BUFFER_RESPONSE_WRITER";
+
   static private final TrinidadLogger _LOG =
     TrinidadLogger.createTrinidadLogger(CoreRenderKit.class);
 }
@@ -329,6 +329,64 @@ public class CoreRenderingContext extends RenderingContext
     if (styleClass == null) return null;
 
     styleClass = getSkinResourceMappedKey(styleClass);
+
+    SkinLookupCache lookups = _skinLookups;
+
+    if (lookups != null)
+    {
+      String cachedStyleClass = lookups.getStyleClass(styleClass);
+
+      if (cachedStyleClass != null)
+        return cachedStyleClass;
+
+      String resolvedStyleClass = _resolveStyleClass(styleClass);
+      lookups.putStyleClass(styleClass, resolvedStyleClass);
+
+      return resolvedStyleClass;
+    }
+
+    return _resolveStyleClass(styleClass);
+  }
+
+  @Override
+  public Icon getIcon(String iconName)
+  {
+    iconName = getSkinResourceMappedKey(iconName);
+    if (iconName == null)
+      return null;
+
+    SkinLookupCache lookups = _skinLookups;
+
+    if (lookups != null)
+    {
+      Object cachedIcon = lookups.getIcon(iconName);
+
+      if (cachedIcon != null)
+        return (cachedIcon == SkinLookupCache.NULL_ICON) ? null : (Icon)cachedIcon;
+
+      Icon icon = _resolveIcon(iconName);
+      lookups.putIcon(iconName, icon);
+
+      return icon;
+    }
+
+    return _resolveIcon(iconName);
+  }
+
+  /**
+   * Store a map that provides abbreviations of styles.
+   */
+  public void setStyleMap(Map<String, String> mapping)
+  {
+    _styleMap = mapping;
+
+    // Share the resolved style classes and icons with the other requests
+    // using the same styles
+    _skinLookups = SkinLookupCache.getInstance(this, mapping);
+  }
+
+  private String _resolveStyleClass(String styleClass)
+  {
     // Most likely the _styleMap is a shortened style class map. In the case of portlets,
     // it is a full name-> portlet style class map.
     String shortenedStyle = null;
@@ -355,13 +413,8 @@ public class CoreRenderingContext extends RenderingContext
     return styleClass;
   }
 
-  @Override
-  public Icon getIcon(String iconName)
+  private Icon _resolveIcon(String iconName)
   {
-    iconName = getSkinResourceMappedKey(iconName);
-    if (iconName == null)
-      return null;
-
     Skin skin = getSkin();
 
     // If we're in right-to-left, and the code asking us hasn't
@@ -394,14 +447,6 @@ public class CoreRenderingContext extends RenderingContext
     }
   }
 
-  /**
-   * Store a map that provides abbreviations of styles.
-   */
-  public void setStyleMap(Map<String, String> mapping)
-  {
-    _styleMap = mapping;
-  }
-
 
   /**
    * Store a Map that maps a skin's resource keys from one key to another.
@@ -835,6 +880,7 @@ public class CoreRenderingContext extends RenderingContext
   private FormData                     _formData;
   private TrinidadAgent                _agent;
   private Map<String, String>          _styleMap;
+  private SkinLookupCache              _skinLookups;
   private Map<String, String>          _skinResourceKeyMap;
   private String                       _outputMode;
   private RequestContext.Accessibility _accessibilityMode;
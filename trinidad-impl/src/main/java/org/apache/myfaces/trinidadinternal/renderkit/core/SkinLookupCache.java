@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.renderkit.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.myfaces.trinidad.context.RequestContext;
+import org.apache.myfaces.trinidad.skin.Icon;
+import org.apache.myfaces.trinidad.skin.Skin;
+import org.apache.myfaces.trinidadinternal.skin.RequestSkinWrapper;
+import org.apache.myfaces.trinidadinternal.style.StyleContext;
+
+
+/**
+ * Application-scoped cache of the style classes and icons resolved by
+ * CoreRenderingContext.getStyleClass() and getIcon().  A cache is shared by
+ * all requests rendering with the same skin, style sheet document, reading
+ * direction and output mode, and is replaced when the style class map of the
+ * skin changes.  The caches are only read and written with lock-free
+ * operations.
+ * <p>
+ * Nothing is cached while skins are checked for modifications, since the
+ * style sheet documents may change at any time.
+ */
+final class SkinLookupCache
+{
+  /**
+   * Returns the cache for the current request, or null if the lookups of the
+   * request can't be cached.
+   *
+   * @param rc        the current rendering context
+   * @param styleMap  the style class map of the request, or null if
+   *                  style classes aren't compressed
+   */
+  static SkinLookupCache getInstance(
+    CoreRenderingContext rc,
+    Map<String, String>  styleMap)
+  {
+    Skin skin = rc.getSkin();
+
+    // the icons of other skins aren't kept in the style provider's shared
+    // icon maps
+    if (!(skin instanceof RequestSkinWrapper))
+      return null;
+
+    StyleContext styleContext = rc.getStyleContext();
+
+    if (styleContext.checkStylesModified() || styleContext.isDirty())
+      return null;
+
+    String documentId = skin.getStyleSheetDocumentId(rc);
+
+    if (documentId == null)
+      return null;
+
+    return getInstance(skin.getId(), documentId, rc.isRightToLeft(), rc.getOutputMode(),
+                       styleMap);
+  }
+
+  /**
+   * Returns the cache for a skin's style sheet document.
+   *
+   * @param skinId      the id of the skin
+   * @param documentId  the id of the skin's style sheet document, which changes
+   *                    whenever the document is regenerated
+   * @param rightToLeft true if the reading direction is right-to-left
+   * @param outputMode  the output mode
+   * @param styleMap    the style class map of the document, or null if
+   *                    style classes aren't compressed
+   */
+  @SuppressWarnings("unchecked")
+  static SkinLookupCache getInstance(
+    String              skinId,
+    String              documentId,
+    boolean             rightToLeft,
+    String              outputMode,
+    Map<String, String> styleMap)
+  {
+    StringBuilder builder = new StringBuilder(64);
+    builder.append(skinId).append('\n');
+    builder.append(documentId).append('\n');
+    builder.append(rightToLeft ? "rtl" : "ltr").append('\n');
+    builder.append(outputMode).append('\n');
+    builder.append(styleMap != null);
+    String key = builder.toString();
+
+    ConcurrentMap<String, Object> sharedAppMap =
+      RequestContext.getCurrentInstance().getApplicationScopedConcurrentMap();
+
+    ConcurrentMap<String, SkinLookupCache> caches =
+      (ConcurrentMap<String, SkinLookupCache>)sharedAppMap.get(_CACHES_KEY);
+
+    if (caches == null)
+    {
+      caches = new ConcurrentHashMap<String, SkinLookupCache>();
+
+      ConcurrentMap<String, SkinLookupCache> oldCaches =
+        (ConcurrentMap<String, SkinLookupCache>)sharedAppMap.putIfAbsent(_CACHES_KEY, caches);
+
+      if (oldCaches != null)
+        caches = oldCaches;
+    }
+
+    SkinLookupCache cache = caches.get(key);
+
+    if ((cache == null) || (cache._styleMap != styleMap))
+    {
+      SkinLookupCache newCache = new SkinLookupCache(styleMap);
+
+      if (cache == null)
+      {
+        cache = caches.putIfAbsent(key, newCache);
+
+        if (cache == null)
+          cache = newCache;
+      }
+      else
+      {
+        // the skin's styles were regenerated
+        caches.replace(key, cache, newCache);
+        cache = newCache;
+      }
+    }
+
+    return cache;
+  }
+
+  private SkinLookupCache(Map<String, String> styleMap)
+  {
+    _styleMap = styleMap;
+    _styleClasses = new ConcurrentHashMap<String, String>();
+    _icons = new ConcurrentHashMap<String, Object>();
+  }
+
+  /**
+   * Returns the cached style class for a mapped style class name, or null
+   * if it isn't cached.
+   */
+  String getStyleClass(String styleClass)
+  {
+    return _styleClasses.get(styleClass);
+  }
+
+  /**
+   * Caches the resolved style class of a mapped style class name.  Style
+   * classes resolving to null aren't cached, as these are rare.
+   */
+  void putStyleClass(String styleClass, String resolvedStyleClass)
+  {
+    if ((resolvedStyleClass != null) && (_styleClasses.size() < _MAX_SIZE))
+      _styleClasses.put(styleClass, resolvedStyleClass);
+  }
+
+  /**
+   * Returns the cached icon for a mapped icon name, <code>NULL_ICON</code> if the
+   * icon is known not to exist, or null if it isn't cached.
+   */
+  Object getIcon(String iconName)
+  {
+    return _icons.get(iconName);
+  }
+
+  /**
+   * Caches the resolved icon of a mapped icon name.
+   */
+  void putIcon(String iconName, Icon icon)
+  {
+    if (_icons.size() < _MAX_SIZE)
+      _icons.put(iconName, (icon == null) ? NULL_ICON : icon);
+  }
+
+  /**
+   * Stands for icons that don't exist.
+   */
+  static final Object NULL_ICON = new Object();
+
+  private final Map<String, String>       _styleMap;
+  private final ConcurrentMap<String, String> _styleClasses;
+  private final ConcurrentMap<String, Object> _icons;
+
+  // Renderers may look up style classes named by the page, so we stop
+  // caching at some point
+  static private final int _MAX_SIZE = 4096;
+
+  static private final String _CACHES_KEY = SkinLookupCache.class.getName();
+}
@@ -268,8 +268,11 @@ public class PPRResponseWriter extends ScriptBufferingResponseWriter
     if (_isInsideTarget())
       super.endElement(name);
 
+    // Don't flush here: the update and the target's markup share one
+    // underlying writer, so their order is kept without flushing, and
+    // flushing after every element sends the response in tiny pieces.
+    // The writer is still flushed when each partial target ends.
     _popPartialTarget(name);
-    super.flush();
   }
 
   public void writeAttribute(String     name,
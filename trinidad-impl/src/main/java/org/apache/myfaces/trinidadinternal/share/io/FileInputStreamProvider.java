@@ -25,6 +25,7 @@ import java.io.InputStream;
 import java.io.IOException;
 
 import org.apache.myfaces.trinidad.share.io.InputStreamProvider;
+import org.apache.myfaces.trinidad.util.FileWatcher;
 
 
 /**
@@ -50,6 +51,7 @@ public class FileInputStreamProvider implements InputStreamProvider
   {
     // Yes, there's a race condition here.  No, I don't believe
     // it can be fixed, or that it's important.
+    _watch = FileWatcher.watch(_file);
     _lastModified = _file.lastModified();
     return new BufferedInputStream(new FileInputStream(_file));
   }
@@ -71,6 +73,11 @@ public class FileInputStreamProvider implements InputStreamProvider
    */
   public boolean hasSourceChanged()
   {
+    // Only check the file system once the FileWatcher has seen a change, or now and then
+    FileWatcher.Watch watch = _watch;
+    if ((watch != null) && !watch.hasChanged())
+      return false;
+
     return (_file.lastModified() != _lastModified);
   }
 
@@ -88,4 +95,5 @@ public class FileInputStreamProvider implements InputStreamProvider
   private final File _file;
   private Object     _cached;
   private long       _lastModified = -1;
+  private volatile FileWatcher.Watch _watch;
 }
@@ -28,6 +28,7 @@ import java.net.URL;
 import java.net.URLConnection;
 
 import org.apache.myfaces.trinidad.share.io.InputStreamProvider;
+import org.apache.myfaces.trinidad.util.FileWatcher;
 import org.apache.myfaces.trinidad.util.URLUtils;
 
 
@@ -53,6 +54,7 @@ public class URLInputStreamProvider implements InputStreamProvider
   {
     // Get the inputstream from the connection to avoid duplicate calls
     // to URL.openConnection
+    _watch = FileWatcher.watch(_url);
     _lastModifiedTime = URLUtils.getLastModified(_url);
     URLConnection connection = _url.openConnection();
 
@@ -85,6 +87,11 @@ public class URLInputStreamProvider implements InputStreamProvider
    */
   public boolean hasSourceChanged()
   {
+    // Only check the URL once the FileWatcher has seen a change, or now and then
+    FileWatcher.Watch watch = _watch;
+    if ((watch != null) && !watch.hasChanged())
+      return false;
+
     try
     {
       long currentModifiedTime = URLUtils.getLastModified(_url);
@@ -110,4 +117,5 @@ public class URLInputStreamProvider implements InputStreamProvider
   private final URL  _url;
   private Object     _cached;
   private long _lastModifiedTime = -1;
+  private volatile FileWatcher.Watch _watch;
 }
@@ -227,9 +227,19 @@ public final class AgentAtRuleMatcher
 
     _selectorAgents = selectorAgents;
     _capTouchMatchers = capTouchMatchers;
+    _selectors = selectors.clone();
     _hashCode = _calculateStableHashCode(_selectorAgents, _capTouchMatchers);
   }
 
+  /**
+   * Returns the query selectors that this matcher was created from, so that
+   * an equivalent matcher can be recreated from a skin style sheet snapshot.
+   */
+  String[] __getSelectors()
+  {
+    return _selectors.clone();
+  }
+
   /**
    * Returns a non-null Collection of agent applications that are matched by 
    * this matcher.
@@ -962,6 +972,9 @@ public final class AgentAtRuleMatcher
   private final Map<TrinidadAgent.Application, Set<AgentMatcher>> _selectorAgents;
   private final Set<AgentMatcher> _capTouchMatchers;
 
+  // the query selectors, as passed to the constructor
+  private final String[] _selectors;
+
   // cached hash code
   private final int _hashCode;
   private static final TrinidadLogger _LOG = TrinidadLogger.createTrinidadLogger(AgentAtRuleMatcher.class);
@@ -19,6 +19,7 @@
 package org.apache.myfaces.trinidadinternal.skin;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -101,19 +102,30 @@ class SkinStyleSheetParserUtils
       XMLUtils.setResolver(context, resolver.getResolver(sourceName));
       XMLUtils.setInputStreamProvider(context, provider);
 
-      // PARSE!
-      // create a SkinStyleSheetNode
-      // (contains a namespaceMap and a List of SkinSelectorPropertiesNodes
-      // and additional information like direction, locale, etc.)
-      // (selectorName + a css propertyList))
-      BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
-      SkinCSSParser parser = new SkinCSSParser();
-      // Send over the ParseContext so that we can get the resolver from it in case we encounter 
-      // an @import in the CSS file.
-      SkinCSSDocumentHandler documentHandler = new SkinCSSDocumentHandler(context);
-      parser.parseCSSDocument(reader, documentHandler);
-      List <SkinStyleSheetNode> skinSSNodeList = documentHandler.getSkinStyleSheetNodes();
-      reader.close();
+      List <SkinStyleSheetNode> skinSSNodeList;
+      File snapshotDirectory = SkinStyleSheetSnapshot.getDirectory(context);
+
+      if (snapshotDirectory == null)
+      {
+        skinSSNodeList = _parseSkinStyleSheetNodes(context, stream);
+      }
+      else
+      {
+        // Use the snapshot of the SkinStyleSheetNodes for this style sheet if
+        // we have one, otherwise parse and write the snapshot.
+        byte[] source = SkinStyleSheetSnapshot.readSource(stream);
+        SkinStyleSheetSnapshot snapshot =
+          new SkinStyleSheetSnapshot(snapshotDirectory, provider, source);
+
+        skinSSNodeList = snapshot.load();
+
+        if (skinSSNodeList == null)
+        {
+          skinSSNodeList = _parseSkinStyleSheetNodes(context,
+                                                     new ByteArrayInputStream(source));
+          snapshot.save(skinSSNodeList);
+        }
+      }
 
       // process the SkinStyleSheetNodes to create a StyleSheetEntry object
       StyleSheetEntry styleSheetEntry =
@@ -136,6 +148,30 @@ class SkinStyleSheetParserUtils
     }
   }
 
+  /**
+   * Parses the SkinStyleSheetNodes from a Skin style-sheet.
+   */
+  private static List<SkinStyleSheetNode> _parseSkinStyleSheetNodes(
+    ParseContext context,
+    InputStream  stream) throws IOException
+  {
+    // PARSE!
+    // create a SkinStyleSheetNode
+    // (contains a namespaceMap and a List of SkinSelectorPropertiesNodes
+    // and additional information like direction, locale, etc.)
+    // (selectorName + a css propertyList))
+    BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+    SkinCSSParser parser = new SkinCSSParser();
+    // Send over the ParseContext so that we can get the resolver from it in case we encounter 
+    // an @import in the CSS file.
+    SkinCSSDocumentHandler documentHandler = new SkinCSSDocumentHandler(context);
+    parser.parseCSSDocument(reader, documentHandler);
+    List <SkinStyleSheetNode> skinSSNodeList = documentHandler.getSkinStyleSheetNodes();
+    reader.close();
+
+    return skinSSNodeList;
+  }
+
   /**
    * Trim the leading/ending quotes, if any.
    * We trim only matching quotes, as opposed to trimQuotes which trims any quotes.
@@ -0,0 +1,731 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.skin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.URL;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.faces.context.FacesContext;
+
+import org.apache.myfaces.trinidad.logging.TrinidadLogger;
+import org.apache.myfaces.trinidad.share.io.InputStreamProvider;
+
+import org.apache.myfaces.trinidadinternal.share.io.CachingInputStreamProvider;
+import org.apache.myfaces.trinidadinternal.share.io.FileInputStreamProvider;
+import org.apache.myfaces.trinidadinternal.share.io.URLInputStreamProvider;
+import org.apache.myfaces.trinidadinternal.share.xml.ParseContext;
+import org.apache.myfaces.trinidadinternal.style.StyleContext;
+import org.apache.myfaces.trinidadinternal.style.xml.parse.PropertyNode;
+
+
+/**
+ * Package-private utility class that stores the SkinStyleSheetNodes parsed
+ * from a skin style sheet in a binary snapshot file, so that the style sheet
+ * does not need to be parsed again on subsequent starts.
+ * <p>
+ * Snapshots are keyed by a digest of the style sheet's identifier and
+ * contents.  Each snapshot also records a digest of every style sheet
+ * imported by the style sheet, and is only used if none of these have
+ * changed.  The snapshot is written when the style sheet is first parsed.
+ * Snapshots written by another version of Trinidad, whose parser may have
+ * produced different SkinStyleSheetNodes, are ignored and replaced.
+ * <p>
+ * Snapshots are enabled with the
+ * org.apache.myfaces.trinidad.ENABLE_SKIN_SNAPSHOTS context parameter.
+ */
+final class SkinStyleSheetSnapshot
+{
+  /**
+   * Returns the directory that snapshots should be stored in, or null
+   * if snapshots are not enabled.
+   */
+  public static File getDirectory(StyleContext context)
+  {
+    FacesContext facesContext = FacesContext.getCurrentInstance();
+    if (facesContext == null)
+      return null;
+
+    String enabled =
+      facesContext.getExternalContext().getInitParameter(_ENABLE_SNAPSHOTS_INIT_PARAM);
+
+    if (!"true".equalsIgnoreCase(enabled))
+      return null;
+
+    String generatedFilesPath = context.getGeneratedFilesPath();
+    if (generatedFilesPath == null)
+      return null;
+
+    File directory = new File(generatedFilesPath, _SNAPSHOTS_DIRECTORY);
+    if (!directory.exists())
+      directory.mkdirs();
+
+    return directory;
+  }
+
+  /**
+   * Returns the snapshot directory stored on the ParseContext, if any.
+   */
+  public static File getDirectory(ParseContext context)
+  {
+    return (File)context.getProperty(_SNAPSHOT_NAMESPACE, _DIRECTORY_PROPERTY);
+  }
+
+  /**
+   * Stores the snapshot directory on the ParseContext.
+   */
+  public static void setDirectory(ParseContext context, File directory)
+  {
+    context.setProperty(_SNAPSHOT_NAMESPACE, _DIRECTORY_PROPERTY, directory);
+  }
+
+  /**
+   * Reads the contents of a style sheet.  The contents are buffered, since
+   * they're both digested to find the snapshot and, if there is no usable
+   * snapshot, parsed.
+   */
+  public static byte[] readSource(InputStream in) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+    byte[] buffer = new byte[8192];
+    int count;
+
+    while ((count = in.read(buffer)) >= 0)
+    {
+      out.write(buffer, 0, count);
+    }
+
+    return out.toByteArray();
+  }
+
+  /**
+   * Creates a SkinStyleSheetSnapshot.
+   *
+   * @param directory the directory that holds the snapshots
+   * @param provider the InputStreamProvider for the style sheet
+   * @param source the contents of the style sheet
+   */
+  public SkinStyleSheetSnapshot(
+    File                directory,
+    InputStreamProvider provider,
+    byte[]              source
+    )
+  {
+    MessageDigest digest = _getMessageDigest();
+    digest.update(_getBytes(String.valueOf(provider.getIdentifier())));
+    digest.update((byte)0);
+    digest.update(source);
+
+    _provider = provider;
+    _file = new File(directory, _toHexString(digest.digest()) + _SNAPSHOT_SUFFIX);
+  }
+
+  /**
+   * Returns the SkinStyleSheetNodes stored in the snapshot, or null if there
+   * is no snapshot or if any of the imported style sheets have changed.
+   */
+  public List<SkinStyleSheetNode> load()
+  {
+    if (!_file.exists())
+      return null;
+
+    try
+    {
+      DataInputStream in = new DataInputStream(
+                             new BufferedInputStream(new FileInputStream(_file)));
+
+      try
+      {
+        if (in.readInt() != _VERSION)
+          return null;
+
+        if (!_IMPLEMENTATION_VERSION.equals(_readString(in)))
+          return null;
+
+        List<InputStreamProvider> dependencies = _readDependencies(in);
+        if (dependencies == null)
+          return null;
+
+        List<SkinStyleSheetNode> nodes = _readNodes(in);
+
+        // Register the imported style sheets as dependencies, just as the
+        // parser does, so that modifications to them are still detected
+        if (_provider instanceof CachingInputStreamProvider)
+        {
+          for (InputStreamProvider dependency : dependencies)
+          {
+            ((CachingInputStreamProvider)_provider).addCacheDependency(dependency);
+          }
+        }
+
+        return nodes;
+      }
+      finally
+      {
+        in.close();
+      }
+    }
+    catch (IOException e)
+    {
+      // The snapshot is unreadable, so we'll just parse the style sheet and
+      // write a new one
+      _LOG.fine("Could not read skin style sheet snapshot {0}", _file);
+      _LOG.fine(e);
+    }
+
+    return null;
+  }
+
+  /**
+   * Writes the SkinStyleSheetNodes parsed from the style sheet to the
+   * snapshot.  This must be called after parsing, so that the imported
+   * style sheets have been registered as cache dependencies.
+   */
+  public void save(List<SkinStyleSheetNode> nodes)
+  {
+    Collection<Object> dependencies = _getDependencyIdentifiers();
+
+    // If we can't tell which style sheets were imported, we can't tell
+    // when the snapshot is out of date.
+    if (dependencies == null)
+      return;
+
+    try
+    {
+      // Write to a temporary file first, so that the snapshot is never seen
+      // partially written
+      File tempFile = File.createTempFile("snapshot", ".tmp", _file.getParentFile());
+
+      try
+      {
+        DataOutputStream out = new DataOutputStream(
+                                 new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+        try
+        {
+          out.writeInt(_VERSION);
+          _writeString(out, _IMPLEMENTATION_VERSION);
+          _writeDependencies(out, dependencies);
+          _writeNodes(out, nodes);
+        }
+        finally
+        {
+          out.close();
+        }
+
+        if (!tempFile.renameTo(_file) && !(_file.delete() && tempFile.renameTo(_file)))
+          throw new IOException(_file.getPath());
+      }
+      finally
+      {
+        tempFile.delete();
+      }
+    }
+    catch (IOException e)
+    {
+      _LOG.warning("SKIN_SNAPSHOT_WRITE_FAILED", _file);
+      _LOG.fine(e);
+    }
+  }
+
+  // Returns the identifiers of all style sheets imported by the style
+  // sheet, directly or indirectly, or null if they can't be determined
+  private Collection<Object> _getDependencyIdentifiers()
+  {
+    Set<Object> identifiers = new LinkedHashSet<Object>();
+
+    if (!_collectDependencyIdentifiers(_provider, identifiers))
+      return null;
+
+    return identifiers;
+  }
+
+  private static boolean _collectDependencyIdentifiers(
+    InputStreamProvider provider,
+    Set<Object>         identifiers
+    )
+  {
+    // Only CachingInputStreamProviders know about their imports
+    if (!(provider instanceof CachingInputStreamProvider))
+      return false;
+
+    Iterator<InputStreamProvider> dependencies =
+      ((CachingInputStreamProvider)provider).getCacheDependencies();
+
+    if (dependencies == null)
+      return true;
+
+    while (dependencies.hasNext())
+    {
+      InputStreamProvider dependency = dependencies.next();
+      Object identifier = dependency.getIdentifier();
+
+      // We can only check File and URL-based style sheets for changes
+      if (!(identifier instanceof File) && !(identifier instanceof URL))
+        return false;
+
+      if (identifiers.add(identifier) &&
+          !_collectDependencyIdentifiers(dependency, identifiers))
+        return false;
+    }
+
+    return true;
+  }
+
+  private static void _writeDependencies(
+    DataOutputStream   out,
+    Collection<Object> identifiers
+    ) throws IOException
+  {
+    out.writeInt(identifiers.size());
+
+    for (Object identifier : identifiers)
+    {
+      boolean isFile = (identifier instanceof File);
+      String location = isFile ?
+                          ((File)identifier).getPath() :
+                          ((URL)identifier).toExternalForm();
+
+      out.writeBoolean(isFile);
+      _writeString(out, location);
+      _writeBytes(out, _getDigest(_createProvider(isFile, location)));
+    }
+  }
+
+  // Returns InputStreamProviders for the imported style sheets, or null
+  // if any of them has changed since the snapshot was written
+  private static List<InputStreamProvider> _readDependencies(
+    DataInputStream in
+    ) throws IOException
+  {
+    int count = in.readInt();
+    List<InputStreamProvider> dependencies = new ArrayList<InputStreamProvider>(count);
+
+    for (int i = 0; i < count; i++)
+    {
+      boolean isFile = in.readBoolean();
+      String location = _readString(in);
+      byte[] digest = _readBytes(in);
+
+      InputStreamProvider dependency = _createProvider(isFile, location);
+
+      try
+      {
+        if (!MessageDigest.isEqual(digest, _getDigest(dependency)))
+          return null;
+      }
+      catch (IOException e)
+      {
+        // The imported style sheet is gone
+        return null;
+      }
+
+      dependencies.add(dependency);
+    }
+
+    return dependencies;
+  }
+
+  private static InputStreamProvider _createProvider(
+    boolean isFile,
+    String  location
+    ) throws IOException
+  {
+    if (isFile)
+      return new FileInputStreamProvider(new File(location));
+
+    return new URLInputStreamProvider(new URL(location));
+  }
+
+  private static byte[] _getDigest(InputStreamProvider provider) throws IOException
+  {
+    MessageDigest digest = _getMessageDigest();
+    InputStream in = provider.openInputStream();
+
+    try
+    {
+      // Imported style sheets are only digested, so there's no need to buffer them
+      byte[] buffer = new byte[8192];
+      int count;
+
+      while ((count = in.read(buffer)) >= 0)
+      {
+        digest.update(buffer, 0, count);
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+
+    return digest.digest();
+  }
+
+  private static void _writeNodes(
+    DataOutputStream         out,
+    List<SkinStyleSheetNode> nodes
+    ) throws IOException
+  {
+    out.writeInt(nodes.size());
+
+    for (SkinStyleSheetNode node : nodes)
+    {
+      Map<String, String> namespaceMap = node.getNamespaceMap();
+      _writeCount(out, namespaceMap);
+
+      if (namespaceMap != null)
+      {
+        for (Map.Entry<String, String> entry : namespaceMap.entrySet())
+        {
+          _writeString(out, entry.getKey());
+          _writeString(out, entry.getValue());
+        }
+      }
+
+      out.writeInt(node.getDirection());
+
+      Set<Locale> locales = node.getLocales();
+      _writeCount(out, locales);
+
+      if (locales != null)
+      {
+        for (Locale locale : locales)
+        {
+          _writeString(out, locale.getLanguage());
+          _writeString(out, locale.getCountry());
+          _writeString(out, locale.getVariant());
+        }
+      }
+
+      AgentAtRuleMatcher agentMatcher = node.getAgentMatcher();
+      _writeStrings(out, (agentMatcher == null) ?
+                           null : Arrays.asList(agentMatcher.__getSelectors()));
+
+      int[] platforms = node.getPlatforms();
+      out.writeInt((platforms == null) ? -1 : platforms.length);
+
+      if (platforms != null)
+      {
+        for (int platform : platforms)
+        {
+          out.writeInt(platform);
+        }
+      }
+
+      _writeStrings(out, node.getAcessibilityProperties());
+      out.writeInt(node.getMode());
+      _writeString(out, node.getClientRule());
+
+      List<SkinSelectorPropertiesNode> selectorNodes = node.getSelectorNodeList();
+      _writeCount(out, selectorNodes);
+
+      if (selectorNodes != null)
+      {
+        for (SkinSelectorPropertiesNode selectorNode : selectorNodes)
+        {
+          _writeString(out, selectorNode.getSelectorName());
+
+          List<PropertyNode> propertyNodes = selectorNode.getPropertyNodes();
+          out.writeInt(propertyNodes.size());
+
+          for (PropertyNode propertyNode : propertyNodes)
+          {
+            _writeString(out, propertyNode.getName());
+            _writeString(out, propertyNode.getValue());
+          }
+        }
+      }
+    }
+  }
+
+  private static List<SkinStyleSheetNode> _readNodes(DataInputStream in)
+    throws IOException
+  {
+    int count = in.readInt();
+    List<SkinStyleSheetNode> nodes = new ArrayList<SkinStyleSheetNode>(count);
+
+    for (int i = 0; i < count; i++)
+    {
+      Map<String, String> namespaceMap = null;
+      int namespaceCount = in.readInt();
+
+      if (namespaceCount >= 0)
+      {
+        namespaceMap = new HashMap<String, String>();
+
+        for (int j = 0; j < namespaceCount; j++)
+        {
+          namespaceMap.put(_readString(in), _readString(in));
+        }
+      }
+
+      int direction = in.readInt();
+
+      Set<Locale> locales = null;
+      int localeCount = in.readInt();
+
+      if (localeCount >= 0)
+      {
+        locales = new HashSet<Locale>();
+
+        for (int j = 0; j < localeCount; j++)
+        {
+          locales.add(new Locale(_readString(in), _readString(in), _readString(in)));
+        }
+      }
+
+      List<String> agentSelectors = _readStrings(in);
+      AgentAtRuleMatcher agentMatcher = (agentSelectors == null) ?
+        null : new AgentAtRuleMatcher(agentSelectors.toArray(new String[agentSelectors.size()]));
+
+      int[] platforms = null;
+      int platformCount = in.readInt();
+
+      if (platformCount >= 0)
+      {
+        platforms = new int[platformCount];
+
+        for (int j = 0; j < platformCount; j++)
+        {
+          platforms[j] = in.readInt();
+        }
+      }
+
+      List<String> accProperties = _readStrings(in);
+      int mode = in.readInt();
+      String clientRule = _readString(in);
+
+      SkinStyleSheetNode node =
+        new SkinStyleSheetNode(namespaceMap,
+                               direction,
+                               locales,
+                               agentMatcher,
+                               platforms,
+                               (accProperties == null) ?
+                                 null : new HashSet<String>(accProperties),
+                               mode,
+                               clientRule);
+
+      int selectorCount = in.readInt();
+
+      for (int j = 0; j < selectorCount; j++)
+      {
+        String selectorName = _readString(in);
+        int propertyCount = in.readInt();
+        List<PropertyNode> propertyNodes = new ArrayList<PropertyNode>(propertyCount);
+
+        for (int k = 0; k < propertyCount; k++)
+        {
+          propertyNodes.add(new PropertyNode(_readString(in), _readString(in)));
+        }
+
+        node.add(new SkinSelectorPropertiesNode(selectorName, propertyNodes));
+      }
+
+      nodes.add(node);
+    }
+
+    return nodes;
+  }
+
+  private static void _writeCount(DataOutputStream out, Object collectionOrMap)
+    throws IOException
+  {
+    int count = -1;
+
+    if (collectionOrMap instanceof Collection)
+      count = ((Collection<?>)collectionOrMap).size();
+    else if (collectionOrMap instanceof Map)
+      count = ((Map<?, ?>)collectionOrMap).size();
+
+    out.writeInt(count);
+  }
+
+  private static void _writeStrings(DataOutputStream out, Collection<String> strings)
+    throws IOException
+  {
+    _writeCount(out, strings);
+
+    if (strings != null)
+    {
+      for (String string : strings)
+      {
+        _writeString(out, string);
+      }
+    }
+  }
+
+  private static List<String> _readStrings(DataInputStream in) throws IOException
+  {
+    int count = in.readInt();
+    if (count < 0)
+      return null;
+
+    List<String> strings = new ArrayList<String>(count);
+
+    for (int i = 0; i < count; i++)
+    {
+      strings.add(_readString(in));
+    }
+
+    return strings;
+  }
+
+  // Unlike DataOutputStream.writeUTF(), supports null and strings longer
+  // than 64K (eg. data: urls)
+  private static void _writeString(DataOutputStream out, String string)
+    throws IOException
+  {
+    _writeBytes(out, (string == null) ? null : _getBytes(string));
+  }
+
+  private static String _readString(DataInputStream in) throws IOException
+  {
+    byte[] bytes = _readBytes(in);
+    return (bytes == null) ? null : new String(bytes, _UTF8_ENCODING);
+  }
+
+  private static void _writeBytes(DataOutputStream out, byte[] bytes)
+    throws IOException
+  {
+    if (bytes == null)
+    {
+      out.writeInt(-1);
+    }
+    else
+    {
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static byte[] _readBytes(DataInputStream in) throws IOException
+  {
+    int length = in.readInt();
+    if (length < 0)
+      return null;
+
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+
+    return bytes;
+  }
+
+  private static byte[] _getBytes(String string)
+  {
+    try
+    {
+      return string.getBytes(_UTF8_ENCODING);
+    }
+    catch (IOException e)
+    {
+      // UTF-8 is always supported
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static MessageDigest _getMessageDigest()
+  {
+    try
+    {
+      return MessageDigest.getInstance(_DIGEST_ALGORITHM);
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      // SHA-1 is always supported
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // Returns the version of Trinidad that parses the style sheets
+  private static String _getImplementationVersion()
+  {
+    Package implPkg = SkinStyleSheetSnapshot.class.getPackage();
+
+    if ((implPkg != null) && (implPkg.getImplementationVersion() != null))
+      return implPkg.getImplementationVersion();
+
+    return "unknown-version";
+  }
+
+  private static String _toHexString(byte[] bytes)
+  {
+    StringBuilder builder = new StringBuilder(bytes.length * 2);
+
+    for (byte b : bytes)
+    {
+      builder.append(_HEX_DIGITS[(b >> 4) & 0xf]);
+      builder.append(_HEX_DIGITS[b & 0xf]);
+    }
+
+    return builder.toString();
+  }
+
+  private final InputStreamProvider _provider;
+  private final File                _file;
+
+  // Increment whenever the snapshot format, or the SkinStyleSheetNodes
+  // produced by the parser, change between releases
+  private static final int _VERSION = 1;
+
+  // Snapshots are only used by the version of Trinidad that wrote them
+  private static final String _IMPLEMENTATION_VERSION = _getImplementationVersion();
+
+  private static final String _ENABLE_SNAPSHOTS_INIT_PARAM =
+    "org.apache.myfaces.trinidad.ENABLE_SKIN_SNAPSHOTS";
+
+  private static final String _SNAPSHOTS_DIRECTORY = "adf/skins/snapshots";
+  private static final String _SNAPSHOT_SUFFIX = ".snapshot";
+
+  private static final String _SNAPSHOT_NAMESPACE =
+    "org.apache.myfaces.trinidadinternal.skin.SkinStyleSheetSnapshot";
+  private static final String _DIRECTORY_PROPERTY = "_directory";
+
+  private static final String _DIGEST_ALGORITHM = "SHA-1";
+  private static final String _UTF8_ENCODING = "UTF-8";
+
+  private static final char[] _HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private static final TrinidadLogger _LOG =
+    TrinidadLogger.createTrinidadLogger(SkinStyleSheetSnapshot.class);
+}
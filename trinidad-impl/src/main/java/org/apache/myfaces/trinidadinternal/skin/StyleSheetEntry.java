@@ -83,7 +83,8 @@ class StyleSheetEntry
     // a private static inner class to store the document, icon, and skin properties
     // =-=jmw @todo Should I just create a StyleSheetEntry directly,
     // and make the constructor public? (probably)
-    StyleSheetEntry skinStyleSheet = _createSkinStyleSheet(resolver,
+    StyleSheetEntry skinStyleSheet = _createSkinStyleSheet(context,
+                                                           resolver,
                                                            styleSheetName);
 
 
@@ -232,6 +233,7 @@ class StyleSheetEntry
   // of properties) from a CSS file
   //
   private static StyleSheetEntry _createSkinStyleSheet(
+    StyleContext     context,
     NameResolver     resolver,
     String           styleSheetName
     )
@@ -243,7 +245,8 @@ class StyleSheetEntry
     {
       // this will parse a skin css file which allows icons, properties,
       // and styles.
-        skinStyleSheet =  _createSkinStyleSheetFromCSS(resolver,
+        skinStyleSheet =  _createSkinStyleSheetFromCSS(context,
+                                                       resolver,
                                                        styleSheetName);
     } else {
       String message = _LOG.getMessage("INVALID_STYLESHEET_TYPE", new Object[]{styleSheetName});
@@ -257,6 +260,7 @@ class StyleSheetEntry
 
   // Creates the StyleSheetEntry from a skinning file that ends in .css
   private static StyleSheetEntry _createSkinStyleSheetFromCSS(
+    StyleContext     context,
     NameResolver     resolver,
     String           styleSheetName
     )
@@ -269,6 +273,9 @@ class StyleSheetEntry
         // We simply use a ParseContext as a place to store parameters like
        // inputStreamProviders and nameResolvers that will be reused when parsing
         ParseContextImpl parseContext = new ParseContextImpl();
+        // Snapshots of previously parsed style sheets are used, if enabled
+        SkinStyleSheetSnapshot.setDirectory(parseContext,
+                                            SkinStyleSheetSnapshot.getDirectory(context));
         // if this is a utility that isn't in this file, then I can't return a SkinStyleSheet.
         // I think instead this parseCSSSource should return a new instance of StyleSheetEntry.
         return SkinStyleSheetParserUtils.parseCSSSource(
@@ -463,7 +470,8 @@ class StyleSheetEntry
           // Using a new NameResolver like we do ensures that we don't get a 
           // cached result from the provider 
           // (see SkinStyleSheetParserUtils.parseCSSSource's getCachedResult)
-          StyleSheetEntry skinStyleSheet = _createSkinStyleSheet(resolver,
+          StyleSheetEntry skinStyleSheet = _createSkinStyleSheet(context,
+                                                                 resolver,
                                                                  name);
 
           if (skinStyleSheet != null)
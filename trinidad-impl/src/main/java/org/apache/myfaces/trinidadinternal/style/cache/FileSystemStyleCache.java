@@ -49,6 +49,7 @@ import java.util.concurrent.FutureTask;
 
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.myfaces.trinidad.context.AccessibilityProfile;
 import org.apache.myfaces.trinidad.context.LocaleContext;
@@ -62,6 +63,7 @@ import org.apache.myfaces.trinidad.style.Styles;
 import org.apache.myfaces.trinidad.util.Args;
 import org.apache.myfaces.trinidad.util.ArrayMap;
 import org.apache.myfaces.trinidad.util.CollectionUtils;
+import org.apache.myfaces.trinidad.util.FileWatcher;
 import org.apache.myfaces.trinidadinternal.agent.TrinidadAgent;
 import org.apache.myfaces.trinidadinternal.renderkit.core.CoreRenderingContext;
 import org.apache.myfaces.trinidadinternal.renderkit.core.xhtml.SkinProperties;
@@ -219,7 +221,8 @@ public class FileSystemStyleCache implements StyleProvider
    */
   public Map<String, String> getShortStyleClasses(StyleContext context)
   {
-    return _shortStyleClassMap;
+    Generation generation = _generation;
+    return (generation == null) ? null : generation.shortStyleClassMap;
   }
 
   /**
@@ -246,7 +249,7 @@ public class FileSystemStyleCache implements StyleProvider
   protected boolean hasSourceDocumentChanged(StyleContext context)
   {
     // If we haven't parsed yet, don't bother checking the time stamp
-    if (_document == null)
+    if (_generation == null)
       return true;
     return false;
   }
@@ -350,7 +353,8 @@ public class FileSystemStyleCache implements StyleProvider
   // Returns the current StyleSheetDocument - used by StyleMapImpl only
   StyleSheetDocument __getStyleSheetDocument()
   {
-    return _document;
+    Generation generation = _generation;
+    return (generation == null) ? null : generation.document;
   }
 
   // Gets the entry for the specified StyleContext, creating it if
@@ -364,71 +368,25 @@ public class FileSystemStyleCache implements StyleProvider
     // which was not thread safe and ran the risk of populating our entry cache with
     // corrupt instances.  See JCIP section 5.6, "Builing an efficient, scalable result
     // cache" for more details on this approach.
-    ConcurrentMap<Key, Future<Entry>> cache = null;
-
-    ConcurrentMap<Object, Entry> entryCache = null;
-    StyleSheetDocument document = null;
-    Map<String, String> shortStyleClassMap = null;
-    String[] namespacePrefixes = null;
     boolean isDirty = context.isDirty();
     boolean checkModified  = context.checkStylesModified();
 
-    // Synchronize while set up the _cache, _entryCache, _document, etc...
-    synchronized (this)
-    {
-      // If checking for modified files, then check to see if the XSS or CSS
-      // document has been modified.  If so, we dump our in-memory style cache.
-      if (isDirty || (checkModified && hasSourceDocumentChanged(context)))
-      {
-        _cache = null;
-        _entryCache = null;
-        
-        if (!isDirty || (getClearOnDirty() == ClearOnDirty.ALL))
-        {
-          _document = null;
-          _reusableStyleMap = null;
-          _reusableSelectorMap = null;
-          _shortStyleClassMap = null;
-          _namespacePrefixes  = null;
-        }
-        else
-        {
-          isDirty = false;
-        }
-      }
-
-      // We get references to our two caches (the "normal" cache,
-      // and the cache of shared Entry objects) up front.  We do
-      // this because the actual caches could change at any time.
-      // (The caches get reallocated if the source document is
-      // modified.)  We need to use a consistent set of caches
-      // throughout the entire request, to avoid adding bogus entries
-      // to a new re-allocated cache.
-      if (_cache == null)
-        _cache = new ConcurrentHashMap<Key, Future<Entry>>();
-      
-      if (_entryCache == null)
-        _entryCache = new ConcurrentHashMap<Object, Entry>(19);
-      
-      if (_reusableStyleMap == null)
-        _reusableStyleMap = new ConcurrentHashMap<UnmodifiableStyle, UnmodifiableStyle>();
-      
-      if (_reusableSelectorMap == null)
-        _reusableSelectorMap = new ConcurrentHashMap<String, Selector>();
+    // We get a reference to the current generation (the document, the
+    // "normal" cache and the cache of shared Entry objects) up front.  We do
+    // this because the generation could be replaced at any time (if the
+    // source document is modified).  We need to use a consistent set of
+    // caches throughout the entire request, to avoid adding bogus entries
+    // to a new re-allocated cache.
+    Generation generation = _getGeneration(context, isDirty, checkModified);
 
-      cache = _cache;
-      entryCache = _entryCache;
+    // When only the entries are cleared for a dirty skin, the existing
+    // style sheet files can still be used.
+    if (isDirty && (getClearOnDirty() == ClearOnDirty.ENTRIES))
+      isDirty = false;
 
-      // Get the document up front too.
-      // Returns the StyleSheetDocument, parsing the source file if necessary
-      // this sets up _shortStyleClassMap and _namespacePrefixes
-      document = _getStyleSheetDocument(context);
-      if (document == null)
-        return null;
-
-      shortStyleClassMap = _shortStyleClassMap;
-      namespacePrefixes = _namespacePrefixes;
-    }
+    StyleSheetDocument document = generation.document;
+    ConcurrentMap<Key, Future<Entry>> cache = generation.cache;
+    ConcurrentMap<Object, Entry> entryCache = generation.entryCache;
 
     // Look up the style sheet
     // The Key class is a private static class that is used for hashing. It implements
@@ -453,11 +411,8 @@ public class FileSystemStyleCache implements StyleProvider
     // If we didn't find an entry in the cache, create a new entry
     // This generates the CSS file.
     entry = _createEntrySafely(context,
-                        document,
-                        cache,
+                        generation,
                         key,
-                        shortStyleClassMap,
-                        namespacePrefixes,
                         checkModified,
                         isDirty);
 
@@ -472,6 +427,68 @@ public class FileSystemStyleCache implements StyleProvider
     return entry;
   }
 
+  /**
+   * Returns the current Generation, replacing it first if the skin is dirty
+   * or (when checking for modifications) its source document has changed.
+   * The common case is a single volatile read; the check for modified
+   * source documents is performed by at most one request per
+   * _MODIFIED_CHECK_INTERVAL.
+   */
+  private Generation _getGeneration(
+    StyleContext context,
+    boolean      isDirty,
+    boolean      checkModified
+    )
+  {
+    Generation generation = _generation;
+
+    if ((generation != null) &&
+        !isDirty &&
+        !(checkModified && _isModifiedCheckDue()))
+      return generation;
+
+    synchronized (this)
+    {
+      generation = _generation;
+
+      if (generation != null)
+      {
+        if (isDirty && (getClearOnDirty() == ClearOnDirty.ENTRIES))
+        {
+          // Keep the document, but dump the entry caches
+          generation = new Generation(generation);
+        }
+        else if (isDirty || (checkModified && hasSourceDocumentChanged(context)))
+        {
+          // If the XSS or CSS document has been modified (or the skin is
+          // dirty), we dump our in-memory style cache.
+          generation = null;
+        }
+      }
+
+      if (generation == null)
+        generation = _createGeneration(context);
+
+      _generation = generation;
+    }
+
+    return generation;
+  }
+
+  /**
+   * Returns true if enough time has passed since the last check for
+   * modified source documents.  Only one of the threads calling this
+   * method concurrently will see true.
+   */
+  private boolean _isModifiedCheckDue()
+  {
+    long now = System.currentTimeMillis();
+    long nextCheck = _nextModifiedCheck.get();
+
+    return (now >= nextCheck) &&
+           _nextModifiedCheck.compareAndSet(nextCheck, now + _MODIFIED_CHECK_INTERVAL);
+  }
+
   private Entry _getEntry(
     StyleContext context,
     StyleSheetDocument document,
@@ -666,15 +683,30 @@ public class FileSystemStyleCache implements StyleProvider
       List<String> uris = entry.uris;
       assert uris != null && !uris.isEmpty();
 
+      FileWatcher.Watch[] watches = entry.watches;
+
       List<File> existing = new LinkedList<File>();
       // Make sure the entry's file exists.  If it no longer
       // exists, we remove the entry from the cache
-      for (String name : uris)
+      for (int i = 0; i < uris.size(); i++)
       {
-        File file = new File(_targetPath, name);
-        if (file.exists())
+        File file = new File(_targetPath, uris.get(i));
+        FileWatcher.Watch watch = (watches == null) ? null : watches[i];
+
+        // Files that haven't changed since we started watching them
+        // still exist, so there's no need to check the file system
+        if ((watch != null) && !watch.hasChanged())
+        {
+          existing.add(file);
+        }
+        else if (file.exists())
         {
           existing.add(file);
+
+          // The change was most likely our own writing of the file, so
+          // start watching it again
+          if (watch != null)
+            watches[i] = FileWatcher.watch(file);
         }
         else
         {
@@ -699,11 +731,8 @@ public class FileSystemStyleCache implements StyleProvider
    */
   private Entry _createEntrySafely(
     final StyleContext                 context,
-    final StyleSheetDocument           document,
-    final ConcurrentMap<Key, Future<Entry>> cache,
+    final Generation                   generation,
     final Key                          key,
-    final Map<String, String>          shortStyleClassMap,
-    final String[]                     namespacePrefixes,
     final boolean                      checkModified,
     final boolean                      isDirty)
   {
@@ -714,16 +743,14 @@ public class FileSystemStyleCache implements StyleProvider
       public Entry call()
       {
         return _createEntry(context,
-                            document,
-                            shortStyleClassMap,
-                            namespacePrefixes,
+                            generation,
                             checkModified,
                             isDirty);
       }
     };
 
     FutureTask<Entry> ft = new FutureTask<Entry>(entryCreator);
-    Future<Entry> f = cache.putIfAbsent(key, ft);
+    Future<Entry> f = generation.cache.putIfAbsent(key, ft);
     
     if (f == null)
     {
@@ -731,19 +758,22 @@ public class FileSystemStyleCache implements StyleProvider
       ft.run();
     }
 
-    return _getEntryFromFuture(context, document, cache, key, f);
+    return _getEntryFromFuture(context, generation.document, generation.cache, key, f);
   }
 
   /**
    * Returns the Selector to use for a selector String, possibly returning a cached Selector rather
    * than creating a new one.  As Selectors are created, they are added to the cache.
    * 
+   * @param reusableSelectorMap the cache of Selectors for the current Generation
    * @param selectorString
    * @return the Selector to use for that Selector String
    */
-  private Selector _getSelector(String selectorString)
+  private Selector _getSelector(
+    ConcurrentMap<String, Selector> reusableSelectorMap,
+    String                          selectorString)
   {
-    Selector cachedSelector = _reusableSelectorMap.get(selectorString);
+    Selector cachedSelector = reusableSelectorMap.get(selectorString);
     
     if (cachedSelector != null)
     {
@@ -753,7 +783,7 @@ public class FileSystemStyleCache implements StyleProvider
     {
       Selector selectorCreated = Selector.createSelector(selectorString);
       
-      _reusableSelectorMap.put(selectorString, selectorCreated);
+      reusableSelectorMap.put(selectorString, selectorCreated);
       
       return selectorCreated;
     }
@@ -768,12 +798,15 @@ public class FileSystemStyleCache implements StyleProvider
    */
   private Entry _createEntry(
     StyleContext                 context,
-    StyleSheetDocument           document,
-    Map<String, String>          shortStyleClassMap,
-    String[]                     namespacePrefixes,
+    Generation                   generation,
     boolean                      checkModified,
     boolean                      isDirty)
   {
+    StyleSheetDocument document = generation.document;
+    Map<String, String> shortStyleClassMap = generation.shortStyleClassMap;
+    String[] namespacePrefixes = generation.namespacePrefixes;
+
+
     // Next, get the fully resolved styles for this context. This will be
     // those StyleNodes that match the locale, direction, browser, portlet mode
     // etc -- the info that is in the StyleContext.
@@ -793,7 +826,7 @@ public class FileSystemStyleCache implements StyleProvider
     }
 
     // This code fills in the <Selector, Style> resolvedSelectorStyleMap map. 
-    // We use _reusableStyleMap to reuse the Style objects when possible
+    // We use the Generation's reusableStyleMap to reuse the Style objects when possible
     // since we have a large number of Style objects.
     ConcurrentMap<Selector, Style> resolvedSelectorStyleMap = null;
     
@@ -803,13 +836,13 @@ public class FileSystemStyleCache implements StyleProvider
       
       if (selectorString != null)
       {
-        Style style = _convertStyleNodeToStyle(styleNode, _reusableStyleMap);
+        Style style = _convertStyleNodeToStyle(styleNode, generation.reusableStyleMap);
         
         if (resolvedSelectorStyleMap == null)
           resolvedSelectorStyleMap = new ConcurrentHashMap<Selector, Style>();
 
         // To save memory, we reuse Selector objects
-        Selector selector = _getSelector(selectorString);
+        Selector selector = _getSelector(generation.reusableSelectorMap, selectorString);
         
         // cache the Style under the Selector
         resolvedSelectorStyleMap.put(selector, style);        
@@ -846,9 +879,25 @@ public class FileSystemStyleCache implements StyleProvider
     // like browser, agent, locale, direction.
     Styles styles = new StylesImpl(namespacePrefixes, _STYLE_KEY_MAP,
                                    shortStyleClassMap,  _isCompressStyles(context), resolvedSelectorStyleMap);
-    return new Entry(uris, styles, icons, skinProperties);
+    // Watch the generated files, so that _validateEntry() doesn't need
+    // to check the file system on every request
+    FileWatcher.Watch[] watches = checkModified ? _watchFiles(uris) : null;
+
+    return new Entry(uris, styles, icons, skinProperties, watches);
   }
   
+  private FileWatcher.Watch[] _watchFiles(List<String> uris)
+  {
+    FileWatcher.Watch[] watches = new FileWatcher.Watch[uris.size()];
+
+    for (int i = 0; i < watches.length; i++)
+    {
+      watches[i] = FileWatcher.watch(new File(_targetPath, uris.get(i)));
+    }
+
+    return watches;
+  }
+
   private void _throwEmptyStyleNodes(
     StyleContext context,
     StyleSheetDocument document
@@ -924,39 +973,29 @@ public class FileSystemStyleCache implements StyleProvider
   }
 
   /**
-   * Returns the StyleSheetDocument, parsing the source file if necessary.
+   * Creates a new Generation, parsing the source file.
    * This does not use the StyleContext
    */
-  private StyleSheetDocument _getStyleSheetDocument(StyleContext context)
+  private Generation _createGeneration(StyleContext context)
   {
-    StyleSheetDocument document = _document;
-
-    // If we have a StyleSheetDocument already, just return it.
-    if (document != null)
-      return document;
-
-    // Otherwise, we create the StyleSheetDocument now
     // Note, it does not use the StyleContext. This is the StyleSheetDocument
     // for the entire skin document, so it includes all the specific rules
     // like @agent ie and @agent gecko, etc. It's later that we output
     // the css based on the StyleContext.
-    document = createStyleSheetDocument(context);
+    StyleSheetDocument document = createStyleSheetDocument(context);
 
     // If we weren't able to create the StyleSheetDocument,
     // use a non-null placeholder
     if (document == null)
       document = _EMPTY_DOCUMENT;
 
-    // Save the document
-    if (_document == null)
-      _document = document;
+    // Initialize our Array of namespace prefixes that are in the selectors
+    // and our Map of short style class names
+    String[] namespacePrefixes = _getNamespacePrefixes(context, document);
+    Map<String, String> shortStyleClassMap =
+      _getShortStyleClassMap(document, namespacePrefixes);
 
-    // Re-initialize our Array of namespace prefixes that are in the selectors
-    // Re-initialize our Map of short style class names
-    _namespacePrefixes = _getNamespacePrefixes(context, _document);
-    _shortStyleClassMap = _getShortStyleClassMap(_document, _namespacePrefixes);
-
-    return document;
+    return new Generation(document, shortStyleClassMap, namespacePrefixes);
   }
 
   /**
@@ -1699,16 +1738,21 @@ public class FileSystemStyleCache implements StyleProvider
     public final ConcurrentMap<String, Icon> icons;
     public final ConcurrentMap<Object, Object> skinProperties;
 
+    // Watches for the files of the uris (or null), updated as the files are checked
+    public final FileWatcher.Watch[] watches;
+
     public Entry(
       List<String> uris,
       Styles styles,
       ConcurrentMap<String, Icon> icons,
-      ConcurrentMap<Object, Object> skinProperties)
+      ConcurrentMap<Object, Object> skinProperties,
+      FileWatcher.Watch[] watches)
     {
       this.uris = uris;
       this.styles = styles;
       this.icons = icons;
       this.skinProperties = skinProperties;
+      this.watches = watches;
     }
   }
 
@@ -1916,11 +1960,78 @@ public class FileSystemStyleCache implements StyleProvider
       outputFile.setReadOnly();
 
       _files.add(outputFile);
-      
+
       return _getWriter(outputFile);
     }
   }
 
+  /**
+   * The parsed StyleSheetDocument, together with the data derived from it
+   * and the caches of Entries created for it.
+   */
+  private static final class Generation
+  {
+    public Generation(
+      StyleSheetDocument  document,
+      Map<String, String> shortStyleClassMap,
+      String[]            namespacePrefixes)
+    {
+      this.document = document;
+      this.shortStyleClassMap = shortStyleClassMap;
+      this.namespacePrefixes = namespacePrefixes;
+      this.reusableStyleMap =
+        new ConcurrentHashMap<UnmodifiableStyle, UnmodifiableStyle>();
+      this.reusableSelectorMap = new ConcurrentHashMap<String, Selector>();
+      this.cache = new ConcurrentHashMap<Key, Future<Entry>>();
+      this.entryCache = new ConcurrentHashMap<Object, Entry>(19);
+    }
+
+    /**
+     * Creates a Generation sharing the document (and reusable Styles and
+     * Selectors) of an existing Generation, but with empty entry caches.
+     */
+    public Generation(Generation generation)
+    {
+      this.document = generation.document;
+      this.shortStyleClassMap = generation.shortStyleClassMap;
+      this.namespacePrefixes = generation.namespacePrefixes;
+      this.reusableStyleMap = generation.reusableStyleMap;
+      this.reusableSelectorMap = generation.reusableSelectorMap;
+      this.cache = new ConcurrentHashMap<Key, Future<Entry>>();
+      this.entryCache = new ConcurrentHashMap<Object, Entry>(19);
+    }
+
+    /** The parsed StyleSheetDocument */
+    public final StyleSheetDocument document;
+
+    /** Map which maps from full style class names to our compressed names. */
+    public final Map<String, String> shortStyleClassMap;
+    public final String[]            namespacePrefixes;
+
+    /** Since each FileSystemStyleCache$Entry object holds a FileSystemStyleCache$StylesImpl object
+     *  which holds on to many Style objects, it reduces the memory consumption by about half
+     *  if we reuse Style objects per FileSystemStyleCache instance rather than per
+     *  FileSystemStyleCache$Entry instance. The is the map we use to store unique Style objects. */
+    public final ConcurrentMap<UnmodifiableStyle, UnmodifiableStyle> reusableStyleMap;
+
+    /** Use this to store Selector objects so that they can be reused in all the FileSystemStyleCache$StylesImpl
+     * objects. A generated css file can contain 4533 selectors at 16 bytes each. The Selectors will largely
+     * be the same between FileSystemStyleCache$StylesImpl instances, so they should be shared. */
+    public final ConcurrentMap<String, Selector> reusableSelectorMap;
+
+    /**
+     * The main Entry cache.  Future-based to ensure that only a single thread
+     * attempts to create an Entry for a specific Key at a time.
+     */
+    public final ConcurrentMap<Key, Future<Entry>> cache;
+
+    /**
+     * We cache Entry objects, hashed by DerivationKey (ie.
+     * hashed based on the StyleSheetNode derivation list).
+     */
+    public final ConcurrentMap<Object, Entry> entryCache;
+  }
+
   // A Future implementation that holds an already-resovled value.
   private static final class ResolvedFuture<V> implements Future<V>
   {
@@ -1966,35 +2077,15 @@ public class FileSystemStyleCache implements StyleProvider
   
   private final String _targetPath; // The location of the cache
 
-  /** The parsed StyleSheetDocument */
-  private StyleSheetDocument _document;
-  
-  /** Since each FileSystemStyleCache$Entry object holds a FileSystemStyleCache$StylesImpl object
-   *  which holds on to many Style objects, it reduces the memory consumption by about half
-   *  if we reuse Style objects per FileSystemStyleCache instance rather than per
-   *  FileSystemStyleCache$Entry instance. The is the map we use to store unique Style objects. */
-  private ConcurrentMap<UnmodifiableStyle, UnmodifiableStyle> _reusableStyleMap;
-  
-  /** Use this to store Selector objects so that they can be reused in all the FileSystemStyleCache$StylesImpl
-   * objects. A generated css file can contain 4533 selectors at 16 bytes each. The Selectors will largely
-   * be the same between FileSystemStyleCache$StylesImpl instances, so they should be shared. */
-  private ConcurrentMap<String, Selector> _reusableSelectorMap;
-  
-  /**
-   * The main Entry cache.  Future-based to ensure that only a single thread
-   * attempts to create an Entry for a specific Key at a time.
-   */
-  private ConcurrentMap<Key, Future<Entry>> _cache;
-
   /**
-   * We cache Entry objects, hashed by DerivationKey (ie.
-   * hashed based on the StyleSheetNode derivation list).
+   * The current Generation.  Replaced (never modified) when the skin is
+   * dirtied or its source document changes, so that requests can read it
+   * without locking.
    */
-  private ConcurrentMap<Object, Entry> _entryCache;
+  private volatile Generation _generation;
 
-  /** Map which maps from full style class names to our compressed names. */
-  private Map<String, String> _shortStyleClassMap;
-  private String[]            _namespacePrefixes;
+  /** The time at which the source document should next be checked for modifications */
+  private final AtomicLong _nextModifiedCheck = new AtomicLong();
 
   // Constants
 
@@ -2004,6 +2095,9 @@ public class FileSystemStyleCache implements StyleProvider
   private static final String _PORTLET = "prtl";
   private static final String _SECURE = "s";
 
+  // Minimum time between checks for modified source documents, in milliseconds
+  private static final long _MODIFIED_CHECK_INTERVAL = 1000L;
+
   /** Extension for CSS files */
   private static final String _CSS_EXTENSION = ".css";
 
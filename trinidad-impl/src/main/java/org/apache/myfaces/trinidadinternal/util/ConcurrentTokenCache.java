@@ -0,0 +1,400 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.util;
+
+import java.io.Serializable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.myfaces.trinidad.logging.TrinidadLogger;
+
+
+/**
+ * TokenCache that can be used by concurrent requests without locking the whole
+ * cache.  The tokens are kept in a ConcurrentHashMap, and the least recently used
+ * token is found by the access stamp each token receives when it is added or
+ * checked for availability.
+ * <p>
+ * Pinning behaves exactly as in TokenCache.  Pinning a token and deciding whether an
+ * evicted token is still pinned both lock the map of pinned tokens, so a token can't
+ * be removed while it is being pinned.  When requests don't overlap, the cache is
+ * indistinguishable from a TokenCache;  concurrent requests may see tokens that were
+ * used at nearly the same time evicted in either order.
+ * <p>
+ * Since the cache is only ever a few dozen tokens, finding the least recently
+ * used token is a scan of the tokens, which is cheaper than maintaining an
+ * access-ordered list that every request would have to update.
+ */
+final class ConcurrentTokenCache extends TokenCache
+{
+  /**
+   * Create a ConcurrentTokenCache that will store the last "size" entries,
+   * and begins its tokens based on the seed.
+   * @param keyInOwner Optional Name under which this cache is stored in the owner
+   */
+  ConcurrentTokenCache(int size, long seed, String keyInOwner)
+  {
+    this(size, seed, keyInOwner, new ConcurrentHashMap<String, String>(size));
+  }
+
+  private ConcurrentTokenCache(
+    int                           size,
+    long                          seed,
+    String                        keyInOwner,
+    ConcurrentMap<String, String> pinned)
+  {
+    // share the pinned tokens with TokenCache, which reads them in getPinnedTokens()
+    super(pinned, seed, keyInOwner);
+
+    _maxSize = size;
+    _entries = new ConcurrentHashMap<String, Entry>(size + 1);
+    _pinned  = pinned;
+    _size    = new AtomicInteger();
+    _clock   = new AtomicLong();
+  }
+
+  @Override
+  public <V> String addNewEntry(
+      V value,
+      Map<String, V> targetStore,
+      String pinnedToken)
+  {
+    String token = getNextToken();
+
+    // If there is a request to pin one token to another,
+    // store that:  the pinnedToken is the value
+    if (pinnedToken != null)
+    {
+      synchronized (_pinned)
+      {
+        _pinned.put(token, pinnedToken);
+      }
+    }
+
+    // store the value before the token becomes visible, so that a concurrent
+    // eviction of the token can't leave the value behind
+    targetStore.put(token, value);
+
+    _entries.put(token, new Entry(token, _clock.incrementAndGet()));
+    _size.incrementAndGet();
+
+    if (TokenCacheDebugUtils.debugTokenCache())
+    {
+      TokenCacheDebugUtils.startLog("Add New Entry");
+      TokenCacheDebugUtils.addTokenToViewIdMap(token);
+
+      if (pinnedToken != null)
+      {
+        TokenCacheDebugUtils.addToLog("\nPINNING " +
+                    TokenCacheDebugUtils.getTokenToViewIdString(token) +
+                    " to " +
+                    TokenCacheDebugUtils.getTokenToViewIdString(pinnedToken));
+      }
+    }
+
+    String removed;
+
+    while ((removed = _evictEldest()) != null)
+    {
+      _removeTokenIfReady(targetStore, removed, false);
+    }
+
+    // our contents have changed, so mark ourselves as dirty in our owner
+    markDirty();
+
+    if (TokenCacheDebugUtils.debugTokenCache())
+    {
+      TokenCacheDebugUtils.logCacheInfo(targetStore, _pinned, "After Additions");
+      _LOG.severe(TokenCacheDebugUtils.getLogString());
+    }
+
+    return token;
+  }
+
+  @Override
+  public boolean isAvailable(String token)
+  {
+    Entry entry = _entries.get(token);
+
+    // If the token is in the cache, then it's available, and is now
+    // the most recently used
+    if (entry != null)
+    {
+      entry.accessed = _clock.incrementAndGet();
+      return true;
+    }
+
+    // And if the token is a value in "pinned", then it's also available
+    return _pinned.containsValue(token);
+  }
+
+  @Override
+  public <V> V removeOldEntry(
+      String token,
+      Map<String, V> targetStore)
+  {
+    if (TokenCacheDebugUtils.debugTokenCache())
+    {
+      TokenCacheDebugUtils.startLog("Remove Old Entry");
+    }
+
+    _LOG.finest("Removing token {0} from cache", token);
+
+    if (_entries.remove(token) != null)
+      _size.decrementAndGet();
+
+    V oldValue = _removeTokenIfReady(targetStore, token, true);
+
+    if (TokenCacheDebugUtils.debugTokenCache())
+    {
+      TokenCacheDebugUtils.logCacheInfo(targetStore, _pinned, "After removing old entry:");
+      _LOG.severe(TokenCacheDebugUtils.getLogString());
+    }
+
+    // our contents have changed, so mark ourselves as dirty in our owner
+    markDirty();
+
+    return oldValue;
+  }
+
+  @Override
+  public <V> void clear(Map<String, V> targetStore)
+  {
+    for (String keyToRemove : _entries.keySet())
+    {
+      if (_entries.remove(keyToRemove) != null)
+      {
+        _size.decrementAndGet();
+
+        _LOG.finest("Clearing token {0} from cache", keyToRemove);
+        deleteValue(targetStore, keyToRemove);
+      }
+    }
+
+    // our contents have changed, so mark ourselves as dirty in our owner
+    markDirty();
+  }
+
+  @Override
+  int getMaxSize()
+  {
+    return _maxSize;
+  }
+
+  @Override
+  List<String> getTokens()
+  {
+    List<Entry> entries = new ArrayList<Entry>(_entries.values());
+
+    Collections.sort(entries, new Comparator<Entry>()
+    {
+      public int compare(Entry entry1, Entry entry2)
+      {
+        return (entry1.accessed < entry2.accessed)
+                 ? -1
+                 : ((entry1.accessed == entry2.accessed) ? 0 : 1);
+      }
+    });
+
+    List<String> tokens = new ArrayList<String>(entries.size());
+
+    for (Entry entry : entries)
+      tokens.add(entry.token);
+
+    return tokens;
+  }
+
+  @Override
+  void restoreTokens(List<String> tokens, Map<String, String> pinnedTokens)
+  {
+    for (String token : tokens)
+    {
+      _entries.put(token, new Entry(token, _clock.incrementAndGet()));
+      _size.incrementAndGet();
+    }
+
+    synchronized (_pinned)
+    {
+      _pinned.putAll(pinnedTokens);
+    }
+  }
+
+  /**
+   * Removes the least recently used token if the cache holds more than its
+   * maximum number of tokens.
+   * @return the removed token, or null if the cache wasn't full
+   */
+  private String _evictEldest()
+  {
+    while (true)
+    {
+      int size = _size.get();
+
+      if (size <= _maxSize)
+        return null;
+
+      // claim the eviction, so that concurrent additions each evict a single token
+      if (_size.compareAndSet(size, size - 1))
+        break;
+    }
+
+    while (true)
+    {
+      Entry eldest = null;
+
+      for (Entry entry : _entries.values())
+      {
+        if ((eldest == null) || (entry.accessed < eldest.accessed))
+          eldest = entry;
+      }
+
+      // the tokens were removed by someone else, so give back our claim
+      if (eldest == null)
+      {
+        _size.incrementAndGet();
+        return null;
+      }
+
+      if (_entries.remove(eldest.token, eldest))
+      {
+        _LOG.finer("Discarding cached value for key {0}", eldest.token);
+        return eldest.token;
+      }
+    }
+  }
+
+  /**
+   * Remove a token if is ready:  there are no pinned references to it.
+   * Note that it will be absent from the cache.
+   */
+  private <V> V _removeTokenIfReady(
+      Map<String, V> targetStore,
+      String         token,
+      boolean        returnValue)
+  {
+    // hold the lock until the value has been removed, so that a concurrent request
+    // can't pin the token once we have decided that it isn't pinned
+    synchronized (_pinned)
+    {
+      return _removeTokenIfReadyLocked(targetStore, token, returnValue);
+    }
+  }
+
+  private <V> V _removeTokenIfReadyLocked(
+      Map<String, V> targetStore,
+      String         token,
+      boolean        returnValue)
+  {
+    V removedValue;
+
+    // See if it's pinned to something still in memory
+    if (!_pinned.containsValue(token))
+    {
+      _LOG.finest("Removing token ''{0}''", token);
+
+      if (TokenCacheDebugUtils.debugTokenCache())
+      {
+        TokenCacheDebugUtils.removeTokenFromViewIdMap(token);
+      }
+
+      // Remove it from the target store
+      if (returnValue)
+      {
+        removedValue = targetStore.remove(token);
+      }
+      else
+      {
+        deleteValue(targetStore, token);
+        removedValue = null;
+      }
+
+      // Now, see if that key was pinning anything else
+      String wasPinned = _pinned.remove(token);
+      if (wasPinned != null)
+      {
+        if (TokenCacheDebugUtils.debugTokenCache())
+        {
+          TokenCacheDebugUtils.addToLog("\nREMOVING pinning of token " + token + " to " +
+                      TokenCacheDebugUtils.getTokenToViewIdString(wasPinned));
+        }
+
+        // Yup, so see if we can remove that token
+        _removeTokenIfReadyLocked(targetStore, wasPinned, false);
+      }
+    }
+    else
+    {
+      if (TokenCacheDebugUtils.debugTokenCache())
+      {
+        TokenCacheDebugUtils.addToLog("\nNOT removing pinned token from target store " +
+                    TokenCacheDebugUtils.getTokenToViewIdString(token) );
+      }
+
+      _LOG.finest("Not removing pinned token ''{0}''", token);
+      removedValue = returnValue ? targetStore.get(token) : null;
+    }
+
+    return removedValue;
+  }
+
+  /**
+   * A token and the time it was last used
+   */
+  private static final class Entry implements Serializable
+  {
+    public Entry(String token, long accessed)
+    {
+      this.token    = token;
+      this.accessed = accessed;
+    }
+
+    public final String token;
+    public volatile long accessed;
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  private final int _maxSize;
+
+  private final ConcurrentMap<String, Entry> _entries;
+
+  // Map from String to String, where the keys represent tokens that are
+  // stored, and the values are the tokens that are pinned.  This is
+  // an N->1 ratio:  the values may appear multiple times.  Changes are
+  // made while synchronized on the map
+  private final ConcurrentMap<String, String> _pinned;
+
+  // number of tokens in _entries, less any evictions that have been claimed
+  private final AtomicInteger _size;
+
+  // source of the access stamps
+  private final AtomicLong _clock;
+
+  private static final long serialVersionUID = 1L;
+  private static final TrinidadLogger _LOG =
+    TrinidadLogger.createTrinidadLogger(ConcurrentTokenCache.class);
+}
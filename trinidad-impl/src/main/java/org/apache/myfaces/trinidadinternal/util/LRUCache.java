@@ -36,6 +36,14 @@ public class LRUCache<K, V> extends LinkedHashMap<K, V>
     _maxSize = maxSize;
   }
 
+  /**
+   * Returns the maximum number of entries the cache holds.
+   */
+  public int getMaxSize()
+  {
+    return _maxSize;
+  }
+
   protected void removing(K key)
   {
   }
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.util;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The serialized form of a TokenCache or ConcurrentTokenCache.  Only the tokens
+ * themselves are written, instead of the LRU and concurrent maps that hold them,
+ * and the cache is rebuilt with the same least recently used order when read.
+ */
+final class SerializedTokenCache implements Externalizable
+{
+  /**
+   * Zero-arg constructor for Externalizable contract.
+   */
+  public SerializedTokenCache()
+  {
+  }
+
+  SerializedTokenCache(TokenCache cache)
+  {
+    _concurrent     = (cache instanceof ConcurrentTokenCache);
+    _maxSize        = cache.getMaxSize();
+    _lastTokenCount = cache.getLastTokenCount();
+    _keyInOwner     = cache.getKeyInOwner();
+    _tokens         = cache.getTokens();
+    _pinnedTokens   = cache.getPinnedTokens();
+  }
+
+  public void writeExternal(ObjectOutput out) throws IOException
+  {
+    out.writeBoolean(_concurrent);
+    out.writeInt(_maxSize);
+    out.writeLong(_lastTokenCount);
+    out.writeObject(_keyInOwner);
+
+    out.writeInt(_tokens.size());
+    for (String token : _tokens)
+      out.writeUTF(token);
+
+    out.writeInt(_pinnedTokens.size());
+    for (Map.Entry<String, String> pinned : _pinnedTokens.entrySet())
+    {
+      out.writeUTF(pinned.getKey());
+      out.writeUTF(pinned.getValue());
+    }
+  }
+
+  public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException
+  {
+    _concurrent     = in.readBoolean();
+    _maxSize        = in.readInt();
+    _lastTokenCount = in.readLong();
+    _keyInOwner     = (String)in.readObject();
+
+    int tokenCount = in.readInt();
+    _tokens = new ArrayList<String>(tokenCount);
+    for (int i = 0; i < tokenCount; i++)
+      _tokens.add(in.readUTF());
+
+    int pinnedCount = in.readInt();
+    _pinnedTokens = new HashMap<String, String>(pinnedCount);
+    for (int i = 0; i < pinnedCount; i++)
+      _pinnedTokens.put(in.readUTF(), in.readUTF());
+  }
+
+  private Object readResolve() throws ObjectStreamException
+  {
+    TokenCache cache = (_concurrent)
+                         ? new ConcurrentTokenCache(_maxSize, _lastTokenCount, _keyInOwner)
+                         : new TokenCache(_maxSize, _lastTokenCount, _keyInOwner);
+
+    cache.restoreTokens(_tokens, _pinnedTokens);
+    return cache;
+  }
+
+  private boolean             _concurrent;
+  private int                 _maxSize;
+  private long                _lastTokenCount;
+  private String              _keyInOwner;
+  private List<String>        _tokens;
+  private Map<String, String> _pinnedTokens;
+
+  private static final long serialVersionUID = 1L;
+}
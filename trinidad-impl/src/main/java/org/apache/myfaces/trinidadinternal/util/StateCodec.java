@@ -0,0 +1,617 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.spec.AlgorithmParameterSpec;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+import javax.faces.application.ViewExpiredException;
+
+import org.apache.myfaces.trinidadinternal.util.serial.SerialFactory;
+
+
+/**
+ * Reusable pipeline for encoding client-side state:  serialization, GZIP compression,
+ * encryption with an encrypt-then-MAC signature, and Base64 encoding.  Each stage writes
+ * directly into a buffer owned by the codec, and the Deflater, Inflater, Cipher and Mac
+ * instances are kept between uses, so encoding a state neither looks up security
+ * providers nor allocates intermediate arrays.
+ * <p>
+ * The encoded form is identical to the one produced by the individual StateUtils
+ * methods.  A StateCodec is not thread-safe;  StateUtils pools them so that each is
+ * used by one request at a time.
+ */
+final class StateCodec
+{
+  /**
+   * @param transformation  the Cipher transformation used for encryption
+   * @param iv              the initialization vector, if any
+   * @param macAlgorithm    the algorithm of the Mac signing the encrypted state
+   */
+  public StateCodec(String transformation, byte[] iv, String macAlgorithm)
+  {
+    _transformation = transformation;
+    _ivSpec         = (iv != null) ? _createIvSpec(transformation, iv) : null;
+    _macAlgorithm   = macAlgorithm;
+    _deflater       = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    _inflater       = new Inflater(true);
+    _crc            = new CRC32();
+    _stateBuffer    = new Buffer();
+    _cryptBuffer    = new Buffer();
+    _chars          = new char[_INITIAL_BUFFER_SIZE];
+  }
+
+  /**
+   * @return <code>true</code> if this codec was created for the specified configuration
+   */
+  public boolean isConfiguredFor(String transformation, String macAlgorithm)
+  {
+    return _transformation.equals(transformation) && _macAlgorithm.equals(macAlgorithm);
+  }
+
+  /**
+   * Returns the encoded form of a state.
+   * @param secretKey  the key to encrypt the state with or <code>null</code> to not
+   *                   encrypt the state
+   * @param macKey     the key used to sign the encrypted state
+   */
+  public String construct(
+    Object        state,
+    SerialFactory serialFactory,
+    boolean       compress,
+    SecretKey     secretKey,
+    SecretKey     macKey) throws IOException, GeneralSecurityException
+  {
+    Buffer serialized = _stateBuffer;
+    serialized.reset();
+
+    if (compress)
+    {
+      _writeCompressed(state, serialFactory, serialized);
+    }
+    else
+    {
+      ObjectOutputStream oos = serialFactory.getObjectOutputStream(serialized);
+      oos.writeObject(state);
+      oos.close();
+    }
+
+    Buffer encoded = serialized;
+
+    if (secretKey != null)
+    {
+      encoded = _cryptBuffer;
+      _encrypt(serialized, encoded, secretKey, macKey);
+    }
+
+    return _encodeBase64(encoded.getBytes(), encoded.size());
+  }
+
+  /**
+   * Returns a stream of the serialized state contained in an encoded state.  The
+   * stream is only valid until the next use of this codec.
+   * @param secretKey  the key to decrypt the state with or <code>null</code> if the
+   *                   state is not encrypted
+   * @param macKey     the key used to verify the signature of the encrypted state
+   * @throws ViewExpiredException if the signature of the state is invalid
+   */
+  public InputStream reconstruct(
+    String    encodedState,
+    boolean   compressed,
+    SecretKey secretKey,
+    SecretKey macKey) throws IOException, GeneralSecurityException
+  {
+    Buffer decoded = _stateBuffer;
+    _decodeBase64(encodedState, decoded);
+
+    Buffer serialized = decoded;
+
+    if (secretKey != null)
+    {
+      serialized = _cryptBuffer;
+      _decrypt(decoded, serialized, secretKey, macKey);
+    }
+
+    byte[] bytes  = serialized.getBytes();
+    int    length = serialized.size();
+
+    if (!compressed)
+      return new ByteArrayInputStream(bytes, 0, length);
+
+    if ((length < _GZIP_HEADER.length) ||
+        (bytes[0] != _GZIP_HEADER[0]) ||
+        (bytes[1] != _GZIP_HEADER[1]) ||
+        (bytes[2] != _GZIP_HEADER[2]) ||
+        (bytes[3] != 0))
+    {
+      // not the plain GZIP header written by GZIPOutputStream, so let GZIPInputStream parse it
+      return new GZIPInputStream(new ByteArrayInputStream(bytes, 0, length));
+    }
+
+    // the GZIP trailer following the deflated data doubles as the extra input byte
+    // needed by a nowrap Inflater
+    _inflater.reset();
+    _crc.reset();
+
+    return new GZIPMemberInputStream(bytes, length, _inflater, _crc);
+  }
+
+  /**
+   * Releases the buffers of unusually large states, so that pooled codecs don't hold
+   * onto them.
+   */
+  public void trimBuffers()
+  {
+    _stateBuffer.trim();
+    _cryptBuffer.trim();
+
+    if (_chars.length > _MAX_RETAINED_BUFFER_SIZE)
+      _chars = new char[_INITIAL_BUFFER_SIZE];
+  }
+
+  /**
+   * Frees the native resources held by this codec.
+   */
+  public void dispose()
+  {
+    _deflater.end();
+    _inflater.end();
+  }
+
+  /**
+   * Writes the serialized state in the GZIP format produced by GZIPOutputStream,
+   * using the reusable Deflater.
+   */
+  private void _writeCompressed(
+    Object        state,
+    SerialFactory serialFactory,
+    Buffer        out) throws IOException
+  {
+    _deflater.reset();
+    _crc.reset();
+
+    out.write(_GZIP_HEADER, 0, _GZIP_HEADER.length);
+
+    DeflaterOutputStream deflaterStream = new DeflaterOutputStream(out,
+                                                                   _deflater,
+                                                                   _STREAM_BUFFER_SIZE);
+
+    // closing the ObjectOutputStream finishes, but doesn't end(), the supplied Deflater
+    ObjectOutputStream oos = serialFactory.getObjectOutputStream(
+                                                new CheckedOutputStream(deflaterStream, _crc));
+    oos.writeObject(state);
+    oos.close();
+
+    _writeIntLE(out, (int)_crc.getValue());
+    _writeIntLE(out, _deflater.getTotalIn());
+  }
+
+  private void _encrypt(
+    Buffer    in,
+    Buffer    out,
+    SecretKey secretKey,
+    SecretKey macKey) throws GeneralSecurityException
+  {
+    Cipher cipher = _getEncryptCipher(secretKey);
+    Mac    mac    = _getMac(macKey);
+
+    //EtM Composition Approach
+    int macLength = mac.getMacLength();
+    out.reset();
+    out.ensureCapacity(cipher.getOutputSize(in.size()) + macLength);
+
+    byte[] secure = out.getBytes();
+    int secureCount = cipher.doFinal(in.getBytes(), 0, in.size(), secure, 0);
+    mac.update(secure, 0, secureCount);
+    mac.doFinal(secure, secureCount);
+
+    out.setSize(secureCount + macLength);
+  }
+
+  private void _decrypt(
+    Buffer    in,
+    Buffer    out,
+    SecretKey secretKey,
+    SecretKey macKey) throws GeneralSecurityException
+  {
+    Mac mac = _getMac(macKey);
+
+    byte[] secure = in.getBytes();
+    int macLength = mac.getMacLength();
+    int secureCount = in.size() - macLength;
+
+    if (secureCount < 0)
+      throw new ViewExpiredException();
+
+    //EtM Composition Approach
+    mac.update(secure, 0, secureCount);
+    byte[] signedDigestHash = mac.doFinal();
+
+    // MYFACES-2934 Must compare *ALL* bytes of the hash, otherwise a
+    // side-channel timing attack is theoretically possible
+    int difference = 0;
+
+    for (int i = 0; i < macLength; i++)
+    {
+      difference |= signedDigestHash[i] ^ secure[secureCount + i];
+    }
+
+    if (difference != 0)
+      throw new ViewExpiredException();
+
+    Cipher cipher = _getDecryptCipher(secretKey);
+
+    out.reset();
+    out.ensureCapacity(cipher.getOutputSize(secureCount));
+    out.setSize(cipher.doFinal(secure, 0, secureCount, out.getBytes(), 0));
+  }
+
+  /**
+   * Returns the Cipher for encrypting a state.  Unlike the decrypting Cipher, it is
+   * initialized again for every state, as StateUtils.encrypt() does, so that a Cipher
+   * choosing its own IV uses a fresh one for each state.  Ciphers that refuse to be
+   * initialized with the IV they were last used with, such as AES/GCM with a configured
+   * IV, are replaced with a new instance.
+   */
+  private Cipher _getEncryptCipher(SecretKey key) throws GeneralSecurityException
+  {
+    if (_encryptCipher == null)
+      _encryptCipher = Cipher.getInstance(_transformation);
+
+    try
+    {
+      _initCipher(_encryptCipher, Cipher.ENCRYPT_MODE, key);
+    }
+    catch (InvalidAlgorithmParameterException e)
+    {
+      if (_ivSpec == null)
+        throw e;
+
+      _encryptCipher = Cipher.getInstance(_transformation);
+      _initCipher(_encryptCipher, Cipher.ENCRYPT_MODE, key);
+    }
+
+    return _encryptCipher;
+  }
+
+  /**
+   * Returns the Cipher for decrypting a state, only initializing it again if the key
+   * changed.  A decrypting Cipher returns to its initialized state after each doFinal().
+   */
+  private Cipher _getDecryptCipher(SecretKey key) throws GeneralSecurityException
+  {
+    if (_decryptCipher == null)
+      _decryptCipher = Cipher.getInstance(_transformation);
+    else if (_decryptKey == key)
+      return _decryptCipher;
+
+    _initCipher(_decryptCipher, Cipher.DECRYPT_MODE, key);
+    _decryptKey = key;
+
+    return _decryptCipher;
+  }
+
+  private void _initCipher(Cipher cipher, int mode, SecretKey key)
+    throws GeneralSecurityException
+  {
+    if (_ivSpec != null)
+      cipher.init(mode, key, _ivSpec);
+    else
+      cipher.init(mode, key);
+  }
+
+  /**
+   * Returns the Mac, only initializing it again if the key changed.  A Mac
+   * resets itself after each doFinal().
+   */
+  private Mac _getMac(SecretKey key) throws GeneralSecurityException
+  {
+    if (_mac == null)
+      _mac = Mac.getInstance(_macAlgorithm);
+    else if (_macKey == key)
+      return _mac;
+
+    _mac.init(key);
+    _macKey = key;
+
+    return _mac;
+  }
+
+  /**
+   * GCM takes its IV with the length of its authentication tag
+   */
+  private static AlgorithmParameterSpec _createIvSpec(String transformation, byte[] iv)
+  {
+    if (transformation.toUpperCase().contains("/GCM/"))
+      return new GCMParameterSpec(_GCM_TAG_LENGTH, iv);
+
+    return new IvParameterSpec(iv);
+  }
+
+  private String _encodeBase64(byte[] bytes, int length)
+  {
+    int charCount = ((length + 2) / 3) * 4;
+
+    if (_chars.length < charCount)
+      _chars = new char[charCount];
+
+    char[] chars = _chars;
+    int charIndex = 0;
+    int fullGroupsEnd = length - (length % 3);
+
+    for (int i = 0; i < fullGroupsEnd; i += 3)
+    {
+      int group = ((bytes[i] & 0xff) << 16) | ((bytes[i + 1] & 0xff) << 8) | (bytes[i + 2] & 0xff);
+
+      chars[charIndex++] = _BASE64_CHARS[(group >>> 18) & 0x3f];
+      chars[charIndex++] = _BASE64_CHARS[(group >>> 12) & 0x3f];
+      chars[charIndex++] = _BASE64_CHARS[(group >>> 6) & 0x3f];
+      chars[charIndex++] = _BASE64_CHARS[group & 0x3f];
+    }
+
+    int remaining = length - fullGroupsEnd;
+
+    if (remaining > 0)
+    {
+      int group = (bytes[fullGroupsEnd] & 0xff) << 16;
+
+      if (remaining == 2)
+        group |= (bytes[fullGroupsEnd + 1] & 0xff) << 8;
+
+      chars[charIndex++] = _BASE64_CHARS[(group >>> 18) & 0x3f];
+      chars[charIndex++] = _BASE64_CHARS[(group >>> 12) & 0x3f];
+      chars[charIndex++] = (remaining == 2) ? _BASE64_CHARS[(group >>> 6) & 0x3f] : '=';
+      chars[charIndex++] = '=';
+    }
+
+    return new String(chars, 0, charIndex);
+  }
+
+  /**
+   * Decodes Base64 content into the buffer.  Like the commons-codec decoder, characters
+   * outside of the Base64 alphabet are ignored and decoding stops at the padding.
+   */
+  private void _decodeBase64(String encoded, Buffer out)
+  {
+    int length = encoded.length();
+
+    out.reset();
+    out.ensureCapacity((length / 4) * 3 + 3);
+
+    byte[] bytes = out.getBytes();
+    int byteCount = 0;
+    int group = 0;
+    int groupChars = 0;
+
+    for (int i = 0; i < length; i++)
+    {
+      char c = encoded.charAt(i);
+
+      if (c == '=')
+        break;
+
+      int value = (c < _BASE64_VALUES.length) ? _BASE64_VALUES[c] : -1;
+
+      if (value < 0)
+        continue;
+
+      group = (group << 6) | value;
+      groupChars++;
+
+      if (groupChars == 4)
+      {
+        bytes[byteCount++] = (byte)(group >>> 16);
+        bytes[byteCount++] = (byte)(group >>> 8);
+        bytes[byteCount++] = (byte)group;
+        group = 0;
+        groupChars = 0;
+      }
+    }
+
+    if (groupChars == 2)
+    {
+      bytes[byteCount++] = (byte)(group >>> 4);
+    }
+    else if (groupChars == 3)
+    {
+      bytes[byteCount++] = (byte)(group >>> 10);
+      bytes[byteCount++] = (byte)(group >>> 2);
+    }
+
+    out.setSize(byteCount);
+  }
+
+  private static void _writeIntLE(OutputStream out, int value) throws IOException
+  {
+    out.write(value & 0xff);
+    out.write((value >>> 8) & 0xff);
+    out.write((value >>> 16) & 0xff);
+    out.write((value >>> 24) & 0xff);
+  }
+
+  /**
+   * Inflates the deflated data of a GZIP member written by GZIPOutputStream and, like
+   * GZIPInputStream, verifies the CRC32 and size in the member's trailer.  The trailer
+   * is checked as soon as the Inflater reaches the end of the deflated data, since the
+   * reader of the state usually stops reading once it has read the state.
+   */
+  private static final class GZIPMemberInputStream extends InflaterInputStream
+  {
+    public GZIPMemberInputStream(byte[] bytes, int length, Inflater inflater, CRC32 crc)
+    {
+      super(new ByteArrayInputStream(bytes,
+                                     _GZIP_HEADER.length,
+                                     length - _GZIP_HEADER.length),
+            inflater,
+            _STREAM_BUFFER_SIZE);
+
+      _bytes  = bytes;
+      _length = length;
+      _crc    = crc;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+      int count = super.read(buffer, offset, length);
+
+      if (count > 0)
+        _crc.update(buffer, offset, count);
+
+      if (!_trailerChecked && inf.finished())
+      {
+        _trailerChecked = true;
+        _checkTrailer();
+      }
+
+      return count;
+    }
+
+    private void _checkTrailer() throws IOException
+    {
+      int trailerStart = _GZIP_HEADER.length + (int)inf.getBytesRead();
+
+      if ((trailerStart + _GZIP_TRAILER_LENGTH) > _length)
+        throw new ZipException("Corrupt GZIP trailer");
+
+      if ((_readIntLE(_bytes, trailerStart) != (int)_crc.getValue()) ||
+          (_readIntLE(_bytes, trailerStart + 4) != (int)inf.getBytesWritten()))
+      {
+        throw new ZipException("Corrupt GZIP trailer");
+      }
+    }
+
+    private static int _readIntLE(byte[] bytes, int offset)
+    {
+      return (bytes[offset] & 0xff)              |
+             ((bytes[offset + 1] & 0xff) << 8)   |
+             ((bytes[offset + 2] & 0xff) << 16)  |
+             ((bytes[offset + 3] & 0xff) << 24);
+    }
+
+    private final byte[] _bytes;
+    private final int    _length;
+    private final CRC32  _crc;
+    private boolean      _trailerChecked;
+  }
+
+  /**
+   * ByteArrayOutputStream that exposes its contents without copying them.
+   */
+  private static final class Buffer extends ByteArrayOutputStream
+  {
+    public Buffer()
+    {
+      super(_INITIAL_BUFFER_SIZE);
+    }
+
+    public byte[] getBytes()
+    {
+      return buf;
+    }
+
+    public void setSize(int size)
+    {
+      count = size;
+    }
+
+    public void ensureCapacity(int capacity)
+    {
+      if (buf.length < capacity)
+        buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+    }
+
+    public void trim()
+    {
+      if (buf.length > _MAX_RETAINED_BUFFER_SIZE)
+        buf = new byte[_INITIAL_BUFFER_SIZE];
+
+      count = 0;
+    }
+  }
+
+  private final String _transformation;
+  private final AlgorithmParameterSpec _ivSpec;
+  private final String _macAlgorithm;
+  private final Deflater _deflater;
+  private final Inflater _inflater;
+  private final CRC32 _crc;
+  private final Buffer _stateBuffer;
+  private final Buffer _cryptBuffer;
+  private char[] _chars;
+
+  // lazily created, since the state may not be encrypted
+  private Cipher _encryptCipher;
+  private Cipher _decryptCipher;
+  private Mac _mac;
+
+  // keys that the decrypting Cipher and Mac were last initialized with
+  private SecretKey _decryptKey;
+  private SecretKey _macKey;
+
+  private static final int _INITIAL_BUFFER_SIZE = 2048;
+  private static final int _MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+  private static final int _STREAM_BUFFER_SIZE = 512;
+  private static final int _GZIP_TRAILER_LENGTH = 8;
+  private static final int _GCM_TAG_LENGTH = 128;
+
+  // header written by GZIPOutputStream:  magic number, deflate method, no flags,
+  // no modification time, no extra flags and an unknown OS
+  private static final byte[] _GZIP_HEADER =
+    new byte[]{(byte)0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+  private static final char[] _BASE64_CHARS =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+  private static final byte[] _BASE64_VALUES = new byte[128];
+
+  static
+  {
+    Arrays.fill(_BASE64_VALUES, (byte)-1);
+
+    for (int i = 0; i < _BASE64_CHARS.length; i++)
+    {
+      _BASE64_VALUES[_BASE64_CHARS[i]] = (byte)i;
+    }
+  }
+}
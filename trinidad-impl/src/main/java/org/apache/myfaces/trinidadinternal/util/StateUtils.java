@@ -21,6 +21,7 @@ package org.apache.myfaces.trinidadinternal.util;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.UnsupportedEncodingException;
@@ -28,7 +29,10 @@ import java.security.AccessController;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
@@ -50,6 +54,7 @@ import javax.servlet.ServletContext;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.myfaces.buildtools.maven2.plugin.builder.annotation.JSFWebConfigParam;
+import org.apache.myfaces.trinidadinternal.util.serial.CompactSerialFactory;
 import org.apache.myfaces.trinidadinternal.util.serial.DefaultSerialFactory;
 import org.apache.myfaces.trinidadinternal.util.serial.SerialFactory;
 
@@ -151,10 +156,16 @@ public final class StateUtils
      * Defines the factory class name using for serialize/deserialize the view state returned 
      * by state manager into a byte array. The expected class must implement
      * org.apache.myfaces.shared.util.serial.SerialFactory interface.
+     * The value "compact" selects the CompactSerialFactory.
      */
     //@JSFWebConfigParam(name="org.apache.myfaces.trinidad.SERIAL_FACTORY", 
     //                   since="1.1",group="state",tags="performance")
     public static final String SERIAL_FACTORY = INIT_PREFIX + "trinidad.SERIAL_FACTORY";
+
+    /**
+     * Value of the SERIAL_FACTORY init parameter selecting the CompactSerialFactory.
+     */
+    public static final String SERIAL_FACTORY_COMPACT = "compact";
     
     /**
      * Indicate if the view state should be compressed before encrypted(optional) and encoded
@@ -189,6 +200,10 @@ public final class StateUtils
 
     private static final String VIEW_STATE_COUNTER = "org.apache.myfaces.trinidad.partial.VIEW_STATE_COUNTER";
 
+    private static final String CODEC_POOL = StateUtils.class.getName() + ".CODEC_POOL";
+    
+    private static final int CODEC_POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
     /** Utility class, do not instatiate */
     private StateUtils()
     {
@@ -272,24 +287,28 @@ public final class StateUtils
 
     public static final String construct(Object object, ExternalContext ctx)
     {
-        byte[] bytes = getAsByteArray(object, ctx);
-        if( enableCompression(ctx) )
-        {
-            bytes = compress(bytes);
-        }
-        if(isSecure(ctx))
-        {
-            bytes = encrypt(bytes, ctx);
-        }
-        bytes = encode(bytes);
+        boolean secure = isSecure(ctx);
+        StateCodec codec = acquireCodec(ctx, secure);
+        boolean succeeded = false;
+        
         try
         {
-            return new String(bytes, ZIP_CHARSET);
+            String encoded = codec.construct(object,
+                                             getSerialFactory(ctx),
+                                             enableCompression(ctx),
+                                             secure ? getSecret(ctx) : null,
+                                             secure ? getMacSecret(ctx) : null);
+            succeeded = true;
+            return encoded;
         }
-        catch (UnsupportedEncodingException e)
+        catch (Exception e)
         {
             throw new FacesException(e);
         }
+        finally
+        {
+            releaseCodec(ctx, codec, succeeded);
+        }
     }
 
     /**
@@ -305,15 +324,7 @@ public final class StateUtils
     {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         
-        // get the Factory that was instantiated @ startup
-        SerialFactory serialFactory = (SerialFactory) ctx.getApplicationMap().get(SERIAL_FACTORY);
-        
-        if(serialFactory == null)
-        {
-            // throw new NullPointerException("serialFactory");
-            serialFactory = new DefaultSerialFactory();
-            ctx.getApplicationMap().put(SERIAL_FACTORY, serialFactory);
-        }
+        SerialFactory serialFactory = getSerialFactory(ctx);
         
         try
         {
@@ -416,7 +427,9 @@ public final class StateUtils
      */
     public static final Object reconstruct(String string, ExternalContext ctx)
     {
-        byte[] bytes;
+        StateCodec codec = null;
+        boolean succeeded = false;
+        
         try
         {
             if(log.isLoggable(Level.FINE))
@@ -424,17 +437,16 @@ public final class StateUtils
                 log.fine("Processing state : " + string);
             }
 
-            bytes = string.getBytes(ZIP_CHARSET);
-            bytes = decode(bytes);
-            if(isSecure(ctx))
-            {
-                bytes = decrypt(bytes, ctx);
-            }
-            if( enableCompression(ctx) )
-            {
-                bytes = decompress(bytes);
-            }
-            return getAsObject(bytes, ctx);
+            boolean secure = isSecure(ctx);
+            codec = acquireCodec(ctx, secure);
+            
+            InputStream input = codec.reconstruct(string,
+                                                  enableCompression(ctx),
+                                                  secure ? getSecret(ctx) : null,
+                                                  secure ? getMacSecret(ctx) : null);
+            Object object = getAsObject(input, ctx);
+            succeeded = true;
+            return object;
         }
         catch (Throwable e)
         {
@@ -444,6 +456,13 @@ public final class StateUtils
             }
             return null;
         }
+        finally
+        {
+            if (codec != null)
+            {
+                releaseCodec(ctx, codec, succeeded);
+            }
+        }
     }
 
     public static final byte[] decode(byte[] bytes)
@@ -573,106 +592,219 @@ public final class StateUtils
         try
         {
             input = new ByteArrayInputStream(bytes);
-
-            // get the Factory that was instantiated @ startup
-            SerialFactory serialFactory = (SerialFactory) ctx.getApplicationMap().get(SERIAL_FACTORY);
-            
-            if(serialFactory == null)
-            {
-                throw new NullPointerException("serialFactory");
-            }
-            
-            ObjectInputStream s = null;
-            Exception pendingException = null;
-            try
+            return getAsObject(input, ctx);
+        }
+        finally
+        {
+            if (input != null)
             {
-                s = serialFactory.getObjectInputStream(input); 
-                Object object = null;
-                if (System.getSecurityManager() != null)
+                try
                 {
-                    final ObjectInputStream ois = s;
-                    object = AccessController.doPrivileged(new PrivilegedExceptionAction<Object>()
-                    {
-                        //Put IOException and ClassNotFoundException as "checked" exceptions,
-                        //so AccessController wrap them in a PrivilegedActionException
-                        public Object run() throws PrivilegedActionException, 
-                                                   IOException, ClassNotFoundException
-                        {
-                            return ois.readObject();
-                        }
-                    });
-                    // Since s has the same instance as ois,
-                    // we don't need to close it here, rather
-                    // close it on the finally block related to s
-                    // and avoid duplicate close exceptions
-                    // finally
-                    // {
-                    //    ois.close();
-                    // }
+                    input.close();
+                }
+                catch (IOException e)
+                {
+                    //ignore it, because ByteArrayInputStream.close has
+                    //no effect, but it is better to call close and preserve
+                    //semantic from previous code.
                 }
-                else
+                finally
                 {
-                    object = s.readObject();
+                    input = null;
                 }
-                return object;
-            }
-            catch (Exception e)
-            {
-                pendingException = e;
-                throw new FacesException(e);
             }
-            finally
+        }
+    }
+
+    private static Object getAsObject(InputStream input, ExternalContext ctx)
+    {
+        SerialFactory serialFactory = getSerialFactory(ctx);
+        
+        ObjectInputStream s = null;
+        Exception pendingException = null;
+        try
+        {
+            s = serialFactory.getObjectInputStream(input);
+            Object object = null;
+            if (System.getSecurityManager() != null)
             {
-                if (s != null)
+                final ObjectInputStream ois = s;
+                object = AccessController.doPrivileged(new PrivilegedExceptionAction<Object>()
                 {
-                    try
-                    {
-                        s.close();
-                    }
-                    catch (IOException e)
-                    {
-                        // If a previous exception is thrown 
-                        // ignore this, but if not, wrap it in a
-                        // FacesException and throw it. In this way
-                        // we preserve the original semantic of this
-                        // method, but we handle correctly the case
-                        // when we close a stream. Obviously, the 
-                        // information about this exception is lost,
-                        // but note that the interesting information 
-                        // is always on pendingException, since we
-                        // only do a readObject() on the outer try block.
-                        if (pendingException == null)
-                        {
-                            throw new FacesException(e);
-                        }                        
-                    }
-                    finally
+                    //Put IOException and ClassNotFoundException as "checked" exceptions,
+                    //so AccessController wrap them in a PrivilegedActionException
+                    public Object run() throws PrivilegedActionException, 
+                                               IOException, ClassNotFoundException
                     {
-                        s = null;
+                        return ois.readObject();
                     }
-                }
+                });
+                // Since s has the same instance as ois,
+                // we don't need to close it here, rather
+                // close it on the finally block related to s
+                // and avoid duplicate close exceptions
+                // finally
+                // {
+                //    ois.close();
+                // }
+            }
+            else
+            {
+                object = s.readObject();
             }
+            return object;
+        }
+        catch (Exception e)
+        {
+            pendingException = e;
+            throw new FacesException(e);
         }
         finally
         {
-            if (input != null)
+            if (s != null)
             {
                 try
                 {
-                    input.close();
+                    s.close();
                 }
                 catch (IOException e)
                 {
-                    //ignore it, because ByteArrayInputStream.close has
-                    //no effect, but it is better to call close and preserve
-                    //semantic from previous code.
+                    // If a previous exception is thrown 
+                    // ignore this, but if not, wrap it in a
+                    // FacesException and throw it. In this way
+                    // we preserve the original semantic of this
+                    // method, but we handle correctly the case
+                    // when we close a stream. Obviously, the 
+                    // information about this exception is lost,
+                    // but note that the interesting information 
+                    // is always on pendingException, since we
+                    // only do a readObject() on the outer try block.
+                    if (pendingException == null)
+                    {
+                        throw new FacesException(e);
+                    }                        
                 }
                 finally
                 {
-                    input = null;
+                    s = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the Factory that was instantiated @ startup, creating the one
+     * configured by the SERIAL_FACTORY init parameter if none was.
+     */
+    private static SerialFactory getSerialFactory(ExternalContext ctx)
+    {
+        SerialFactory serialFactory = (SerialFactory) ctx.getApplicationMap().get(SERIAL_FACTORY);
+        
+        if(serialFactory == null)
+        {
+            serialFactory = createSerialFactory(ctx.getInitParameter(SERIAL_FACTORY));
+            ctx.getApplicationMap().put(SERIAL_FACTORY, serialFactory);
+        }
+        
+        return serialFactory;
+    }
+
+    /**
+     * Creates the SerialFactory named by the SERIAL_FACTORY init parameter, falling
+     * back to the DefaultSerialFactory if the parameter is not set or invalid.
+     */
+    static SerialFactory createSerialFactory(String serialFactoryName)
+    {
+        if (serialFactoryName != null)
+        {
+            serialFactoryName = serialFactoryName.trim();
+
+            if (SERIAL_FACTORY_COMPACT.equalsIgnoreCase(serialFactoryName))
+            {
+                return new CompactSerialFactory();
+            }
+
+            if (serialFactoryName.length() > 0)
+            {
+                try
+                {
+                    return (SerialFactory) ClassUtils.classForName(serialFactoryName).newInstance();
+                }
+                catch (Exception e)
+                {
+                    log.log(Level.SEVERE, "Could not create the SerialFactory " + serialFactoryName +
+                            ", using the default one", e);
                 }
             }
         }
+
+        return new DefaultSerialFactory();
+    }
+
+    /**
+     * Returns a StateCodec from the application's pool, creating one if the pool
+     * is empty.  Codecs hold their Cipher, Mac, Deflater and buffers between requests,
+     * so that they don't have to be created for each state.
+     */
+    private static StateCodec acquireCodec(ExternalContext ctx, boolean secure)
+    {
+        String transformation = findAlgorithm(ctx) + "/" + findAlgorithmParams(ctx);
+        String macAlgorithm = findMacAlgorithm(ctx);
+        
+        StateCodec codec = getCodecPool(ctx).poll();
+        
+        if (codec != null && codec.isConfiguredFor(transformation, macAlgorithm))
+        {
+            return codec;
+        }
+        
+        if (codec != null)
+        {
+            codec.dispose();
+        }
+        
+        if (secure)
+        {
+            testConfiguration(ctx);
+        }
+        
+        return new StateCodec(transformation, findInitializationVector(ctx), macAlgorithm);
+    }
+
+    /**
+     * Returns a codec to the pool.  Codecs that failed are discarded, since their
+     * Cipher may have been left in an unknown state.
+     */
+    private static void releaseCodec(ExternalContext ctx, StateCodec codec, boolean succeeded)
+    {
+        if (succeeded)
+        {
+            codec.trimBuffers();
+            
+            if (getCodecPool(ctx).offer(codec))
+            {
+                return;
+            }
+        }
+        
+        codec.dispose();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BlockingQueue<StateCodec> getCodecPool(ExternalContext ctx)
+    {
+        Map<String, Object> applicationMap = ctx.getApplicationMap();
+        BlockingQueue<StateCodec> pool = (BlockingQueue<StateCodec>) applicationMap.get(CODEC_POOL);
+        
+        if (pool == null)
+        {
+            // racing requests may each create a pool, which only costs the codecs in
+            // the pools that lose
+            pool = new ArrayBlockingQueue<StateCodec>(CODEC_POOL_SIZE);
+            applicationMap.put(CODEC_POOL, pool);
+        }
+        
+        return pool;
     }
 
     /**
@@ -18,6 +18,7 @@
  */
 package org.apache.myfaces.trinidadinternal.util;
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 
 import java.math.BigInteger;
@@ -25,6 +26,10 @@ import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
@@ -60,6 +65,27 @@ public class TokenCache implements Serializable
    */
   static public final char SEPARATOR_CHAR = '.';
 
+  /**
+   * Servlet context parameter that, when set to "true", stores the tokens of the session's
+   * caches in a ConcurrentTokenCache, so that concurrent requests for the same window
+   * don't serialize on the cache.
+   */
+  static public final String CONCURRENT_TOKEN_CACHE_PARAM_NAME =
+    "org.apache.myfaces.trinidad.CONCURRENT_TOKEN_CACHE";
+
+  /**
+   * Implemented by target stores whose values are expensive to retrieve
+   * (for example, because they are stored serialized), so that tokens evicted
+   * from the cache can be removed from the store without fetching their values.
+   */
+  public interface DeletableStore
+  {
+    /**
+     * Removes the value stored for a key, without returning it.
+     */
+    public void delete(String key);
+  }
+
   /**
    * Gets a TokenCache from the session, creating it if needed.
    */
@@ -89,7 +115,10 @@ public class TokenCache implements Serializable
           if (cache == null)
           {
             // create the TokenCache with the crytographically random seed
-            cache = new TokenCache(defaultSize, _getSeed(), cacheName);
+            if (_isConcurrentTokenCache(extContext))
+              cache = new ConcurrentTokenCache(defaultSize, _getSeed(), cacheName);
+            else
+              cache = new TokenCache(defaultSize, _getSeed(), cacheName);
     
             sessionMap.put(cacheName, cache);
           }
@@ -100,6 +129,14 @@ public class TokenCache implements Serializable
     return cache;
   }
     
+  /**
+   * Returns true if the application asked for concurrent token caches
+   */
+  private static boolean _isConcurrentTokenCache(ExternalContext extContext)
+  {
+    return "true".equalsIgnoreCase(extContext.getInitParameter(CONCURRENT_TOKEN_CACHE_PARAM_NAME));
+  }
+
   /**
    * Returns a cryptographically secure random number to use as the TokenCache seed
    */
@@ -151,10 +188,9 @@ public class TokenCache implements Serializable
   * Create a TokenCache that will store the last "size" entries,
   * and begins its tokens based on the seed (instead of always
   * starting at "0").
-  * @patam owner      Optional Cache that stores the token cache
   * @param keyInOwner Optional Name under which this cache is stored in the owner
   */
-  private TokenCache(int size, long seed, String keyInOwner)
+  TokenCache(int size, long seed, String keyInOwner)
   {
     _cache      = new LRU(size);
     _pinned     = new ConcurrentHashMap<String, String>(size);
@@ -162,6 +198,19 @@ public class TokenCache implements Serializable
     _keyInOwner = keyInOwner;
   } 
 
+  /**
+   * Constructor for subclasses that track the tokens themselves, and therefore
+   * override all of the methods that access the least recently used tokens.
+   * @param pinned the subclass's map from pinning tokens to the tokens they pin
+   */
+  TokenCache(Map<String, String> pinned, long seed, String keyInOwner)
+  {
+    _cache      = Collections.emptyMap();
+    _pinned     = pinned;
+    _count      = new AtomicLong(seed);
+    _keyInOwner = keyInOwner;
+  }
+
   /**
    * Create a new token;  and use that token to store a value into
    * a target Map.  The least recently used values from the
@@ -196,7 +245,7 @@ public class TokenCache implements Serializable
     String token = null;
     synchronized (this)
     {
-      token = _getNextToken();
+      token = getNextToken();
 
       // If there is a request to pin one token to another, 
       // store that:  the pinnedToken is the value
@@ -230,13 +279,13 @@ public class TokenCache implements Serializable
     // assert above.
     if (remove != null)
     {
-      _removeTokenIfReady(targetStore, remove);        
+      _removeTokenIfReady(targetStore, remove, false);
     }
     
     targetStore.put(token, value);
 
     // our contents have changed, so mark ourselves as dirty in our owner
-    _dirty();
+    markDirty();
 
     if(TokenCacheDebugUtils.debugTokenCache())
     {
@@ -275,7 +324,8 @@ public class TokenCache implements Serializable
    */
   synchronized private <V> V _removeTokenIfReady(
       Map<String, V> targetStore, 
-      String              token)
+      String              token,
+      boolean             returnValue)
   {
     V removedValue;
     
@@ -290,7 +340,16 @@ public class TokenCache implements Serializable
         TokenCacheDebugUtils.removeTokenFromViewIdMap(token);
       }
       
-      removedValue = targetStore.remove(token);
+      if (returnValue)
+      {
+        removedValue = targetStore.remove(token);
+      }
+      else
+      {
+        deleteValue(targetStore, token);
+        removedValue = null;
+      }
+
       // Now, see if that key was pinning anything else
       String wasPinned = _pinned.remove(token);
       if (wasPinned != null)
@@ -303,7 +362,7 @@ public class TokenCache implements Serializable
         }        
         
         // Yup, so see if we can remove that token
-        _removeTokenIfReady(targetStore, wasPinned);
+        _removeTokenIfReady(targetStore, wasPinned, false);
       }
     }
     else
@@ -317,12 +376,24 @@ public class TokenCache implements Serializable
       _LOG.finest("Not removing pinned token ''{0}''", token);
       // TODO: is this correct?  We're not really removing
       // the target value.
-      removedValue = targetStore.get(token);
+      removedValue = returnValue ? targetStore.get(token) : null;
     }
 
     return removedValue;
   }
 
+  /**
+   * Removes the value stored for a token from a target store, without
+   * fetching the value if the store supports that.
+   */
+  static <V> void deleteValue(Map<String, V> targetStore, String token)
+  {
+    if (targetStore instanceof DeletableStore)
+      ((DeletableStore)targetStore).delete(token);
+    else
+      targetStore.remove(token);
+  }
+
 
   /**
    * Removes a value from the cache.
@@ -346,7 +417,7 @@ public class TokenCache implements Serializable
       
       // TODO: should removing a value that is "pinned" take?
       // Or should it stay in memory?
-      oldValue = _removeTokenIfReady(targetStore, token);
+      oldValue = _removeTokenIfReady(targetStore, token, true);
       
       if (TokenCacheDebugUtils.debugTokenCache())
       {
@@ -356,7 +427,7 @@ public class TokenCache implements Serializable
     }
 
     // our contents have changed, so mark ourselves as dirty in our owner
-    _dirty();
+    markDirty();
     
     return oldValue;
   }
@@ -371,17 +442,20 @@ public class TokenCache implements Serializable
       for(String keyToRemove : _cache.keySet())
       {
         _LOG.finest("Clearing token {0} from cache", keyToRemove);
-        targetStore.remove(keyToRemove);
+        deleteValue(targetStore, keyToRemove);
       }
 
       _cache.clear();
     }
 
     // our contents have changed, so mark ourselves as dirty in our owner
-    _dirty();
+    markDirty();
   }
 
-  private String _getNextToken()
+  /**
+   * Returns a new, unique token
+   */
+  String getNextToken()
   {
     // atomically increment the value
     long nextToken = _count.incrementAndGet();
@@ -390,10 +464,79 @@ public class TokenCache implements Serializable
     return Long.toString(nextToken, 36);
   }
   
+  /**
+   * Returns the maximum number of tokens the cache holds, not counting pinned tokens
+   */
+  int getMaxSize()
+  {
+    return ((LRU)_cache).getMaxSize();
+  }
+
+  /**
+   * Returns the last token handed out, as a number
+   */
+  long getLastTokenCount()
+  {
+    return _count.get();
+  }
+
+  /**
+   * Returns the name under which this cache is stored in the owner, if any
+   */
+  String getKeyInOwner()
+  {
+    return _keyInOwner;
+  }
+
+  /**
+   * Returns the tokens in the cache, least recently used first
+   */
+  List<String> getTokens()
+  {
+    synchronized (this)
+    {
+      return new ArrayList<String>(_cache.keySet());
+    }
+  }
+
+  /**
+   * Returns a copy of the map from pinning tokens to the tokens they pin
+   */
+  Map<String, String> getPinnedTokens()
+  {
+    return new HashMap<String, String>(_pinned);
+  }
+
+  /**
+   * Adds the tokens of a deserialized cache to this empty cache.
+   * @param tokens the tokens, least recently used first
+   * @param pinnedTokens the map from pinning tokens to the tokens they pin
+   */
+  void restoreTokens(List<String> tokens, Map<String, String> pinnedTokens)
+  {
+    synchronized (this)
+    {
+      for (String token : tokens)
+        _cache.put(token, token);
+
+      _pinned.putAll(pinnedTokens);
+    }
+  }
+
+  /**
+   * Serializes the cache in its compact, Externalizable form.  Since the cache is
+   * dirtied in the session whenever a token is added or removed, a replicated session
+   * writes it on nearly every request.
+   */
+  Object writeReplace() throws ObjectStreamException
+  {
+    return new SerializedTokenCache(this);
+  }
+
   /**
    * Mark the cache as dirty in the owner
    */
-  private void _dirty()
+  void markDirty()
   {
     if (_keyInOwner != null)
     {
@@ -437,6 +580,8 @@ public class TokenCache implements Serializable
     private static final long serialVersionUID = 1L;
   }
 
+  // the tokens, least recently used first.  Empty for subclasses that track the
+  // tokens themselves
   private final Map<String, String> _cache;
   
   // Map from String to String, where the keys represent tokens that are
@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.util.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.myfaces.trinidadinternal.util.ClassUtils;
+import org.apache.myfaces.trinidadinternal.util.MyFacesObjectInputStream;
+
+/**
+ * SerialFactory producing a more compact serialization of the view state.
+ * Java serialization writes the full descriptor of each class the first time
+ * the class appears in a stream, and since the state of each request is a new
+ * stream, for a typical component tree those descriptors are a large part
+ * of the serialized state.  The streams of this factory instead write the
+ * classes that are common in component state as a single byte index.
+ * Equal Strings and boxed numbers are written once per stream and then
+ * referenced by handle, rather than once per instance.
+ * <p>
+ * Streams written by this factory can only be read by this factory.
+ */
+public class CompactSerialFactory implements SerialFactory
+{
+
+    public ObjectOutputStream getObjectOutputStream(OutputStream outputStream) throws IOException
+    {
+        return new CompactObjectOutputStream(outputStream);
+    }
+
+    public ObjectInputStream getObjectInputStream(InputStream inputStream) throws IOException
+    {
+        return new CompactObjectInputStream(inputStream);
+    }
+
+    private static final class CompactObjectOutputStream extends ObjectOutputStream
+    {
+        public CompactObjectOutputStream(OutputStream outputStream) throws IOException
+        {
+            super(outputStream);
+
+            boolean replace;
+
+            try
+            {
+                enableReplaceObject(true);
+                replace = true;
+            }
+            catch (SecurityException e)
+            {
+                // not allowed to substitute objects, so only the class descriptors are compacted
+                replace = false;
+            }
+
+            _canonicalValues = replace ? new HashMap<Object, Object>() : null;
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException
+        {
+            Integer index = _KNOWN_CLASS_INDICES.get(desc.getName());
+
+            if (index != null)
+            {
+                writeByte(index.intValue() + 1);
+            }
+            else
+            {
+                writeByte(0);
+                super.writeClassDescriptor(desc);
+            }
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException
+        {
+            // replace equal values with the first instance written, so that the stream
+            // references that instance instead of writing the value again
+            if ((obj instanceof String) || (obj instanceof Integer) || (obj instanceof Long))
+            {
+                Object canonicalValue = _canonicalValues.get(obj);
+
+                if (canonicalValue != null)
+                {
+                    return canonicalValue;
+                }
+
+                _canonicalValues.put(obj, obj);
+            }
+            else if (obj instanceof Boolean)
+            {
+                return Boolean.valueOf(((Boolean)obj).booleanValue());
+            }
+
+            return obj;
+        }
+
+        private final Map<Object, Object> _canonicalValues;
+    }
+
+    private static final class CompactObjectInputStream extends MyFacesObjectInputStream
+    {
+        public CompactObjectInputStream(InputStream inputStream) throws IOException
+        {
+            super(inputStream);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException
+        {
+            int index = readUnsignedByte() - 1;
+
+            if (index < 0)
+            {
+                return super.readClassDescriptor();
+            }
+
+            if (index >= _KNOWN_CLASS_NAMES.length)
+            {
+                throw new IOException("Invalid class index " + index);
+            }
+
+            Class<?> knownClass = _knownClasses[index];
+
+            if (knownClass == null)
+            {
+                // racing threads load the same class, which is harmless
+                knownClass = ClassUtils.classForName(_KNOWN_CLASS_NAMES[index]);
+                _knownClasses[index] = knownClass;
+            }
+
+            return ObjectStreamClass.lookup(knownClass);
+        }
+    }
+
+    // Classes that are common in component state.  The position of each class is
+    // its index in the stream, so new classes must only be added at the end.
+    private static final String[] _KNOWN_CLASS_NAMES = new String[]
+    {
+        "[Ljava.lang.Object;",
+        "java.lang.Number",
+        "java.lang.Integer",
+        "java.lang.Long",
+        "java.lang.Short",
+        "java.lang.Byte",
+        "java.lang.Double",
+        "java.lang.Float",
+        "java.lang.Boolean",
+        "java.lang.Character",
+        "java.lang.Enum",
+        "[Ljava.lang.String;",
+        "[I",
+        "java.util.ArrayList",
+        "java.util.HashMap",
+        "java.util.Date",
+        "java.math.BigDecimal",
+        "java.math.BigInteger",
+        "org.apache.myfaces.trinidadinternal.application.Structure",
+        "org.apache.myfaces.trinidad.bean.util.StateUtils$Saver",
+        "org.apache.myfaces.trinidad.bean.util.StateUtils$SHSaver",
+        "javax.faces.component.StateHolderSaver",
+        "javax.faces.component.AttachedObjectStateWrapper",
+    };
+
+    private static final Map<String, Integer> _KNOWN_CLASS_INDICES =
+        new HashMap<String, Integer>(_KNOWN_CLASS_NAMES.length * 2);
+
+    private static final Class<?>[] _knownClasses = new Class<?>[_KNOWN_CLASS_NAMES.length];
+
+    static
+    {
+        for (int i = 0; i < _KNOWN_CLASS_NAMES.length; i++)
+        {
+            _KNOWN_CLASS_INDICES.put(_KNOWN_CLASS_NAMES[i], Integer.valueOf(i));
+        }
+    }
+}
@@ -50,6 +50,7 @@ import org.apache.myfaces.trinidad.logging.TrinidadLogger;
 import org.apache.myfaces.trinidad.util.ClassLoaderUtils;
 import org.apache.myfaces.trinidad.util.ExternalContextUtils;
 import org.apache.myfaces.trinidad.util.RequestStateMap;
+import org.apache.myfaces.trinidadinternal.application.StateCompressor;
 import org.apache.myfaces.trinidadinternal.config.CheckSerializationConfigurator;
 import org.apache.myfaces.trinidadinternal.config.GlobalConfiguratorImpl;
 import org.apache.myfaces.trinidadinternal.config.dispatch.DispatchResponseConfiguratorImpl;
@@ -353,10 +354,21 @@ public class TrinidadFilterImpl implements Filter
       {
         _handleDialogReturn(ec);
       }
+
+      if (StateCompressor.hasDeferredWork(ec))
+      {
+        // send the response before compressing the state that it saved, so that the
+        // compression doesn't compete with the response for the CPU
+        response.flushBuffer();
+      }
     }
     finally
     {
       _PSEUDO_FACES_CONTEXT.remove();
+
+      // compress the state saved by the request.  The work only needs what it captured
+      // while the request was running, not the request's FacesContext
+      StateCompressor.submitDeferredWork(ec);
     }
   }
   
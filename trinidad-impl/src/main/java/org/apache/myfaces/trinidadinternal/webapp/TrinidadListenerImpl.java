@@ -22,6 +22,9 @@ import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
 import org.apache.myfaces.trinidad.context.RequestContext;
+import org.apache.myfaces.trinidad.util.FileWatcher;
+import org.apache.myfaces.trinidadinternal.application.StateCompressor;
+import org.apache.myfaces.trinidadinternal.application.StateMetrics;
 import org.apache.myfaces.trinidadinternal.config.GlobalConfiguratorImpl;
 
 /**
@@ -37,6 +40,9 @@ public class TrinidadListenerImpl implements ServletContextListener
    */
   public void contextDestroyed(ServletContextEvent arg0)
   {
+    StateMetrics.unregister(arg0.getServletContext());
+    StateCompressor.shutdown(arg0.getServletContext());
+    FileWatcher.shutdown(arg0.getServletContext());
     RequestContext.releaseApplicationState();
     GlobalConfiguratorImpl.getInstance().destroy();
     GlobalConfiguratorImpl.getInstance().releaseInstance();
@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.agent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.faces.context.ExternalContext;
+import javax.faces.context.ExternalContextWrapper;
+import javax.faces.context.FacesContext;
+import javax.faces.context.FacesContextWrapper;
+
+import junit.framework.TestCase;
+
+import org.apache.myfaces.trinidad.context.Agent;
+import org.apache.myfaces.trinidadinternal.renderkit.MApplication;
+import org.apache.myfaces.trinidadinternal.renderkit.MFacesContext;
+
+public class AgentCacheTest extends TestCase
+{
+  public AgentCacheTest(String testName)
+  {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    _headers = new HashMap<String, String>();
+    _parameters = new HashMap<String, String>();
+    _context = new RequestFacesContext(new MFacesContext(MApplication.sharedInstance(), true),
+                                       _headers,
+                                       _parameters);
+    _factory = new AgentFactoryImpl();
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    MFacesContext.clearContext();
+    super.tearDown();
+  }
+
+  public void testAgentsCached()
+  {
+    AgentCache cache = new AgentCache(10);
+
+    _headers.put("User-Agent", _FIREFOX);
+    TrinidadAgent agent = cache.getAgent(_context, _factory);
+    assertEquals(Agent.AGENT_GECKO, agent.getAgentName());
+    assertSame(agent, cache.getAgent(_context, _factory));
+
+    _headers.put("User-Agent", _IE);
+    TrinidadAgent ieAgent = cache.getAgent(_context, _factory);
+    assertEquals(Agent.AGENT_IE, ieAgent.getAgentName());
+    assertNotSame(agent, ieAgent);
+
+    assertEquals(2, cache.getSize());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(1.0 / 3, cache.getHitRate(), 0.0001);
+  }
+
+  public void testCacheKey()
+  {
+    _headers.put("User-Agent", _FIREFOX);
+    String key = _factory.getCacheKey(_context);
+    assertNotNull(key);
+
+    // headers the agent doesn't depend on don't matter
+    _headers.put("Accept-Language", "en");
+    _headers.put("Accept", "text/html");
+    assertEquals(key, _factory.getCacheKey(_context));
+
+    _headers.put("Accept", "vnd.wap.wml");
+    assertFalse(key.equals(_factory.getCacheKey(_context)));
+    _headers.remove("Accept");
+
+    _headers.put("UA-pixels", "240x320");
+    assertFalse(key.equals(_factory.getCacheKey(_context)));
+    _headers.remove("UA-pixels");
+
+    _parameters.put(AgentFactoryImpl.EMAIL_PARAM, "true");
+    assertFalse(key.equals(_factory.getCacheKey(_context)));
+    _parameters.put(AgentFactoryImpl.EMAIL_PARAM, "false");
+    assertEquals(key, _factory.getCacheKey(_context));
+  }
+
+  public void testEmailAgentCachedSeparately()
+  {
+    AgentCache cache = new AgentCache(10);
+
+    _headers.put("User-Agent", _FIREFOX);
+    TrinidadAgent agent = cache.getAgent(_context, _factory);
+
+    _parameters.put(AgentFactoryImpl.EMAIL_PARAM, "true");
+    TrinidadAgent emailAgent = cache.getAgent(_context, _factory);
+
+    assertEquals(Agent.AGENT_GECKO, agent.getAgentName());
+    assertEquals(Agent.AGENT_EMAIL, emailAgent.getAgentName());
+  }
+
+  public void testLeastRecentlyUsedAgentDiscarded()
+  {
+    AgentCache cache = new AgentCache(2);
+
+    _headers.put("User-Agent", _FIREFOX);
+    TrinidadAgent agent = cache.getAgent(_context, _factory);
+
+    _headers.put("User-Agent", _IE);
+    TrinidadAgent ieAgent = cache.getAgent(_context, _factory);
+    assertEquals(Agent.AGENT_IE, ieAgent.getAgentName());
+
+    // make the IE agent the most recently used
+    assertSame(ieAgent, cache.getAgent(_context, _factory));
+
+    // a new agent is still cached once the cache is full, in place of the Firefox agent
+    _headers.put("User-Agent", _SAFARI);
+    TrinidadAgent safariAgent = cache.getAgent(_context, _factory);
+    assertSame(safariAgent, cache.getAgent(_context, _factory));
+    assertEquals(2, cache.getSize());
+
+    _headers.put("User-Agent", _IE);
+    assertSame(ieAgent, cache.getAgent(_context, _factory));
+
+    _headers.put("User-Agent", _FIREFOX);
+    TrinidadAgent newAgent = cache.getAgent(_context, _factory);
+    assertNotSame(agent, newAgent);
+    assertEquals(Agent.AGENT_GECKO, newAgent.getAgentName());
+  }
+
+  /**
+   * FacesContext for a request with the given headers and parameters
+   */
+  private static final class RequestFacesContext extends FacesContextWrapper
+  {
+    public RequestFacesContext(
+      FacesContext        wrapped,
+      Map<String, String> headers,
+      Map<String, String> parameters)
+    {
+      _wrapped = wrapped;
+      _headers = headers;
+      _parameters = parameters;
+      _external = new ExternalContextWrapper()
+      {
+        @Override
+        public ExternalContext getWrapped()
+        {
+          return _wrapped.getExternalContext();
+        }
+
+        @Override
+        public Map<String, String> getRequestHeaderMap()
+        {
+          return _headers;
+        }
+
+        @Override
+        public Map<String, String> getRequestParameterMap()
+        {
+          return _parameters;
+        }
+      };
+    }
+
+    @Override
+    public FacesContext getWrapped()
+    {
+      return _wrapped;
+    }
+
+    @Override
+    public ExternalContext getExternalContext()
+    {
+      return _external;
+    }
+
+    private final FacesContext        _wrapped;
+    private final ExternalContext     _external;
+    private final Map<String, String> _headers;
+    private final Map<String, String> _parameters;
+  }
+
+  private Map<String, String> _headers;
+  private Map<String, String> _parameters;
+  private FacesContext        _context;
+  private AgentFactoryImpl    _factory;
+
+  static private final String _FIREFOX =
+    "Mozilla/5.0 (Windows NT 6.1; WOW64; rv:40.0) Gecko/20100101 Firefox/40.1";
+  static private final String _IE =
+    "Mozilla/5.0 (compatible; MSIE 10.0; Windows NT 6.1; Trident/6.0)";
+  static private final String _SAFARI =
+    "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_10_5) AppleWebKit/600.8.9 " +
+    "(KHTML, like Gecko) Version/8.0.8 Safari/600.8.9";
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.application;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.myfaces.trinidadinternal.util.TokenCache;
+
+/**
+ * Test of OffHeapViewStateStore and ViewStateStoreMap.
+ */
+public class OffHeapViewStateStoreTest extends TestCase
+{
+  public OffHeapViewStateStoreTest(String testName)
+  {
+    super(testName);
+  }
+
+  public void testStore()
+  {
+    OffHeapViewStateStore store = new OffHeapViewStateStore();
+
+    store.putState("session1", "token1", new byte[]{1, 2, 3});
+    store.putState("session2", "token1", new byte[]{4, 5});
+
+    // each state takes a buffer of at least 1024 bytes
+    assertEquals(2048, store.getByteCount());
+    assertEquals(2, store.getSessionCount());
+    assertEquals(3, store.getState("session1", "token1")[2]);
+    assertEquals(4, store.getState("session2", "token1")[0]);
+    assertNull(store.getState("session1", "token2"));
+
+    // replacing state must account for the old bytes
+    store.putState("session1", "token1", new byte[1025]);
+    assertEquals(3072, store.getByteCount());
+    assertEquals(1025, store.getState("session1", "token1").length);
+
+    assertTrue(store.removeState("session1", "token1"));
+    assertFalse(store.removeState("session1", "token1"));
+    assertEquals(1024, store.getByteCount());
+
+    store.removeSession("session2");
+    assertEquals(0, store.getByteCount());
+    assertNull(store.getState("session2", "token1"));
+  }
+
+  public void testBufferPool()
+  {
+    OffHeapViewStateStore store = new OffHeapViewStateStore(2048);
+
+    store.putState("session", "token1", new byte[]{1, 2, 3});
+    assertEquals(0, store.getPooledByteCount());
+
+    // removed buffers are kept for reuse
+    store.removeState("session", "token1");
+    assertEquals(1024, store.getPooledByteCount());
+
+    store.putState("session", "token2", new byte[]{4, 5});
+    assertEquals(0, store.getPooledByteCount());
+    assertEquals(2, store.getState("session", "token2").length);
+    assertEquals(5, store.getState("session", "token2")[1]);
+
+    // buffers beyond the pool limit are left to the garbage collector
+    store.putState("session", "token3", new byte[1]);
+    store.putState("session", "token4", new byte[1]);
+    store.putState("session", "token5", new byte[1]);
+    store.removeSession("session");
+    assertEquals(2048, store.getPooledByteCount());
+    assertEquals(0, store.getByteCount());
+  }
+
+  public void testStoreMap()
+  {
+    OffHeapViewStateStore store = new OffHeapViewStateStore();
+    Map<String, HashMap<String, String>> one =
+      new ViewStateStoreMap<HashMap<String, String>>(store, "session", "one.");
+    Map<String, HashMap<String, String>> two =
+      new ViewStateStoreMap<HashMap<String, String>>(store, "session", "two.");
+
+    HashMap<String, String> value = new HashMap<String, String>();
+    value.put("foo", "bar");
+
+    one.put("foo", value);
+    assertTrue(one.containsKey("foo"));
+    assertFalse(two.containsKey("foo"));
+
+    // the value is stored serialized, so we get back an equal copy
+    HashMap<String, String> restored = one.get("foo");
+    assertNotSame(value, restored);
+    assertEquals(value, restored);
+
+    assertEquals(value, one.remove("foo"));
+    assertNull(one.get("foo"));
+    assertEquals(0, store.getByteCount());
+  }
+
+  public void testTokenCacheWithStoreMap()
+  {
+    OffHeapViewStateStore store = new OffHeapViewStateStore();
+    Map<String, ArrayList<String>> map =
+      new ViewStateStoreMap<ArrayList<String>>(store, "session", "view.");
+
+    TokenCache cache = new TokenCache(2);
+
+    String token1 = cache.addNewEntry(_createState("1"), map);
+    String token2 = cache.addNewEntry(_createState("2"), map);
+    String token3 = cache.addNewEntry(_createState("3"), map);
+
+    // the least recently used token is removed from the store
+    assertNull(map.get(token1));
+    assertEquals(_createState("2"), map.get(token2));
+    assertEquals(_createState("3"), map.get(token3));
+
+    cache.clear(map);
+    assertEquals(0, store.getByteCount());
+  }
+
+  private ArrayList<String> _createState(String value)
+  {
+    ArrayList<String> state = new ArrayList<String>();
+    state.add(value);
+    return state;
+  }
+}
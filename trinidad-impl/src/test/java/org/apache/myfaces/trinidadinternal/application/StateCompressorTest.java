@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.application;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.faces.context.ExternalContext;
+
+import junit.framework.TestCase;
+
+import org.apache.myfaces.trinidadinternal.renderkit.MApplication;
+import org.apache.myfaces.trinidadinternal.renderkit.MFacesContext;
+
+/**
+ * Test of StateCompressor.
+ */
+public class StateCompressorTest extends TestCase
+{
+  public StateCompressorTest(String testName)
+  {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp()
+  {
+    _facesContext = new MFacesContext(MApplication.sharedInstance(), true);
+  }
+
+  @Override
+  protected void tearDown()
+  {
+    MFacesContext.clearContext();
+    _facesContext = null;
+  }
+
+  public void testDeferredWork() throws InterruptedException
+  {
+    ExternalContext external = _facesContext.getExternalContext();
+    StateCompressor compressor = StateCompressor.getInstance(external);
+    assertSame(compressor, StateCompressor.getInstance(external));
+
+    final CountDownLatch done = new CountDownLatch(3);
+    final AtomicInteger runs = new AtomicInteger();
+
+    Runnable work = new Runnable()
+    {
+      public void run()
+      {
+        runs.incrementAndGet();
+        done.countDown();
+      }
+    };
+
+    assertFalse(StateCompressor.hasDeferredWork(external));
+
+    for (int i = 0; i < 3; i++)
+    {
+      compressor.defer(external, work);
+    }
+
+    assertTrue(StateCompressor.hasDeferredWork(external));
+
+    // nothing runs until the request submits its work
+    Thread.sleep(50L);
+    assertEquals(0, runs.get());
+
+    StateCompressor.submitDeferredWork(external);
+    assertFalse(StateCompressor.hasDeferredWork(external));
+    assertTrue(done.await(10L, TimeUnit.SECONDS));
+
+    // the work is only submitted once
+    StateCompressor.submitDeferredWork(external);
+    Thread.sleep(50L);
+    assertEquals(3, runs.get());
+  }
+
+  public void testNotDeferrableOutsideOfFilter()
+  {
+    assertFalse(StateCompressor.isDeferrable());
+  }
+
+  private MFacesContext _facesContext;
+}
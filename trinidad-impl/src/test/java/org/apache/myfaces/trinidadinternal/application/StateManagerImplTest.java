@@ -0,0 +1,451 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.application;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.faces.component.UIViewRoot;
+import javax.faces.context.ExternalContext;
+import javax.faces.context.ExternalContextWrapper;
+import javax.faces.context.FacesContext;
+import javax.faces.context.FacesContextWrapper;
+import javax.faces.render.ResponseStateManager;
+
+import junit.framework.TestCase;
+
+import org.apache.myfaces.trinidad.component.core.input.CoreInputText;
+
+import org.apache.myfaces.trinidadinternal.renderkit.MApplication;
+import org.apache.myfaces.trinidadinternal.renderkit.MFacesContext;
+import org.apache.myfaces.trinidadinternal.renderkit.MRequestContext;
+import org.apache.myfaces.trinidadinternal.renderkit.MStateManager;
+import org.apache.myfaces.trinidadinternal.renderkit.RenderKitBootstrap;
+import org.apache.myfaces.trinidadinternal.util.StateUtils;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Test of StateManagerImpl token state saving.
+ */
+public class StateManagerImplTest extends TestCase
+{
+  public StateManagerImplTest(String testName)
+  {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws IOException, SAXException
+  {
+    if (_sBootstrap == null)
+    {
+      RenderKitBootstrap bootstrap = new RenderKitBootstrap();
+      bootstrap.init();
+      _sBootstrap = bootstrap;
+    }
+
+    RenderKitBootstrap.setFactories(_sBootstrap.getFacesConfigInfo());
+  }
+
+  @Override
+  protected void tearDown()
+  {
+    MFacesContext.clearContext();
+
+    if (_requestContext != null)
+    {
+      _requestContext.release();
+      _requestContext = null;
+    }
+
+    RenderKitBootstrap.clearFactories();
+  }
+
+  public void testRestoreAfterSessionFailover() throws Exception
+  {
+    _testRestoreAfterSessionFailover(false);
+  }
+
+  public void testRestoreZippedStateAfterSessionFailover() throws Exception
+  {
+    _testRestoreAfterSessionFailover(true);
+  }
+
+  private void _testRestoreAfterSessionFailover(boolean compressViewState) throws Exception
+  {
+    Map<String, String> initParams = new HashMap<String, String>();
+    initParams.put(StateManagerImpl.COMPRESS_VIEW_STATE_PARAM_NAME,
+                   Boolean.toString(compressViewState));
+    initParams.put(StateUtils.USE_ENCRYPTION, "false");
+
+    MFacesContext context = new MFacesContext(MApplication.sharedInstance(), true, initParams);
+    _requestContext = new MRequestContext();
+    _requestContext.setAgent(RenderKitBootstrap.getGeckoAgent());
+
+    StateManagerImpl stateManager = new StateManagerImpl(new MStateManager());
+
+    UIViewRoot root = new UIViewRoot();
+    root.setViewId("/failover.jspx");
+    root.setRenderKitId(_RENDER_KIT_ID);
+    CoreInputText input = new CoreInputText();
+    input.setId("input");
+    input.setValue("saved value");
+    root.getChildren().add(input);
+    context.setViewRoot(root);
+
+    Object state = stateManager.saveView(context);
+    String viewState = context.getRenderKit().getResponseStateManager().getViewState(context, state);
+
+    // replicate the session to another server, which only has the serialized attributes
+    Map<String, Object> sessionMap = context.getExternalContext().getSessionMap();
+    Map<String, Object> replicated = _replicate(new HashMap<String, Object>(sessionMap));
+    sessionMap.clear();
+    sessionMap.putAll(replicated);
+
+    // a replicated PageState that was never restored can be replicated again
+    _replicate(replicated);
+
+    context.getExternalContext().getRequestMap().clear();
+    context.setViewRoot(null);
+
+    UIViewRoot restored = stateManager.restoreView(new PostbackContext(context, viewState),
+                                                   "/failover.jspx",
+                                                   _RENDER_KIT_ID);
+
+    assertNotNull(restored);
+    CoreInputText restoredInput = (CoreInputText)restored.findComponent("input");
+    assertNotNull(restoredInput);
+    assertEquals("saved value", restoredInput.getValue());
+  }
+
+  public void testRestoreAfterReplicatingLiveSession() throws Exception
+  {
+    Map<String, String> initParams = new HashMap<String, String>();
+    initParams.put(StateUtils.USE_ENCRYPTION, "false");
+
+    MFacesContext context = new MFacesContext(MApplication.sharedInstance(), true, initParams);
+    _requestContext = new MRequestContext();
+    _requestContext.setAgent(RenderKitBootstrap.getGeckoAgent());
+
+    StateManagerImpl stateManager = new StateManagerImpl(new MStateManager());
+
+    UIViewRoot root = new UIViewRoot();
+    root.setViewId("/live.jspx");
+    root.setRenderKitId(_RENDER_KIT_ID);
+    CoreInputText input = new CoreInputText();
+    input.setId("input");
+    input.setValue("saved value");
+    root.getChildren().add(input);
+    context.setViewRoot(root);
+
+    Object state = stateManager.saveView(context);
+    String viewState = context.getRenderKit().getResponseStateManager().getViewState(context, state);
+
+    // replicating the session serializes the state, after which the PageStates in the
+    // live session only keep the serialized state
+    _serialize(context.getExternalContext().getSessionMap());
+
+    for (int i = 0; i < 2; i++)
+    {
+      context.getExternalContext().getRequestMap().clear();
+      context.setViewRoot(null);
+
+      UIViewRoot restored = stateManager.restoreView(new PostbackContext(context, viewState),
+                                                     "/live.jspx",
+                                                     _RENDER_KIT_ID);
+      assertNotNull(restored);
+      assertEquals("saved value", ((CoreInputText)restored.findComponent("input")).getValue());
+
+      // each restore gets its own copy of the state
+      ((CoreInputText)restored.findComponent("input")).setValue("changed value");
+    }
+  }
+
+  public void testRestoreDeltaState() throws Exception
+  {
+    Map<String, String> initParams = new HashMap<String, String>();
+    initParams.put(StateManagerImpl.VIEW_STATE_KEYFRAME_INTERVAL_PARAM_NAME, "5");
+    initParams.put(StateUtils.USE_ENCRYPTION, "false");
+
+    MFacesContext context = new MFacesContext(MApplication.sharedInstance(), true, initParams);
+    _requestContext = new MRequestContext();
+    _requestContext.setAgent(RenderKitBootstrap.getGeckoAgent());
+
+    StateManagerImpl stateManager = new StateManagerImpl(new MStateManager());
+
+    UIViewRoot root = new UIViewRoot();
+    root.setViewId("/delta.jspx");
+    root.setRenderKitId(_RENDER_KIT_ID);
+    CoreInputText input = new CoreInputText();
+    input.setId("input");
+    input.setValue("first value");
+    root.getChildren().add(input);
+    context.setViewRoot(root);
+
+    Object state = stateManager.saveView(context);
+    String viewState = context.getRenderKit().getResponseStateManager().getViewState(context, state);
+
+    // postback, whose state is stored as a delta against the restored state
+    FacesContext postback = _postback(context, viewState);
+    UIViewRoot restored = stateManager.restoreView(postback, "/delta.jspx", _RENDER_KIT_ID);
+    ((CoreInputText)restored.findComponent("input")).setValue("second value");
+    postback.setViewRoot(restored);
+
+    state = stateManager.saveView(postback);
+    String deltaViewState =
+      context.getRenderKit().getResponseStateManager().getViewState(context, state);
+    assertFalse(viewState.equals(deltaViewState));
+
+    restored = stateManager.restoreView(_postback(context, deltaViewState),
+                                        "/delta.jspx",
+                                        _RENDER_KIT_ID);
+    assertEquals("second value", ((CoreInputText)restored.findComponent("input")).getValue());
+
+    // the base state is unchanged
+    restored = stateManager.restoreView(_postback(context, viewState),
+                                        "/delta.jspx",
+                                        _RENDER_KIT_ID);
+    assertEquals("first value", ((CoreInputText)restored.findComponent("input")).getValue());
+  }
+
+  public void testRestoreDeltaStateReplicatedPerAttribute() throws Exception
+  {
+    Map<String, String> initParams = new HashMap<String, String>();
+    initParams.put(StateManagerImpl.VIEW_STATE_KEYFRAME_INTERVAL_PARAM_NAME, "5");
+    initParams.put(StateManagerImpl.COMPRESS_VIEW_STATE_PARAM_NAME, "true");
+    initParams.put(StateUtils.USE_ENCRYPTION, "false");
+
+    MFacesContext context = new MFacesContext(MApplication.sharedInstance(), true, initParams);
+    _requestContext = new MRequestContext();
+    _requestContext.setAgent(RenderKitBootstrap.getGeckoAgent());
+
+    StateManagerImpl stateManager = new StateManagerImpl(new MStateManager());
+
+    UIViewRoot root = new UIViewRoot();
+    root.setViewId("/attributes.jspx");
+    root.setRenderKitId(_RENDER_KIT_ID);
+    CoreInputText input = new CoreInputText();
+    input.setId("input");
+    input.setValue("first value");
+    root.getChildren().add(input);
+    context.setViewRoot(root);
+
+    Object state = stateManager.saveView(context);
+    String viewState = context.getRenderKit().getResponseStateManager().getViewState(context, state);
+
+    FacesContext postback = _postback(context, viewState);
+    UIViewRoot restored = stateManager.restoreView(postback, "/attributes.jspx", _RENDER_KIT_ID);
+    ((CoreInputText)restored.findComponent("input")).setValue("second value");
+    postback.setViewRoot(restored);
+
+    state = stateManager.saveView(postback);
+    String deltaViewState =
+      context.getRenderKit().getResponseStateManager().getViewState(context, state);
+
+    // replicate each session attribute in a stream of its own, so that the delta can't
+    // share its base with the base's own attribute
+    Map<String, Object> sessionMap = context.getExternalContext().getSessionMap();
+    Map<String, Object> replicated = new HashMap<String, Object>();
+
+    for (Map.Entry<String, Object> entry : sessionMap.entrySet())
+    {
+      replicated.put(entry.getKey(), _deserialize(_serialize(entry.getValue())));
+    }
+
+    sessionMap.clear();
+    sessionMap.putAll(replicated);
+
+    context.getExternalContext().getRequestMap().clear();
+    context.setViewRoot(null);
+
+    restored = stateManager.restoreView(new PostbackContext(context, deltaViewState),
+                                        "/attributes.jspx",
+                                        _RENDER_KIT_ID);
+    assertEquals("second value", ((CoreInputText)restored.findComponent("input")).getValue());
+
+    restored = stateManager.restoreView(_postback(context, viewState),
+                                        "/attributes.jspx",
+                                        _RENDER_KIT_ID);
+    assertEquals("first value", ((CoreInputText)restored.findComponent("input")).getValue());
+  }
+
+  public void testRestoreZippedDeltaStateChangedInPlace() throws Exception
+  {
+    Map<String, String> initParams = new HashMap<String, String>();
+    initParams.put(StateManagerImpl.VIEW_STATE_KEYFRAME_INTERVAL_PARAM_NAME, "5");
+    initParams.put(StateManagerImpl.COMPRESS_VIEW_STATE_PARAM_NAME, "true");
+    initParams.put(StateUtils.USE_ENCRYPTION, "false");
+
+    MFacesContext context = new MFacesContext(MApplication.sharedInstance(), true, initParams);
+    _requestContext = new MRequestContext();
+    _requestContext.setAgent(RenderKitBootstrap.getGeckoAgent());
+
+    StateManagerImpl stateManager = new StateManagerImpl(new MStateManager());
+
+    UIViewRoot root = new UIViewRoot();
+    root.setViewId("/inplace.jspx");
+    root.setRenderKitId(_RENDER_KIT_ID);
+    CoreInputText input = new CoreInputText();
+    input.setId("input");
+    input.setValue(new ArrayList<String>(Arrays.asList("first")));
+    root.getChildren().add(input);
+    context.setViewRoot(root);
+
+    Object state = stateManager.saveView(context);
+    String viewState = context.getRenderKit().getResponseStateManager().getViewState(context, state);
+
+    // change the restored value in place, so that the saved state references the same
+    // List as the restored state the delta is computed against
+    FacesContext postback = _postback(context, viewState);
+    UIViewRoot restored = stateManager.restoreView(postback, "/inplace.jspx", _RENDER_KIT_ID);
+    _getListValue(restored).add("second");
+    postback.setViewRoot(restored);
+
+    state = stateManager.saveView(postback);
+    String deltaViewState =
+      context.getRenderKit().getResponseStateManager().getViewState(context, state);
+
+    restored = stateManager.restoreView(_postback(context, deltaViewState),
+                                        "/inplace.jspx",
+                                        _RENDER_KIT_ID);
+    assertEquals(Arrays.asList("first", "second"), _getListValue(restored));
+
+    // the base state is unchanged
+    restored = stateManager.restoreView(_postback(context, viewState),
+                                        "/inplace.jspx",
+                                        _RENDER_KIT_ID);
+    assertEquals(Arrays.asList("first"), _getListValue(restored));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<String> _getListValue(UIViewRoot root)
+  {
+    return (List<String>)((CoreInputText)root.findComponent("input")).getValue();
+  }
+
+  /**
+   * Returns a new request posting back the view state.  The session is replicated first,
+   * so that the state is restored rather than the cached UIViewRoot reused.
+   */
+  private static FacesContext _postback(MFacesContext context, String viewState)
+    throws IOException, ClassNotFoundException
+  {
+    Map<String, Object> sessionMap = context.getExternalContext().getSessionMap();
+    Map<String, Object> replicated = _replicate(new HashMap<String, Object>(sessionMap));
+    sessionMap.clear();
+    sessionMap.putAll(replicated);
+
+    context.getExternalContext().getRequestMap().clear();
+    context.setViewRoot(null);
+
+    return new PostbackContext(context, viewState);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> _replicate(Map<String, Object> sessionMap)
+    throws IOException, ClassNotFoundException
+  {
+    return (Map<String, Object>)_deserialize(_serialize(sessionMap));
+  }
+
+  private static Object _deserialize(byte[] bytes)
+    throws IOException, ClassNotFoundException
+  {
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+    try
+    {
+      return in.readObject();
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  private static byte[] _serialize(Object object) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(object);
+    out.close();
+
+    return bytes.toByteArray();
+  }
+
+  /**
+   * FacesContext for a postback of the view state, which the mock ExternalContext
+   * can't hold as a request parameter
+   */
+  private static final class PostbackContext extends FacesContextWrapper
+  {
+    public PostbackContext(FacesContext wrapped, String viewState)
+    {
+      _wrapped = wrapped;
+      _external = new ExternalContextWrapper()
+      {
+        @Override
+        public ExternalContext getWrapped()
+        {
+          return _wrapped.getExternalContext();
+        }
+
+        @Override
+        public Map<String, String> getRequestParameterMap()
+        {
+          return _requestParameters;
+        }
+      };
+      _requestParameters =
+        Collections.singletonMap(ResponseStateManager.VIEW_STATE_PARAM, viewState);
+    }
+
+    @Override
+    public FacesContext getWrapped()
+    {
+      return _wrapped;
+    }
+
+    @Override
+    public ExternalContext getExternalContext()
+    {
+      return _external;
+    }
+
+    private final FacesContext        _wrapped;
+    private final ExternalContext     _external;
+    private final Map<String, String> _requestParameters;
+  }
+
+  private MRequestContext _requestContext;
+
+  static private RenderKitBootstrap _sBootstrap;
+
+  static private final String _RENDER_KIT_ID = "org.apache.myfaces.trinidad.core";
+}
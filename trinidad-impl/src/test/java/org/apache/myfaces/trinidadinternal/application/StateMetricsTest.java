@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.application;
+
+import javax.faces.context.ExternalContext;
+
+import junit.framework.TestCase;
+
+import org.apache.myfaces.trinidadinternal.renderkit.MApplication;
+import org.apache.myfaces.trinidadinternal.renderkit.MFacesContext;
+
+/**
+ * Test of StateMetrics.
+ */
+public class StateMetricsTest extends TestCase
+{
+  public StateMetricsTest(String testName)
+  {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp()
+  {
+    _facesContext = new MFacesContext(MApplication.sharedInstance(), true);
+  }
+
+  @Override
+  protected void tearDown()
+  {
+    MFacesContext.clearContext();
+    _facesContext = null;
+  }
+
+  public void testHistogram()
+  {
+    StateMetrics.Histogram histogram = new StateMetrics.Histogram();
+    assertEquals(-1, histogram.getPercentile(50));
+
+    for (int i = 1; i <= 100; i++)
+    {
+      histogram.record(i * 1000L);
+    }
+
+    assertEquals(100, histogram.getCount());
+
+    // percentiles are the upper bounds of buckets that are a quarter of a power of two wide
+    _assertWithin(50000L, histogram.getPercentile(50));
+    _assertWithin(95000L, histogram.getPercentile(95));
+    _assertWithin(100000L, histogram.getPercentile(100));
+    _assertWithin(1000L, histogram.getPercentile(0));
+
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+  }
+
+  public void testSmallValues()
+  {
+    StateMetrics.Histogram histogram = new StateMetrics.Histogram();
+
+    for (int i = 0; i < 8; i++)
+    {
+      histogram.record(i);
+    }
+
+    assertEquals(3, histogram.getPercentile(50));
+    assertEquals(7, histogram.getPercentile(100));
+  }
+
+  public void testViewMetrics()
+  {
+    ExternalContext external = _facesContext.getExternalContext();
+    StateMetrics metrics = new StateMetrics();
+
+    metrics.recordTokenCacheAccess(external, "/big.jspx", true);
+    metrics.recordViewRootCacheHit(external, "/big.jspx");
+    metrics.recordRestore(external, "/big.jspx", 2000000L);
+    metrics.recordStateSize(external, "/big.jspx", 200000L, 20000L);
+    metrics.recordTokenCacheEvictions(external, "/big.jspx", 2);
+    metrics.recordSave(external, "/big.jspx", 3000000L);
+
+    metrics.recordTokenCacheAccess(external, "/small.jspx", false);
+    metrics.recordStateSize(external, "/small.jspx", 2000L, -1L);
+    metrics.recordSave(external, "/small.jspx", 1000000L);
+
+    assertEquals(2, metrics.getViewIds().length);
+    assertEquals(1, metrics.getSaveCount("/big.jspx"));
+    assertEquals(1, metrics.getRestoreCount("/big.jspx"));
+    assertEquals(0, metrics.getRestoreCount("/small.jspx"));
+    assertEquals(1, metrics.getTokenCacheHits("/big.jspx"));
+    assertEquals(1, metrics.getTokenCacheMisses("/small.jspx"));
+    assertEquals(2, metrics.getTokenCacheEvictions("/big.jspx"));
+    assertEquals(1, metrics.getViewRootCacheHits("/big.jspx"));
+    _assertWithin(200000L, metrics.getStateSizePercentile("/big.jspx", 95));
+    _assertWithin(20000L, metrics.getZippedStateSizePercentile("/big.jspx", 95));
+    assertEquals(-1, metrics.getZippedStateSizePercentile("/small.jspx", 95));
+    assertEquals(-1, metrics.getStateSizePercentile("/unknown.jspx", 95));
+    assertTrue(metrics.getSaveTimePercentile("/big.jspx", 50) >= 3.0);
+
+    // the largest view is reported first
+    String[] report = metrics.getReport();
+    assertEquals(2, report.length);
+    assertTrue(report[0].startsWith("/big.jspx"));
+
+    // the request sees the metrics of the last view recorded
+    StateMetrics.RequestMetrics requestMetrics = StateMetrics.getRequestMetrics(external);
+    assertEquals("/small.jspx", requestMetrics.getViewId());
+    assertEquals(1000000L, requestMetrics.getSaveNanos());
+    assertEquals(2000L, requestMetrics.getStateSize());
+    assertFalse(requestMetrics.isTokenCacheHit());
+
+    metrics.reset();
+    assertEquals(0, metrics.getViewIds().length);
+  }
+
+  public void testStateSizeAfterRequest()
+  {
+    StateMetrics metrics = new StateMetrics();
+
+    // state compressed in the background is recorded without a request
+    metrics.recordStateSize(null, "/deferred.jspx", 50000L, 5000L);
+
+    _assertWithin(5000L, metrics.getZippedStateSizePercentile("/deferred.jspx", 50));
+    assertNull(StateMetrics.getRequestMetrics(_facesContext.getExternalContext()));
+  }
+
+  private static void _assertWithin(long expected, long actual)
+  {
+    assertTrue("Expected about " + expected + " but was " + actual,
+               (actual >= expected) && (actual <= expected + expected / 4));
+  }
+
+  private MFacesContext _facesContext;
+}
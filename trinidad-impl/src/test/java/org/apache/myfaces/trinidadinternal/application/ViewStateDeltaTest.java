@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.application;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Test of ViewStateDelta.
+ */
+public class ViewStateDeltaTest extends TestCase
+{
+  public ViewStateDeltaTest(String testName)
+  {
+    super(testName);
+  }
+
+  public void testUnchanged()
+  {
+    Object[] base = _createState("a", "b");
+    ViewStateDelta delta = ViewStateDelta.diff(base, _createState("a", "b"));
+
+    assertEquals(0, delta.getChangeCount());
+    assertTrue(Arrays.deepEquals(base, (Object[])delta.apply(base)));
+  }
+
+  public void testNestedChange()
+  {
+    Object[] base  = _createState("a", "b");
+    Object[] state = _createState("a", "c");
+    ViewStateDelta delta = ViewStateDelta.diff(base, state);
+
+    assertEquals(1, delta.getChangeCount());
+
+    Object[] applied = (Object[])delta.apply(base);
+    assertTrue(Arrays.deepEquals(state, applied));
+
+    // the base must not be modified, and unchanged branches are shared
+    assertTrue(Arrays.deepEquals(_createState("a", "b"), base));
+    assertSame(base[0], applied[0]);
+  }
+
+  public void testMutableValuesReplaced()
+  {
+    StringBuilder value = new StringBuilder("a");
+    Object[] base = new Object[]{value, "b"};
+
+    // equal, but mutable, values are always stored
+    ViewStateDelta delta = ViewStateDelta.diff(base, new Object[]{new StringBuilder("a"), "b"});
+    assertEquals(1, delta.getChangeCount());
+
+    // as is the same instance, which may have been changed in place
+    value.append("c");
+    delta = ViewStateDelta.diff(base, new Object[]{value, "b"});
+    assertEquals(1, delta.getChangeCount());
+  }
+
+  public void testArrayLengthChange()
+  {
+    Object[] base  = new Object[]{"a", new Object[]{"b"}};
+    Object[] state = new Object[]{"a", new Object[]{"b", "c"}};
+
+    Object[] applied = (Object[])ViewStateDelta.diff(base, state).apply(base);
+    assertTrue(Arrays.deepEquals(state, applied));
+  }
+
+  public void testMapChange()
+  {
+    HashMap<String, Object> base = new HashMap<String, Object>();
+    base.put("one", _createState("a", "b"));
+    base.put("two", "x");
+    base.put("three", "y");
+
+    HashMap<String, Object> state = new HashMap<String, Object>();
+    state.put("one", _createState("a", "c"));
+    state.put("two", "x");
+    state.put("four", "z");
+
+    ViewStateDelta delta = ViewStateDelta.diff(base, state);
+    assertEquals(3, delta.getChangeCount());
+
+    Map<?, ?> applied = (Map<?, ?>)delta.apply(base);
+    assertEquals(3, applied.size());
+    assertTrue(Arrays.deepEquals((Object[])state.get("one"), (Object[])applied.get("one")));
+    assertEquals("x", applied.get("two"));
+    assertEquals("z", applied.get("four"));
+    assertFalse(applied.containsKey("three"));
+  }
+
+  public void testSerialization() throws Exception
+  {
+    HashMap<String, Object> base = new HashMap<String, Object>();
+    base.put("one", "a");
+    base.put("two", "b");
+
+    HashMap<String, Object> state = new HashMap<String, Object>();
+    state.put("one", "a");
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(ViewStateDelta.diff(base, state));
+    out.close();
+
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    ViewStateDelta delta = (ViewStateDelta)in.readObject();
+    in.close();
+
+    // removed entries must still be recognized after deserialization
+    assertEquals(state, delta.apply(base));
+  }
+
+  private Object[] _createState(String first, String second)
+  {
+    return new Object[]{new Object[]{first, Integer.valueOf(1)},
+                        new Object[]{second, Boolean.TRUE}};
+  }
+}
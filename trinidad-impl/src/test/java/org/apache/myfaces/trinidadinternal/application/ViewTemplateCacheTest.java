@@ -0,0 +1,316 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.application;
+
+import java.io.Serializable;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.el.MethodExpression;
+
+import javax.faces.component.UIComponent;
+import javax.faces.component.UIViewRoot;
+import javax.faces.component.html.HtmlOutputText;
+import javax.faces.event.PhaseEvent;
+import javax.faces.event.PhaseId;
+import javax.faces.event.PhaseListener;
+import javax.faces.event.PostAddToViewEvent;
+import javax.faces.event.SystemEvent;
+import javax.faces.event.SystemEventListener;
+import javax.faces.render.RenderKitFactory;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.apache.myfaces.trinidad.component.core.layout.CorePanelGroupLayout;
+import org.apache.myfaces.trinidad.component.core.output.CoreOutputText;
+import org.apache.myfaces.trinidad.context.RequestContext;
+import org.apache.myfaces.trinidadbuild.test.FacesTestCase;
+import org.apache.myfaces.trinidadinternal.context.RequestContextFactoryImpl;
+
+public class ViewTemplateCacheTest extends FacesTestCase
+{
+  public ViewTemplateCacheTest(
+    String testName)
+  {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    _requestContext = (new RequestContextFactoryImpl()).createContext(null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    _requestContext.release();
+    _requestContext = null;
+    super.tearDown();
+  }
+
+  public static Test suite()
+  {
+    return new TestSuite(ViewTemplateCacheTest.class);
+  }
+
+  public void testCachedViewIds()
+  {
+    ViewTemplateCache cache = new ViewTemplateCache(" /home.jspx, /dashboard/* ,");
+
+    assertTrue(cache.isCached("/home.jspx"));
+    assertTrue(cache.isCached("/dashboard/sales.jspx"));
+    assertFalse(cache.isCached("/home2.jspx"));
+    assertFalse(cache.isCached("/dashboard"));
+    assertFalse(cache.isCached(null));
+  }
+
+  public void testBuildFromTemplate()
+  {
+    ViewTemplateCache cache = new ViewTemplateCache("/home.jspx");
+
+    UIViewRoot built = _createRoot("/home.jspx");
+    assertFalse(cache.buildView(facesContext, built));
+
+    _buildTree(built, new Date(0));
+    cache.cacheView(facesContext, built, null);
+
+    UIViewRoot copy = _createRoot("/home.jspx");
+    assertTrue(cache.buildView(facesContext, copy));
+
+    assertEquals(1, copy.getChildCount());
+    UIComponent group = copy.getChildren().get(0);
+    assertTrue(group instanceof CorePanelGroupLayout);
+    assertNotSame(built.getChildren().get(0), group);
+    assertSame(copy, group.getParent());
+    assertEquals("horizontal", group.getAttributes().get("layout"));
+    assertEquals(2, group.getChildCount());
+    assertEquals("foo", group.getChildren().get(0).getAttributes().get("value"));
+    assertEquals(new Date(0), group.getChildren().get(1).getAttributes().get("value"));
+    assertTrue(group.getFacet("separator") instanceof CoreOutputText);
+
+    // each request gets its own copy of the mutable values
+    UIViewRoot secondCopy = _createRoot("/home.jspx");
+    assertTrue(cache.buildView(facesContext, secondCopy));
+
+    Date value = (Date)copy.getChildren().get(0).getChildren().get(1).getAttributes().get("value");
+    value.setTime(1000L);
+
+    UIComponent secondText = secondCopy.getChildren().get(0).getChildren().get(1);
+    assertEquals(new Date(0), secondText.getAttributes().get("value"));
+  }
+
+  public void testViewNotListed()
+  {
+    ViewTemplateCache cache = new ViewTemplateCache("/home.jspx");
+
+    UIViewRoot built = _createRoot("/other.jspx");
+    _buildTree(built, "bar");
+    cache.cacheView(facesContext, built, null);
+
+    assertFalse(cache.buildView(facesContext, _createRoot("/other.jspx")));
+  }
+
+  public void testTransientComponentsNotCached()
+  {
+    ViewTemplateCache cache = new ViewTemplateCache("/home.jspx");
+
+    UIViewRoot built = _createRoot("/home.jspx");
+    _buildTree(built, "bar");
+
+    HtmlOutputText text = new HtmlOutputText();
+    text.setTransient(true);
+    built.getChildren().add(text);
+
+    cache.cacheView(facesContext, built, null);
+
+    assertFalse(cache.buildView(facesContext, _createRoot("/home.jspx")));
+  }
+
+  public void testBuiltViewNotReplaced()
+  {
+    ViewTemplateCache cache = new ViewTemplateCache("/home.jspx");
+
+    UIViewRoot built = _createRoot("/home.jspx");
+    _buildTree(built, "bar");
+    cache.cacheView(facesContext, built, null);
+
+    // a view root that already has components is left alone
+    UIViewRoot restored = _createRoot("/home.jspx");
+    restored.getChildren().add(new CoreOutputText());
+
+    assertFalse(cache.buildView(facesContext, restored));
+    assertEquals(1, restored.getChildCount());
+  }
+
+  public void testRootStateCopied()
+  {
+    ViewTemplateCache cache = new ViewTemplateCache("/home.jspx");
+
+    MethodExpression beforePhase = facesContext.getApplication().getExpressionFactory().
+      createMethodExpression(facesContext.getELContext(), "#{bean.beforePhase}", null,
+                             new Class<?>[]{PhaseEvent.class});
+
+    UIViewRoot built = _createRoot("/home.jspx");
+    built.setLocale(Locale.FRENCH);
+    built.addPhaseListener(new TestPhaseListener());
+    built.setBeforePhaseListener(beforePhase);
+    built.getAttributes().put("templateAttr", "template");
+    built.getAttributes().put("sharedAttr", "template");
+    _buildTree(built, "bar");
+    cache.cacheView(facesContext, built, null);
+
+    UIViewRoot copy = _createRoot("/home.jspx");
+    copy.setLocale(Locale.FRENCH);
+    copy.getAttributes().put("sharedAttr", "request");
+    assertTrue(cache.buildView(facesContext, copy));
+
+    assertEquals(1, copy.getPhaseListeners().size());
+    assertTrue(copy.getPhaseListeners().get(0) instanceof TestPhaseListener);
+    assertNotSame(built.getPhaseListeners().get(0), copy.getPhaseListeners().get(0));
+    assertEquals(beforePhase, copy.getBeforePhaseListener());
+    assertEquals(Locale.FRENCH, copy.getLocale());
+    assertEquals("/home.jspx", copy.getViewId());
+    assertEquals(RenderKitFactory.HTML_BASIC_RENDER_KIT, copy.getRenderKitId());
+
+    // the attributes of the request's root take precedence
+    assertEquals("template", copy.getAttributes().get("templateAttr"));
+    assertEquals("request", copy.getAttributes().get("sharedAttr"));
+
+    // each request gets its own phase listeners
+    UIViewRoot secondCopy = _createRoot("/home.jspx");
+    secondCopy.setLocale(Locale.FRENCH);
+    assertTrue(cache.buildView(facesContext, secondCopy));
+    assertNotSame(copy.getPhaseListeners().get(0), secondCopy.getPhaseListeners().get(0));
+  }
+
+  public void testViewListenersNotCached()
+  {
+    ViewTemplateCache cache = new ViewTemplateCache("/home.jspx");
+
+    // as registered by partial state saving to track the dynamic components of the request
+    UIViewRoot built = _createRoot("/home.jspx");
+    _buildTree(built, "bar");
+    built.subscribeToViewEvent(PostAddToViewEvent.class, new TestSystemEventListener());
+    cache.cacheView(facesContext, built, null);
+
+    assertFalse(cache.buildView(facesContext, _createRoot("/home.jspx")));
+  }
+
+  public void testBuiltContextAttributes()
+  {
+    ViewTemplateCache cache = new ViewTemplateCache("/home.jspx");
+
+    Set<Object> contextAttributeKeys = new HashSet<Object>(facesContext.getAttributes().keySet());
+
+    // as added by the ViewDeclarationLanguage to record that the view has been built
+    UIViewRoot built = _createRoot("/home.jspx");
+    _buildTree(built, "bar");
+    facesContext.getAttributes().put(built, Boolean.TRUE);
+    facesContext.getAttributes().put("viewBuilt", "/home.jspx");
+    cache.cacheView(facesContext, built, contextAttributeKeys);
+
+    facesContext.getAttributes().clear();
+
+    UIViewRoot copy = _createRoot("/home.jspx");
+    assertTrue(cache.buildView(facesContext, copy));
+    assertEquals(Boolean.TRUE, facesContext.getAttributes().get(copy));
+    assertEquals("/home.jspx", facesContext.getAttributes().get("viewBuilt"));
+  }
+
+  public void testBuiltRequestStateNotCached()
+  {
+    ViewTemplateCache cache = new ViewTemplateCache("/home.jspx");
+
+    Set<Object> contextAttributeKeys = new HashSet<Object>(facesContext.getAttributes().keySet());
+
+    UIViewRoot built = _createRoot("/home.jspx");
+    _buildTree(built, "bar");
+    facesContext.getAttributes().put("requestState", Collections.singletonList(built));
+    cache.cacheView(facesContext, built, contextAttributeKeys);
+
+    assertFalse(cache.buildView(facesContext, _createRoot("/home.jspx")));
+  }
+
+  private UIViewRoot _createRoot(String viewId)
+  {
+    UIViewRoot root = new UIViewRoot();
+    root.setViewId(viewId);
+    root.setRenderKitId(RenderKitFactory.HTML_BASIC_RENDER_KIT);
+
+    return root;
+  }
+
+  private void _buildTree(UIViewRoot root, Object value)
+  {
+    CorePanelGroupLayout group = new CorePanelGroupLayout();
+    group.setId("group");
+    group.setLayout("horizontal");
+
+    HtmlOutputText first = new HtmlOutputText();
+    first.setValue("foo");
+
+    CoreOutputText second = new CoreOutputText();
+    second.setValue(value);
+
+    group.getChildren().add(first);
+    group.getChildren().add(second);
+    group.getFacets().put("separator", new CoreOutputText());
+
+    root.getChildren().add(group);
+  }
+
+  private static final class TestPhaseListener implements PhaseListener, Serializable
+  {
+    public void afterPhase(PhaseEvent event)
+    {
+    }
+
+    public void beforePhase(PhaseEvent event)
+    {
+    }
+
+    public PhaseId getPhaseId()
+    {
+      return PhaseId.ANY_PHASE;
+    }
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static final class TestSystemEventListener implements SystemEventListener
+  {
+    public void processEvent(SystemEvent event)
+    {
+    }
+
+    public boolean isListenerForSource(Object source)
+    {
+      return true;
+    }
+  }
+
+  private RequestContext _requestContext;
+}
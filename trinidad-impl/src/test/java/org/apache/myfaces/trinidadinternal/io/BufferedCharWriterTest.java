@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.io;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import javax.faces.context.ResponseWriter;
+
+import junit.framework.TestCase;
+
+public class BufferedCharWriterTest extends TestCase
+{
+  public BufferedCharWriterTest(String testName)
+  {
+    super(testName);
+  }
+
+  public void testBufferedUntilFlush() throws IOException
+  {
+    CountingWriter out = new CountingWriter();
+    Writer writer = new BufferedCharWriter(out);
+
+    writer.write('<');
+    writer.write("div");
+    writer.write(" class=\"x\">".toCharArray(), 0, 11);
+    assertEquals("", out.toString());
+
+    writer.flush();
+    assertEquals("<div class=\"x\">", out.toString());
+    assertEquals(1, out.getWriteCount());
+  }
+
+  public void testLargeWrites() throws IOException
+  {
+    CountingWriter out = new CountingWriter();
+    Writer writer = new BufferedCharWriter(out);
+
+    StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 10000; i++)
+      large.append((char) ('a' + (i % 26)));
+
+    writer.write("start");
+    writer.write(large.toString());
+    writer.write("end");
+    writer.close();
+
+    assertEquals("start" + large + "end", out.toString());
+    assertEquals(3, out.getWriteCount());
+  }
+
+  public void testInMemoryWritersNotBuffered()
+  {
+    StringWriter out = new StringWriter();
+    assertSame(out, BufferedCharWriter.getBufferedWriter(out));
+    assertTrue(BufferedCharWriter.getBufferedWriter(new CountingWriter())
+                 instanceof BufferedCharWriter);
+  }
+
+  public void testCloneKeepsOrder() throws IOException
+  {
+    CountingWriter out = new CountingWriter();
+    ResponseWriter rw =
+      new HtmlResponseWriter(BufferedCharWriter.getBufferedWriter(out), "UTF-8");
+
+    rw.startElement("div", null);
+    rw.writeText("a", null);
+
+    ResponseWriter clone = rw.cloneWithWriter(out);
+    clone.writeText("b", null);
+    clone.endDocument();
+
+    assertEquals("<div>ab", out.toString());
+  }
+
+  public void testUnbufferedCloneNotBuffered() throws IOException
+  {
+    CountingWriter out = new CountingWriter();
+    ResponseWriter clone =
+      new HtmlResponseWriter(out, "UTF-8").cloneWithWriter(out);
+
+    clone.writeText("a", null);
+    assertEquals("a", out.toString());
+  }
+
+  static private class CountingWriter extends FilterWriter
+  {
+    public CountingWriter()
+    {
+      super(new StringWriter());
+    }
+
+    @Override
+    public void write(int c) throws IOException
+    {
+      _writeCount++;
+      super.write(c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException
+    {
+      _writeCount++;
+      super.write(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException
+    {
+      _writeCount++;
+      super.write(str, off, len);
+    }
+
+    public int getWriteCount()
+    {
+      return _writeCount;
+    }
+
+    @Override
+    public String toString()
+    {
+      return out.toString();
+    }
+
+    private int _writeCount;
+  }
+}
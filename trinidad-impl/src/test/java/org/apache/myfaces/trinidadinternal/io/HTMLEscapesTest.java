@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.io;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+public class HTMLEscapesTest extends TestCase
+{
+  public HTMLEscapesTest(String testName)
+  {
+    super(testName);
+  }
+
+  public void testUnescapedText() throws IOException
+  {
+    assertEquals("", _writeText(""));
+    assertEquals("Plain text, with some punctuation!", _writeText("Plain text, with some punctuation!"));
+  }
+
+  public void testBodyText() throws IOException
+  {
+    assertEquals("a&lt;b&gt;&amp;c\"d", _writeText("a<b>&c\"d"));
+    assertEquals("&amp;{x}", _writeText("&{x}"));
+    assertEquals("&#1;x", _writeText("\u0000\u0001x"));
+  }
+
+  public void testAttribute() throws IOException
+  {
+    assertEquals("a<b&gt;&amp;c&quot;d", _writeAttribute("a<b>&c\"d"));
+
+    // macros in attributes aren't escaped
+    assertEquals("&{x}&amp;", _writeAttribute("&{x}&"));
+  }
+
+  public void testNewlines() throws IOException
+  {
+    assertEquals("a\nb\nc\nd\n\ne", _writeText("a\r\nb\n\rc\rd\n\ne"));
+  }
+
+  public void testNonAsciiText() throws IOException
+  {
+    assertEquals("caf&eacute; &#20013; &#131072;", _writeText("café 中 𠀀"));
+    assertEquals("a<br>b<wbr>c", _writeText("a b‧c"));
+    assertEquals("a&#8232;b", _writeAttribute("a b"));
+  }
+
+  public void testLongRuns() throws IOException
+  {
+    StringBuilder text = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+
+    for (int i = 0; i < 20; i++)
+    {
+      // alternate short and long runs between escaped characters
+      for (int j = 0; j < i * 7; j++)
+      {
+        text.append((char)('a' + (j % 26)));
+        expected.append((char)('a' + (j % 26)));
+      }
+
+      text.append("<中");
+      expected.append("&lt;&#20013;");
+    }
+
+    // buffers smaller and larger than the runs
+    for (int size : new int[]{8, 64, 1028})
+    {
+      StringWriter out = new StringWriter();
+      HTMLEscapes.writeText(out, new char[size], text.toString());
+      assertEquals(expected.toString(), out.toString());
+
+      out = new StringWriter();
+      char[] chars = text.toString().toCharArray();
+      HTMLEscapes.writeText(out, new char[size], chars, 0, chars.length);
+      assertEquals(expected.toString(), out.toString());
+    }
+  }
+
+  public void testCharArrayRange() throws IOException
+  {
+    char[] text = "<<a\r\n&{".toCharArray();
+
+    assertEquals("a\n", _writeText(text, 2, 3));
+    assertEquals("a\n&amp;", _writeText(text, 2, 4));
+    assertEquals("&lt;a\n&amp;{", _writeText(text, 1, 6));
+  }
+
+  public void testXMLEscapes() throws IOException
+  {
+    StringWriter out = new StringWriter();
+    XMLEscapes.writeText(out, "a<b>\"&é plain text");
+    assertEquals("a&lt;b&gt;\"&amp;&#233; plain text", out.toString());
+
+    out = new StringWriter();
+    XMLEscapes.writeAttribute(out, "a<b>\"&é");
+    assertEquals("a&lt;b&gt;&quot;&amp;&#233;", out.toString());
+
+    out = new StringWriter();
+    char[] text = "xx<y>\ud800zz".toCharArray();
+    XMLEscapes.writeText(out, text, 2, 6);
+    assertEquals("&lt;y&gt;zz", out.toString());
+  }
+
+  private static String _writeText(String text) throws IOException
+  {
+    StringWriter out = new StringWriter();
+    HTMLEscapes.writeText(out, new char[1028], text);
+
+    String result = out.toString();
+
+    // the char[] version writes the same
+    assertEquals(result, _writeText(text.toCharArray(), 0, text.length()));
+
+    return result;
+  }
+
+  private static String _writeText(char[] text, int start, int length) throws IOException
+  {
+    StringWriter out = new StringWriter();
+    HTMLEscapes.writeText(out, new char[1028], text, start, length);
+
+    return out.toString();
+  }
+
+  private static String _writeAttribute(String text) throws IOException
+  {
+    StringWriter out = new StringWriter();
+    HTMLEscapes.writeAttribute(out, new char[1028], text);
+
+    return out.toString();
+  }
+}
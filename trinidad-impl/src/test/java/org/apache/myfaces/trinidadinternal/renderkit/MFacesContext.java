@@ -289,6 +289,12 @@ public class MFacesContext extends MockFacesContext12
       return null;
     }
 
+    @Override
+    public Map<String, String> getInitParameterMap()
+    {
+      return Collections.unmodifiableMap(_initParamMap);
+    }
+
     @Override
     public String encodeNamespace(String in) { return in; }
 
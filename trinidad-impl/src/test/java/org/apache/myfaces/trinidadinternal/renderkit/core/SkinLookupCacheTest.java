@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.renderkit.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.myfaces.trinidad.skin.Icon;
+
+import org.apache.myfaces.trinidadinternal.renderkit.MRequestContext;
+import org.apache.myfaces.trinidadinternal.skin.icon.TextIcon;
+
+/**
+ * Test of SkinLookupCache.
+ */
+public class SkinLookupCacheTest extends TestCase
+{
+  public SkinLookupCacheTest(String testName)
+  {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp()
+  {
+    _requestContext = new MRequestContext();
+
+    // the caches are application scoped, so keep the skins of the tests apart
+    _skinId = getClass().getName() + "." + getName();
+  }
+
+  @Override
+  protected void tearDown()
+  {
+    _requestContext.release();
+    _requestContext = null;
+  }
+
+  public void testCacheHits()
+  {
+    Map<String, String> styleMap = _createStyleMap();
+    SkinLookupCache cache = _getCache("doc1", false, "default", styleMap);
+
+    assertNull(cache.getStyleClass("AFDefaultFont"));
+    cache.putStyleClass("AFDefaultFont", "x1");
+
+    Icon icon = new TextIcon("*");
+    assertNull(cache.getIcon("af|inputText::required-icon"));
+    cache.putIcon("af|inputText::required-icon", icon);
+    cache.putIcon("af|inputText::missing-icon", null);
+
+    // other requests rendering the same variant share the cache
+    SkinLookupCache sameCache = _getCache("doc1", false, "default", styleMap);
+    assertSame(cache, sameCache);
+    assertEquals("x1", sameCache.getStyleClass("AFDefaultFont"));
+    assertSame(icon, sameCache.getIcon("af|inputText::required-icon"));
+    assertSame(SkinLookupCache.NULL_ICON, sameCache.getIcon("af|inputText::missing-icon"));
+  }
+
+  public void testStyleClassesResolvingToNullNotCached()
+  {
+    SkinLookupCache cache = _getCache("doc1", false, "default", _createStyleMap());
+
+    cache.putStyleClass("AFUnknown", null);
+    assertNull(cache.getStyleClass("AFUnknown"));
+  }
+
+  public void testVariantsCachedSeparately()
+  {
+    Map<String, String> styleMap = _createStyleMap();
+    SkinLookupCache cache = _getCache("doc1", false, "default", styleMap);
+    cache.putStyleClass("AFDefaultFont", "x1");
+
+    SkinLookupCache rtlCache = _getCache("doc1", true, "default", styleMap);
+    SkinLookupCache printableCache = _getCache("doc1", false, "printable", styleMap);
+    SkinLookupCache uncompressedCache = _getCache("doc1", false, "default", null);
+
+    assertNotSame(cache, rtlCache);
+    assertNotSame(cache, printableCache);
+    assertNotSame(cache, uncompressedCache);
+    assertNull(rtlCache.getStyleClass("AFDefaultFont"));
+    assertNull(printableCache.getStyleClass("AFDefaultFont"));
+    assertNull(uncompressedCache.getStyleClass("AFDefaultFont"));
+
+    // each variant keeps its own cache
+    rtlCache.putStyleClass("AFDefaultFont", "x2");
+    assertSame(rtlCache, _getCache("doc1", true, "default", styleMap));
+    assertEquals("x2", _getCache("doc1", true, "default", styleMap).getStyleClass("AFDefaultFont"));
+    assertEquals("x1", _getCache("doc1", false, "default", styleMap).getStyleClass("AFDefaultFont"));
+  }
+
+  public void testInvalidatedByNewStyleMap()
+  {
+    SkinLookupCache cache = _getCache("doc1", false, "default", _createStyleMap());
+    cache.putStyleClass("AFDefaultFont", "x1");
+
+    // the skin's styles were regenerated with a new style class map
+    Map<String, String> newStyleMap = _createStyleMap();
+    SkinLookupCache newCache = _getCache("doc1", false, "default", newStyleMap);
+
+    assertNotSame(cache, newCache);
+    assertNull(newCache.getStyleClass("AFDefaultFont"));
+    assertSame(newCache, _getCache("doc1", false, "default", newStyleMap));
+  }
+
+  public void testInvalidatedBySkinChange()
+  {
+    Map<String, String> styleMap = _createStyleMap();
+    SkinLookupCache cache = _getCache("doc1", false, "default", styleMap);
+    cache.putStyleClass("AFDefaultFont", "x1");
+
+    // the skin's style sheet document was regenerated
+    SkinLookupCache newDocumentCache = _getCache("doc2", false, "default", styleMap);
+    assertNotSame(cache, newDocumentCache);
+    assertNull(newDocumentCache.getStyleClass("AFDefaultFont"));
+
+    // another skin
+    SkinLookupCache otherSkinCache =
+      SkinLookupCache.getInstance(_skinId + ".other", "doc1", false, "default", styleMap);
+    assertNotSame(cache, otherSkinCache);
+    assertNull(otherSkinCache.getStyleClass("AFDefaultFont"));
+  }
+
+  private SkinLookupCache _getCache(
+    String              documentId,
+    boolean             rightToLeft,
+    String              outputMode,
+    Map<String, String> styleMap)
+  {
+    return SkinLookupCache.getInstance(_skinId, documentId, rightToLeft, outputMode, styleMap);
+  }
+
+  private static Map<String, String> _createStyleMap()
+  {
+    Map<String, String> styleMap = new HashMap<String, String>();
+    styleMap.put("AFDefaultFont", "x1");
+    return styleMap;
+  }
+
+  private MRequestContext _requestContext;
+  private String _skinId;
+}
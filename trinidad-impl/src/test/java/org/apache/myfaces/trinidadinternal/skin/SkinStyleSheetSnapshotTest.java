@@ -0,0 +1,249 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.myfaces.trinidadinternal.skin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.apache.myfaces.trinidad.share.io.InputStreamProvider;
+import org.apache.myfaces.trinidad.share.io.NameResolver;
+import org.apache.myfaces.trinidadinternal.share.io.CachingNameResolver;
+import org.apache.myfaces.trinidadinternal.share.io.DefaultNameResolver;
+import org.apache.myfaces.trinidadinternal.share.xml.ParseContext;
+import org.apache.myfaces.trinidadinternal.share.xml.ParseContextImpl;
+import org.apache.myfaces.trinidadinternal.style.xml.parse.StyleNode;
+import org.apache.myfaces.trinidadinternal.style.xml.parse.StyleSheetDocument;
+import org.apache.myfaces.trinidadinternal.style.xml.parse.StyleSheetNode;
+
+public class SkinStyleSheetSnapshotTest extends TestCase
+{
+  public SkinStyleSheetSnapshotTest(String testName)
+  {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws IOException
+  {
+    _directory = File.createTempFile("skinsnapshot", "");
+    _directory.delete();
+    _directory.mkdirs();
+
+    _snapshotDirectory = new File(_directory, "snapshots");
+    _snapshotDirectory.mkdirs();
+
+    _write("base.css",
+           "@import \"imported.css\";\n" +
+           ".Base {color: red; font-size: 10pt}\n" +
+           "@agent ie and (version:9), gecko {.AgentStyle {color: blue}}\n" +
+           "@locale ja {.LocaleStyle {font-size: 9pt}}\n" +
+           "@platform windows {.PlatformStyle {color: white}}\n");
+    _write("imported.css", ".Imported {color: green}\n");
+  }
+
+  @Override
+  protected void tearDown()
+  {
+    _delete(_directory);
+  }
+
+  public void testSnapshotMatchesParse() throws IOException
+  {
+    StyleSheetDocument parsed = _parse(null);
+
+    // The first parse writes the snapshot, the second reads it
+    _parse(_snapshotDirectory);
+    assertEquals(1, _snapshotDirectory.list().length);
+    assertNotNull(_getSnapshot().load());
+
+    _assertSameStyleSheets(parsed, _parse(_snapshotDirectory));
+  }
+
+  public void testImportChangeInvalidatesSnapshot() throws IOException
+  {
+    _parse(_snapshotDirectory);
+    assertNotNull(_getSnapshot().load());
+
+    _write("imported.css", ".Imported {color: black}\n");
+    assertNull(_getSnapshot().load());
+
+    // Parsing again picks up the change and replaces the snapshot
+    StyleSheetDocument document = _parse(_snapshotDirectory);
+    assertTrue(document.getStyleSheetsAsCollection().toString().contains("black"));
+    assertNotNull(_getSnapshot().load());
+  }
+
+  public void testSourceChangeUsesNewSnapshot() throws IOException
+  {
+    _parse(_snapshotDirectory);
+
+    _write("base.css", ".Base {color: yellow}\n");
+    assertNull(_getSnapshot().load());
+
+    _parse(_snapshotDirectory);
+    assertEquals(2, _snapshotDirectory.list().length);
+  }
+
+  public void testOtherVersionReplacesSnapshot() throws IOException
+  {
+    _parse(_snapshotDirectory);
+
+    // the snapshot was written by another version of Trinidad
+    File file = _snapshotDirectory.listFiles()[0];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    try
+    {
+      out.writeInt(in.readInt());
+
+      // skip the version, and write another one
+      in.readFully(new byte[in.readInt()]);
+      byte[] otherVersion = "0.0.0-other".getBytes("UTF-8");
+      out.writeInt(otherVersion.length);
+      out.write(otherVersion);
+
+      int count;
+      byte[] buffer = new byte[1024];
+      while ((count = in.read(buffer)) >= 0)
+        out.write(buffer, 0, count);
+    }
+    finally
+    {
+      in.close();
+    }
+
+    OutputStream fileOut = new FileOutputStream(file);
+
+    try
+    {
+      fileOut.write(bytes.toByteArray());
+    }
+    finally
+    {
+      fileOut.close();
+    }
+
+    assertNull(_getSnapshot().load());
+
+    // Parsing again replaces the snapshot
+    _parse(_snapshotDirectory);
+    assertEquals(1, _snapshotDirectory.list().length);
+    assertNotNull(_getSnapshot().load());
+  }
+
+  private StyleSheetDocument _parse(File snapshotDirectory) throws IOException
+  {
+    ParseContext parseContext = new ParseContextImpl();
+    SkinStyleSheetSnapshot.setDirectory(parseContext, snapshotDirectory);
+
+    StyleSheetEntry entry = SkinStyleSheetParserUtils.parseCSSSource(parseContext,
+                                                                     _createResolver(),
+                                                                     "base.css",
+                                                                     StyleSheetEntry.class);
+    return entry.getDocument();
+  }
+
+  private SkinStyleSheetSnapshot _getSnapshot() throws IOException
+  {
+    InputStreamProvider provider = _createResolver().getProvider("base.css");
+    InputStream in = provider.openInputStream();
+
+    try
+    {
+      return new SkinStyleSheetSnapshot(_snapshotDirectory,
+                                        provider,
+                                        SkinStyleSheetSnapshot.readSource(in));
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  private NameResolver _createResolver()
+  {
+    return new CachingNameResolver(new DefaultNameResolver(_directory, null), null, false);
+  }
+
+  private void _assertSameStyleSheets(
+    StyleSheetDocument expected,
+    StyleSheetDocument actual)
+  {
+    Collection<StyleSheetNode> expectedNodes = expected.getStyleSheetsAsCollection();
+    Collection<StyleSheetNode> actualNodes = actual.getStyleSheetsAsCollection();
+    assertEquals(expectedNodes.size(), actualNodes.size());
+
+    Iterator<StyleSheetNode> actualIterator = actualNodes.iterator();
+
+    for (StyleSheetNode expectedNode : expectedNodes)
+    {
+      StyleSheetNode actualNode = actualIterator.next();
+
+      assertEquals(expectedNode.getStyleSheetId(), actualNode.getStyleSheetId());
+      assertEquals(new ArrayList<StyleNode>(expectedNode.getStyles()),
+                   new ArrayList<StyleNode>(actualNode.getStyles()));
+    }
+  }
+
+  private void _write(String name, String content) throws IOException
+  {
+    File file = new File(_directory, name);
+    OutputStream out = new FileOutputStream(file);
+
+    try
+    {
+      out.write(content.getBytes("UTF-8"));
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  private static void _delete(File file)
+  {
+    File[] files = file.listFiles();
+
+    if (files != null)
+    {
+      for (File child : files)
+        _delete(child);
+    }
+
+    file.delete();
+  }
+
+  private File _directory;
+  private File _snapshotDirectory;
+}
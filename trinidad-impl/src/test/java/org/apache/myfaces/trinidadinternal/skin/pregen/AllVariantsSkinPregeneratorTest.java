@@ -0,0 +1,292 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.apache.myfaces.trinidadinternal.skin.pregen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.faces.component.UIViewRoot;
+import javax.faces.context.ExternalContext;
+
+import junit.framework.TestCase;
+
+import org.apache.myfaces.trinidad.context.AccessibilityProfile;
+import org.apache.myfaces.trinidad.context.LocaleContext;
+import org.apache.myfaces.trinidad.context.RenderingContext;
+import org.apache.myfaces.trinidad.context.RequestContext;
+import org.apache.myfaces.trinidad.skin.Skin;
+import org.apache.myfaces.trinidad.skin.SkinMetadata;
+import org.apache.myfaces.trinidad.skin.SkinProvider;
+import org.apache.myfaces.trinidadinternal.agent.TrinidadAgent;
+import org.apache.myfaces.trinidadinternal.agent.TrinidadAgent.Application;
+import org.apache.myfaces.trinidadinternal.renderkit.MApplication;
+import org.apache.myfaces.trinidadinternal.renderkit.MFacesContext;
+import org.apache.myfaces.trinidadinternal.renderkit.MRequestContext;
+import org.apache.myfaces.trinidadinternal.renderkit.RenderKitBootstrap;
+import org.apache.myfaces.trinidadinternal.renderkit.core.CoreRenderingContext;
+import org.apache.myfaces.trinidadinternal.share.nls.NullLocaleContext;
+import org.apache.myfaces.trinidadinternal.skin.pregen.config.PregenConfig;
+import org.apache.myfaces.trinidadinternal.skin.provider.ExternalSkinProvider;
+import org.apache.myfaces.trinidadinternal.skin.provider.SkinProviderRegistry;
+import org.apache.myfaces.trinidadinternal.skin.provider.TrinidadSkinProvider;
+import org.apache.myfaces.trinidadinternal.util.nls.LocaleUtils;
+
+/**
+ * Test of skin pregeneration, and of the use of pregenerated style sheets.
+ */
+public class AllVariantsSkinPregeneratorTest extends TestCase
+{
+  public AllVariantsSkinPregeneratorTest(String testName)
+  {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    RequestContext rc = RequestContext.getCurrentInstance();
+    if (rc != null)
+    {
+      rc.release();
+    }
+
+    _bootstrap = new RenderKitBootstrap();
+    _bootstrap.init();
+
+    RenderKitBootstrap.clearFactories();
+    RenderKitBootstrap.setFactories(_bootstrap.getFacesConfigInfo());
+
+    _facesContext = new MFacesContext(MApplication.sharedInstance(), true);
+    _requestContext = new MRequestContext();
+    _requestContext.setSkinFamily("minimal");
+    _requestContext.setAgent(RenderKitBootstrap.getGeckoAgent());
+    _requestContext.setRightToLeft(false);
+    _requestContext.setAccessibilityMode(null);
+
+    Map<String, Object> applicationMap = _facesContext.getExternalContext().getApplicationMap();
+    applicationMap.put(TrinidadSkinProvider.TRINDIAD_SKIN_PROVIDER_KEY, new TrinidadSkinProvider());
+    applicationMap.put(ExternalSkinProvider.EXTERNAL_SKIN_PROVIDER_KEY, new ExternalSkinProvider());
+    applicationMap.put(SkinProvider.SKIN_PROVIDER_INSTANCE_KEY, new SkinProviderRegistry());
+
+    UIViewRoot root = RenderKitBootstrap.createUIViewRoot(_facesContext);
+    root.setRenderKitId("org.apache.myfaces.trinidad.core");
+    root.setLocale(Locale.getDefault());
+    _facesContext.setViewRoot(root);
+
+    _renderingContext = new CoreRenderingContext();
+
+    _targetDirectory = _createDirectory("pregen");
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    _delete(_targetDirectory);
+
+    _renderingContext.release();
+    MFacesContext.clearContext();
+    _requestContext.release();
+    RenderKitBootstrap.clearFactories();
+  }
+
+  public void testPregeneration() throws Exception
+  {
+    SkinPregenerationUtils.pregenerate(_facesContext, _getSkin(), new Config(_targetDirectory));
+
+    Map<String, String> styleSheets = _readStyleSheets(_targetDirectory);
+
+    // the platforms, agents and reading directions generate different style sheets
+    assertTrue(styleSheets.size() > 1);
+
+    for (Map.Entry<String, String> entry : styleSheets.entrySet())
+    {
+      assertTrue(entry.getKey(), entry.getValue().trim().length() > 0);
+    }
+  }
+
+  public void testDeletedStyleSheetsRegenerated() throws Exception
+  {
+    Skin skin = _getSkin();
+    Config config = new Config(_targetDirectory);
+
+    SkinPregenerationUtils.pregenerate(_facesContext, skin, config);
+    Map<String, String> styleSheets = _readStyleSheets(_targetDirectory);
+
+    // the temporary directory was cleaned up
+    for (String name : styleSheets.keySet())
+    {
+      assertTrue(new File(new File(_targetDirectory, _STYLES_CACHE_DIRECTORY), name).delete());
+    }
+
+    SkinPregenerationUtils.pregenerate(_facesContext, skin, config);
+    assertEquals(styleSheets.keySet(), _readStyleSheets(_targetDirectory).keySet());
+  }
+
+  private Skin _getSkin()
+  {
+    ExternalContext external = _facesContext.getExternalContext();
+
+    return SkinProvider.getCurrentInstance(external).getSkin(
+             external,
+             new SkinMetadata.Builder().id("minimal.desktop").build());
+  }
+
+  // Returns the contents of the pregenerated style sheets, keyed by their names.
+  private static Map<String, String> _readStyleSheets(File directory) throws IOException
+  {
+    File[] files = new File(directory, _STYLES_CACHE_DIRECTORY).listFiles();
+    Map<String, String> styleSheets = new TreeMap<String, String>();
+
+    for (File file : files)
+    {
+      if (file.getName().endsWith(".css"))
+        styleSheets.put(file.getName(), _read(file));
+    }
+
+    return styleSheets;
+  }
+
+  private static String _read(File file) throws IOException
+  {
+    InputStream in = new FileInputStream(file);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+
+    try
+    {
+      int count;
+      while ((count = in.read(buffer)) >= 0)
+        out.write(buffer, 0, count);
+    }
+    finally
+    {
+      in.close();
+    }
+
+    return out.toString("UTF-8");
+  }
+
+  private static File _createDirectory(String prefix) throws IOException
+  {
+    File directory = File.createTempFile(prefix, "");
+    directory.delete();
+    directory.mkdirs();
+
+    return directory;
+  }
+
+  private static void _delete(File file)
+  {
+    File[] files = file.listFiles();
+
+    if (files != null)
+    {
+      for (File child : files)
+        _delete(child);
+    }
+
+    file.delete();
+  }
+
+  /**
+   * Pregenerates a few platform, agent and reading direction variants
+   */
+  private static class Config extends PregenConfig
+  {
+    public Config(File targetDirectory)
+    {
+      _targetDirectoryPath = targetDirectory.getPath();
+    }
+
+    @Override
+    public Collection<Integer> getPlatformVariants()
+    {
+      return Arrays.asList(TrinidadAgent.OS_LINUX, TrinidadAgent.OS_WINDOWS);
+    }
+
+    @Override
+    public Collection<LocaleContext> getLocaleVariants()
+    {
+      return Arrays.asList(NullLocaleContext.getLeftToRightContext(),
+                           NullLocaleContext.getRightToLeftContext());
+    }
+
+    @Override
+    public Collection<Integer> getReadingDirectionVariants()
+    {
+      return Arrays.asList(LocaleUtils.DIRECTION_LEFTTORIGHT,
+                           LocaleUtils.DIRECTION_RIGHTTOLEFT);
+    }
+
+    @Override
+    public Collection<Application> getAgentApplicationVariants()
+    {
+      return Arrays.asList(Application.GECKO, Application.IEXPLORER);
+    }
+
+    @Override
+    public Collection<AccessibilityProfile> getAccessibilityVariants()
+    {
+      return Arrays.asList(AccessibilityProfile.getDefaultInstance());
+    }
+
+    @Override
+    public Collection<ContainerType> getContainerTypes()
+    {
+      return Arrays.asList(ContainerType.SERVLET);
+    }
+
+    @Override
+    public Collection<RequestType> getRequestTypes()
+    {
+      return Arrays.asList(RequestType.NONSECURE);
+    }
+
+    @Override
+    public Collection<StyleClassType> getStyleClassTypes()
+    {
+      return Arrays.asList(StyleClassType.COMPRESSED, StyleClassType.UNCOMPRESSED);
+    }
+
+    @Override
+    public String getTargetDirectoryPath()
+    {
+      return _targetDirectoryPath;
+    }
+
+    private final String _targetDirectoryPath;
+  }
+
+  private MFacesContext      _facesContext;
+  private MRequestContext    _requestContext;
+  private RenderingContext   _renderingContext;
+  private RenderKitBootstrap _bootstrap;
+  private File               _targetDirectory;
+
+  private static final String _STYLES_CACHE_DIRECTORY = "adf/styles/cache";
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test of ConcurrentTokenCache.  Runs all of the TokenCache tests against
+ * ConcurrentTokenCache, and stresses it with concurrent requests.
+ */
+public class ConcurrentTokenCacheTest extends TokenCacheTest
+{
+  public ConcurrentTokenCacheTest(String testName)
+  {
+    super(testName);
+  }
+
+  public void testConcurrentRequests() throws Throwable
+  {
+    for (int i = 0; i < 10; i++)
+    {
+      _stress(createTokenCache(_CACHE_SIZE), _THREADS);
+    }
+  }
+
+  @Override
+  protected TokenCache createTokenCache(int size)
+  {
+    return new ConcurrentTokenCache(size, 0L, null);
+  }
+
+  /**
+   * Simulates concurrent requests against the cache of a single window, the way
+   * StateManagerImpl uses it:  each request checks the availability of its token,
+   * and then adds a new token pinned to its page's base token.
+   */
+  private void _stress(
+    final TokenCache cache,
+    int              threadCount) throws Throwable
+  {
+    final Map<String, Object> store = new ConcurrentHashMap<String, Object>();
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    List<Thread> threads = new ArrayList<Thread>(threadCount);
+
+    for (int i = 0; i < threadCount; i++)
+    {
+      threads.add(new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            start.await();
+
+            String base = cache.addNewEntry(_VALUE, store);
+            String current = base;
+
+            for (int j = 0; j < _REQUESTS; j++)
+            {
+              if (cache.isAvailable(current))
+              {
+                current = cache.addNewEntry(_VALUE, store, base);
+              }
+              else
+              {
+                // our view expired, so start a new page
+                base = cache.addNewEntry(_VALUE, store);
+                current = base;
+              }
+
+              if ((j % 50) == 0)
+                cache.removeOldEntry(current, store);
+            }
+          }
+          catch (Throwable t)
+          {
+            failure.compareAndSet(null, t);
+          }
+        }
+      });
+    }
+
+    for (Thread thread : threads)
+    {
+      thread.start();
+    }
+
+    start.countDown();
+
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+
+    if (failure.get() != null)
+      throw failure.get();
+
+    // every stored value must still be reachable from the cache...
+    for (String token : store.keySet())
+    {
+      assertTrue("Orphaned token " + token, cache.isAvailable(token));
+    }
+
+    // ...and the cache must stay bounded:  the last tokens, plus the bases they pin
+    assertTrue("Cache grew to " + store.size(), store.size() <= 2 * _CACHE_SIZE + threadCount);
+
+    cache.clear(store);
+  }
+
+  private static final int _CACHE_SIZE = 15;
+  private static final int _THREADS = 8;
+  private static final int _REQUESTS = 20000;
+  private static final Object _VALUE = new Object();
+}
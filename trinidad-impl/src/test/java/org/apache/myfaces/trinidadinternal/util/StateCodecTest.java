@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipException;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import javax.faces.application.ViewExpiredException;
+
+import junit.framework.TestCase;
+
+import org.apache.myfaces.trinidadinternal.util.serial.CompactSerialFactory;
+import org.apache.myfaces.trinidadinternal.util.serial.DefaultSerialFactory;
+import org.apache.myfaces.trinidadinternal.util.serial.SerialFactory;
+
+/**
+ * Test of StateCodec.
+ */
+public class StateCodecTest extends TestCase
+{
+  public StateCodecTest(String testName)
+  {
+    super(testName);
+  }
+
+  public void testPlainRoundTrip() throws Exception
+  {
+    StateCodec codec = _createCodec();
+    Object state = _createState();
+
+    String encoded = codec.construct(state, _SERIAL_FACTORY, false, null, null);
+
+    assertEquals(_readObject(codec.reconstruct(encoded, false, null, null)), state);
+  }
+
+  public void testCompatibleWithStateUtils() throws Exception
+  {
+    StateCodec codec = _createCodec();
+    Object state = _createState();
+
+    // state encoded by the codec can be read by the individual StateUtils methods
+    String encoded = codec.construct(state, _SERIAL_FACTORY, true, null, null);
+    byte[] bytes = StateUtils.decompress(StateUtils.decode(encoded.getBytes(StateUtils.ZIP_CHARSET)));
+    assertEquals(_readObject(new ByteArrayInputStream(bytes)), state);
+
+    // and state encoded by the StateUtils methods can be read by the codec
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ObjectOutputStream oos = _SERIAL_FACTORY.getObjectOutputStream(out);
+    oos.writeObject(state);
+    oos.close();
+
+    String legacy = new String(StateUtils.encode(StateUtils.compress(out.toByteArray())),
+                               StateUtils.ZIP_CHARSET);
+
+    assertEquals(encoded, legacy);
+    assertEquals(_readObject(codec.reconstruct(legacy, true, null, null)), state);
+  }
+
+  public void testEncryptedRoundTrip() throws Exception
+  {
+    StateCodec codec = _createCodec();
+
+    // reuse the codec, as the pool does
+    for (int i = 0; i < 3; i++)
+    {
+      Object state = _createState();
+      String encoded = codec.construct(state, _SERIAL_FACTORY, true, _SECRET_KEY, _MAC_KEY);
+      assertEquals(_readObject(codec.reconstruct(encoded, true, _SECRET_KEY, _MAC_KEY)), state);
+      codec.trimBuffers();
+    }
+
+    codec.dispose();
+  }
+
+  public void testReusedCodecWithConfiguredIV() throws Exception
+  {
+    // AES/GCM refuses to encrypt twice with the same key and IV on one Cipher instance
+    StateCodec codec = new StateCodec("AES/GCM/NoPadding", new byte[12],
+                                      StateUtils.DEFAULT_MAC_ALGORITHM);
+    SecretKey secretKey = new SecretKeySpec(new byte[16], "AES");
+
+    for (int i = 0; i < 3; i++)
+    {
+      Object state = _createState();
+      String encoded = codec.construct(state, _SERIAL_FACTORY, true, secretKey, _MAC_KEY);
+      assertEquals(_readObject(codec.reconstruct(encoded, true, secretKey, _MAC_KEY)), state);
+    }
+  }
+
+  public void testCorruptGzipTrailer() throws Exception
+  {
+    StateCodec codec = _createCodec();
+    String encoded = codec.construct(_createState(), _SERIAL_FACTORY, true, null, null);
+
+    // corrupt the CRC32 in the GZIP trailer
+    byte[] bytes = StateUtils.decode(encoded.getBytes(StateUtils.ZIP_CHARSET));
+    bytes[bytes.length - 8]++;
+    String corrupted = new String(StateUtils.encode(bytes), StateUtils.ZIP_CHARSET);
+
+    try
+    {
+      _readObject(codec.reconstruct(corrupted, true, null, null));
+      fail("Corrupt GZIP trailer was accepted");
+    }
+    catch (ZipException e)
+    {
+      // expected
+    }
+  }
+
+  public void testTamperedState() throws Exception
+  {
+    StateCodec codec = _createCodec();
+    String encoded = codec.construct(_createState(), _SERIAL_FACTORY, true, _SECRET_KEY, _MAC_KEY);
+
+    char[] chars = encoded.toCharArray();
+    chars[4] = (chars[4] == 'A') ? 'B' : 'A';
+
+    try
+    {
+      codec.reconstruct(new String(chars), true, _SECRET_KEY, _MAC_KEY);
+      fail("Tampered state was accepted");
+    }
+    catch (ViewExpiredException e)
+    {
+      // expected
+    }
+  }
+
+  public void testCreateSerialFactory()
+  {
+    assertTrue(StateUtils.createSerialFactory(null) instanceof DefaultSerialFactory);
+    assertTrue(StateUtils.createSerialFactory(" compact ") instanceof CompactSerialFactory);
+    assertTrue(StateUtils.createSerialFactory(CompactSerialFactory.class.getName())
+                 instanceof CompactSerialFactory);
+    assertTrue(StateUtils.createSerialFactory("no.such.Factory") instanceof DefaultSerialFactory);
+  }
+
+  public void testLargeState() throws Exception
+  {
+    StateCodec codec = _createCodec();
+    List<Object> state = new ArrayList<Object>();
+
+    for (int i = 0; i < 20000; i++)
+    {
+      state.add("value" + i);
+    }
+
+    String encoded = codec.construct(state, _SERIAL_FACTORY, true, _SECRET_KEY, _MAC_KEY);
+    assertEquals(_readObject(codec.reconstruct(encoded, true, _SECRET_KEY, _MAC_KEY)), state);
+  }
+
+  private static StateCodec _createCodec()
+  {
+    return new StateCodec(StateUtils.DEFAULT_ALGORITHM + "/" + StateUtils.DEFAULT_ALGORITHM_PARAMS,
+                          null,
+                          StateUtils.DEFAULT_MAC_ALGORITHM);
+  }
+
+  private static Object _createState()
+  {
+    return new ArrayList<Object>(Arrays.asList("first", Integer.valueOf(2),
+                                               Arrays.asList("nested", "list")));
+  }
+
+  private static Object _readObject(InputStream in) throws Exception
+  {
+    ObjectInputStream ois = _SERIAL_FACTORY.getObjectInputStream(in);
+
+    try
+    {
+      return ois.readObject();
+    }
+    finally
+    {
+      ois.close();
+    }
+  }
+
+  private static final SerialFactory _SERIAL_FACTORY = new DefaultSerialFactory();
+
+  private static final SecretKey _SECRET_KEY =
+    new SecretKeySpec(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, StateUtils.DEFAULT_ALGORITHM);
+
+  private static final SecretKey _MAC_KEY =
+    new SecretKeySpec(new byte[]{8, 7, 6, 5, 4, 3, 2, 1, 0, 9, 8, 7, 6, 5, 4, 3},
+                      StateUtils.DEFAULT_MAC_ALGORITHM);
+}
@@ -20,6 +20,11 @@ package org.apache.myfaces.trinidadinternal.util;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
 import java.util.Map;
 import java.util.HashMap;
 
@@ -45,7 +50,7 @@ public class TokenCacheTest extends TestCase
     // Slight assumption here that this key would never get hit
     map.put("this-would-never-be-used", 17);
 
-    TokenCache cache = new TokenCache(2);
+    TokenCache cache = createTokenCache(2);
 
     // Add first value to cache
     String token1 = cache.addNewEntry(1, map);
@@ -87,7 +92,7 @@ public class TokenCacheTest extends TestCase
   public void testIsAvailableAffectsOrder()
   {
     HashMap<String, Object> map = new HashMap<String, Object>();
-    TokenCache cache = new TokenCache(2);
+    TokenCache cache = createTokenCache(2);
     String token1 = cache.addNewEntry(1, map);
     String token2 = cache.addNewEntry(2, map);
     // Check the availability of token1, which means that it
@@ -108,7 +113,7 @@ public class TokenCacheTest extends TestCase
     // Slight assumption here that this key would never get hit
     map.put("this-would-never-be-used", 17);
 
-    TokenCache cache = new TokenCache(2);
+    TokenCache cache = createTokenCache(2);
 
     // Add first value to cache
     String token1 = cache.addNewEntry(1, map);
@@ -152,7 +157,7 @@ public class TokenCacheTest extends TestCase
   public void testRecursivePinned()
   {
     HashMap<String, Object> map = new HashMap<String, Object>();
-    TokenCache cache = new TokenCache(2);
+    TokenCache cache = createTokenCache(2);
 
     // Add first value to cache
     String token1 = cache.addNewEntry(1, map);
@@ -196,7 +201,7 @@ public class TokenCacheTest extends TestCase
   public void testMultiplePinned()
   {
     HashMap<String, Object> map = new HashMap<String, Object>();
-    TokenCache cache = new TokenCache(2);
+    TokenCache cache = createTokenCache(2);
 
     // Add first value to cache
     String token1 = cache.addNewEntry(1, map);
@@ -259,7 +264,7 @@ public class TokenCacheTest extends TestCase
   public void testPinnedInTinyCache()
   {
     HashMap<String, Object> map = new HashMap<String, Object>();
-    TokenCache cache = new TokenCache(1);
+    TokenCache cache = createTokenCache(1);
     // Verify that adding a token that would have flushed an entry
     // won't do so as long as it's pinning that entry
     String token1 = cache.addNewEntry(1, map);
@@ -270,4 +275,48 @@ public class TokenCacheTest extends TestCase
     assertTrue(cache.isAvailable(token3));    
     assertEquals(3, map.size());
   }
+
+  public void testSerialization() throws Exception
+  {
+    HashMap<String, Object> map = new HashMap<String, Object>();
+    TokenCache cache = createTokenCache(2);
+
+    String token1 = cache.addNewEntry(1, map);
+    String token2 = cache.addNewEntry(2, map, token1);
+    String token3 = cache.addNewEntry(3, map);
+    // token2 is now more recently used than token3
+    assertTrue(cache.isAvailable(token2));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(cache);
+    out.close();
+
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    TokenCache copy = (TokenCache)in.readObject();
+    in.close();
+
+    assertEquals(cache.getClass(), copy.getClass());
+
+    // the copy hands out new tokens, and evicts the least recently used token3 first
+    String token4 = copy.addNewEntry(4, map);
+    assertFalse(token4.equals(token1));
+    assertFalse(token4.equals(token2));
+    assertFalse(token4.equals(token3));
+    assertFalse(copy.isAvailable(token3));
+    assertFalse(map.containsKey(token3));
+
+    // and token1 stays pinned by token2
+    assertTrue(copy.isAvailable(token1));
+    assertTrue(copy.isAvailable(token2));
+    assertTrue(copy.isAvailable(token4));
+  }
+
+  /**
+   * Creates the TokenCache being tested
+   */
+  protected TokenCache createTokenCache(int size)
+  {
+    return new TokenCache(size);
+  }
 }
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.myfaces.trinidadinternal.util.serial;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.math.BigDecimal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Test of CompactSerialFactory.
+ */
+public class CompactSerialFactoryTest extends TestCase
+{
+  public CompactSerialFactoryTest(String testName)
+  {
+    super(testName);
+  }
+
+  public void testRoundTrip() throws Exception
+  {
+    Object state = _createState(20);
+    Object restored = _readObject(_COMPACT, _writeObject(_COMPACT, state));
+
+    assertTrue(Arrays.deepEquals((Object[])state, (Object[])restored));
+  }
+
+  public void testUnknownClasses() throws Exception
+  {
+    // classes outside of the known table are written with their full descriptor
+    Map<String, Object> map = new TreeMap<String, Object>();
+    map.put("locale", Locale.FRANCE);
+    map.put("list", new LinkedList<Object>(Arrays.asList("a", 1, 2L)));
+    map.put("enum", TimeUnit.SECONDS);
+
+    assertEquals(map, _readObject(_COMPACT, _writeObject(_COMPACT, map)));
+  }
+
+  public void testSmallerThanDefault() throws Exception
+  {
+    Object state = _createState(50);
+
+    int defaultSize = _writeObject(_DEFAULT, state).length;
+    int compactSize = _writeObject(_COMPACT, state).length;
+
+    assertTrue("Compact state of " + compactSize + " bytes is not smaller than " + defaultSize,
+               compactSize < defaultSize);
+  }
+
+  public void testEqualValuesShared() throws Exception
+  {
+    // equal values that are different instances are written once
+    Object[] state = new Object[]
+    {
+      new String("shared"), new String("shared"), new Long(1234567L), new Long(1234567L)
+    };
+
+    Object[] restored = (Object[])_readObject(_COMPACT, _writeObject(_COMPACT, state));
+
+    assertTrue(Arrays.equals(state, restored));
+    assertSame(restored[0], restored[1]);
+    assertSame(restored[2], restored[3]);
+  }
+
+  /**
+   * Creates a state shaped like that of a component tree, with property
+   * indices, repeated ids and style classes and nested arrays of child state.
+   */
+  private static Object _createState(int componentCount)
+  {
+    Object[] children = new Object[componentCount];
+
+    for (int i = 0; i < componentCount; i++)
+    {
+      Object[] properties = new Object[]
+      {
+        Integer.valueOf(0), "item" + (i % 5),
+        Integer.valueOf(3), new String("AFInstructionText"),
+        Integer.valueOf(7), Boolean.valueOf(i % 2 == 0),
+        Integer.valueOf(9), Long.valueOf(i * 1000L),
+        Integer.valueOf(12), new Date(1000000L * i),
+        Integer.valueOf(14), new BigDecimal(i).movePointLeft(2)
+      };
+
+      List<Object> attached = new ArrayList<Object>();
+      attached.add(new String("javax.faces.Number"));
+      attached.add(new Double(i / 3.0));
+
+      Map<String, Object> attributes = new HashMap<String, Object>();
+      attributes.put("rowKey", new String("r") + i);
+
+      children[i] = new Object[] { properties, attached, attributes, new int[] { i, i + 1 } };
+    }
+
+    return new Object[] { new String[] { "root", "form" }, children };
+  }
+
+  private static byte[] _writeObject(SerialFactory factory, Object state) throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ObjectOutputStream oos = factory.getObjectOutputStream(out);
+    oos.writeObject(state);
+    oos.close();
+
+    return out.toByteArray();
+  }
+
+  private static Object _readObject(SerialFactory factory, byte[] bytes) throws Exception
+  {
+    ObjectInputStream ois = factory.getObjectInputStream(new ByteArrayInputStream(bytes));
+
+    try
+    {
+      return ois.readObject();
+    }
+    finally
+    {
+      ois.close();
+    }
+  }
+
+  static private final SerialFactory _COMPACT = new CompactSerialFactory();
+  static private final SerialFactory _DEFAULT = new DefaultSerialFactory();
+}